@@ -107,7 +107,31 @@ public class Coord implements Comparable<Coord> {
 		byte dLon = (byte) ((lon24 << 6) - lon30);
 		return new Coord(lat24,lon24,dLat,dLon);
 	}
-	
+
+	/**
+	 * Pack the position (without flags and counters) into a long value.
+	 * Map units use 25 bits each, the deltas to the 30 bit values 7 bits each.
+	 * @return the packed position, see {@link #fromPacked(long)}
+	 */
+	public long toPacked(){
+		assert latDelta >= -64 && latDelta < 64 && lonDelta >= -64 && lonDelta < 64;
+		return ((long) latitude << 39) | (((long) longitude & 0x1ffffff) << 14)
+				| ((latDelta & 0x7f) << 7) | (lonDelta & 0x7f);
+	}
+
+	/**
+	 * Create a Coord from a value returned by {@link #toPacked()}.
+	 * @param packed the packed position
+	 * @return a new Coord with the same position
+	 */
+	public static Coord fromPacked(long packed){
+		int lat = (int) (packed >> 39);
+		int lon = (int) ((packed << 25) >> 39);
+		byte dLat = (byte) ((packed << 50) >> 57);
+		byte dLon = (byte) ((packed << 57) >> 57);
+		return new Coord(lat, lon, dLat, dLon);
+	}
+
 	/**
 	 * Construct from other coord instance, copies 
 	 * the lat/lon values in high precision
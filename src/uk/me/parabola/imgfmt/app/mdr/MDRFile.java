@@ -12,20 +12,19 @@
  */
 package uk.me.parabola.imgfmt.app.mdr;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import uk.me.parabola.imgfmt.app.BufferedImgFileReader;
 import uk.me.parabola.imgfmt.app.FileBackedImgFileWriter;
 import uk.me.parabola.imgfmt.app.ImgFile;
 import uk.me.parabola.imgfmt.app.ImgFileWriter;
 import uk.me.parabola.imgfmt.app.Label;
-import uk.me.parabola.imgfmt.app.lbl.Country;
-import uk.me.parabola.imgfmt.app.lbl.Region;
-import uk.me.parabola.imgfmt.app.lbl.Zip;
 import uk.me.parabola.imgfmt.app.mdr.MdrSection.PointerSizes;
-import uk.me.parabola.imgfmt.app.net.RoadDef;
 import uk.me.parabola.imgfmt.app.srt.Sort;
-import uk.me.parabola.imgfmt.app.trergn.Point;
 import uk.me.parabola.imgfmt.fs.ImgChannel;
 
 /**
@@ -69,6 +68,9 @@ public class MDRFile extends ImgFile {
 
 	private final boolean forDevice;
 
+	// Independent sections are sorted at the same time on this pool, null if not used.
+	private final ForkJoinPool sortPool;
+
 	private final MdrSection[] sections;
 	private PointerSizes sizes;
 
@@ -76,6 +78,7 @@ public class MDRFile extends ImgFile {
 		Sort sort = config.getSort();
 
 		forDevice = config.isForDevice();
+		sortPool = config.getSortPool();
 
 		mdrHeader = new MDRHeader(config.getHeaderLen());
 		mdrHeader.setSort(sort);
@@ -146,13 +149,12 @@ public class MDRFile extends ImgFile {
 			System.err.println("WARNING: input files have different code pages");
 	}
 
-	public Mdr14Record addCountry(Country country) {
+	public Mdr14Record addCountry(int countryIndex, int lblOffset, String name) {
 		Mdr14Record record = new Mdr14Record();
 
-		String name = country.getLabel().getText();
 		record.setMapIndex(currentMap);
-		record.setCountryIndex(country.getIndex());
-		record.setLblOffset(country.getLabel().getOffset());
+		record.setCountryIndex(countryIndex);
+		record.setLblOffset(lblOffset);
 		record.setName(name);
 		record.setStrOff(createString(name));
 
@@ -160,14 +162,13 @@ public class MDRFile extends ImgFile {
 		return record;
 	}
 
-	public Mdr13Record addRegion(Region region, Mdr14Record country) {
+	public Mdr13Record addRegion(int regionIndex, int countryIndex, int lblOffset, String name, Mdr14Record country) {
 		Mdr13Record record = new Mdr13Record();
 
-		String name = region.getLabel().getText();
 		record.setMapIndex(currentMap);
-		record.setLblOffset(region.getLabel().getOffset());
-		record.setCountryIndex(region.getCountry().getIndex());
-		record.setRegionIndex(region.getIndex());
+		record.setLblOffset(lblOffset);
+		record.setCountryIndex(countryIndex);
+		record.setRegionIndex(regionIndex);
 		record.setName(name);
 		record.setStrOffset(createString(name));
 		record.setMdr14(country);
@@ -187,47 +188,51 @@ public class MDRFile extends ImgFile {
 		}
 	}
 	
-	public void addZip(Zip zip) {
-		int strOff = createString(zip.getLabel().getText());
-		mdr6.addZip(currentMap, zip, strOff);
+	public void addZip(int zipIndex, String name) {
+		int strOff = createString(name);
+		mdr6.addZip(currentMap, zipIndex, name, strOff);
 	}
 
-	public void addPoint(Point point, Mdr5Record city, boolean isCity) {
+	/**
+	 * Add a point with the values that were read from a map.
+	 * @param fullType The type of the point.
+	 * @param subdiv The number of the subdivision that contains the point.
+	 * @param pointIndex The number of the point within the subdivision.
+	 * @param lblOffset The offset of the name in the LBL file of the map.
+	 * @param name The name of the point.
+	 * @param city The city that the point is in or that the point represents, can be null.
+	 * @param isCity True if the point is a city.
+	 */
+	public void addPoint(int fullType, int subdiv, int pointIndex, int lblOffset, String name,
+			Mdr5Record city, boolean isCity) {
 		assert currentMap > 0;
 
-		int fullType = point.getType();
 		if (!MdrUtils.canBeIndexed(fullType))
 			return;
 
-		Label label = point.getLabel();
-		String name = label.getText();
 		int strOff = createString(name);
 
-		Mdr11Record poi = mdr11.addPoi(currentMap, point, name, strOff);
+		Mdr11Record poi = mdr11.addPoi(currentMap, subdiv, pointIndex, lblOffset, name, strOff);
 		poi.setCity(city);
 		poi.setIsCity(isCity);
 		poi.setType(fullType);
 
-		mdr4.addType(point.getType());
+		mdr4.addType(fullType);
 	}
 
-	public void addStreet(RoadDef street, Mdr5Record mdrCity) {
-		// Add a separate record for each name
-		for (Label lab : street.getLabels()) {
-			if (lab == null)
-				break;
-
-			if (lab.getOffset() == 0)
-				continue;
-			
-			String name = lab.getText();
-			String cleanName = cleanUpName(name);
-			int strOff = createString(cleanName);
-
-			// We sort on the dirty name (ie with the Garmin shield codes) although those codes do not
-			// affect the sort order. The string for mdr15 does not include the shield codes.
-			mdr7.addStreet(currentMap, name, lab.getOffset(), strOff, mdrCity);
-		}
+	/**
+	 * Add one name of a street.
+	 * @param name The name as read from the map, including any shield codes.
+	 * @param lblOffset The offset of the name in the LBL file of the map.
+	 * @param mdrCity The city of the street, can be null.
+	 */
+	public void addStreet(String name, int lblOffset, Mdr5Record mdrCity) {
+		String cleanName = cleanUpName(name);
+		int strOff = createString(cleanName);
+
+		// We sort on the dirty name (ie with the Garmin shield codes) although those codes do not
+		// affect the sort order. The string for mdr15 does not include the shield codes.
+		mdr7.addStreet(currentMap, name, lblOffset, strOff, mdrCity);
 	}
 
 	/**
@@ -276,6 +281,12 @@ public class MDRFile extends ImgFile {
 		mdr24.sortCountries(mdr14.getCountries());
 		mdr26.sortMdr28(mdr28.getIndex());
 
+		// Sorting the largest sections only depends on the records that were
+		// collected, so when there is a pool they are all done at once here.
+		// The work is only done once, so the sections are written as before.
+		if (sortPool != null)
+			runInParallel(preWriteTask(mdr5), preWriteTask(mdr7), preWriteTask(mdr11));
+
 		writeSection(writer, 4, mdr4);
 
 		mdr1.preWrite();
@@ -310,8 +321,20 @@ public class MDRFile extends ImgFile {
 		writeSection(writer, 7, mdr7);
 
 		writeSection(writer, 5, mdr5);
-		mdr25.sortCities(mdr5.getCities());
-		mdr27.sortCities(mdr5.getCities());
+		if (sortPool != null) {
+			runInParallel(new Runnable() {
+				public void run() {
+					mdr25.sortCities(mdr5.getCities());
+				}
+			}, new Runnable() {
+				public void run() {
+					mdr27.sortCities(mdr5.getCities());
+				}
+			});
+		} else {
+			mdr25.sortCities(mdr5.getCities());
+			mdr27.sortCities(mdr5.getCities());
+		}
 		mdr17.addCities(mdr5.getSortedCities());
 		mdr5.release();
 		writeSection(writer, 6, mdr6);
@@ -362,6 +385,29 @@ public class MDRFile extends ImgFile {
 		mdrHeader.setItemSize(1, mdr1.getItemSize());
 		mdrHeader.setEnd(1, writer.position());
 		mdrHeader.setExtraValue(1, mdr1.getExtraValue());
+
+		if (sortPool != null)
+			sortPool.shutdown();
+	}
+
+	private static Runnable preWriteTask(final MdrSection section) {
+		return new Runnable() {
+			public void run() {
+				section.preWrite();
+			}
+		};
+	}
+
+	/**
+	 * Run the tasks on the sort pool and wait until they are all finished.
+	 * An exception in any of them is thrown again here.
+	 */
+	private void runInParallel(Runnable... tasks) {
+		List<ForkJoinTask<?>> running = new ArrayList<>();
+		for (Runnable task : tasks)
+			running.add(sortPool.submit(task));
+		for (ForkJoinTask<?> task : running)
+			task.join();
 	}
 
 	/**
@@ -18,7 +18,6 @@ import java.util.List;
 
 import uk.me.parabola.imgfmt.app.ImgFileWriter;
 import uk.me.parabola.imgfmt.app.srt.SortKey;
-import uk.me.parabola.imgfmt.app.trergn.Point;
 
 /**
  * Holds all the POIs, including cities.  Arranged alphabetically by
@@ -34,12 +33,12 @@ public class Mdr11 extends MdrMapSection {
 		setConfig(config);
 	}
 
-	public Mdr11Record addPoi(int mapIndex, Point point, String name, int strOff) {
+	public Mdr11Record addPoi(int mapIndex, int subdiv, int pointIndex, int lblOffset, String name, int strOff) {
 		Mdr11Record poi = new Mdr11Record();
 		poi.setMapIndex(mapIndex);
-		poi.setPointIndex(point.getNumber());
-		poi.setSubdiv(point.getSubdiv().getNumber());
-		poi.setLblOffset(point.getLabel().getOffset());
+		poi.setPointIndex(pointIndex);
+		poi.setSubdiv(subdiv);
+		poi.setLblOffset(lblOffset);
 		poi.setName(name);
 		poi.setStrOffset(strOff);
 
@@ -54,7 +53,7 @@ public class Mdr11 extends MdrMapSection {
 	 * de-duplicated in the index in the same way that streets and cities are.
 	 */
 	protected void preWriteImpl() {
-		List<SortKey<Mdr11Record>> keys = MdrUtils.sortList(getConfig().getSort(), pois);
+		List<SortKey<Mdr11Record>> keys = MdrUtils.sortList(getConfig().getSort(), pois, getConfig().getSortPool());
 
 		pois.clear();
 		for (SortKey<Mdr11Record> sk : keys) {
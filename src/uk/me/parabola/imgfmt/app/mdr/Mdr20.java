@@ -15,7 +15,6 @@ package uk.me.parabola.imgfmt.app.mdr;
 
 import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -83,7 +82,7 @@ public class Mdr20 extends Mdr2x {
 
 			keys.add(key);
 		}
-		Collections.sort(keys);
+		MdrUtils.sort(keys, getConfig().getSortPool());
 
 		Collator collator = getConfig().getSort().getCollator();
 
@@ -13,7 +13,6 @@
 package uk.me.parabola.imgfmt.app.mdr;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -59,7 +58,7 @@ public class Mdr21 extends Mdr2x {
 			keys.add(sort.createSortKey(s, name, s.getIndex(), cache));
 		}
 
-		Collections.sort(keys);
+		MdrUtils.sort(keys, getConfig().getSortPool());
 
 		String lastName = null;
 		int lastMapid = 0;
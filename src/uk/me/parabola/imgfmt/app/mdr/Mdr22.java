@@ -62,7 +62,7 @@ public class Mdr22 extends Mdr2x {
 			// For memory use, we re-use country name part of the key.
 			keys.add(sort.createSortKey(s, name, s.getIndex(), cache));
 		}
-		Collections.sort(keys);
+		MdrUtils.sort(keys, getConfig().getSortPool());
 
 		int record = 0;
 
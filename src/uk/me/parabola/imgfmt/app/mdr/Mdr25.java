@@ -13,12 +13,12 @@
 package uk.me.parabola.imgfmt.app.mdr;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import uk.me.parabola.imgfmt.app.ImgFileWriter;
 import uk.me.parabola.imgfmt.app.srt.Sort;
 import uk.me.parabola.imgfmt.app.srt.SortKey;
+import uk.me.parabola.imgfmt.app.srt.SortKeyArena;
 
 /**
  * Cities sorted by country.
@@ -40,12 +40,13 @@ public class Mdr25 extends MdrSection {
 		Sort sort = getConfig().getSort();
 
 		List<SortKey<Mdr5Record>> keys = new ArrayList<SortKey<Mdr5Record>>();
+		SortKeyArena arena = new SortKeyArena();
 		for (Mdr5Record c : list) {
-			SortKey<Mdr5Record> key = sort.createSortKey(c, c.getMdrCountry().getName(), c.getGlobalCityIndex());
+			SortKey<Mdr5Record> key = sort.createSortKey(c, c.getMdrCountry().getName(), c.getGlobalCityIndex(), arena);
 			keys.add(key);
 		}
 
-		Collections.sort(keys);
+		MdrUtils.sort(keys, getConfig().getSortPool());
 
 		String lastName = null;
 		Mdr5Record lastCity = null;
@@ -21,6 +21,7 @@ import uk.me.parabola.imgfmt.app.ImgFileWriter;
 import uk.me.parabola.imgfmt.app.srt.MultiSortKey;
 import uk.me.parabola.imgfmt.app.srt.Sort;
 import uk.me.parabola.imgfmt.app.srt.SortKey;
+import uk.me.parabola.imgfmt.app.srt.SortKeyArena;
 
 /**
  * Section containing cities.
@@ -55,18 +56,19 @@ public class Mdr5 extends MdrMapSection {
 
 		List<SortKey<Mdr5Record>> sortKeys = new ArrayList<>(allCities.size());
 		Sort sort = getConfig().getSort();
+		SortKeyArena arena = new SortKeyArena();
 		for (Mdr5Record m : allCities) {
 			if (m.getName() == null)
 				continue;
 
 			// Sort by city name, region name, country name and map index.
-			SortKey<Mdr5Record> sortKey = sort.createSortKey(m, m.getName());
-			SortKey<Mdr5Record> regionKey = sort.createSortKey(null, m.getRegionName());
-			SortKey<Mdr5Record> countryKey = sort.createSortKey(null, m.getCountryName(), m.getMapIndex());
+			SortKey<Mdr5Record> sortKey = sort.createSortKey(m, m.getName(), 0, arena);
+			SortKey<Mdr5Record> regionKey = sort.createSortKey(null, m.getRegionName(), 0, arena);
+			SortKey<Mdr5Record> countryKey = sort.createSortKey(null, m.getCountryName(), m.getMapIndex(), arena);
 			sortKey = new MultiSortKey<>(sortKey, regionKey, countryKey);
 			sortKeys.add(sortKey);
 		}
-		Collections.sort(sortKeys);
+		MdrUtils.sort(sortKeys, getConfig().getSortPool());
 
 		Collator collator = getConfig().getSort().getCollator();
 
@@ -17,7 +17,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import uk.me.parabola.imgfmt.app.ImgFileWriter;
-import uk.me.parabola.imgfmt.app.lbl.Zip;
 import uk.me.parabola.imgfmt.app.srt.SortKey;
 
 /**
@@ -36,8 +35,8 @@ public class Mdr6 extends MdrMapSection {
 		setConfig(config);
 	}
 
-	public void addZip(int mapIndex, Zip zip, int strOff) {
-		Mdr6Record record = new Mdr6Record(zip);
+	public void addZip(int mapIndex, int zipIndex, String name, int strOff) {
+		Mdr6Record record = new Mdr6Record(zipIndex, name);
 		record.setMapIndex(mapIndex);
 		record.setStringOffset(strOff);
 		zips.add(record);
@@ -12,8 +12,6 @@
  */
 package uk.me.parabola.imgfmt.app.mdr;
 
-import uk.me.parabola.imgfmt.app.lbl.Zip;
-
 /**
  * Holds information about a zip that will make its way into mdr 6.
  * 
@@ -26,9 +24,9 @@ public class Mdr6Record extends RecordBase implements NamedRecord {
 	private final String name;
 	private int stringOffset;
 
-	public Mdr6Record(Zip zip) {
-		zipIndex = zip.getIndex();
-		name = zip.getLabel().getText();
+	public Mdr6Record(int zipIndex, String name) {
+		this.zipIndex = zipIndex;
+		this.name = name;
 	}
 
 	public int getZipIndex() {
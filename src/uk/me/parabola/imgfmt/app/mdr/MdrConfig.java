@@ -13,6 +13,7 @@
 package uk.me.parabola.imgfmt.app.mdr;
 
 import java.io.File;
+import java.util.concurrent.ForkJoinPool;
 
 import uk.me.parabola.imgfmt.app.srt.Sort;
 
@@ -32,6 +33,8 @@ public class MdrConfig {
 	private int headerLen = DEFAULT_HEADER_LEN;
 	private Sort sort;
 	private File outputDir;
+	private int sortThreads;
+	private ForkJoinPool sortPool;
 
 	/**
 	 * True if we are creating the file, rather than reading it.
@@ -87,4 +90,19 @@ public class MdrConfig {
 		if (outputDir != null)
 			this.outputDir = new File(outputDir);
 	}
+
+	public void setSortThreads(int sortThreads) {
+		this.sortThreads = sortThreads;
+	}
+
+	/**
+	 * The sections are sorted on this pool when more than one sort thread
+	 * is configured.
+	 * @return The pool, or null if everything is sorted in the calling thread.
+	 */
+	public ForkJoinPool getSortPool() {
+		if (sortPool == null && sortThreads > 1)
+			sortPool = new ForkJoinPool(sortThreads);
+		return sortPool;
+	}
 }
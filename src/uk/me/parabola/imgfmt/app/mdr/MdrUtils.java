@@ -13,11 +13,17 @@
 package uk.me.parabola.imgfmt.app.mdr;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import uk.me.parabola.imgfmt.app.srt.Sort;
 import uk.me.parabola.imgfmt.app.srt.SortKey;
+import uk.me.parabola.imgfmt.app.srt.SortKeyArena;
 
 /**
  * A bunch of static routines for use in creating the MDR file.
@@ -27,6 +33,9 @@ public class MdrUtils {
 	public static final int STREET_INDEX_PREFIX_LEN = 4;
 	public static final int POI_INDEX_PREFIX_LEN = 4;
 
+	// Lists that are shorter are not split up when sorting in parallel.
+	private static final int PARALLEL_SORT_MIN = 8192;
+
 	/**
 	 * Get the group number for the poi.  This is the first byte of the records
 	 * in mdr9.
@@ -80,15 +89,53 @@ public class MdrUtils {
 	 * by calling getObject().
 	 */
 	public static <T extends NamedRecord> List<SortKey<T>> sortList(Sort sort, List<T> list) {
+		return sortList(sort, list, null);
+	}
+
+	/**
+	 * Sort records that are sorted by a name, using the given pool for large lists.
+	 * @see #sortList(Sort, List)
+	 */
+	public static <T extends NamedRecord> List<SortKey<T>> sortList(Sort sort, List<T> list, ForkJoinPool pool) {
 		List<SortKey<T>> toSort = new ArrayList<SortKey<T>>(list.size());
+		SortKeyArena arena = new SortKeyArena();
 		for (T m : list) {
-			SortKey<T> sortKey = sort.createSortKey(m, m.getName(), m.getMapIndex());
+			SortKey<T> sortKey = sort.createSortKey(m, m.getName(), m.getMapIndex(), arena);
 			toSort.add(sortKey);
 		}
-		Collections.sort(toSort);
+		sort(toSort, pool);
 		return toSort;
 	}
 
+	/**
+	 * Sort the list into its natural order. The sort is stable, so the result is
+	 * exactly the same as that of Collections.sort(), whether a pool is given or not.
+	 *
+	 * @param list The list to be sorted.
+	 * @param pool If not null, large lists are split up and sorted on this pool.
+	 */
+	public static <T extends Comparable<? super T>> void sort(List<T> list, ForkJoinPool pool) {
+		if (pool == null || list.size() < 2 * PARALLEL_SORT_MIN) {
+			Collections.sort(list);
+			return;
+		}
+
+		Object[] a = list.toArray();
+		MergeSort task = new MergeSort(a, new Object[a.length], 0, a.length);
+		if (ForkJoinTask.inForkJoinPool())
+			task.invoke();
+		else
+			pool.invoke(task);
+
+		ListIterator<T> it = list.listIterator();
+		for (Object o : a) {
+			it.next();
+			@SuppressWarnings("unchecked")
+			T t = (T) o;
+			it.set(t);
+		}
+	}
+
 	/**
 	 * The 'natural' type is always a combination of the type and subtype with the type
 	 * shifted 5 bits and the sub type in the low 5 bits.
@@ -107,4 +154,51 @@ public class MdrUtils {
 
 		return type << 5 | sub;
 	}
+
+	/**
+	 * Sorts both halves of the range in parallel and merges them. Equal
+	 * elements are taken from the left half first to keep the sort stable.
+	 */
+	private static class MergeSort extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Object[] a;
+		private final Object[] tmp;
+		private final int lo;
+		private final int hi;
+
+		MergeSort(Object[] a, Object[] tmp, int lo, int hi) {
+			this.a = a;
+			this.tmp = tmp;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute() {
+			if (hi - lo < 2 * PARALLEL_SORT_MIN) {
+				Arrays.sort(a, lo, hi);
+				return;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new MergeSort(a, tmp, lo, mid), new MergeSort(a, tmp, mid, hi));
+			merge(mid);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void merge(int mid) {
+			System.arraycopy(a, lo, tmp, lo, mid - lo);
+			int left = lo;
+			int right = mid;
+			int out = lo;
+			while (left < mid && right < hi) {
+				if (((Comparable<Object>) a[right]).compareTo(tmp[left]) < 0)
+					a[out++] = a[right++];
+				else
+					a[out++] = tmp[left++];
+			}
+			// anything left in the right half is already in place
+			System.arraycopy(tmp, left, a, out, mid - left);
+		}
+	}
 }
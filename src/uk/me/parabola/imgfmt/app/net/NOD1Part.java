@@ -23,6 +23,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import uk.me.parabola.imgfmt.app.Area;
 import uk.me.parabola.imgfmt.app.Coord;
@@ -188,6 +189,9 @@ public class NOD1Part {
 	private List<RouteNode> nodes = new ArrayList<RouteNode>();
 	private TableA tabA = new TableA();
 	private Map<RouteNode,RouteNode> destNodes = new LinkedHashMap<RouteNode, RouteNode>();
+	// if not null, the arcs that are known not to be internal, the
+	// internal flag of the arcs is then not changed
+	private final Set<RouteArc> externalArcs;
 
 	/**
 	 * Create an unbounded NOD1Part.
@@ -196,8 +200,21 @@ public class NOD1Part {
 	 * all arcs will be considered internal.
 	 */
 	public NOD1Part() {
+		this(null);
+	}
+
+	/**
+	 * Create an unbounded NOD1Part that doesn't change the arcs, so that
+	 * several parts can be subdivided at the same time.
+	 *
+	 * @param externalArcs The arcs that are not internal, in addition to
+	 * the ones that have the internal flag cleared. The arcs that are found
+	 * not to be internal are added to it. May be null to use the flag only.
+	 */
+	public NOD1Part(Set<RouteArc> externalArcs) {
 		log.info("creating new unbounded NOD1Part");
 		this.bbox = null;
+		this.externalArcs = externalArcs;
 	}
 
 	/**
@@ -206,9 +223,10 @@ public class NOD1Part {
 	 * The bounding box is used to decide which arcs
 	 * are internal.
 	 */
-	private NOD1Part(BBox bbox) {
+	private NOD1Part(BBox bbox, Set<RouteArc> externalArcs) {
 		log.info("creating new NOD1Part:", bbox);
 		this.bbox = bbox;
+		this.externalArcs = externalArcs;
 	}
 
 	/**
@@ -228,11 +246,11 @@ public class NOD1Part {
 		for (RouteArc arc : node.arcsIteration()) {
 			tabA.addArc(arc);
 			RouteNode dest = arc.getDest();
-			if (arc.isInternal() == false){
+			if (isInternal(arc) == false){
 				destNodes.put(dest, dest);
 			}
 			else if (bbox != null && !bbox.contains(dest.getCoord()) || dest.getGroup() != node.getGroup()) {
-				arc.setInternal(false);
+				setExternal(arc);
 				destNodes.put(dest, dest);
 			}
 		}
@@ -245,10 +263,10 @@ public class NOD1Part {
 					if (arc.getSource() != node){
 						tabA.addArc(arc);
 						RouteNode dest = arc.getDest();
-						if (arc.isInternal() == false)
+						if (isInternal(arc) == false)
 							destNodes.put(dest, dest);
 						else if (bbox != null && !bbox.contains(dest.getCoord()) || dest.getGroup() != node.getGroup()) {
-							arc.setInternal(false);
+							setExternal(arc);
 							destNodes.put(dest, dest);
 						} 
 					}
@@ -259,6 +277,19 @@ public class NOD1Part {
 		nodesSize += node.boundSize();
 	}
 
+	private boolean isInternal(RouteArc arc) {
+		if (externalArcs != null && externalArcs.contains(arc))
+			return false;
+		return arc.isInternal();
+	}
+
+	private void setExternal(RouteArc arc) {
+		if (externalArcs != null)
+			externalArcs.add(arc);
+		else
+			arc.setInternal(false);
+	}
+
 	/**
 	 * Subdivide this part recursively until it satisfies the constraints.
 	 */
@@ -295,7 +326,7 @@ public class NOD1Part {
 		NOD1Part[] parts = new NOD1Part[2];
 
 		for (int i = 0; i < split.length; i++)
-			parts[i] = new NOD1Part(split[i]);
+			parts[i] = new NOD1Part(split[i], externalArcs);
 		
 		
 		for (RouteNode node : nodes) {
@@ -18,13 +18,24 @@ package uk.me.parabola.imgfmt.app.net;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.me.parabola.imgfmt.ExitException;
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.imgfmt.app.CoordNode;
 import uk.me.parabola.log.Logger;
@@ -41,6 +52,11 @@ public class RoadNetwork {
 	private static final Logger log = Logger.getLogger(RoadNetwork.class);
 
 	private final static int MAX_RESTRICTIONS_ARCS = 7;
+	// the number of nodes or roads that are handled by one task
+	private final static int CHUNK_SIZE = 10000;
+	// The pool is shared by all the maps, so that the number of threads
+	// doesn't grow with the number of maps that are made at the same time.
+	private static ThreadPoolExecutor routeCenterPool;
 	private final Map<Integer, RouteNode> nodes = new LinkedHashMap<>();
 
 	// boundary nodes
@@ -53,6 +69,7 @@ public class RoadNetwork {
 	private boolean checkRoundaboutFlares;
 	private int maxFlareLengthRatio ;
 	private boolean reportSimilarArcs;
+	private int routeCenterThreads;
 
 	public void config(EnhancedProperties props) {
 		String ath = props.getProperty("adjust-turn-headings");
@@ -67,6 +84,8 @@ public class RoadNetwork {
 		maxFlareLengthRatio = props.getProperty("max-flare-length-ratio", 0);
 
 		reportSimilarArcs = props.getProperty("report-similar-arcs", false);
+
+		routeCenterThreads = props.getThreadsProperty("route-center-threads");
 	}
 
 	public void addRoad(RoadDef roadDef, List<Coord> coordList) {
@@ -232,16 +251,7 @@ public class RoadNetwork {
 			for (RouteNode node : nodeList) {
 				if (node.getGroup() != group)
 					continue;
-				if(!node.isBoundary()) {
-					if(checkRoundabouts)
-						node.checkRoundabouts();
-					if(checkRoundaboutFlares)
-						node.checkRoundaboutFlares(maxFlareLengthRatio);
-					if(reportSimilarArcs)
-						node.reportSimilarArcs();
-				}
-				if(adjustTurnHeadings != 0)
-					node.tweezeArcs(adjustTurnHeadings);
+				checkNode(node);
 				nod1.addNode(node);
 				n++;
 			}
@@ -250,14 +260,124 @@ public class RoadNetwork {
 		}
 	}
 
+	/**
+	 * Same as {@link #splitCenters()}, but the nodes are checked and the
+	 * groups are subdivided by the pool.
+	 *
+	 * The groups can't simply share the arcs: when a node is added to a
+	 * NOD1Part, arcs of nodes in other groups can be found not to be
+	 * internal. This changes the following groups but not the ones before,
+	 * so each group gets its own set of the arcs that the groups before it
+	 * have found, and the result is the same as without the pool.
+	 */
+	private void splitCenters(ExecutorService pool) {
+		assert centers.isEmpty() : "already subdivided into centers";
+
+		final List<RouteNode> nodeList = new ArrayList<>(nodes.values());
+		nodes.clear(); // return to GC
+		List<Future<Object>> checks = new ArrayList<>();
+		for (int start = 0; start < nodeList.size(); start += CHUNK_SIZE) {
+			final List<RouteNode> chunk = nodeList.subList(start, Math.min(start + CHUNK_SIZE, nodeList.size()));
+			checks.add(pool.submit(new Callable<Object>() {
+				public Object call() {
+					for (RouteNode node : chunk)
+						checkNode(node);
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> future : checks)
+			getResult(future);
+
+		Set<RouteArc> externalArcs = new HashSet<>();
+		List<Future<List<RouteCenter>>> parts = new ArrayList<>();
+		for (int group = 0; group <= 4; group++){
+			Set<RouteArc> groupArcs = new HashSet<>(externalArcs);
+			final NOD1Part nod1 = new NOD1Part(groupArcs);
+			int n = 0;
+			for (RouteNode node : nodeList) {
+				if (node.getGroup() != group)
+					continue;
+				nod1.addNode(node);
+				n++;
+			}
+			if (n == 0)
+				continue;
+			externalArcs.addAll(groupArcs);
+			parts.add(pool.submit(new Callable<List<RouteCenter>>() {
+				public List<RouteCenter> call() {
+					return nod1.subdivide();
+				}
+			}));
+		}
+		for (Future<List<RouteCenter>> future : parts)
+			centers.addAll(getResult(future));
+	}
+
+	private void checkNode(RouteNode node) {
+		if(!node.isBoundary()) {
+			if(checkRoundabouts)
+				node.checkRoundabouts();
+			if(checkRoundaboutFlares)
+				node.checkRoundaboutFlares(maxFlareLengthRatio);
+			if(reportSimilarArcs)
+				node.reportSimilarArcs();
+		}
+		if(adjustTurnHeadings != 0)
+			node.tweezeArcs(adjustTurnHeadings);
+	}
+
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new ExitException("Interrupted while making the route centers");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new ExitException("Failed to make the route centers: " + cause);
+		}
+	}
+
 	public List<RouteCenter> getCenters() {
 		if (centers.isEmpty()){
-			addArcsToMajorRoads();
-			splitCenters();
+			if (routeCenterThreads > 0 && !nodes.isEmpty()) {
+				ExecutorService pool = getPool(routeCenterThreads);
+				addArcsToMajorRoads(pool);
+				splitCenters(pool);
+			} else {
+				addArcsToMajorRoads();
+				splitCenters();
+			}
 		}
 		return centers;
 	}
 
+	/**
+	 * Get the pool that is shared by all the maps. It is made larger if
+	 * more threads are wanted than before.
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		if (routeCenterPool == null) {
+			routeCenterPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "route-center");
+					// the pool is never shut down
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else if (threads > routeCenterPool.getMaximumPoolSize()) {
+			routeCenterPool.setMaximumPoolSize(threads);
+			routeCenterPool.setCorePoolSize(threads);
+		}
+		return routeCenterPool;
+	}
+
 	/**
 	 * add indirect arcs for each road class (in descending order)
 	 */
@@ -271,6 +391,40 @@ public class RoadNetwork {
 		log.info(" added major road arcs in " + (System.currentTimeMillis() - t1) + " ms");
 	}
 
+	/**
+	 * Same as {@link #addArcsToMajorRoads()}, but the arcs are calculated
+	 * by the pool. They are added to the nodes in the order of the roads,
+	 * so the result is the same.
+	 */
+	private void addArcsToMajorRoads(ExecutorService pool) {
+		long t1 = System.currentTimeMillis();
+
+		// the groups are calculated when they are first needed
+		for (RouteNode node : nodes.values())
+			node.getGroup();
+
+		List<RoadDef> majorRoads = new ArrayList<>();
+		for (RoadDef rd: roadDefs){
+			if (rd.getRoadClass() >= 1)
+				majorRoads.add(rd);
+		}
+		List<Future<List<List<RouteArc>>>> futures = new ArrayList<>();
+		for (int start = 0; start < majorRoads.size(); start += CHUNK_SIZE) {
+			final List<RoadDef> chunk = majorRoads.subList(start, Math.min(start + CHUNK_SIZE, majorRoads.size()));
+			futures.add(pool.submit(new Callable<List<List<RouteArc>>>() {
+				public List<List<RouteArc>> call() {
+					List<List<RouteArc>> arcLists = new ArrayList<>();
+					for (RoadDef rd : chunk)
+						arcLists.addAll(rd.getNode().getArcsToMajorRoads(rd));
+					return arcLists;
+				}
+			}));
+		}
+		for (Future<List<List<RouteArc>>> future : futures)
+			RouteNode.insertArcs(getResult(future));
+		log.info(" added major road arcs in " + (System.currentTimeMillis() - t1) + " ms");
+	}
+
 	/**
 	 * Get the list of nodes on the boundary of the network.
 	 *
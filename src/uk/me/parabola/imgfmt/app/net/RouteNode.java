@@ -939,16 +939,27 @@ public class RouteNode implements Comparable<RouteNode> {
 	 * @param maxRoadClass
 	 */
 	public void addArcsToMajorRoads(RoadDef road){
+		insertArcs(getArcsToMajorRoads(road));
+	}
+
+	/**
+	 * Calculate the indirect arcs for {@link #addArcsToMajorRoads(RoadDef)}
+	 * without adding them to the nodes. Only the arcs of the road are
+	 * changed, so this can be done for different roads at the same time
+	 * once the groups of the nodes are known.
+	 * @param road the road that starts at this node
+	 * @return lists of arcs, each starts with the direct arc of the road
+	 * after which the following indirect arcs are to be inserted
+	 */
+	public List<List<RouteArc>> getArcsToMajorRoads(RoadDef road){
 		assert road.getNode() == this;
+		List<List<RouteArc>> result = new ArrayList<>();
 		RouteNode current = this;
 		// the nodes of this road
 		List<RouteNode> nodes = new ArrayList<>();
 		// the forward arcs of this road
 		List<RouteArc> forwardArcs = new ArrayList<>();
-		// will contain the highest other road of each node 
-		IntArrayList forwardArcPositions = new IntArrayList();
 		List<RouteArc> reverseArcs = new ArrayList<>();
-		IntArrayList reverseArcPositions = new IntArrayList();
 
 		// collect the nodes of the road and remember the arcs between them
 		nodes.add(current);
@@ -962,9 +973,7 @@ public class RouteNode implements Comparable<RouteNode> {
 							next = arc.getDest();
 							nodes.add(next);
 							forwardArcs.add(arc);
-							forwardArcPositions.add(i);
 						} else {
-							reverseArcPositions.add(i);
 							reverseArcs.add(arc);
 						}
 					}
@@ -974,10 +983,8 @@ public class RouteNode implements Comparable<RouteNode> {
 		}
 		
 		if (nodes.size() < 3)
-			return;
+			return result;
 //		System.out.println(road + " " + nodes.size() + " " + forwardArcs.size());
-		ArrayList<RouteArc> newArcs = new ArrayList<>(); 
-		IntArrayList arcPositions = forwardArcPositions;
 		List<RouteArc> roadArcs = forwardArcs;
 		for (int dir = 0; dir < 2; dir++){
 			// forward arcs first
@@ -990,7 +997,8 @@ public class RouteNode implements Comparable<RouteNode> {
 				int finalClass = road.getRoadClass();
 				if (finalClass <= currentClass)
 					continue;
-				newArcs.clear();
+				List<RouteArc> newArcs = new ArrayList<>();
+				newArcs.add(roadArcs.get(i));
 				double partialArcLength = 0;
 				double pathLength = arcToStepNode.getLengthInMeter();
 				for (int j = i+2; j < nodes.size(); j++){
@@ -1032,30 +1040,32 @@ public class RouteNode implements Comparable<RouteNode> {
 							break;
 					}
 				}
-				if (newArcs.isEmpty() == false){
-					int directArcPos =  arcPositions.getInt(i);
-					assert nodes.get(i).arcs.get(directArcPos).isDirect();
-					assert nodes.get(i).arcs.get(directArcPos).getRoadDef() == newArcs.get(0).getRoadDef();
-					assert nodes.get(i).arcs.get(directArcPos).isForward() == newArcs.get(0).isForward();
-					nodes.get(i).arcs.addAll(directArcPos + 1, newArcs);
-					if (dir == 0 && i > 0){
-						// check if the inserted arcs change the position of the direct reverse arc
-						int reverseArcPos = reverseArcPositions.get(i-1); // i-1 because first node doesn't have reverse arc 
-						if (directArcPos < reverseArcPos)
-							reverseArcPositions.set(i - 1, reverseArcPos + newArcs.size());
-							
-					}
-				}
+				if (newArcs.size() > 1)
+					result.add(newArcs);
 			}
 			if (dir > 0)
 				break;
 			// reverse the arrays for the other direction
 			Collections.reverse(reverseArcs);
-			Collections.reverse(reverseArcPositions);
 			Collections.reverse(nodes);
-			arcPositions = reverseArcPositions;
 			roadArcs = reverseArcs;
 		}
+		return result;
+	}
+
+	/**
+	 * Add the indirect arcs that were calculated by
+	 * {@link #getArcsToMajorRoads(RoadDef)} to their nodes.
+	 * @param arcLists the result of getArcsToMajorRoads
+	 */
+	public static void insertArcs(List<List<RouteArc>> arcLists){
+		for (List<RouteArc> newArcs : arcLists){
+			RouteArc directArc = newArcs.get(0);
+			List<RouteArc> arcs = directArc.getSource().arcs;
+			int directArcPos = arcs.indexOf(directArc);
+			assert directArcPos >= 0;
+			arcs.addAll(directArcPos + 1, newArcs.subList(1, newArcs.size()));
+		}
 	}
 
 	/**
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.imgfmt.app.srt;
+
+/**
+ * A sort key whose bytes are stored in a {@link SortKeyArena}.
+ *
+ * It compares in the same way as {@link SrtSortKey}. The first eight bytes
+ * are also kept in a long, so that most comparisons do not have to look
+ * at the arena at all.
+ */
+class ArenaSortKey<T> implements SortKey<T> {
+	private final T orig;
+	private final byte[] slab;
+	private final int offset;
+	// labels are much shorter than 64k, so the lengths fit in a char
+	private final char length;
+	private final char limit;
+	private final long prefix;
+	private final int second;
+
+	ArenaSortKey(T orig, byte[] slab, int offset, int length, int limit, int second) {
+		this.orig = orig;
+		this.slab = slab;
+		this.offset = offset;
+		this.length = (char) Math.min(length, Character.MAX_VALUE);
+		this.limit = (char) Math.min(limit, Character.MAX_VALUE);
+		this.second = second;
+
+		long p = 0;
+		for (int i = 0; i < 8; i++)
+			p = (p << 8) | byteAt(i);
+		prefix = p;
+	}
+
+	public int compareTo(SortKey<T> o) {
+		ArenaSortKey<T> other = (ArenaSortKey<T>) o;
+		int n = Math.min(limit, other.limit);
+
+		int start = 0;
+		if (n >= 8) {
+			if (prefix != other.prefix)
+				return (prefix ^ Long.MIN_VALUE) < (other.prefix ^ Long.MIN_VALUE) ? -1 : 1;
+			start = 8;
+		}
+
+		int end = Math.min(n, Math.max(length, other.length));
+		for (int i = start; i < end; i++) {
+			int k1 = byteAt(i);
+			int k2 = other.byteAt(i);
+			if (k1 < k2)
+				return -1;
+			else if (k1 > k2)
+				return 1;
+		}
+
+		if (second == other.second)
+			return 0;
+		else if (second < other.second)
+			return -1;
+		else
+			return 1;
+	}
+
+	private int byteAt(int i) {
+		return i < length ? slab[offset + i] & 0xff : 0;
+	}
+
+	public T getObject() {
+		return orig;
+	}
+}
@@ -65,7 +65,8 @@ public class Sort {
 	private final List<CodePosition> expansions = new ArrayList<>();
 	private int maxExpSize = 1;
 
-	private CharsetEncoder encoder;
+	// The encoder is not thread safe and the sort keys are created on several threads
+	private ThreadLocal<CharsetEncoder> encoder;
 	private boolean multi;
 	private int maxPage;
 
@@ -175,16 +176,7 @@ public class Sort {
 		}
 
 		try {
-			char[] chars;
-			if (isMulti()) {
-				chars = s.toCharArray();
-			} else {
-				ByteBuffer out = encoder.encode(CharBuffer.wrap(s));
-				byte[] bval = out.array();
-				chars = new char[bval.length];
-				for (int i = 0; i < bval.length; i++)
-					chars[i] = (char) (bval[i] & 0xff);
-			}
+			char[] chars = toChars(s);
 
 			// In theory you could have a string where every character expands into maxExpSize separate characters
 			// in the key.  However if we allocate enough space to deal with the worst case, then we waste a
@@ -211,6 +203,52 @@ public class Sort {
 		}
 	}
 
+	/**
+	 * Create a sort key whose bytes are stored in the given arena, instead of in an
+	 * array of its own.
+	 *
+	 * The keys sort in exactly the same order as those created by
+	 * {@link #createSortKey(Object, String, int, Map)}, but can only be compared to
+	 * other keys that were created in an arena.
+	 *
+	 * @param object This is saved in the sort key for later retrieval and plays no part in the sorting.
+	 * @param s The string for which the sort key is to be created.
+	 * @param second Secondary sort key.
+	 * @param arena The key bytes are appended to this arena.
+	 * @return A sort key.
+	 */
+	public <T> SortKey<T> createSortKey(T object, String s, int second, SortKeyArena arena) {
+		char[] chars;
+		try {
+			chars = toChars(s);
+		} catch (CharacterCodingException e) {
+			return arena.createKey(object, ZERO_KEY, ZERO_KEY.length, ZERO_KEY.length, 0);
+		}
+
+		// The limit is the size of the array that would have been allocated above, the
+		// comparison stops there. The buffer is always large enough for the worst case.
+		int limit = (chars.length + 1 + 2) * 4;
+		int maxLimit = (chars.length + 1) * 4 * maxExpSize;
+		byte[] buf = arena.getBuffer(Math.max(limit, maxLimit));
+		int length = fillCompleteKey(chars, buf);
+		if (length > limit)
+			limit = maxLimit;
+
+		return arena.createKey(object, buf, length, limit, second);
+	}
+
+	private char[] toChars(String s) throws CharacterCodingException {
+		if (isMulti())
+			return s.toCharArray();
+
+		ByteBuffer out = encoder.get().encode(CharBuffer.wrap(s));
+		byte[] bval = out.array();
+		char[] chars = new char[bval.length];
+		for (int i = 0; i < bval.length; i++)
+			chars[i] = (char) (bval[i] & 0xff);
+		return chars;
+	}
+
 	/**
 	 * Create a sort key based on a Label.
 	 *
@@ -259,7 +297,7 @@ public class Sort {
 	 * @see #createSortKey(Object, String, int, Map)
 	 */
 	public <T> SortKey<T> createSortKey(T object, String s, int second) {
-		return createSortKey(object, s, second, null);
+		return createSortKey(object, s, second, (Map<String, byte[]>) null);
 	}
 
 	/**
@@ -268,7 +306,7 @@ public class Sort {
 	 * @see #createSortKey(Object, String, int, Map)
 	 */
 	public <T> SortKey<T> createSortKey(T object, String s) {
-		return createSortKey(object, s, 0, null);
+		return createSortKey(object, s, 0, (Map<String, byte[]>) null);
 	}
 
 	public <T> SortKey<T> createSortKey(T object, Label label) {
@@ -284,11 +322,12 @@ public class Sort {
 	 *
 	 * @param bVal The string for which we are creating the sort key.
 	 * @param key The sort key. This will be filled in.
+	 * @return The number of bytes of the key that were used.
 	 */
-	private void fillCompleteKey(char[] bVal, byte[] key) {
+	private int fillCompleteKey(char[] bVal, byte[] key) {
 		int start = fillKey(Collator.PRIMARY, bVal, key, 0);
 		start = fillKey(Collator.SECONDARY, bVal, key, start);
-		fillKey(Collator.TERTIARY, bVal, key, start);
+		return fillKey(Collator.TERTIARY, bVal, key, start);
 	}
 
 	/**
@@ -393,8 +432,14 @@ public class Sort {
 		this.codepage = codepage;
 		charset = charsetFromCodepage(codepage);
 
-		encoder = charset.newEncoder();
-		encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		final Charset cs = charset;
+		encoder = new ThreadLocal<CharsetEncoder>() {
+			protected CharsetEncoder initialValue() {
+				CharsetEncoder enc = cs.newEncoder();
+				enc.onUnmappableCharacter(CodingErrorAction.REPLACE);
+				return enc;
+			}
+		};
 	}
 
 	public String getDescription() {
@@ -638,8 +683,9 @@ public class Sort {
 				CharBuffer in1 = CharBuffer.wrap(source);
 				CharBuffer in2 = CharBuffer.wrap(target);
 				try {
-					byte[] bytes1 = encoder.encode(in1).array();
-					byte[] bytes2 = encoder.encode(in2).array();
+					CharsetEncoder enc = encoder.get();
+					byte[] bytes1 = enc.encode(in1).array();
+					byte[] bytes2 = enc.encode(in2).array();
 					chars1 = new char[bytes1.length];
 					for (int i = 0; i < bytes1.length; i++)
 						chars1[i] = (char) (bytes1[i] & 0xff);
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.imgfmt.app.srt;
+
+/**
+ * Holds the bytes of many sort keys in a few large arrays.
+ *
+ * When there are millions of keys to sort, giving each one its own array
+ * costs a lot of memory and garbage collection time. The keys created
+ * with {@link Sort#createSortKey(Object, String, int, SortKeyArena)} only
+ * hold a reference to the part of the shared array where their bytes are.
+ *
+ * The arena is not thread safe, use one for each list that is sorted.
+ */
+public class SortKeyArena {
+	private static final int MIN_SLAB_SIZE = 4096;
+	private static final int MAX_SLAB_SIZE = 1 << 20;
+
+	private byte[] slab = new byte[0];
+	private int used;
+
+	// The keys are created in here before they are copied to the slab.
+	private byte[] buffer = new byte[256];
+
+	/**
+	 * Get the buffer to create a key in.
+	 * @param size The minimum size of the buffer.
+	 */
+	byte[] getBuffer(int size) {
+		if (buffer.length < size)
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+		return buffer;
+	}
+
+	/**
+	 * Copy the key into the arena and create a sort key for it.
+	 *
+	 * @param key The bytes of the key.
+	 * @param length The number of bytes of the key that are used.
+	 * @param limit The comparison stops at this length. The bytes after the used
+	 * part count as zero.
+	 */
+	<T> SortKey<T> createKey(T object, byte[] key, int length, int limit, int second) {
+		if (used + length > slab.length) {
+			// start small, so that sorting a short list does not take a lot of memory
+			int size = Math.min(MAX_SLAB_SIZE, Math.max(MIN_SLAB_SIZE, slab.length * 2));
+			slab = new byte[Math.max(size, length)];
+			used = 0;
+		}
+
+		System.arraycopy(key, 0, slab, used, length);
+		ArenaSortKey<T> sortKey = new ArenaSortKey<>(object, slab, used, length, limit, second);
+		used += length;
+		return sortKey;
+	}
+}
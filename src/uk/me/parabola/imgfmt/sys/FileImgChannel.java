@@ -70,6 +70,10 @@ public class FileImgChannel implements ImgChannel {
 		return n;
 	}
 
+	FileChannel getChannel() {
+		return channel;
+	}
+
 	/**
 	 * Get the file position. Note that this is a logical position relative to the
 	 * beginning of the file (the file within the .img file, not the beginning of the
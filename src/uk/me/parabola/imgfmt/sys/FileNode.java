@@ -37,6 +37,9 @@ import uk.me.parabola.log.Logger;
 public class FileNode implements ImgChannel {
 	private static final Logger log = Logger.getLogger(FileNode.class);
 
+	// The buffer size for copying data that has to be changed on the way
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
 	private boolean open;
 	private boolean writeable;
 	private boolean readable;
@@ -273,6 +276,165 @@ public class FileNode implements ImgChannel {
 		return totalWritten;
 	}
 
+	/**
+	 * Copy the rest of the source to this file.
+	 *
+	 * Runs of contiguous blocks are transferred from the underlying file of
+	 * the source to the underlying file of this one with
+	 * {@link FileChannel#transferTo}, so the data doesn't have to go through
+	 * a buffer. When the source has to be decoded with a xor byte a large
+	 * direct buffer is used instead.
+	 *
+	 * @param src The file to copy from, a FileNode or a FileImgChannel.
+	 * @return True if the data was copied, false if the type of the source
+	 * is not supported or it has no block for some of its data, nothing was
+	 * copied then.
+	 * @throws IOException If the data cannot be read or written.
+	 */
+	public boolean transferFrom(ImgChannel src) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		if (!writeable)
+			throw new NonWritableChannelException();
+
+		FileNode srcNode = null;
+		FileChannel srcFile;
+		long srcPos;
+		long srcSize;
+		if (src instanceof FileNode) {
+			srcNode = (FileNode) src;
+			if (!srcNode.open)
+				throw new ClosedChannelException();
+			if (!srcNode.readable)
+				throw new NonReadableChannelException();
+			srcFile = srcNode.file;
+			srcPos = srcNode.position;
+			srcSize = srcNode.dirent.getSize();
+			if (!srcNode.hasBlocks(srcPos, srcSize))
+				return false;
+		} else if (src instanceof FileImgChannel) {
+			srcFile = ((FileImgChannel) src).getChannel();
+			srcPos = srcFile.position();
+			srcSize = srcFile.size();
+		} else
+			return false;
+
+		byte srcXor = srcNode == null ? 0 : srcNode.xorByte;
+		ByteBuffer buf = null;
+		if (srcXor != 0)
+			buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+
+		while (srcPos < srcSize) {
+			long srcOff;
+			long n = srcSize - srcPos;
+			if (srcNode != null) {
+				srcOff = srcNode.physicalPosition(srcPos);
+				if (srcOff < 0)
+					throw new IOException("No block for position " + srcPos);
+				n = Math.min(n, srcNode.contiguousLength(srcPos, n, false));
+			} else
+				srcOff = srcPos;
+
+			n = Math.min(n, contiguousLength(position, n, true));
+			long dstOff = physicalPosition(position);
+
+			file.position(dstOff);
+			long done;
+			if (buf == null) {
+				done = 0;
+				while (done < n) {
+					long nt = srcFile.transferTo(srcOff + done, n - done, file);
+					if (nt <= 0)
+						throw new IOException("Transferred nothing");
+					done += nt;
+				}
+			} else {
+				buf.clear();
+				buf.limit((int) Math.min(n, buf.capacity()));
+				while (buf.hasRemaining()) {
+					if (srcFile.read(buf, srcOff + buf.position()) <= 0)
+						throw new IOException("Read nothing");
+				}
+				buf.flip();
+				for (int i = 0; i < buf.limit(); i++)
+					buf.put(i, (byte) (buf.get(i) ^ srcXor));
+				done = buf.limit();
+				while (buf.hasRemaining())
+					file.write(buf);
+			}
+
+			srcPos += done;
+			position += done;
+			if (position > dirent.getSize())
+				dirent.setSize((int) position);
+		}
+
+		if (srcNode != null)
+			srcNode.position = srcPos;
+		else
+			((FileImgChannel) src).position(srcPos);
+		return true;
+	}
+
+	/**
+	 * @return True if there is a block for every position from start up to
+	 * end.
+	 */
+	private boolean hasBlocks(long start, long end) {
+		int blockSize = blockManager.getBlockSize();
+		for (long pos = start; pos < end; pos = (pos / blockSize + 1) * blockSize) {
+			if (physicalPosition(pos) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The position in the underlying file for the given position in
+	 * this file or -1 if there is no block for it.
+	 */
+	private long physicalPosition(long pos) {
+		int blockSize = blockManager.getBlockSize();
+		int lblock = (int) (pos / blockSize);
+		int pblock = dirent.getPhysicalBlock(lblock);
+		if (pblock == 0xffff)
+			return -1;
+		return (long) pblock * blockSize + (pos - (long) lblock * blockSize);
+	}
+
+	/**
+	 * Get the number of bytes from the given position that are stored
+	 * without a gap in the underlying file.
+	 * @param pos The position in this file.
+	 * @param max The result is not larger than this.
+	 * @param allocate If true, allocate the missing blocks up to max.
+	 */
+	private long contiguousLength(long pos, long max, boolean allocate) {
+		int blockSize = blockManager.getBlockSize();
+		int lblock = (int) (pos / blockSize);
+		int pblock = getOrAllocate(lblock, allocate);
+		if (pblock == 0xffff)
+			return 0;
+		long len = (long) (lblock + 1) * blockSize - pos;
+		while (len < max) {
+			int next = getOrAllocate(++lblock, allocate);
+			if (next != pblock + 1)
+				break;
+			pblock = next;
+			len += blockSize;
+		}
+		return Math.min(len, max);
+	}
+
+	private int getOrAllocate(int lblock, boolean allocate) {
+		int pblock = dirent.getPhysicalBlock(lblock);
+		if (pblock == 0xffff && allocate) {
+			pblock = blockManager.allocate();
+			dirent.addBlock(pblock);
+		}
+		return pblock;
+	}
+
 	public long position() {
 		return position;
 	}
@@ -42,6 +42,9 @@ public class Locator {
 	private final Set<String> locationAutofill;
 	
 	private static final double MAX_CITY_DIST = 30000;
+	// Above this number of cities with the same name, the kd-tree is used
+	// to find the nearest one.
+	private static final int MANY_CITIES = 16;
 
 	public Locator() {
 		this(new EnhancedProperties());
@@ -263,6 +266,11 @@ public class Locator {
 		if (nextCityList.isEmpty()) {
 			return null;
 		}
+		if (nextCityList.size() > MANY_CITIES) {
+			// Only the cities near the point have to be checked. The distance
+			// in the tree is a little different, so search a bit further.
+			nextCityList = cityFinder.findPointsInRadius(p, MAX_CITY_DIST * 1.1, p.getCity());
+		}
 
 		MapPoint near = null;
 		double minDist = Double.MAX_VALUE;
@@ -20,13 +20,21 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import uk.me.parabola.imgfmt.ExitException;
 import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.imgfmt.app.CoordNode;
 import uk.me.parabola.imgfmt.app.Exit;
 import uk.me.parabola.imgfmt.app.Label;
 import uk.me.parabola.imgfmt.app.lbl.City;
@@ -139,6 +147,9 @@ public class MapBuilder implements Configurable {
 	private boolean enableLineCleanFilters = true;
 	private boolean makePOIIndex;
 	private int routeCenterBoundaryType;
+	private int subdivisionThreads;
+	// shared by the maps that are made at the same time
+	private static ForkJoinPool subdivisionPool;
 	
 	private LBLFile lblFile;
 
@@ -174,6 +185,8 @@ public class MapBuilder implements Configurable {
 
 		routeCenterBoundaryType = props.getProperty("route-center-boundary", 0);
 
+		subdivisionThreads = props.getThreadsProperty("subdivision-threads");
+
 		licenseFileName = props.getProperty("license-file", null);
 		
 		locationAutofill = LocatorUtil.parseAutofillOption(props);
@@ -657,6 +670,15 @@ public class MapBuilder implements Configurable {
 		// We start with one map data source.
 		List<SourceSubdiv> srcList = Collections.singletonList(new SourceSubdiv(src, topdiv));
 
+		if (subdivisionThreads > 0) {
+			ExecutorService pool = getPool(subdivisionThreads);
+			for (LevelInfo linfo : levels) {
+				Zoom zoom = map.createZoom(linfo.getLevel(), linfo.getBits());
+				srcList = makeSubdivisions(map, srcList, zoom, pool);
+			}
+			return;
+		}
+
 		// Now the levels filled with features.
 		for (LevelInfo linfo : levels) {
 			List<SourceSubdiv> nextList = new ArrayList<SourceSubdiv>();
@@ -685,6 +707,261 @@ public class MapBuilder implements Configurable {
 		}
 	}
 
+	/**
+	 * Create the subdivisions of one level, used when the option
+	 * subdivision-threads is given. The result is the same as in
+	 * {@link #makeMapAreas}.
+	 *
+	 * The shapes are merged and the lines and shapes are simplified and
+	 * split on the pool. The steps that set flags of points which can be
+	 * shared between the areas are done on this thread in the serial order:
+	 * splitting, merging the lines and marking the points of the shapes that
+	 * must be preserved. A line or shape that has a point whose flag was set
+	 * later in the serial order than it is filtered there is filtered again
+	 * on this thread, with those flags cleared for the time. The
+	 * subdivisions are written in order.
+	 *
+	 * @param map The map.
+	 * @param srcList The sources and the subdivisions of the previous level.
+	 * @param zoom The zoom level.
+	 * @param pool Used to prepare the areas.
+	 * @return The areas and the subdivisions of this level.
+	 */
+	private List<SourceSubdiv> makeSubdivisions(Map map, List<SourceSubdiv> srcList, final Zoom zoom, ExecutorService pool) {
+		final int res = zoom.getResolution();
+		final FilterConfig config = new FilterConfig();
+		config.setResolution(res);
+		config.setLevel(zoom.getLevel());
+		config.setRoutable(doRoads);
+		boolean cleanFilters = enableLineCleanFilters && (res < 24);
+		// the boundary flag is only used when the routing nodes are rounded
+		boolean checkBoundary = cleanFilters && zoom.getLevel() == 0 && doRoads;
+		final FlagChanges changes = new FlagChanges();
+
+		List<MapArea> areas = new ArrayList<MapArea>();
+		List<Subdivision> parents = new ArrayList<Subdivision>();
+		// the last area of each source
+		BitSet lastAreas = new BitSet();
+		for (SourceSubdiv srcDivPair : srcList) {
+			long time = FlagChanges.time(areas.size(), FlagChanges.SPLIT);
+			List<Coord> notOnBoundary = null;
+			if (checkBoundary)
+				notOnBoundary = FlagChanges.notOnBoundary(srcDivPair.getSource());
+			MapSplitter splitter = new MapSplitter(srcDivPair.getSource(), zoom);
+			MapArea[] split = splitter.split();
+			log.info("Map region", srcDivPair.getSource().getBounds(), "split into", split.length, "areas at resolution", res);
+			if (checkBoundary)
+				changes.setOnBoundary(notOnBoundary, time);
+			for (MapArea area : split) {
+				areas.add(area);
+				parents.add(srcDivPair.getSubdiv());
+			}
+			lastAreas.set(areas.size() - 1);
+		}
+
+		List<Future<List<MapShape>>> mergedShapes = new ArrayList<Future<List<MapShape>>>();
+		for (final MapArea area : areas) {
+			mergedShapes.add(pool.submit(new Callable<List<MapShape>>() {
+				public List<MapShape> call() {
+					return mergeShapes(area.getShapes(), res);
+				}
+			}));
+		}
+		// merging lines marks the points where they are joined
+		List<List<MapLine>> mergedLines = new ArrayList<List<MapLine>>();
+		for (int i = 0; i < areas.size(); i++) {
+			List<MapLine> lines = areas.get(i).getLines();
+			if (mergeLines) {
+				List<Coord> notPreserved = FlagChanges.notPreserved(lines);
+				lines = mergeLines(lines, res);
+				changes.setPreserved(notPreserved, FlagChanges.time(i, FlagChanges.LINES));
+			}
+			mergedLines.add(lines);
+		}
+
+		MapFilter preserveFilter = new PreserveHorizontalAndVerticalLinesFilter();
+		preserveFilter.init(config);
+		MapFilterChain noChain = new MapFilterChain() {
+			public void doFilter(MapElement element) {
+			}
+		};
+		final List<PreparedArea> prepared = new ArrayList<PreparedArea>();
+		for (int i = 0; i < areas.size(); i++) {
+			List<MapShape> shapes = getResult(mergedShapes.get(i));
+			if (cleanFilters) {
+				for (int j = 0; j < shapes.size(); j++) {
+					MapShape shape = shapes.get(j);
+					if (isShown(shape, res)) {
+						List<Coord> notPreserved = FlagChanges.notPreserved(Collections.singletonList(shape));
+						preserveFilter.doFilter(shape, noChain);
+						changes.setPreserved(notPreserved, FlagChanges.time(i, FlagChanges.SHAPES + j));
+					}
+				}
+			}
+			prepared.add(new PreparedArea(i, mergedLines.get(i), shapes));
+		}
+
+		final int sizefilterVal = getMinSizePolygonForResolution(res);
+		List<Future<?>> filtered = new ArrayList<Future<?>>();
+		for (final PreparedArea pa : prepared) {
+			filtered.add(pool.submit(new Runnable() {
+				public void run() {
+					List<MapLine> out = new ArrayList<MapLine>();
+					LayerFilterChain lineFilters = makeLineFilters(config, res, out);
+					long time = FlagChanges.time(pa.index, FlagChanges.LINES);
+					for (MapLine line : pa.lines) {
+						if (!isShown(line, res))
+							pa.filteredLines.add(Collections.<MapLine>emptyList());
+						else if (changes.setAfter(line.getPoints(), time))
+							pa.filteredLines.add(null);
+						else
+							pa.filteredLines.add(filter(lineFilters, out, line));
+					}
+
+					List<MapShape> shapeOut = new ArrayList<MapShape>();
+					LayerFilterChain shapeFilters = makeShapeFilters(config, res, sizefilterVal, shapeOut);
+					for (int j = 0; j < pa.shapes.size(); j++) {
+						MapShape shape = pa.shapes.get(j);
+						if (!isShown(shape, res))
+							pa.filteredShapes.add(Collections.<MapShape>emptyList());
+						else if (changes.setAfter(shape.getPoints(), FlagChanges.time(pa.index, FlagChanges.SHAPES + j)))
+							pa.filteredShapes.add(null);
+						else
+							pa.filteredShapes.add(filter(shapeFilters, shapeOut, shape));
+					}
+				}
+			}));
+		}
+		for (Future<?> future : filtered)
+			getResult(future);
+
+		// Nothing runs on the pool now, so the flags can be cleared for the
+		// lines and shapes that are filtered again.
+		List<MapLine> out = new ArrayList<MapLine>();
+		LayerFilterChain lineFilters = makeLineFilters(config, res, out);
+		List<MapShape> shapeOut = new ArrayList<MapShape>();
+		LayerFilterChain shapeFilters = makeShapeFilters(config, res, sizefilterVal, shapeOut);
+		for (PreparedArea pa : prepared) {
+			long time = FlagChanges.time(pa.index, FlagChanges.LINES);
+			for (int j = 0; j < pa.lines.size(); j++) {
+				if (pa.filteredLines.get(j) == null)
+					pa.filteredLines.set(j, changes.filterAsSerial(lineFilters, out, pa.lines.get(j), time));
+			}
+			for (int j = 0; j < pa.shapes.size(); j++) {
+				if (pa.filteredShapes.get(j) == null) {
+					time = FlagChanges.time(pa.index, FlagChanges.SHAPES + j);
+					pa.filteredShapes.set(j, changes.filterAsSerial(shapeFilters, shapeOut, pa.shapes.get(j), time));
+				}
+			}
+		}
+
+		List<SourceSubdiv> nextList = new ArrayList<SourceSubdiv>();
+		for (int i = 0; i < areas.size(); i++) {
+			MapArea area = areas.get(i);
+			Subdivision parent = parents.get(i);
+			PreparedArea pa = prepared.get(i);
+
+			Subdivision div = map.createSubdivision(parent, area.getFullBounds(), zoom);
+			setContentFlags(div, area);
+			div.startDivision();
+			processPoints(map, div, area.getPoints());
+
+			div.startLines();
+			LayerFilterChain filters = new LayerFilterChain(config);
+			filters.addFilter(new LinePreparerFilter(div));
+			filters.addFilter(new LineAddFilter(div, map, doRoads));
+			for (List<MapLine> lines : pa.filteredLines) {
+				for (MapLine line : lines)
+					filters.startFilter(line);
+			}
+
+			div.startShapes();
+			filters = new LayerFilterChain(config);
+			filters.addFilter(new LinePreparerFilter(div));
+			filters.addFilter(new ShapeAddFilter(div, map));
+			for (List<MapShape> shapes : pa.filteredShapes) {
+				for (MapShape shape : shapes)
+					filters.startFilter(shape);
+			}
+
+			div.endDivision();
+
+			if (log.isDebugEnabled())
+				log.debug("ADD parent-subdiv", parent, ", z=", zoom, " new=", div);
+			nextList.add(new SourceSubdiv(area, div));
+			if (lastAreas.get(i))
+				div.setLast(true);
+		}
+		return nextList;
+	}
+
+	private static boolean isShown(MapLine line, int res) {
+		return line.getMinResolution() <= res && line.getMaxResolution() >= res;
+	}
+
+	/**
+	 * @return The filters that simplify and split the lines, the result
+	 * is added to out.
+	 */
+	private LayerFilterChain makeLineFilters(FilterConfig config, int res, List<MapLine> out) {
+		LayerFilterChain filters = new LayerFilterChain(config);
+		addLineFilters(filters, res);
+		filters.addFilter(new CollectFilter<MapLine>(out));
+		return filters;
+	}
+
+	/**
+	 * @return The filters that simplify and split the shapes, the result
+	 * is added to out.
+	 */
+	private LayerFilterChain makeShapeFilters(FilterConfig config, int res, int sizefilterVal, List<MapShape> out) {
+		LayerFilterChain filters = new LayerFilterChain(config);
+		addShapeFilters(filters, res, sizefilterVal);
+		filters.addFilter(new CollectFilter<MapShape>(out));
+		return filters;
+	}
+
+	/**
+	 * Run one line or shape through filters that were made with
+	 * {@link #makeLineFilters} or {@link #makeShapeFilters}.
+	 * @return The lines or shapes that the filters made of it.
+	 */
+	private static <T extends MapLine> List<T> filter(LayerFilterChain filters, List<T> out, T element) {
+		out.clear();
+		filters.startFilter(element);
+		return new ArrayList<T>(out);
+	}
+
+	/**
+	 * Get the pool that is shared by all the maps that are made at the same
+	 * time. A fork/join pool can't be made larger, so it is replaced by a
+	 * new one when more threads are wanted than before. The threads of a
+	 * fork/join pool are daemon threads that end when they are idle.
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		if (subdivisionPool == null || threads > subdivisionPool.getParallelism())
+			subdivisionPool = new ForkJoinPool(threads);
+		return subdivisionPool;
+	}
+
+	/**
+	 * Wait for the result of a task, errors are passed on to the caller.
+	 */
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new ExitException("Interrupted while building the subdivisions");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new ExitException("Failed to build the subdivisions: " + cause);
+		}
+	}
+
 	/**
 	 * Create the top level subdivision.
 	 *
@@ -723,15 +1000,7 @@ public class MapBuilder implements Configurable {
 		List<MapShape> shapes = ma.getShapes();
 
 		Subdivision div = map.createSubdivision(parent, ma.getFullBounds(), z);
-
-		if (ma.hasPoints())
-			div.setHasPoints(true);
-		if (ma.hasIndPoints())
-			div.setHasIndPoints(true);
-		if (ma.hasLines())
-			div.setHasPolylines(true);
-		if (ma.hasShapes())
-			div.setHasPolygons(true);
+		setContentFlags(div, ma);
 
 		div.startDivision();
 
@@ -744,6 +1013,17 @@ public class MapBuilder implements Configurable {
 		return div;
 	}
 
+	private static void setContentFlags(Subdivision div, MapArea ma) {
+		if (ma.hasPoints())
+			div.setHasPoints(true);
+		if (ma.hasIndPoints())
+			div.setHasIndPoints(true);
+		if (ma.hasLines())
+			div.setHasPolylines(true);
+		if (ma.hasShapes())
+			div.setHasPolygons(true);
+	}
+
 	/**
 	 * Create the overview sections.
 	 *
@@ -1021,13 +1301,35 @@ public class MapBuilder implements Configurable {
 		config.setLevel(div.getZoom().getLevel());
 		config.setRoutable(doRoads);
 
+		lines = mergeLines(lines, res);
+		LayerFilterChain filters = new LayerFilterChain(config);
+		addLineFilters(filters, res);
+		filters.addFilter(new LinePreparerFilter(div));
+		filters.addFilter(new LineAddFilter(div, map, doRoads));
+		
+		for (MapLine line : lines) {
+			if (line.getMinResolution() > res || line.getMaxResolution() < res)
+				continue;
+
+			filters.startFilter(line);
+		}
+	}
+
+	private List<MapLine> mergeLines(List<MapLine> lines, int res) {
 		//TODO: Maybe this is the wrong place to do merging.
 		// Maybe more efficient if merging before creating subdivisions.
 		if (mergeLines) {
 			LineMergeFilter merger = new LineMergeFilter();
-			lines = merger.merge(lines, res);
+			return merger.merge(lines, res);
 		}
-		LayerFilterChain filters = new LayerFilterChain(config);
+		return lines;
+	}
+
+	/**
+	 * Add the filters that simplify and split the lines. They don't
+	 * depend on the subdivision.
+	 */
+	private void addLineFilters(LayerFilterChain filters, int res) {
 		if (enableLineCleanFilters && (res < 24)) {
 			filters.addFilter(new RoundCoordsFilter());
 			filters.addFilter(new SizeFilter(MIN_SIZE_LINE));
@@ -1037,15 +1339,6 @@ public class MapBuilder implements Configurable {
 		filters.addFilter(new LineSplitterFilter());
 		filters.addFilter(new RemoveEmpty());
 		filters.addFilter(new RemoveObsoletePointsFilter());
-		filters.addFilter(new LinePreparerFilter(div));
-		filters.addFilter(new LineAddFilter(div, map, doRoads));
-		
-		for (MapLine line : lines) {
-			if (line.getMinResolution() > res || line.getMaxResolution() < res)
-				continue;
-
-			filters.startFilter(line);
-		}
 	}
 
 	/**
@@ -1070,17 +1363,39 @@ public class MapBuilder implements Configurable {
 		config.setLevel(div.getZoom().getLevel());
 		config.setRoutable(doRoads);
 		
+		shapes = mergeShapes(shapes, res);
+		
+		LayerFilterChain filters = new LayerFilterChain(config);
+		if (enableLineCleanFilters && (res < 24))
+			filters.addFilter(new PreserveHorizontalAndVerticalLinesFilter());
+		addShapeFilters(filters, res, getMinSizePolygonForResolution(res));
+		filters.addFilter(new LinePreparerFilter(div));
+		filters.addFilter(new ShapeAddFilter(div, map));
+
+		for (MapShape shape : shapes) {
+			if (shape.getMinResolution() > res || shape.getMaxResolution() < res)
+				continue;
+
+			filters.startFilter(shape);
+		}
+	}
+
+	private List<MapShape> mergeShapes(List<MapShape> shapes, int res) {
 		if (mergeShapes){
 			ShapeMergeFilter shapeMergeFilter = new ShapeMergeFilter(res);
-			List<MapShape> mergedShapes = shapeMergeFilter.merge(shapes);
-			shapes = mergedShapes;
+			return shapeMergeFilter.merge(shapes);
 		}
-		
-		LayerFilterChain filters = new LayerFilterChain(config);
+		return shapes;
+	}
+
+	/**
+	 * Add the filters that simplify and split the polygons. They don't
+	 * depend on the subdivision. The filter that marks the points which
+	 * should be preserved is not added.
+	 */
+	private void addShapeFilters(LayerFilterChain filters, int res, int sizefilterVal) {
 		if (enableLineCleanFilters && (res < 24)) {
-			filters.addFilter(new PreserveHorizontalAndVerticalLinesFilter());
 			filters.addFilter(new RoundCoordsFilter());
-			int sizefilterVal =  getMinSizePolygonForResolution(res);
 			if (sizefilterVal > 0)
 				filters.addFilter(new SizeFilter(sizefilterVal));
 			//DouglasPeucker behaves at the moment not really optimal at low zooms, but acceptable.
@@ -1091,15 +1406,6 @@ public class MapBuilder implements Configurable {
 		filters.addFilter(new PolygonSplitterFilter());
 		filters.addFilter(new RemoveEmpty());
 		filters.addFilter(new RemoveObsoletePointsFilter());
-		filters.addFilter(new LinePreparerFilter(div));
-		filters.addFilter(new ShapeAddFilter(div, map));
-
-		for (MapShape shape : shapes) {
-			if (shape.getMinResolution() > res || shape.getMaxResolution() < res)
-				continue;
-
-			filters.startFilter(shape);
-		}
 	}
 
 	Highway makeHighway(Map map, String ref) {
@@ -1289,4 +1595,162 @@ public class MapBuilder implements Configurable {
 			map.addMapObject(pg);
 		}
 	}
+
+	/**
+	 * The lines and polygons of an area while it is prepared.
+	 */
+	private static class PreparedArea {
+		private final int index;
+		// the merged lines and shapes
+		private final List<MapLine> lines;
+		private final List<MapShape> shapes;
+		// what the filters made of each of them, null if it has to be
+		// filtered again on the calling thread
+		private final List<List<MapLine>> filteredLines = new ArrayList<List<MapLine>>();
+		private final List<List<MapShape>> filteredShapes = new ArrayList<List<MapShape>>();
+
+		PreparedArea(int index, List<MapLine> lines, List<MapShape> shapes) {
+			this.index = index;
+			this.lines = lines;
+			this.shapes = shapes;
+		}
+	}
+
+	/**
+	 * The points of which a flag was set while the areas of a level were
+	 * made, with the position in the serial order where it was set. The
+	 * flags that were set before are not recorded. The maps are only read
+	 * while the lines and shapes are filtered on the pool.
+	 */
+	private static class FlagChanges {
+		// the steps of an area in the serial order, the shapes follow each other
+		private static final int SPLIT = 0;
+		private static final int LINES = 1;
+		private static final int SHAPES = 2;
+
+		private final IdentityHashMap<Coord, Long> preserved = new IdentityHashMap<Coord, Long>();
+		private final IdentityHashMap<Coord, Long> onBoundary = new IdentityHashMap<Coord, Long>();
+
+		/**
+		 * @return The position of a step of an area in the serial order.
+		 */
+		static long time(int area, int step) {
+			return ((long) area << 32) + step;
+		}
+
+		static List<Coord> notPreserved(List<? extends MapLine> lines) {
+			List<Coord> points = new ArrayList<Coord>();
+			for (MapLine line : lines) {
+				for (Coord co : line.getPoints()) {
+					if (!co.preserved())
+						points.add(co);
+				}
+			}
+			return points;
+		}
+
+		/**
+		 * Only the routing nodes are needed, the filters don't use the
+		 * flag of other points.
+		 */
+		static List<Coord> notOnBoundary(MapDataSource src) {
+			List<Coord> points = new ArrayList<Coord>();
+			addNotOnBoundary(points, src.getLines());
+			addNotOnBoundary(points, src.getShapes());
+			return points;
+		}
+
+		private static void addNotOnBoundary(List<Coord> points, List<? extends MapLine> lines) {
+			for (MapLine line : lines) {
+				for (Coord co : line.getPoints()) {
+					if (co instanceof CoordNode && !co.getOnBoundary())
+						points.add(co);
+				}
+			}
+		}
+
+		/**
+		 * Record the points that are preserved now.
+		 * @param points The points that were not preserved before the step.
+		 */
+		void setPreserved(List<Coord> points, long time) {
+			for (Coord co : points) {
+				if (co.preserved() && !preserved.containsKey(co))
+					preserved.put(co, time);
+			}
+		}
+
+		/**
+		 * Record the points that are on a boundary now.
+		 * @param points The points that were not on a boundary before the step.
+		 */
+		void setOnBoundary(List<Coord> points, long time) {
+			for (Coord co : points) {
+				if (co.getOnBoundary() && !onBoundary.containsKey(co))
+					onBoundary.put(co, time);
+			}
+		}
+
+		/**
+		 * @return True if a flag of one of the points was set after the
+		 * given position in the serial order.
+		 */
+		boolean setAfter(List<Coord> points, long time) {
+			for (Coord co : points) {
+				Long t = preserved.get(co);
+				if (t != null && t > time)
+					return true;
+				t = onBoundary.get(co);
+				if (t != null && t > time)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Filter a line or shape with the flags of its points as they are
+		 * at the given position in the serial order. Nothing else may use
+		 * the points meanwhile.
+		 */
+		<T extends MapLine> List<T> filterAsSerial(LayerFilterChain filters, List<T> out, T element, long time) {
+			List<Coord> clearedPreserved = new ArrayList<Coord>();
+			List<Coord> clearedOnBoundary = new ArrayList<Coord>();
+			for (Coord co : element.getPoints()) {
+				Long t = preserved.get(co);
+				if (t != null && t > time && co.preserved()) {
+					co.preserved(false);
+					clearedPreserved.add(co);
+				}
+				t = onBoundary.get(co);
+				if (t != null && t > time && co.getOnBoundary()) {
+					co.setOnBoundary(false);
+					clearedOnBoundary.add(co);
+				}
+			}
+			try {
+				return filter(filters, out, element);
+			} finally {
+				for (Coord co : clearedPreserved)
+					co.preserved(true);
+				for (Coord co : clearedOnBoundary)
+					co.setOnBoundary(true);
+			}
+		}
+	}
+
+	/**
+	 * The last filter of a chain, collects the elements.
+	 */
+	private static class CollectFilter<T extends MapElement> extends BaseFilter implements MapFilter {
+		private final List<T> elements;
+
+		CollectFilter(List<T> elements) {
+			this.elements = elements;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void doFilter(MapElement element, MapFilterChain next) {
+			elements.add((T) element);
+		}
+	}
 }
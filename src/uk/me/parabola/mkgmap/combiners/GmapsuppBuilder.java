@@ -39,9 +39,11 @@ import uk.me.parabola.imgfmt.mps.MpsFile;
 import uk.me.parabola.imgfmt.mps.MpsFileReader;
 import uk.me.parabola.imgfmt.mps.ProductBlock;
 import uk.me.parabola.imgfmt.sys.FileImgChannel;
+import uk.me.parabola.imgfmt.sys.FileNode;
 import uk.me.parabola.imgfmt.sys.ImgFS;
 import uk.me.parabola.log.Logger;
 import uk.me.parabola.mkgmap.CommandArgs;
+import uk.me.parabola.util.EnhancedProperties;
 
 /**
  * Create the gmapsupp file.  There is nothing much special about this file
@@ -79,6 +81,7 @@ public class GmapsuppBuilder implements Combiner {
 	private MpsFile mpsFile;
 
 	private boolean createIndex;	// True if we should create and add an index file
+	private EnhancedProperties props;	// The options for the index
 
 	// There is a separate MDR and SRT file for each family id in the gmapsupp
 	private final Map<Integer, MdrBuilder> mdrBuilderMap = new LinkedHashMap<Integer, MdrBuilder>();
@@ -90,6 +93,7 @@ public class GmapsuppBuilder implements Combiner {
 		mapsetName = args.get("mapset-name", "OSM map set");
 		overallDescription = args.getDescription();
 		outputDir = args.getOutputDir();
+		props = args.getProperties();
 	}
 
 	/**
@@ -106,6 +110,7 @@ public class GmapsuppBuilder implements Combiner {
 			return mdrBuilder;
 
 		mdrBuilder = new MdrBuilder();
+		mdrBuilder.setOptions(props);
 		mdrBuilder.initForDevice(sort, outputDir);
 		mdrBuilderMap.put(familyId, mdrBuilder);
 		return mdrBuilder;
@@ -467,6 +472,10 @@ public class GmapsuppBuilder implements Combiner {
 	 */
 	private void copyFile(ImgChannel fin, ImgChannel fout) throws IOException {
 		try {
+			// copy whole runs of blocks if possible
+			if (fout instanceof FileNode && ((FileNode) fout).transferFrom(fin))
+				return;
+
 			ByteBuffer buf = ByteBuffer.allocate(1024);
 			while (fin.read(buf) > 0) {
 				buf.flip();
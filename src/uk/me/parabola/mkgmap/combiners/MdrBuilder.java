@@ -23,34 +23,34 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import uk.me.parabola.imgfmt.ExitException;
 import uk.me.parabola.imgfmt.FileExistsException;
 import uk.me.parabola.imgfmt.FileSystemParam;
 import uk.me.parabola.imgfmt.MapFailedException;
 import uk.me.parabola.imgfmt.Utils;
-import uk.me.parabola.imgfmt.app.Label;
-import uk.me.parabola.imgfmt.app.lbl.City;
-import uk.me.parabola.imgfmt.app.lbl.Country;
-import uk.me.parabola.imgfmt.app.lbl.POIRecord;
-import uk.me.parabola.imgfmt.app.lbl.Region;
-import uk.me.parabola.imgfmt.app.lbl.Zip;
 import uk.me.parabola.imgfmt.app.map.MapReader;
 import uk.me.parabola.imgfmt.app.mdr.MDRFile;
 import uk.me.parabola.imgfmt.app.mdr.Mdr13Record;
 import uk.me.parabola.imgfmt.app.mdr.Mdr14Record;
 import uk.me.parabola.imgfmt.app.mdr.Mdr5Record;
 import uk.me.parabola.imgfmt.app.mdr.MdrConfig;
-import uk.me.parabola.imgfmt.app.net.RoadDef;
 import uk.me.parabola.imgfmt.app.srt.SRTFile;
 import uk.me.parabola.imgfmt.app.srt.Sort;
-import uk.me.parabola.imgfmt.app.trergn.Point;
 import uk.me.parabola.imgfmt.fs.FileSystem;
 import uk.me.parabola.imgfmt.fs.ImgChannel;
 import uk.me.parabola.imgfmt.sys.FileImgChannel;
 import uk.me.parabola.imgfmt.sys.ImgFS;
+import uk.me.parabola.log.Logger;
 import uk.me.parabola.mkgmap.CommandArgs;
 import uk.me.parabola.mkgmap.srt.SrtTextReader;
+import uk.me.parabola.util.EnhancedProperties;
 
 /**
  * Create the global index file.  This consists of an img file containing
@@ -59,8 +59,23 @@ import uk.me.parabola.mkgmap.srt.SrtTextReader;
  * @author Steve Ratcliffe
  */
 public class MdrBuilder implements Combiner {
+	private static final Logger log = Logger.getLogger(MdrBuilder.class);
+
 	private MDRFile mdrFile;
 
+	// The directory for the index sidecar files, empty for the directory
+	// of the img file, null if they are not used.
+	private String indexCacheDir;
+
+	// Reads the maps when the option index-threads is given, the data is
+	// added to the mdr file in the order of the maps.
+	private ExecutorService extractPool;
+	private final Deque<PendingMap> pending = new ArrayDeque<>();
+	private int maxPending;
+
+	// The sections of the index are sorted on this many threads.
+	private int indexThreads;
+
 	// Push things onto this stack to have them closed in the reverse order.
 	private final Deque<Closeable> toClose = new ArrayDeque<>();
 
@@ -78,6 +93,7 @@ public class MdrBuilder implements Combiner {
 	public void init(CommandArgs args) {
 		String name = args.get("overview-mapname", "osmmap");
 		String outputDir = args.getOutputDir();
+		setOptions(args.getProperties());
 
 		outputName = Utils.joinPath(outputDir, name + "_mdr.img");
 
@@ -111,6 +127,7 @@ public class MdrBuilder implements Combiner {
 		config.setForDevice(false);
 		config.setOutputDir(outputDir);
 		config.setSort(sort);
+		config.setSortThreads(indexThreads);
 
 		// Wrap the MDR channel with the MDRFile object
 		mdrFile = new MDRFile(mdrChan, config);
@@ -128,6 +145,29 @@ public class MdrBuilder implements Combiner {
 		}
 	}
 
+	/**
+	 * Set the options for reading the maps.
+	 */
+	void setOptions(EnhancedProperties props) {
+		indexCacheDir = props.getProperty("index-cache", null);
+
+		int numThreads = props.getThreadsProperty("index-threads");
+		indexThreads = numThreads;
+
+		if (numThreads > 0) {
+			extractPool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "mdr-extract");
+					// don't keep the program alive when the index is not finished
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// limits the memory used by the data that waits to be added
+			maxPending = numThreads * 4;
+		}
+	}
+
 	void initForDevice(Sort sort, String outputDir) {
 		// Set the options that we are using for the mdr.
 		MdrConfig config = new MdrConfig();
@@ -135,6 +175,7 @@ public class MdrBuilder implements Combiner {
 		config.setWritable(true);
 		config.setForDevice(true);
 		config.setSort(sort);
+		config.setSortThreads(indexThreads);
 
 		// Wrap the MDR channel with the MDRFile object
 		try {
@@ -158,25 +199,86 @@ public class MdrBuilder implements Combiner {
 		if (!info.isImg())
 			return;
 		
-		// Add the map name
-		mdrFile.addMap(info.getHexname(), info.getCodePage());
+		final String filename = info.getFilename();
+		if (extractPool == null) {
+			// Add the map name
+			mdrFile.addMap(info.getHexname(), info.getCodePage());
+			addMapData(getMapData(filename));
+			return;
+		}
 
-		String filename = info.getFilename();
-		MapReader mr = null;
+		Future<MdrMapData> future = extractPool.submit(new Callable<MdrMapData>() {
+			public MdrMapData call() {
+				return getMapData(filename);
+			}
+		});
+		pending.add(new PendingMap(info.getHexname(), info.getCodePage(), future));
+		while (pending.size() > maxPending)
+			addPendingMap();
+	}
+
+	/**
+	 * Add the oldest map that was read on the pool, waits until it is read.
+	 */
+	private void addPendingMap() {
+		PendingMap map = pending.removeFirst();
+		MdrMapData data;
 		try {
-			mr = new MapReader(filename);
+			data = map.data.get();
+		} catch (InterruptedException e) {
+			throw new ExitException("Interrupted while creating mdr file");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new ExitException("Failed to read map for mdr file: " + cause);
+		}
+		mdrFile.addMap(map.hexname, map.codePage);
+		addMapData(data);
+	}
 
-			AreaMaps maps = new AreaMaps();
+	/**
+	 * Add the maps that are still read on the pool and stop the pool.
+	 */
+	private void addPendingMaps() {
+		if (extractPool == null)
+			return;
+		while (!pending.isEmpty())
+			addPendingMap();
+		extractPool.shutdown();
+		extractPool = null;
+	}
 
-			maps.countries = addCountries(mr);
-			maps.regions = addRegions(mr, maps);
-			List<Mdr5Record> mdrCityList = fetchCities(mr, maps);
-			maps.cityList = mdrCityList;
+	/**
+	 * Get the information for the index, from the sidecar file if it
+	 * is up to date or else from the img file.
+	 */
+	private MdrMapData getMapData(String filename) {
+		if (indexCacheDir == null)
+			return extractMapData(filename);
+
+		File imgFile = new File(filename);
+		File dir = indexCacheDir.isEmpty() ? imgFile.getAbsoluteFile().getParentFile() : new File(indexCacheDir);
+		File sidecar = new File(dir, imgFile.getName() + ".mdrdata");
+
+		MdrMapData data = MdrMapData.read(sidecar, imgFile);
+		if (data != null) {
+			log.info("using index sidecar file", sidecar);
+			return data;
+		}
+		data = extractMapData(filename);
+		dir.mkdirs();
+		data.write(sidecar, imgFile);
+		return data;
+	}
 
-			addPoints(mr, maps);
-			addCities(mdrCityList);
-			addStreets(mr, mdrCityList);
-			addZips(mr);
+	private static MdrMapData extractMapData(String filename) {
+		MapReader mr = null;
+		try {
+			mr = new MapReader(filename);
+			return MdrMapData.extract(mr);
 		} catch (FileNotFoundException e) {
 			throw new ExitException("Could not open " + filename + " when creating mdr file");
 		} finally {
@@ -184,156 +286,73 @@ public class MdrBuilder implements Combiner {
 		}
 	}
 
-	private Map<Integer, Mdr14Record> addCountries(MapReader mr) {
-		Map<Integer, Mdr14Record> countryMap = new HashMap<>();
-		List<Country> countries = mr.getCountries();
-		for (Country c : countries) {
-			if (c != null) {
-				Mdr14Record record = mdrFile.addCountry(c);
-				countryMap.put((int) c.getIndex(), record);
-			}
+	/**
+	 * Add the information of the current map to the index. The order of the
+	 * calls is important for the result.
+	 */
+	private void addMapData(MdrMapData data) {
+		Map<Integer, Mdr14Record> countries = new HashMap<>();
+		for (MdrMapData.CountryData c : data.countries) {
+			Mdr14Record record = mdrFile.addCountry(c.index, c.lblOffset, c.name);
+			countries.put(c.index, record);
 		}
-		return countryMap;
-	}
 
-	private Map<Integer, Mdr13Record> addRegions(MapReader mr, AreaMaps maps) {
-		Map<Integer, Mdr13Record> regionMap = new HashMap<>();
-
-		List<Region> regions = mr.getRegions();
-		for (Region region : regions) {
-			if (region != null) {
-				Mdr14Record mdr14 = maps.countries.get((int) region.getCountry().getIndex());
-				Mdr13Record record = mdrFile.addRegion(region, mdr14);
-				regionMap.put((int) region.getIndex(), record);
-			}
+		Map<Integer, Mdr13Record> regions = new HashMap<>();
+		for (MdrMapData.RegionData r : data.regions) {
+			Mdr14Record mdr14 = countries.get(r.countryIndex);
+			Mdr13Record record = mdrFile.addRegion(r.index, r.countryIndex, r.lblOffset, r.name, mdr14);
+			regions.put(r.index, record);
 		}
-		return regionMap;
-	}
-
-	/**
-	 * There is not complete information that we need about a city in the city
-	 * section, it has to be completed from the points section. So we fetch
-	 * and create the mdr5s first before points.
-	 */
-	private List<Mdr5Record> fetchCities(MapReader mr, AreaMaps maps) {
-		Map<Integer, Mdr5Record> cityMap = maps.cities;
 
+		// There is not complete information that we need about a city in the city
+		// section, it has to be completed from the points section. This was
+		// already done when the data was extracted.
 		List<Mdr5Record> cityList = new ArrayList<>();
-		List<City> cities = mr.getCities();
-		for (City c : cities) {
-			int regionCountryNumber = c.getRegionCountryNumber();
+		for (MdrMapData.CityData c : data.cities) {
+			int regionCountryNumber = c.regionCountryNumber;
 			Mdr13Record mdrRegion = null;
 			Mdr14Record mdrCountry;
 			if ((regionCountryNumber & 0x4000) == 0) {
-				mdrRegion = maps.regions.get(regionCountryNumber);
+				mdrRegion = regions.get(regionCountryNumber);
 				mdrCountry = mdrRegion.getMdr14();
 			} else {
-				mdrCountry = maps.countries.get(regionCountryNumber & 0x3fff);
+				mdrCountry = countries.get(regionCountryNumber & 0x3fff);
 			}
 			Mdr5Record mdrCity = new Mdr5Record();
-			mdrCity.setCityIndex(c.getIndex());
-			mdrCity.setRegionIndex(c.getRegionCountryNumber());
+			mdrCity.setCityIndex(c.index);
+			mdrCity.setRegionIndex(regionCountryNumber);
 			mdrCity.setMdrRegion(mdrRegion);
 			mdrCity.setMdrCountry(mdrCountry);
-			mdrCity.setLblOffset(c.getLblOffset());
-			mdrCity.setName(c.getName());
-
-			int key = (c.getSubdivNumber() << 8) + (c.getPointIndex() & 0xff);
-			assert key < 0xffffff;
-			cityMap.put(key, mdrCity);
+			mdrCity.setLblOffset(c.lblOffset);
+			mdrCity.setName(c.name);
 			cityList.add(mdrCity);
 		}
 
-		return cityList;
-	}
-
-	/**
-	 * Now really add the cities.
-	 * @param cityList The previously saved cities.
-	 */
-	private void addCities(List<Mdr5Record> cityList) {
-		for (Mdr5Record c : cityList) {
-			mdrFile.addCity(c);
+		for (MdrMapData.PointData p : data.points) {
+			Mdr5Record mdrCity = p.city < 0 ? null : cityList.get(p.city);
+			mdrFile.addPoint(p.type, p.subdiv, p.pointIndex, p.lblOffset, p.name, mdrCity, p.isCity);
 		}
-	}
-	private void addZips(MapReader mr) {
-		List<Zip> zips = mr.getZips();
-		for (Zip zip : zips)
-			mdrFile.addZip(zip);
-	}
-
-	/**
-	 * Read points from this map and add them to the index.
-	 * @param mr The currently open map.
-	 * @param maps Maps of regions, cities countries etc.
-	 */
-	private void addPoints(MapReader mr, AreaMaps maps) {
-		List<Point> list = mr.pointsForLevel(0, MapReader.WITHOUT_EXT_TYPE_DATA);
-		for (Point p : list) {
-			Label label = p.getLabel();
-			if (p.getNumber() > 256) {
-				// I think we limit the number of points+ind-points, but just in case
-				System.out.println("point number too big");
-				continue;
-			}
 
-			Mdr5Record mdrCity = null;
-			boolean isCity;
-			if (p.getType() >= 0x1 && p.getType() <= 0x11) {
-				// This is itself a city, it gets a reference to its own MDR 5 record.
-				// and we also use it to set the name of the city.
-				mdrCity = maps.cities.get((p.getSubdiv().getNumber() << 8) + p.getNumber());
-				if (mdrCity != null) {
-					mdrCity.setLblOffset(label.getOffset());
-					mdrCity.setName(label.getText());
-				}
-				isCity = true;
-			} else {
-				// This is not a city, but we have information about which city
-				// it is in.  If so then add the mdr5 record number of the city.
-				POIRecord poi = p.getPOIRecord();
-				City c = poi.getCity();
-				if (c != null)
-					mdrCity = getMdr5FromCity(maps, c);
-				isCity = false;
-			}
-
-			if (label != null && !label.getText().trim().isEmpty())
-				mdrFile.addPoint(p, mdrCity, isCity);
-		}
-	}
-
-	private void addStreets(MapReader mr, List<Mdr5Record> cityList) {
-		List<RoadDef> roads = mr.getRoads();
-
-		for (RoadDef road : roads) {
-			String name = road.getName();
-			if (name == null || name.isEmpty())
-				continue;
+		for (Mdr5Record c : cityList)
+			mdrFile.addCity(c);
 
+		for (MdrMapData.StreetData s : data.streets) {
 			Mdr5Record mdrCity = null;
-			if (road.getCity() != null) {
-				mdrCity = cityList.get(road.getCity().getIndex() - 1);
+			if (s.city >= 0) {
+				mdrCity = cityList.get(s.city);
 				if (mdrCity.getMapIndex() == 0)
 					mdrCity = null;
 			}
-			
-			mdrFile.addStreet(road, mdrCity);
+			mdrFile.addStreet(s.name, s.lblOffset, mdrCity);
 		}
-	}
 
-	private Mdr5Record getMdr5FromCity(AreaMaps cityMap, City c) {
-		if (c == null)
-			return null;
-
-		if (c.getPointIndex() > 0) {
-			return cityMap.cities.get((c.getSubdivNumber() << 8) + (c.getPointIndex() & 0xff));
-		} else {
-			return cityMap.cityList.get(c.getIndex() - 1);
-		}
+		for (MdrMapData.ZipData z : data.zips)
+			mdrFile.addZip(z.index, z.name);
 	}
 
 	public void onFinish() {
+		addPendingMaps();
+
 		// Write out the mdr file
 		mdrFile.write();
 
@@ -351,6 +370,8 @@ public class MdrBuilder implements Combiner {
 	}
 
 	void onFinishForDevice() {
+		addPendingMaps();
+
 		// Write out the mdr file
 		mdrFile.write();
 
@@ -368,16 +389,17 @@ public class MdrBuilder implements Combiner {
 	}
 
 	/**
-	 * Holds lookup maps for cities, regions and countries.  Used to
-	 * link streets, pois to cities, regions and countries.
-	 *
-	 * These are only held for a single map at a time, which is
-	 * sufficient to link them all up.
+	 * A map that is read on the pool.
 	 */
-	class AreaMaps {
-		private final Map<Integer, Mdr5Record> cities = new HashMap<>();
-		private Map<Integer, Mdr13Record> regions;
-		private Map<Integer, Mdr14Record> countries;
-		private List<Mdr5Record> cityList;
+	private static class PendingMap {
+		private final int hexname;
+		private final int codePage;
+		private final Future<MdrMapData> data;
+
+		PendingMap(int hexname, int codePage, Future<MdrMapData> data) {
+			this.hexname = hexname;
+			this.codePage = codePage;
+			this.data = data;
+		}
 	}
 }
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.combiners;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.me.parabola.imgfmt.app.Label;
+import uk.me.parabola.imgfmt.app.lbl.City;
+import uk.me.parabola.imgfmt.app.lbl.Country;
+import uk.me.parabola.imgfmt.app.lbl.POIRecord;
+import uk.me.parabola.imgfmt.app.lbl.Region;
+import uk.me.parabola.imgfmt.app.lbl.Zip;
+import uk.me.parabola.imgfmt.app.map.MapReader;
+import uk.me.parabola.imgfmt.app.net.RoadDef;
+import uk.me.parabola.imgfmt.app.trergn.Point;
+import uk.me.parabola.log.Logger;
+
+/**
+ * The information of one map that goes into the global index.
+ *
+ * The values are extracted from the img file of the map and can be saved
+ * to a sidecar file together with the size, the modification time and a
+ * hash of the img file. When the map is indexed again and the img file
+ * didn't change, the values are read from the sidecar file instead of the
+ * img file. The img file is only hashed again when its size is the same
+ * but the modification time doesn't show clearly that it didn't change.
+ *
+ * The links between cities, regions and countries are kept as the
+ * numbers that are used in the map, the links of points and streets to
+ * cities as positions in the city list.
+ */
+public class MdrMapData {
+	private static final Logger log = Logger.getLogger(MdrMapData.class);
+
+	private static final int MAGIC = 0x4d445243;	// "MDRC"
+	private static final int VERSION = 2;
+	// an img file that was modified this short time before the sidecar
+	// file was written might have been changed again without a new time
+	private static final long MODIFIED_MARGIN = 2000;
+
+	final List<CountryData> countries = new ArrayList<>();
+	final List<RegionData> regions = new ArrayList<>();
+	final List<CityData> cities = new ArrayList<>();
+	final List<PointData> points = new ArrayList<>();
+	final List<StreetData> streets = new ArrayList<>();
+	final List<ZipData> zips = new ArrayList<>();
+
+	/**
+	 * Read the values that are needed for the index from a map.
+	 */
+	public static MdrMapData extract(MapReader mr) {
+		MdrMapData data = new MdrMapData();
+
+		for (Country c : mr.getCountries()) {
+			if (c != null) {
+				Label label = c.getLabel();
+				data.countries.add(new CountryData(c.getIndex(), label.getOffset(), label.getText()));
+			}
+		}
+
+		for (Region r : mr.getRegions()) {
+			if (r != null) {
+				Label label = r.getLabel();
+				data.regions.add(new RegionData(r.getIndex(), r.getCountry().getIndex(), label.getOffset(),
+						label.getText()));
+			}
+		}
+
+		// the position of the city in the list by subdivision and point number
+		Map<Integer, Integer> cityByPoint = new HashMap<>();
+		for (City c : mr.getCities()) {
+			int key = (c.getSubdivNumber() << 8) + (c.getPointIndex() & 0xff);
+			assert key < 0xffffff;
+			cityByPoint.put(key, data.cities.size());
+			data.cities.add(new CityData(c.getIndex(), c.getRegionCountryNumber(), c.getLblOffset(), c.getName()));
+		}
+
+		List<Point> list = mr.pointsForLevel(0, MapReader.WITHOUT_EXT_TYPE_DATA);
+		for (Point p : list) {
+			Label label = p.getLabel();
+			if (p.getNumber() > 256) {
+				// I think we limit the number of points+ind-points, but just in case
+				log.error("point number too big");
+				continue;
+			}
+
+			int city = -1;
+			boolean isCity;
+			if (p.getType() >= 0x1 && p.getType() <= 0x11) {
+				// This is itself a city, it gets a reference to its own MDR 5 record.
+				// and we also use it to set the name of the city.
+				Integer pos = cityByPoint.get((p.getSubdiv().getNumber() << 8) + p.getNumber());
+				if (pos != null) {
+					city = pos;
+					CityData cityData = data.cities.get(city);
+					cityData.lblOffset = label.getOffset();
+					cityData.name = label.getText();
+				}
+				isCity = true;
+			} else {
+				// This is not a city, but we have information about which city
+				// it is in.
+				POIRecord poi = p.getPOIRecord();
+				City c = poi.getCity();
+				if (c != null) {
+					if (c.getPointIndex() > 0) {
+						Integer pos = cityByPoint.get((c.getSubdivNumber() << 8) + (c.getPointIndex() & 0xff));
+						if (pos != null)
+							city = pos;
+					} else
+						city = c.getIndex() - 1;
+				}
+				isCity = false;
+			}
+
+			if (label != null && !label.getText().trim().isEmpty())
+				data.points.add(new PointData(p.getType(), p.getSubdiv().getNumber(), p.getNumber(),
+						label.getOffset(), label.getText(), city, isCity));
+		}
+
+		for (RoadDef road : mr.getRoads()) {
+			String name = road.getName();
+			if (name == null || name.isEmpty())
+				continue;
+
+			int city = road.getCity() == null ? -1 : road.getCity().getIndex() - 1;
+
+			// a separate record for each name
+			for (Label lab : road.getLabels()) {
+				if (lab == null)
+					break;
+				if (lab.getOffset() == 0)
+					continue;
+				data.streets.add(new StreetData(lab.getText(), lab.getOffset(), city));
+			}
+		}
+
+		for (Zip zip : mr.getZips())
+			data.zips.add(new ZipData(zip.getIndex(), zip.getLabel().getText()));
+
+		return data;
+	}
+
+	/**
+	 * Calculate the hash of a file that is saved in the sidecar file.
+	 */
+	static byte[] hashFile(File file) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("no MD5 digest available", e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				md.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Read the values from a sidecar file.
+	 * @param file The sidecar file.
+	 * @param imgFile The img file that the values belong to.
+	 * @return The values or null if the file doesn't exist, is from another
+	 * version or the img file changed.
+	 */
+	public static MdrMapData read(File file, File imgFile) {
+		if (!file.exists())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					return null;
+				long length = in.readLong();
+				long modified = in.readLong();
+				byte[] fileHash = new byte[in.readUnsignedByte()];
+				in.readFully(fileHash);
+				if (length != imgFile.length())
+					return null;
+				boolean touched = false;
+				if (modified != imgFile.lastModified() || modified + MODIFIED_MARGIN > file.lastModified()) {
+					if (!Arrays.equals(hashFile(imgFile), fileHash))
+						return null;
+					touched = modified != imgFile.lastModified();
+				}
+
+				MdrMapData data = new MdrMapData();
+				for (int n = in.readInt(); n > 0; n--)
+					data.countries.add(new CountryData(in.readInt(), in.readInt(), readString(in)));
+				for (int n = in.readInt(); n > 0; n--)
+					data.regions.add(new RegionData(in.readInt(), in.readInt(), in.readInt(), readString(in)));
+				for (int n = in.readInt(); n > 0; n--)
+					data.cities.add(new CityData(in.readInt(), in.readInt(), in.readInt(), readString(in)));
+				for (int n = in.readInt(); n > 0; n--)
+					data.points.add(new PointData(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+							readString(in), in.readInt(), in.readBoolean()));
+				for (int n = in.readInt(); n > 0; n--)
+					data.streets.add(new StreetData(readString(in), in.readInt(), in.readInt()));
+				for (int n = in.readInt(); n > 0; n--)
+					data.zips.add(new ZipData(in.readInt(), readString(in)));
+				if (touched) {
+					// the same content with a new time, save the time so that it isn't hashed again
+					in.close();
+					data.write(file, imgFile, fileHash);
+				}
+				return data;
+			} finally {
+				in.close();
+			}
+		} catch (EOFException e) {
+			log.warn("incomplete index sidecar file", file);
+		} catch (IOException e) {
+			log.warn("cannot read index sidecar file", file, e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Save the values in a sidecar file.
+	 * @param file The sidecar file.
+	 * @param imgFile The img file that the values belong to.
+	 */
+	public void write(File file, File imgFile) {
+		byte[] hash;
+		try {
+			hash = hashFile(imgFile);
+		} catch (IOException e) {
+			log.warn("cannot read", imgFile, e.getMessage());
+			return;
+		}
+		write(file, imgFile, hash);
+	}
+
+	private void write(File file, File imgFile, byte[] hash) {
+		// write to a temporary file first so that a broken run leaves no incomplete file,
+		// the gmapsupp and the mapsource index may write the same file at the same time
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(imgFile.length());
+				out.writeLong(imgFile.lastModified());
+				out.writeByte(hash.length);
+				out.write(hash);
+
+				out.writeInt(countries.size());
+				for (CountryData c : countries) {
+					out.writeInt(c.index);
+					out.writeInt(c.lblOffset);
+					writeString(out, c.name);
+				}
+				out.writeInt(regions.size());
+				for (RegionData r : regions) {
+					out.writeInt(r.index);
+					out.writeInt(r.countryIndex);
+					out.writeInt(r.lblOffset);
+					writeString(out, r.name);
+				}
+				out.writeInt(cities.size());
+				for (CityData c : cities) {
+					out.writeInt(c.index);
+					out.writeInt(c.regionCountryNumber);
+					out.writeInt(c.lblOffset);
+					writeString(out, c.name);
+				}
+				out.writeInt(points.size());
+				for (PointData p : points) {
+					out.writeInt(p.type);
+					out.writeInt(p.subdiv);
+					out.writeInt(p.pointIndex);
+					out.writeInt(p.lblOffset);
+					writeString(out, p.name);
+					out.writeInt(p.city);
+					out.writeBoolean(p.isCity);
+				}
+				out.writeInt(streets.size());
+				for (StreetData s : streets) {
+					writeString(out, s.name);
+					out.writeInt(s.lblOffset);
+					out.writeInt(s.city);
+				}
+				out.writeInt(zips.size());
+				for (ZipData z : zips) {
+					out.writeInt(z.index);
+					writeString(out, z.name);
+				}
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file))
+				log.warn("cannot rename", tmp, "to", file);
+		} catch (IOException e) {
+			log.warn("cannot write index sidecar file", file, e.getMessage());
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		return in.readUTF();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	static class CountryData {
+		final int index;
+		final int lblOffset;
+		final String name;
+
+		CountryData(int index, int lblOffset, String name) {
+			this.index = index;
+			this.lblOffset = lblOffset;
+			this.name = name;
+		}
+	}
+
+	static class RegionData {
+		final int index;
+		final int countryIndex;
+		final int lblOffset;
+		final String name;
+
+		RegionData(int index, int countryIndex, int lblOffset, String name) {
+			this.index = index;
+			this.countryIndex = countryIndex;
+			this.lblOffset = lblOffset;
+			this.name = name;
+		}
+	}
+
+	static class CityData {
+		final int index;
+		final int regionCountryNumber;
+		// the values of the city point, if there is one
+		int lblOffset;
+		String name;
+
+		CityData(int index, int regionCountryNumber, int lblOffset, String name) {
+			this.index = index;
+			this.regionCountryNumber = regionCountryNumber;
+			this.lblOffset = lblOffset;
+			this.name = name;
+		}
+	}
+
+	static class PointData {
+		final int type;
+		final int subdiv;
+		final int pointIndex;
+		final int lblOffset;
+		final String name;
+		// position in the city list or -1
+		final int city;
+		final boolean isCity;
+
+		PointData(int type, int subdiv, int pointIndex, int lblOffset, String name, int city, boolean isCity) {
+			this.type = type;
+			this.subdiv = subdiv;
+			this.pointIndex = pointIndex;
+			this.lblOffset = lblOffset;
+			this.name = name;
+			this.city = city;
+			this.isCity = isCity;
+		}
+	}
+
+	static class StreetData {
+		final String name;
+		final int lblOffset;
+		// position in the city list or -1
+		final int city;
+
+		StreetData(String name, int lblOffset, int city) {
+			this.name = name;
+			this.lblOffset = lblOffset;
+			this.city = city;
+		}
+	}
+
+	static class ZipData {
+		final int index;
+		final String name;
+
+		ZipData(int index, String name) {
+			this.index = index;
+			this.name = name;
+		}
+	}
+}
@@ -17,12 +17,12 @@
 package uk.me.parabola.mkgmap.filters;
 
 import java.awt.Rectangle;
-import java.awt.geom.Area;
+import java.util.ArrayList;
 import java.util.List;
 
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.mkgmap.general.MapShape;
-import uk.me.parabola.util.Java2DConverter;
+import uk.me.parabola.util.ShapeSplitter;
 
 /**
  * @author Steve Ratcliffe
@@ -43,12 +43,9 @@ public class PolygonSplitterBase extends BaseFilter {
 	protected void split(MapShape shape, List<MapShape> outputs) {
 		// TODO: use different algo which will keep track of holes which are
 		// connected with the outer polygon
-		
-		// Convert to a awt area
-		Area area = Java2DConverter.createArea(shape.getPoints());
 
-		// Get the bounds of this polygon
-		Rectangle bounds = area.getBounds();
+		// Get the bounds of this polygon, in map units
+		Rectangle bounds = getBounds(shape.getPoints());
 
 		if (bounds.isEmpty())
 			return;  // Drop it
@@ -56,10 +53,10 @@ public class PolygonSplitterBase extends BaseFilter {
 		int half = 1 << (shift - 1);	// 0.5 shifted
 		int mask = ~((1 << shift) - 1); // to remove fraction bits
 
-		// Cut the bounding box into two rectangles. The position of the common
-		// line is rounded to the current resolution.
-		Rectangle r1;
-		Rectangle r2;
+		// Cut the polygon along a line through the middle of the bounding box.
+		// The position of the line is rounded to the current resolution.
+		int dividingLine;
+		boolean isLongitude;
 		if (bounds.width > bounds.height) {
 			int halfWidth = bounds.width / 2;
 			if (shift != 0){
@@ -67,8 +64,8 @@ public class PolygonSplitterBase extends BaseFilter {
 				if (halfWidth == 0 || halfWidth == bounds.width)
 					halfWidth = bounds.width / 2;
 			}
-			r1 = new Rectangle(bounds.x, bounds.y, halfWidth, bounds.height);
-			r2 = new Rectangle(bounds.x + halfWidth, bounds.y, bounds.width - halfWidth, bounds.height);
+			dividingLine = bounds.x + halfWidth;
+			isLongitude = true;
 		} else {
 			int halfHeight = bounds.height / 2;
 			if (shift != 0){
@@ -76,35 +73,53 @@ public class PolygonSplitterBase extends BaseFilter {
 				if (halfHeight== 0 || halfHeight == bounds.height)
 					halfHeight = bounds.height / 2;
 			}
-			r1 = new Rectangle(bounds.x, bounds.y, bounds.width, halfHeight);
-			r2 = new Rectangle(bounds.x, bounds.y + halfHeight, bounds.width, bounds.height - halfHeight);
+			dividingLine = bounds.y + halfHeight;
+			isLongitude = false;
 		}
 
-		// Now find the intersection of these two boxes with the original
-		// polygon.  This will make two new areas, and each area will be one
-		// (or more) polygons.
-		Area clipper = new Area(r1);
-		clipper.intersect(area);
-		areaToShapes(shape, clipper, outputs);
-		clipper = new Area(r2);
-		clipper.intersect(area);
-		areaToShapes(shape, clipper, outputs);
+		// This makes two lists of polygons, one for each side of the line.
+		List<List<Coord>> lessList = new ArrayList<>();
+		List<List<Coord>> moreList = new ArrayList<>();
+		ShapeSplitter.splitShape(shape.getPoints(), dividingLine << Coord.DELTA_SHIFT, isLongitude, lessList, moreList);
+		addShapes(shape, lessList, outputs);
+		addShapes(shape, moreList, outputs);
 	}
 
 	/**
-	 * Convert the area back into {@link MapShape}s.  It is possible that the
-	 * area is multiple discontinuous polygons, so you may append more than one
-	 * shape to the output list.
+	 * The smallest rectangle in map units that contains all the points.
+	 */
+	private static Rectangle getBounds(List<Coord> points) {
+		int minLat = Integer.MAX_VALUE;
+		int minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int maxLon = Integer.MIN_VALUE;
+		for (Coord co : points) {
+			minLat = Math.min(minLat, co.getHighPrecLat());
+			minLon = Math.min(minLon, co.getHighPrecLon());
+			maxLat = Math.max(maxLat, co.getHighPrecLat());
+			maxLon = Math.max(maxLon, co.getHighPrecLon());
+		}
+		if (points.isEmpty())
+			return new Rectangle();
+		int x = minLon >> Coord.DELTA_SHIFT;
+		int y = minLat >> Coord.DELTA_SHIFT;
+		// rounded up
+		int maxX = -(-maxLon >> Coord.DELTA_SHIFT);
+		int maxY = -(-maxLat >> Coord.DELTA_SHIFT);
+		return new Rectangle(x, y, maxX - x, maxY - y);
+	}
+
+	/**
+	 * Make {@link MapShape}s from the polygons that the original shape was
+	 * split into.
 	 *
 	 * @param origShape The original shape, this is only used as a prototype to
 	 * copy for the newly created shapes.
-	 * @param area The area to be converted.
+	 * @param subShapes The closed polygons.
 	 * @param outputs Used to hold output shapes.
 	 */
-	private void areaToShapes(MapShape origShape, Area area, List<MapShape> outputs) {
-		List<List<Coord>> subShapePoints = Java2DConverter.areaToShapes(area);
-		
-		for (List<Coord> subShape : subShapePoints) {
+	private void addShapes(MapShape origShape, List<List<Coord>> subShapes, List<MapShape> outputs) {
+		for (List<Coord> subShape : subShapes) {
 			MapShape s = origShape.copy();
 			s.setPoints(subShape);
 			outputs.add(s);
@@ -13,14 +13,18 @@
 package uk.me.parabola.mkgmap.filters;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import uk.me.parabola.imgfmt.app.Area;
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.log.Logger;
@@ -50,7 +54,8 @@ public class ShapeMergeFilter{
 		if (shapes.size() <= 1)
 			return shapes;
 		int count = 0;
-		MultiHashMap<Integer, Map<MapShape, List<ShapeHelper>>> topMap = new MultiHashMap<Integer, Map<MapShape,List<ShapeHelper>>>();
+		MultiHashMap<Integer, Map<MapShape, MergeGroup>> topMap = new MultiHashMap<Integer, Map<MapShape,MergeGroup>>();
+		List<MergeGroup> groups = new ArrayList<MergeGroup>();
 		List<MapShape> mergedShapes = new ArrayList<MapShape>();
 		for (MapShape shape: shapes) {
 			if (shape.getMinResolution() > resolution || shape.getMaxResolution() < resolution)
@@ -62,7 +67,7 @@ public class ShapeMergeFilter{
 				mergedShapes.add(shape);
 				continue;
 			}
-			List<Map<MapShape, List<ShapeHelper>>> sameTypeList = topMap.get(shape.getType());
+			List<Map<MapShape, MergeGroup>> sameTypeList = topMap.get(shape.getType());
 			ShapeHelper sh = new ShapeHelper(shape.getPoints());
 			sh.id = shape.getOsmid();
 			if (sh.areaTestVal == 0){
@@ -74,47 +79,51 @@ public class ShapeMergeFilter{
 				continue;
 			}
 			if (sameTypeList.isEmpty()){
-				Map<MapShape, List<ShapeHelper>> lowMap = new LinkedHashMap<MapShape, List<ShapeHelper>>();
-				ArrayList<ShapeHelper> list = new ArrayList<ShapeHelper>();
-				list.add(sh);
-				lowMap.put(shape, list);
+				Map<MapShape, MergeGroup> lowMap = new LinkedHashMap<MapShape, MergeGroup>();
+				MergeGroup group = new MergeGroup(shape.getType(), sh);
+				groups.add(group);
+				lowMap.put(shape, group);
 				topMap.add(shape.getType(),lowMap);
 				continue;
 			}
-			for (Map<MapShape, List<ShapeHelper>> lowMap : sameTypeList){
+			for (Map<MapShape, MergeGroup> lowMap : sameTypeList){
 				boolean added = false;
 				for (MapShape ms: lowMap.keySet()){
 					// we do not use isSimilar() here, as it compares minRes and maxRes as well
 					String s1 = ms.getName();
 					String s2 = shape.getName();
 					if (s1 == s2 || s1 != null && s1.equals(s2)){
-						List<ShapeHelper> list = lowMap.get(ms);
-						int oldSize = list.size();
-						list = addWithConnectedHoles(list, sh, ms.getType());
-						lowMap.put(ms, list);
-						if (list.size() < oldSize+1){
-							log.debug("shape with id", sh.id, "was merged", (oldSize+1 - list.size()), " time(s) at resolution", resolution);
-						}
+						lowMap.get(ms).pending.add(sh);
 						added = true;
 						break;
 					}
 				}
 				if (!added){
-					ArrayList<ShapeHelper> list = new ArrayList<ShapeHelper>();
-					list.add(sh);
-					lowMap.put(shape, list);
+					MergeGroup group = new MergeGroup(shape.getType(), sh);
+					groups.add(group);
+					lowMap.put(shape, group);
 				}
 			}
 		}
+
+		// The shapes of different groups are never merged with each other, so
+		// when this runs on a fork/join pool the groups are merged in parallel.
+		if (groups.size() > 1 && ForkJoinTask.inForkJoinPool())
+			ForkJoinTask.invokeAll(groups);
+		else {
+			for (MergeGroup group : groups)
+				group.invoke();
+		}
 		
-		for (List<Map<MapShape, List<ShapeHelper>>> sameTypeList : topMap.values()){
-			for (Map<MapShape, List<ShapeHelper>> lowMap : sameTypeList){
-				Iterator<Entry<MapShape, List<ShapeHelper>>> iter = lowMap.entrySet().iterator();
+		for (List<Map<MapShape, MergeGroup>> sameTypeList : topMap.values()){
+			for (Map<MapShape, MergeGroup> lowMap : sameTypeList){
+				Iterator<Entry<MapShape, MergeGroup>> iter = lowMap.entrySet().iterator();
 				while (iter.hasNext()){
-					Entry<MapShape, List<ShapeHelper>> item = iter.next();
+					Entry<MapShape, MergeGroup> item = iter.next();
 					MapShape ms = item.getKey();
-					List<ShapeHelper> shapeHelpers = item.getValue();
-					for (ShapeHelper sh:shapeHelpers){
+					for (ShapeHelper sh : item.getValue().shapes){
+						if (sh == null)
+							continue;
 						MapShape newShape = ms.copy();
 						
 						assert sh.getPoints().get(0) == sh.getPoints().get(sh.getPoints().size()-1);
@@ -140,42 +149,151 @@ public class ShapeMergeFilter{
 	}
 
 	/**
-	 * Try to merge a shape with one or more of the shapes in the list.
-	 *  If it cannot be merged, it is added to the list.
-	 *  Holes in shapes are connected with the outer lines,
-	 *  so no following routine must use {@link Java2DConverter}
-	 *  to process these shapes.   
-	 * @param list list of shapes with equal type
-	 * @param toAdd new shape
-	 * @return new list of shapes, this might contain fewer (merged) elements
+	 * The shapes with the same type and name. A grid over the bounding boxes
+	 * of the shapes is used to find the ones that a new shape might be merged
+	 * with, instead of trying all of them.
 	 */
-	private List<ShapeHelper> addWithConnectedHoles(List<ShapeHelper> list,
-			final ShapeHelper toAdd, final int type) {
-		assert toAdd.getPoints().size() > 3;
-		List<ShapeHelper> result = new ArrayList<ShapeHelper>(list.size()+1);
-		ShapeHelper shNew = new ShapeHelper(toAdd);
-		for (ShapeHelper shOld:list){
-			if (shOld.getBounds().intersects(shNew.getBounds()) == false){
-				result.add(shOld);
-				continue;
+	private class MergeGroup extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		// Shapes that cover more cells are tried with every new shape.
+		private static final int MAX_CELLS = 64;
+
+		private final int type;
+		private final int cellShift;
+		// the shapes that are waiting to be merged
+		private final List<ShapeHelper> pending = new ArrayList<ShapeHelper>();
+
+		// the result, shapes that were merged into others are set to null
+		private final List<ShapeHelper> shapes = new ArrayList<ShapeHelper>();
+		private final Long2ObjectOpenHashMap<IntArrayList> cells = new Long2ObjectOpenHashMap<IntArrayList>();
+		private final IntArrayList large = new IntArrayList();
+
+		MergeGroup(int type, ShapeHelper first) {
+			this.type = type;
+			// cells of about 600m at resolution 24
+			cellShift = 24 - resolution + 8;
+			store(first);
+		}
+
+		protected void compute() {
+			for (ShapeHelper sh : pending) {
+				int merged = addWithConnectedHoles(sh);
+				if (merged > 0)
+					log.debug("shape with id", sh.id, "was merged", merged, " time(s) at resolution", resolution);
 			}
-			ShapeHelper mergeRes = tryMerge(shOld, shNew, type);
-			if (mergeRes == shOld){
-				result.add(shOld);
-				continue;
-			} else if (mergeRes != null){
-				shNew = mergeRes;
+			pending.clear();
+		}
+
+		/**
+		 * Try to merge a shape with one or more of the shapes in the group.
+		 * If it cannot be merged, it is added to the group.
+		 *  Holes in shapes are connected with the outer lines,
+		 *  so no following routine must use {@link Java2DConverter}
+		 *  to process these shapes.   
+		 *
+		 * The shapes are tried in the order in which they were added, as
+		 * if all of them were tested.
+		 *
+		 * @param toAdd new shape
+		 * @return The number of shapes that were removed from the group.
+		 */
+		private int addWithConnectedHoles(final ShapeHelper toAdd) {
+			assert toAdd.getPoints().size() > 3;
+			ShapeHelper shNew = new ShapeHelper(toAdd);
+			IntArrayList removed = new IntArrayList();
+			IntArrayList candidates = getCandidates(shNew.getBounds());
+			int pos = -1;
+			int next = 0;
+			while (next < candidates.size()) {
+				int index = candidates.getInt(next++);
+				ShapeHelper shOld = shapes.get(index);
+				if (index <= pos || shOld == null)
+					continue;
+				pos = index;
+				if (shOld.getBounds().intersects(shNew.getBounds()) == false)
+					continue;
+				ShapeHelper mergeRes = tryMerge(shOld, shNew, type);
+				if (mergeRes == shOld)
+					continue;
+				removed.add(index);
+				if (mergeRes != null){
+					shNew = mergeRes;
+					if (shNew != dupShape) {
+						// the merged shape is larger
+						candidates = getCandidates(shNew.getBounds());
+						next = 0;
+					}
+				}
+				if (shNew == dupShape){
+					log.warn("ignoring duplicate shape with id", toAdd.id, "at",  toAdd.getPoints().get(0).toOSMURL(), "with type", GType.formatType(type), "for resolution", resolution);
+					return 1; // nothing to do
+				}
 			}
-			if (shNew == dupShape){
-				log.warn("ignoring duplicate shape with id", toAdd.id, "at",  toAdd.getPoints().get(0).toOSMURL(), "with type", GType.formatType(type), "for resolution", resolution);
-				return list; // nothing to do
+			for (int i = 0; i < removed.size(); i++)
+				shapes.set(removed.getInt(i), null);
+			if (shNew != null)
+				store(shNew);
+			return removed.size();
+		}
+
+		private void store(ShapeHelper sh) {
+			int index = shapes.size();
+			shapes.add(sh);
+
+			Area bounds = sh.getBounds();
+			int minX = bounds.getMinLong() >> cellShift;
+			int maxX = bounds.getMaxLong() >> cellShift;
+			int minY = bounds.getMinLat() >> cellShift;
+			int maxY = bounds.getMaxLat() >> cellShift;
+			if ((long) (maxX - minX + 1) * (maxY - minY + 1) > MAX_CELLS) {
+				large.add(index);
+				return;
+			}
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					long key = cellKey(x, y);
+					IntArrayList list = cells.get(key);
+					if (list == null) {
+						list = new IntArrayList(4);
+						cells.put(key, list);
+					}
+					list.add(index);
+				}
 			}
 		}
-		if (shNew != null && shNew != dupShape)
-			result.add(shNew);
-		if (result.size() > list.size()+1 )
-			log.error("result list size is wrong", list.size(), "->", result.size());
-		return result;
+
+		/**
+		 * @return The positions of the shapes whose bounding boxes may intersect
+		 * the given one, in ascending order.
+		 */
+		private IntArrayList getCandidates(Area bounds) {
+			int minX = bounds.getMinLong() >> cellShift;
+			int maxX = bounds.getMaxLong() >> cellShift;
+			int minY = bounds.getMinLat() >> cellShift;
+			int maxY = bounds.getMaxLat() >> cellShift;
+			IntArrayList found = new IntArrayList(large);
+			if ((long) (maxX - minX + 1) * (maxY - minY + 1) > cells.size()) {
+				// faster to look at all the cells
+				for (IntArrayList list : cells.values())
+					found.addAll(list);
+			} else {
+				for (int x = minX; x <= maxX; x++) {
+					for (int y = minY; y <= maxY; y++) {
+						IntArrayList list = cells.get(cellKey(x, y));
+						if (list != null)
+							found.addAll(list);
+					}
+				}
+			}
+			// a shape can be in more than one cell, duplicates are skipped by the caller
+			int[] a = found.toIntArray();
+			Arrays.sort(a);
+			return IntArrayList.wrap(a);
+		}
+	}
+
+	private static long cellKey(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
 	}
 
 	/**
@@ -260,22 +378,20 @@ public class ShapeMergeFilter{
 	private void findCommonCoords(List<Coord> s1, List<Coord> s2,
 			IntArrayList s1PositionsToCheck,
 			IntArrayList s2PositionsToCheck) {
+		// the map is also used to find the common points, the Coord 
+		// instances are not marked because they may be shared with shapes
+		// that are merged on another thread 
 		Map<Coord, Integer> s2PosMap = new IdentityHashMap<>(s2.size() - 1);
 		
-		for (int i = 0; i+1 < s1.size(); i++){
-		    Coord co = s1.get(i);
-		    co.setPartOfShape2(false);
-		}
 		for (int i = 0; i+1 < s2.size(); i++){
 		    Coord co = s2.get(i);
-		    co.setPartOfShape2(true);
 		    s2PosMap.put(co, i); 
 		}
 		
 		int start = 0;
 		while(start < s1.size()){
 			Coord co = s1.get(start);
-			if (!co.isPartOfShape2())
+			if (!s2PosMap.containsKey(co))
 				break;
 			start++;
 		}
@@ -287,7 +403,7 @@ public class ShapeMergeFilter{
 			Coord co = s1.get(pos);
 			if (++tested >= s1.size())
 				break;
-			if (co.isPartOfShape2()){
+			if (s2PosMap.containsKey(co)){
 				s1PositionsToCheck.add(pos);
 				Integer posInSh2 = s2PosMap.get(co);
 				assert posInSh2 != null;
@@ -13,155 +13,280 @@
 
 package uk.me.parabola.mkgmap.general;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
 
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import uk.me.parabola.imgfmt.app.Coord;
-import uk.me.parabola.mkgmap.general.MapPoint;
 
 
 /**
  * A kd-tree (2D) implementation to solve the nearest neighbor problem.
- * The tree is not explicitly balanced.
+ *
+ * The points are collected by {@link #add} and the tree is built from all
+ * of them when it is searched, splitting each level at the median so that
+ * the tree is balanced. It is kept in arrays, the node of a range of
+ * positions is in the middle of it. If points are added after a search the
+ * tree is built again on the next one.
+ *
+ * When several points have the same distance, the one that was added first
+ * is found.
  * 
  * @author GerdP
  *
  */
 public class MapPointKdTree {
 	private static final boolean ROOT_NODE_USES_LONGITUDE = false;
-	
-	private static class KdNode {
-		MapPoint point;
-		KdNode left;
-		KdNode right;
-
-		KdNode(MapPoint p) {
-			point = p;
-		}
-	}
-	// the tree root
-    private KdNode root;
-    // number of saved MapPoint objects  
-    private int size;
-
-    // helpers 
-    private MapPoint nextPoint ;
-    private double minDist;
-
-    /**
-     *  create an empty tree
-     */
+
+	// the points in the order they were added
+	private final List<MapPoint> added = new ArrayList<MapPoint>();
+
+	// the tree, null if it has to be built
+	private MapPoint[] points;
+	private Coord[] coords;
+	private int[] order;
+	// the smallest cosine of the latitude of all points, used to find
+	// the least distance to the other side of a longitude split
+	private double minCos;
+
+	/**
+	 *  create an empty tree
+	 */
 	public MapPointKdTree() {
-		root = null;
 	}
 
 	public long size()
 	{
-		return size;
+		return added.size();
 	}
 
-	
 	/**
-	 * Start the add action with the root
+	 * Add a point to the tree.
 	 * @param toAdd
 	 */
 	public void add(MapPoint toAdd) {
-		size++;
-		root = add(toAdd, root, ROOT_NODE_USES_LONGITUDE);
+		added.add(toAdd);
+		points = null;
 	}
 
 	/**
-	 * Compares the given axis of both points. 
-	 * @param longitude <code>true</code>: compare longitude; <code>false</code> compare latitude
-	 * @param c1 a point
-	 * @param c2 another point
-	 * @return <code>true</code> the axis value of c1 is smaller than c2; 
-	 * 		<code>false</code> the axis value of c1 is equal or larger than c2
+	 * Searches for the point that has smallest distance to the given point.
+	 * @param p the point to search for
+	 * @return the point with shortest distance to <var>p</var>
 	 */
-	private boolean isSmaller(boolean longitude, Coord c1, Coord c2) {
-		if (longitude) {
-			return c1.getLongitude() < c2.getLongitude();
-		} else {
-			return c1.getLatitude() < c2.getLatitude();
-		}
+	public MapPoint findNextPoint(MapPoint p) {
+		return findNextPoint(p, null);
 	}
-	
+
 	/**
-	 * Recursive routine to find the right place for inserting 
-	 * into the tree.  
-	 * @param toAdd the point
-	 * @param tree the subtree root node where to add (maybe <code>null</code>)
-	 * @param useLongitude <code>true</code> the tree node uses longitude for comparison; 
-	 * 		<code>false</code> the tree node uses latitude for comparison
-	 * @return the subtree root node after insertion
+	 * Searches for the nearest point with the given name.
+	 * @param p the point to search for
+	 * @param name the name of the point, <code>null</code> for any point
+	 * @return the point with shortest distance to <var>p</var> or 
+	 * <code>null</code> if no point has this name
 	 */
-    private KdNode add( MapPoint toAdd, KdNode tree,  boolean useLongitude){
-        if( tree == null ) {
-            tree = new KdNode( toAdd );
-        } else {
-        	if(isSmaller(useLongitude, toAdd.getLocation(), tree.point.getLocation())) {
-        		tree.left = add(toAdd, tree.left, !useLongitude);
-        	} else {
-        		tree.right = add(toAdd, tree.right, !useLongitude);
-        	}
-        }
-        return tree;
-    }
-    
+	public MapPoint findNextPoint(MapPoint p, String name) {
+		List<MapPoint> result = findNextPoints(p, 1, name);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
 	/**
-	 * Searches for the point that has smallest distance to the given point.
+	 * Searches for the points with the smallest distances to the given point.
 	 * @param p the point to search for
-	 * @return the point with shortest distance to <var>p</var>
+	 * @param k the number of points to find
+	 * @param name the name of the points, <code>null</code> for any point
+	 * @return at most <var>k</var> points, the nearest first
 	 */
-	public MapPoint findNextPoint(MapPoint p) {
-		// reset 
-		minDist = Double.MAX_VALUE;
-		nextPoint = null;
-		
-		// false => first node is a latitude level
-		return findNextPoint(p, root, ROOT_NODE_USES_LONGITUDE);
+	public List<MapPoint> findNextPoints(MapPoint p, int k, String name) {
+		if (k <= 0)
+			return Collections.emptyList();
+		build();
+		Search search = new Search(p.getLocation(), name, k, Double.MAX_VALUE);
+		search.next(0, points.length, ROOT_NODE_USES_LONGITUDE);
+
+		Hit[] hits = search.found.toArray(new Hit[search.found.size()]);
+		Arrays.sort(hits);
+		List<MapPoint> result = new ArrayList<MapPoint>(hits.length);
+		for (Hit hit : hits)
+			result.add(points[hit.pos]);
+		return result;
 	}
 
-	private MapPoint findNextPoint(MapPoint p, KdNode tree, boolean useLongitude) {
-		boolean continueWithLeft = false;
-		if (tree == null)
-			return nextPoint;
-		
-		if (tree.left == null && tree.right == null){
-			double dist = tree.point.getLocation().distanceInDegreesSquared(p.getLocation());
-			if (dist < minDist){
-				nextPoint = tree.point;
-				minDist = dist;
-			}
-			return nextPoint;
+	/**
+	 * Searches for the points that are within a distance of the given point.
+	 * The distance is calculated in the same way as for the nearest point, it
+	 * can differ a little from {@link Coord#distance}.
+	 * @param p the point to search for
+	 * @param radius the distance in metres
+	 * @param name the name of the points, <code>null</code> for any point
+	 * @return the points in the order in which they were added
+	 */
+	public List<MapPoint> findPointsInRadius(MapPoint p, double radius, String name) {
+		build();
+		double degrees = radius / (Coord.U / 360);
+		Search search = new Search(p.getLocation(), name, Integer.MAX_VALUE, degrees * degrees);
+		search.next(0, points.length, ROOT_NODE_USES_LONGITUDE);
+
+		int[] found = new int[search.found.size()];
+		int n = 0;
+		for (Hit hit : search.found)
+			found[n++] = hit.order;
+		Arrays.sort(found);
+		List<MapPoint> result = new ArrayList<MapPoint>(n);
+		for (int i : found)
+			result.add(added.get(i));
+		return result;
+	}
+
+	/**
+	 * Build the tree from all points that were added.
+	 */
+	private void build() {
+		if (points != null)
+			return;
+
+		int n = added.size();
+		points = new MapPoint[n];
+		coords = new Coord[n];
+		order = new int[n];
+
+		final Coord[] all = new Coord[n];
+		double maxLat = 0;
+		for (int i = 0; i < n; i++) {
+			all[i] = added.get(i).getLocation();
+			order[i] = i;
+			maxLat = Math.max(maxLat, Math.abs(all[i].getLatDegrees()));
 		}
-		else {
-			if (isSmaller(useLongitude, p.getLocation(), tree.point.getLocation())){
-				continueWithLeft = false;
-				nextPoint = findNextPoint(p, tree.left, !useLongitude);
-			}
-			else {
-				continueWithLeft = true;
-				nextPoint = findNextPoint(p, tree.right, !useLongitude);
+		minCos = Math.cos(Math.toRadians(Math.min(maxLat, 90)));
+
+		build(all, 0, n, ROOT_NODE_USES_LONGITUDE);
+
+		for (int i = 0; i < n; i++) {
+			points[i] = added.get(order[i]);
+			coords[i] = all[order[i]];
+		}
+	}
+
+	/**
+	 * Sort the range of positions by the axis and then do the same for the
+	 * two halves on the other axis.
+	 */
+	private void build(final Coord[] all, int from, int to, final boolean useLongitude) {
+		if (to - from <= 1)
+			return;
+
+		IntArrays.quickSort(order, from, to, new AbstractIntComparator() {
+			public int compare(int i1, int i2) {
+				int v1 = axisValue(useLongitude, all[i1]);
+				int v2 = axisValue(useLongitude, all[i2]);
+				if (v1 != v2)
+					return v1 < v2 ? -1 : 1;
+				return Integer.compare(i1, i2);
 			}
+		});
+
+		int mid = (from + to) >>> 1;
+		build(all, from, mid, !useLongitude);
+		build(all, mid + 1, to, !useLongitude);
+	}
+
+	private static int axisValue(boolean longitude, Coord co) {
+		return longitude ? co.getHighPrecLon() : co.getHighPrecLat();
+	}
+
+	/**
+	 * A point that was found, ordered by distance and then by the order
+	 * in which the points were added.
+	 */
+	private static class Hit implements Comparable<Hit> {
+		private final int pos;
+		private final int order;
+		private final double dist;
+
+		Hit(int pos, int order, double dist) {
+			this.pos = pos;
+			this.order = order;
+			this.dist = dist;
 		}
-		
-		double dist = tree.point.getLocation().distanceInDegreesSquared(p.getLocation());
-		if (dist < minDist){
-			nextPoint = tree.point;
-			minDist = dist;
+
+		public int compareTo(Hit o) {
+			int res = Double.compare(dist, o.dist);
+			if (res == 0)
+				res = Integer.compare(order, o.order);
+			return res;
+		}
+	}
+
+	/**
+	 * The state of one search.
+	 */
+	private class Search {
+		private final Coord co;
+		private final String name;
+		private final int k;
+		private final double maxDist;
+		private final double cos;
+		// the worst hit is at the head
+		private final PriorityQueue<Hit> found = new PriorityQueue<Hit>(11, Collections.reverseOrder());
+
+		Search(Coord co, String name, int k, double maxDist) {
+			this.co = co;
+			this.name = name;
+			this.k = k;
+			this.maxDist = maxDist;
+			cos = Math.min(minCos, Math.cos(Math.toRadians(co.getLatDegrees())));
+		}
+
+		/**
+		 * @return The distance that a point must not exceed to be found.
+		 */
+		private double limit() {
+			if (found.size() < k)
+				return maxDist;
+			return found.peek().dist;
 		}
-		
-		// do we have to search the other part of the tree?
-		Coord test;
-		if (useLongitude)
-			test = Coord.makeHighPrecCoord(p.getLocation().getHighPrecLat(), tree.point.getLocation().getHighPrecLon());
-		else
-			test = Coord.makeHighPrecCoord(tree.point.getLocation().getHighPrecLat(), p.getLocation().getHighPrecLon());
-		if (test.distanceInDegreesSquared(p.getLocation()) < minDist){
-			if (continueWithLeft) 
-				nextPoint = findNextPoint(p, tree.left, !useLongitude);
+
+		private void next(int from, int to, boolean useLongitude) {
+			if (from >= to)
+				return;
+
+			int mid = (from + to) >>> 1;
+			Coord node = coords[mid];
+
+			int diff = axisValue(useLongitude, co) - axisValue(useLongitude, node);
+			if (diff < 0)
+				next(from, mid, !useLongitude);
 			else
-				nextPoint = findNextPoint(p, tree.right, !useLongitude);
+				next(mid + 1, to, !useLongitude);
+
+			if (name == null || name.equals(points[mid].getName())) {
+				double dist = node.distanceInDegreesSquared(co);
+				if (dist <= limit()) {
+					Hit hit = new Hit(mid, order[mid], dist);
+					if (found.size() < k)
+						found.add(hit);
+					else if (hit.compareTo(found.peek()) < 0) {
+						found.poll();
+						found.add(hit);
+					}
+				}
+			}
+
+			// do we have to search the other part of the tree?
+			double planeDist = diff * (360.0 / (1 << 30));
+			if (useLongitude)
+				planeDist *= cos;
+			// allow for rounding errors, a point with the same distance must be found
+			if (planeDist * planeDist * (1 - 1e-9) <= limit()) {
+				if (diff < 0)
+					next(mid + 1, to, !useLongitude);
+				else
+					next(from, mid, !useLongitude);
+			}
 		}
-		return nextPoint;
 	}
-} 
+}
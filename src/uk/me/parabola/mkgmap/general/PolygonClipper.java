@@ -23,7 +23,7 @@ import java.util.List;
 import uk.me.parabola.imgfmt.Utils;
 import uk.me.parabola.imgfmt.app.Area;
 import uk.me.parabola.imgfmt.app.Coord;
-import uk.me.parabola.util.Java2DConverter;
+import uk.me.parabola.util.ShapeSplitter;
 
 /**
  * Clip a polygon to the given bounding box.  This may result in more than
@@ -60,12 +60,7 @@ public class PolygonClipper {
 			Coord co = coords.get(i);
 			map.put(Utils.coord2Long(co), co);
 		}
-		java.awt.geom.Area bbarea = Java2DConverter.createBoundsArea(bbox); 
-		java.awt.geom.Area shape = Java2DConverter.createArea(coords);
-
-		shape.intersect(bbarea);
-
-		List<List<Coord>> shapes = Java2DConverter.areaToShapes(shape);
+		List<List<Coord>> shapes = ShapeSplitter.clipToBounds(coords, bbox);
 		for (List<Coord> sh: shapes){
 			for (int i = 0; i < sh.size(); i++){
 				Coord co = sh.get(i);
@@ -21,6 +21,7 @@ import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -31,8 +32,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -56,6 +55,7 @@ import uk.me.parabola.mkgmap.combiners.OverviewMap;
 import uk.me.parabola.mkgmap.combiners.TdbBuilder;
 import uk.me.parabola.mkgmap.osmstyle.StyleFileLoader;
 import uk.me.parabola.mkgmap.osmstyle.StyleImpl;
+import uk.me.parabola.mkgmap.osmstyle.StyleProfiler;
 import uk.me.parabola.mkgmap.reader.osm.Style;
 import uk.me.parabola.mkgmap.reader.osm.StyleInfo;
 import uk.me.parabola.mkgmap.reader.overview.OverviewMapDataSource;
@@ -82,7 +82,7 @@ public class Main implements ArgumentProcessor {
 	private boolean verbose;
 
 	private final List<FilenameTask> futures = new LinkedList<FilenameTask>();
-	private ExecutorService threadPool;
+	private volatile TileScheduler scheduler;
 	// default number of threads
 	private int maxJobs = 1;
 
@@ -250,7 +250,7 @@ public class Main implements ArgumentProcessor {
 			public String call() {
 				log.threadTag(filename);
 				if (filename.startsWith("test-map:") || new File(filename).exists()){
-					String output = mp.makeMap(args, filename);
+					String output = makeMap(mp, args, filename);
 					log.debug("adding output name", output);
 					log.threadTag(null);
 					return output;
@@ -261,9 +261,32 @@ public class Main implements ArgumentProcessor {
 			}
 		});
 		task.setArgs(args);
+		task.setInput(filename);
 		futures.add(task);
 	}
 
+	/**
+	 * Make the map. If the heap was too small for this map and other
+	 * maps, wait until the other maps are done and try again.
+	 */
+	private String makeMap(MapProcessor mp, CommandArgs args, String filename) {
+		try {
+			return mp.makeMap(args, filename);
+		} catch (OutOfMemoryError e) {
+			boolean retry;
+			try {
+				retry = scheduler.waitUntilAlone();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw e;
+			}
+			if (!retry)
+				throw e;
+			log.error("Out of memory while processing " + filename + " with other maps, trying again alone");
+			return mp.makeMap(args, filename);
+		}
+	}
+
 	private MapProcessor mapMaker(String ext) {
 		MapProcessor mp = processMap.get(ext);
 		if (mp == null)
@@ -437,68 +460,115 @@ public class Main implements ArgumentProcessor {
 		combiners.add(combiner);
 	}
 
-	public void endOptions(CommandArgs args) {
-		fileOptions(args);
-
-		log.info("Start tile processors");
-		if (threadPool == null) {
-			log.info("Creating thread pool with " + maxJobs + " threads");
-			threadPool = Executors.newFixedThreadPool(maxJobs);
+	/**
+	 * Create the jobs for the input files. The cost of a job is the time
+	 * of the previous run if known, else it is derived from the file size.
+	 * @param timingsFile the file with the times of a previous run or null
+	 * @param memoryBudget the memory for the maps that run at the same time,
+	 * 0 means no limit
+	 */
+	private TileScheduler createScheduler(String timingsFile, long memoryBudget) {
+		Map<String, Long> timings = Collections.emptyMap();
+		if (timingsFile != null)
+			timings = TileScheduler.readTimings(timingsFile);
+
+		// the average time per byte of estimated memory of the known tiles
+		long knownTime = 0;
+		long knownMemory = 0;
+		for (FilenameTask task : futures) {
+			Long time = timings.get(task.getInput());
+			if (time != null) {
+				knownTime += time;
+				knownMemory += TileScheduler.estimateMemory(task.getInput());
+			}
 		}
+		double timePerByte = knownTime > 0 && knownMemory > 0 ? (double) knownTime / knownMemory : 1;
 
-		// process all input files
+		TileScheduler scheduler = new TileScheduler(maxJobs, memoryBudget);
 		for (FilenameTask task : futures) {
-			threadPool.execute(task);
+			long memory = TileScheduler.estimateMemory(task.getInput());
+			Long time = timings.get(task.getInput());
+			long cost = time != null ? time : (long) (memory * timePerByte);
+			scheduler.add(new TileScheduler.Job(task, task.getInput(), cost, memory));
 		}
+		return scheduler;
+	}
+
+	public void endOptions(CommandArgs args) {
+		fileOptions(args);
 
+		log.info("Start tile processors");
+		log.info("Creating thread pool with " + maxJobs + " threads");
+		String timingsFile = args.getProperties().getProperty("tile-timings", null);
+		// no admission by memory unless the option is given
+		long memoryBudget = 0;
+		String budget = args.getProperties().getProperty("job-memory-budget");
+		if (budget != null) {
+			int budgetMB = args.getProperties().getProperty("job-memory-budget", 0);
+			if (budgetMB > 0)
+				memoryBudget = budgetMB * 1024L * 1024;
+			else
+				memoryBudget = Runtime.getRuntime().maxMemory() / 10 * 9;
+		}
+		scheduler = createScheduler(timingsFile, memoryBudget);
+		// with one thread the maps are made in the given order
+		scheduler.start(maxJobs > 1);
 
 		List<FilenameTask> filenames = new ArrayList<FilenameTask>();
-		
+
 		int numMapFailedExceptions = 0;
-		
-		if (threadPool != null) {
-			threadPool.shutdown();
-			while (!futures.isEmpty()) {
+
+		while (!futures.isEmpty()) {
+			try {
 				try {
-					try {
-						// don't call get() until a job has finished
-						if (futures.get(0).isDone()) {
-							FilenameTask future = futures.remove(0);
-
-							// Provoke any exceptions by calling get and then
-							// save the result for later use
-							future.setFilename(future.get());
-							filenames.add(future);
-						} else
-							Thread.sleep(100);
-					} catch (ExecutionException e) {
-						// Re throw the underlying exception
-						Throwable cause = e.getCause();
-						if (cause instanceof Exception)
-							//noinspection ProhibitedExceptionThrown
-							throw (Exception) cause;
-						else if (cause instanceof Error)
-							//noinspection ProhibitedExceptionThrown
-							throw (Error) cause;
-						else
-							throw e;
-					}
-				} catch (ExitException ee) {
-					throw ee;
-				} catch (MapFailedException mfe) {
-//					System.err.println(mfe.getMessage()); // already printed via log
-					numMapFailedExceptions++;
-					setProgramRC(-1);
-				} catch (Throwable t) {
-					t.printStackTrace();
-					if (!args.getProperties().getProperty("keep-going", false)) {
-						throw new ExitException("Exiting - if you want to carry on regardless, use the --keep-going option");
-					}
+					FilenameTask future = futures.remove(0);
+
+					// Provoke any exceptions by calling get and then
+					// save the result for later use
+					future.setFilename(future.get());
+					filenames.add(future);
+				} catch (ExecutionException e) {
+					// Re throw the underlying exception
+					Throwable cause = e.getCause();
+					if (cause instanceof Exception)
+						//noinspection ProhibitedExceptionThrown
+						throw (Exception) cause;
+					else if (cause instanceof Error)
+						//noinspection ProhibitedExceptionThrown
+						throw (Error) cause;
+					else
+						throw e;
+				}
+			} catch (ExitException ee) {
+				throw ee;
+			} catch (MapFailedException mfe) {
+//				System.err.println(mfe.getMessage()); // already printed via log
+				numMapFailedExceptions++;
+				setProgramRC(-1);
+			} catch (Throwable t) {
+				t.printStackTrace();
+				if (!args.getProperties().getProperty("keep-going", false)) {
+					throw new ExitException("Exiting - if you want to carry on regardless, use the --keep-going option");
 				}
 			}
 		}
 		System.out.println("Number of MapFailedExceptions: " + numMapFailedExceptions);
 
+		try {
+			scheduler.awaitTermination();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		String report = scheduler.getReport();
+		log.info(report);
+		if (verbose)
+			System.out.println(report);
+		if (timingsFile != null)
+			scheduler.writeTimings(timingsFile);
+		String styleProfile = StyleProfiler.getRunReport();
+		if (styleProfile != null)
+			System.out.print(styleProfile);
+
 		if (combiners.isEmpty())
 			return;
 		boolean hasFiles = false;
@@ -649,6 +719,7 @@ public class Main implements ArgumentProcessor {
 
 	private static class FilenameTask extends FutureTask<String> {
 		private CommandArgs args;
+		private String input;
 		private String filename;
 
 		private FilenameTask(Callable<String> callable) {
@@ -663,6 +734,14 @@ public class Main implements ArgumentProcessor {
 			return args;
 		}
 
+		public void setInput(String input) {
+			this.input = input;
+		}
+
+		public String getInput() {
+			return input;
+		}
+
 		public void setFilename(String filename) {
 			this.filename = filename;
 		}
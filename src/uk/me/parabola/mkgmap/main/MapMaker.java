@@ -42,6 +42,7 @@ import uk.me.parabola.mkgmap.general.LoadableMapDataSource;
 import uk.me.parabola.mkgmap.general.MapLine;
 import uk.me.parabola.mkgmap.general.MapPoint;
 import uk.me.parabola.mkgmap.general.MapRoad;
+import uk.me.parabola.mkgmap.osmstyle.StyleProfiler;
 import uk.me.parabola.mkgmap.reader.plugin.MapReader;
 
 /**
@@ -87,6 +88,8 @@ public class MapMaker implements MapProcessor {
 		} catch (FileNotFoundException e) {
 			System.err.println("Could not open file: " + filename);
 			return filename;
+		} finally {
+			StyleProfiler.endTile(filename);
 		}
 	}
 
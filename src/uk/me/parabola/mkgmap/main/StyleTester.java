@@ -117,6 +117,10 @@ import org.xml.sax.SAXException;
  * optimisation.  This acts as an independent check of the main style code
  * which may have more optimisations.
  *
+ * With the --compiled flag the style rules are run in their compiled form,
+ * see the compile-style-rules option. In the single test file mode the
+ * compiled rules are always run as well and must give the same result.
+ *
  * @author Steve Ratcliffe
  */
 public class StyleTester implements OsmConverter {
@@ -127,6 +131,7 @@ public class StyleTester implements OsmConverter {
 
 	private static PrintStream out = System.out;
 	private static boolean reference;
+	private static boolean compiled;
 
 	private final OsmConverter converter;
 
@@ -137,10 +142,14 @@ public class StyleTester implements OsmConverter {
 	private static boolean print = true;
 
 	private StyleTester(String stylefile, MapCollector coll, boolean reference) throws FileNotFoundException {
+		this(stylefile, coll, reference, compiled);
+	}
+
+	private StyleTester(String stylefile, MapCollector coll, boolean reference, boolean compiled) throws FileNotFoundException {
 		if (reference)
 			converter = makeStrictStyleConverter(stylefile, coll);
 		else
-			converter = makeStyleConverter(stylefile, coll);
+			converter = makeStyleConverter(stylefile, coll, compiled);
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -166,6 +175,9 @@ public class StyleTester implements OsmConverter {
 					System.out.println("# using reference method of calculation");
 				reference = true;
 				showMatches = true;
+			} else if (s.startsWith("--compiled")) {
+				System.out.println("# using compiled style rules");
+				compiled = true;
 			} else if (s.startsWith("--no-print")) {
 				print = false;
 			} else
@@ -231,6 +243,8 @@ public class StyleTester implements OsmConverter {
 
 			List<MapElement> strictResults = new ArrayList<MapElement>();
 
+			List<MapElement> compiledResults = new ArrayList<MapElement>();
+
 			OsmConverter strict = new StyleTester("styletester.style", new LocalMapCollector(strictResults), true);
 			List<String> givenList = ((StyleTester) strict).givenResults;
 
@@ -258,6 +272,17 @@ public class StyleTester implements OsmConverter {
 					printResult(expected);
 				}
 
+				// the compiled rules must give the same result as the normal ones
+				OsmConverter comp = new StyleTester("styletester.style", new LocalMapCollector(compiledResults), false, true);
+				comp.convertWay(w.copy());
+				comp.end();
+				String[] compiledActual = formatResults(prefix, compiledResults);
+				compiledResults.clear();
+				if (!Arrays.deepEquals(compiledActual, actual)) {
+					out.println("ERROR compiled rules give:");
+					printResult(compiledActual);
+				}
+
 				out.println();
 			}
 
@@ -461,10 +486,13 @@ public class StyleTester implements OsmConverter {
 	 * mkgmap you are using.
 	 * @param styleFile The name of the style file to process.
 	 * @param coll A map collector to receive the created elements.
-
+	 * @param compiled Use the compiled form of the style rules.
 	 */
-	private StyledConverter makeStyleConverter(String styleFile, MapCollector coll) throws FileNotFoundException {
-		Style style = new StyleImpl(styleFile, null);
+	private StyledConverter makeStyleConverter(String styleFile, MapCollector coll, boolean compiled) throws FileNotFoundException {
+		EnhancedProperties props = new EnhancedProperties();
+		if (compiled)
+			props.setProperty("compile-style-rules", "true");
+		Style style = new StyleImpl(styleFile, null, props, StyleImpl.WITHOUT_CHECKS);
 		return new StyledConverter(style, coll, new EnhancedProperties());
 	}
 
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import uk.me.parabola.log.Logger;
+
+/**
+ * Runs the map jobs on a fixed number of threads.
+ *
+ * A job is started when a thread becomes free, so a thread that has finished
+ * a small tile takes the next one. When largest first is enabled, the jobs
+ * with the highest estimated cost are started first, so that a large tile
+ * doesn't start at the end and keep the whole run waiting.
+ *
+ * Each job has an estimate of the memory that it needs. A job is only
+ * started when the estimates of the running jobs and the new one fit into
+ * the memory budget, if one is given, so that large tiles don't run at the
+ * same time.
+ * A job is always started when nothing else is running.
+ *
+ * The estimates are corrected with the size of the old generation after
+ * garbage collections while the jobs run, which is the data that the jobs
+ * really keep. A job that ran out of memory while sharing the heap with
+ * other jobs can wait with {@link #waitUntilAlone()} until the other jobs
+ * have finished and then try again. Only one job runs alone at a time,
+ * others that ran out of memory wait for their turn.
+ */
+public class TileScheduler {
+	private static final Logger log = Logger.getLogger(TileScheduler.class);
+
+	private final int maxJobs;
+	private final long memoryBudget;
+	private final ExecutorService pool;
+
+	private final List<Job> jobs = new ArrayList<Job>();
+	private final LinkedList<Job> pending = new LinkedList<Job>();
+	private final Set<Job> running = new HashSet<Job>();
+	private long runningMemory;
+
+	// the job that is run by the current thread
+	private final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();
+
+	// corrects the estimated memory of the jobs with the observed heap usage
+	private double memoryFactor = 1;
+	private static final double MIN_MEMORY_FACTOR = 0.5;
+	private static final double MAX_MEMORY_FACTOR = 4;
+	// the highest sum of estimates since the last measurement
+	private long measuredMemory;
+	// the old generation pools
+	private final List<MemoryPoolMXBean> tenuredPools = new ArrayList<MemoryPoolMXBean>();
+	// the old generation usage after the last collection when the jobs were started
+	private long baseUsage;
+	// the last seen and the highest old generation usage after a collection
+	// since the last measurement
+	private long lastUsage;
+	private long peakUsage;
+
+	// the number of jobs that wait to run alone or are running alone
+	private int retrying;
+	// the job that is running alone
+	private Job aloneJob;
+
+	private long startTime;
+
+	/**
+	 * @param maxJobs the number of threads
+	 * @param memoryBudget the sum of the memory estimates of the jobs that
+	 * may run at the same time, 0 means no limit
+	 */
+	public TileScheduler(int maxJobs, long memoryBudget) {
+		this.maxJobs = maxJobs;
+		this.memoryBudget = memoryBudget;
+		this.pool = Executors.newFixedThreadPool(maxJobs);
+		for (MemoryPoolMXBean bean : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (bean.getType() == MemoryType.HEAP && bean.isValid() && bean.getCollectionUsage() != null
+					&& (bean.getName().contains("Old") || bean.getName().contains("Tenured")))
+				tenuredPools.add(bean);
+		}
+	}
+
+	/**
+	 * Add a job. All jobs must be added before {@link #start} is called.
+	 */
+	public void add(Job job) {
+		jobs.add(job);
+	}
+
+	/**
+	 * Start the jobs.
+	 * @param largestFirst true: start the jobs with the highest cost first,
+	 * else in the order in which they were added
+	 */
+	public void start(boolean largestFirst) {
+		startTime = System.currentTimeMillis();
+		synchronized (this) {
+			pending.addAll(jobs);
+			if (largestFirst) {
+				// a stable sort, so jobs with the same cost keep their order
+				Collections.sort(pending, new Comparator<Job>() {
+					public int compare(Job o1, Job o2) {
+						return Long.compare(o2.cost, o1.cost);
+					}
+				});
+			}
+			baseUsage = lastUsage = getTenuredUsage();
+			startJobs();
+		}
+	}
+
+	/**
+	 * Wait until all jobs are done.
+	 */
+	public void awaitTermination() throws InterruptedException {
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Start as many pending jobs as possible. A job that doesn't fit into the
+	 * memory budget is skipped so that smaller jobs can use the free threads.
+	 */
+	private synchronized void startJobs() {
+		if (retrying > 0)
+			return;
+		sampleUsage();
+		Iterator<Job> iter = pending.iterator();
+		while (running.size() < maxJobs && iter.hasNext()) {
+			Job job = iter.next();
+			if (!running.isEmpty() && memoryBudget > 0
+					&& (runningMemory + job.memory) * memoryFactor > memoryBudget) {
+				if (log.isDebugEnabled())
+					log.debug("delaying job", job.name, "estimated memory",
+							(long) (job.memory * memoryFactor) / (1024 * 1024), "MB");
+				continue;
+			}
+			iter.remove();
+			if (!running.isEmpty()) {
+				job.shared = true;
+				for (Job other : running)
+					other.shared = true;
+			}
+			running.add(job);
+			runningMemory += job.memory;
+			measuredMemory = Math.max(measuredMemory, runningMemory);
+			pool.execute(new JobRunner(job));
+		}
+		// the threads end when the queued jobs are done
+		if (pending.isEmpty())
+			pool.shutdown();
+	}
+
+	/**
+	 * Called when a job has finished, starts the next ones.
+	 */
+	private synchronized void jobFinished(Job job) {
+		updateMemoryFactor();
+		if (job.retry)
+			retrying--;
+		if (aloneJob == job)
+			aloneJob = null;
+		// a job that was interrupted while waiting to run alone isn't running
+		if (running.remove(job))
+			runningMemory -= job.memory;
+		measuredMemory = runningMemory;
+		startJobs();
+		notifyAll();
+	}
+
+	/**
+	 * Compare the old generation usage after collections with the estimates
+	 * of the jobs that ran since the last call and adapt the factor for the
+	 * estimates. Nothing is changed if there was no collection of the old
+	 * generation meanwhile.
+	 */
+	private void updateMemoryFactor() {
+		sampleUsage();
+		long peak = peakUsage - baseUsage;
+		peakUsage = 0;
+		if (tenuredPools.isEmpty() || measuredMemory <= 0 || peak <= 0)
+			return;
+		if (retrying > 0) {
+			// the data of the failed try would falsify the measurement
+			return;
+		}
+		// the jobs don't always keep their data until the end, so the new
+		// value is only partly used
+		double factor = (double) peak / measuredMemory;
+		memoryFactor = (memoryFactor + factor) / 2;
+		memoryFactor = Math.min(MAX_MEMORY_FACTOR, Math.max(MIN_MEMORY_FACTOR, memoryFactor));
+		if (log.isDebugEnabled())
+			log.debug("old generation usage", peak / (1024 * 1024), "MB, estimated", measuredMemory / (1024 * 1024),
+					"MB, memory factor now", memoryFactor);
+	}
+
+	/**
+	 * Remember the old generation usage if it was collected since the last call.
+	 */
+	private void sampleUsage() {
+		long usage = getTenuredUsage();
+		if (usage != lastUsage) {
+			lastUsage = usage;
+			peakUsage = Math.max(peakUsage, usage);
+		}
+	}
+
+	/**
+	 * @return the used old generation after its last collection
+	 */
+	private long getTenuredUsage() {
+		long used = 0;
+		for (MemoryPoolMXBean bean : tenuredPools) {
+			MemoryUsage usage = bean.getCollectionUsage();
+			if (usage != null)
+				used += usage.getUsed();
+		}
+		return used;
+	}
+
+	/**
+	 * Called by a job that has run out of memory. If other jobs ran at the
+	 * same time, no new jobs are started and the method waits until the
+	 * running jobs and the jobs that were waiting before to run alone have
+	 * finished.
+	 *
+	 * While it waits, the job doesn't count as running, so that other jobs
+	 * that run out of memory at the same time don't wait for it.
+	 * @return true if the job should try again, false if the job was alone
+	 * and so will not succeed with a second try
+	 */
+	public synchronized boolean waitUntilAlone() throws InterruptedException {
+		Job job = currentJob.get();
+		if (job == null || !job.shared || job.retry)
+			return false;
+		// no new jobs are started until this one has finished
+		job.retry = true;
+		retrying++;
+		running.remove(job);
+		runningMemory -= job.memory;
+		notifyAll();
+		while (aloneJob != null || !running.isEmpty())
+			wait();
+		aloneJob = job;
+		running.add(job);
+		runningMemory += job.memory;
+		return true;
+	}
+
+	/**
+	 * @return a report with the time needed by each job, longest first
+	 */
+	public String getReport() {
+		List<Job> done = new ArrayList<Job>();
+		for (Job job : jobs) {
+			if (job.endTime > 0)
+				done.add(job);
+		}
+		Collections.sort(done, new Comparator<Job>() {
+			public int compare(Job o1, Job o2) {
+				return Long.compare(o2.getTime(), o1.getTime());
+			}
+		});
+		long sum = 0;
+		StringBuilder sb = new StringBuilder();
+		sb.append("Time per tile (longest first):\n");
+		for (Job job : done) {
+			sum += job.getTime();
+			sb.append(String.format(Locale.ENGLISH, "%10d ms  start %8d ms  %s%n",
+					job.getTime(), job.startTime - startTime, job.name));
+		}
+		sb.append(String.format(Locale.ENGLISH, "%d tiles, sum %d ms, elapsed %d ms",
+				done.size(), sum, System.currentTimeMillis() - startTime));
+		return sb.toString();
+	}
+
+	/**
+	 * Estimate the heap that is needed to make a map from the given file.
+	 * The factors are rough values for typical OSM data. The estimate
+	 * compares the work for files of different formats when no times of
+	 * a previous run are known.
+	 * @return the estimated number of bytes, 0 for files that are not
+	 * converted, e.g. img files
+	 */
+	public static long estimateMemory(String filename) {
+		long size = new File(filename).length();
+		String name = filename.toLowerCase(Locale.ENGLISH);
+		if (name.endsWith(".pbf") || name.endsWith(".gz") || name.endsWith(".bz2"))
+			return size * 40;
+		if (name.endsWith(".o5m"))
+			return size * 25;
+		if (name.endsWith(".osm"))
+			return size * 4;
+		return 0;
+	}
+
+	/**
+	 * Read the times of a previous run.
+	 * @param filename a file written by {@link #writeTimings}
+	 * @return a map from the job name to the time in milliseconds, empty if
+	 * the file doesn't exist
+	 */
+	public static Map<String, Long> readTimings(String filename) {
+		Map<String, Long> timings = new LinkedHashMap<String, Long>();
+		File file = new File(filename);
+		if (!file.exists())
+			return timings;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int pos = line.indexOf('\t');
+					if (pos <= 0 || line.startsWith("#"))
+						continue;
+					try {
+						timings.put(line.substring(pos + 1), Long.parseLong(line.substring(0, pos)));
+					} catch (NumberFormatException e) {
+						log.warn("invalid line in tile timings file", filename + ":", line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.warn("cannot read tile timings file", filename, e.getMessage());
+		}
+		return timings;
+	}
+
+	/**
+	 * Save the times of the finished jobs. Times of other jobs that were
+	 * in the file are kept.
+	 */
+	public void writeTimings(String filename) {
+		Map<String, Long> timings = readTimings(filename);
+		for (Job job : jobs) {
+			if (job.endTime > 0)
+				timings.put(job.name, job.getTime());
+		}
+		try {
+			PrintWriter writer = new PrintWriter(new FileWriter(filename));
+			try {
+				writer.println("# time in ms<tab>file name, written by mkgmap");
+				for (Map.Entry<String, Long> entry : timings.entrySet())
+					writer.println(entry.getValue() + "\t" + entry.getKey());
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			log.warn("cannot write tile timings file", filename, e.getMessage());
+		}
+	}
+
+	/**
+	 * A job with its estimated cost and memory.
+	 */
+	public static class Job {
+		private final Runnable task;
+		private final String name;
+		private final long cost;
+		private final long memory;
+		// true if other jobs ran at the same time
+		private boolean shared;
+		// true if the job runs a second time after running out of memory
+		private boolean retry;
+		private volatile long startTime;
+		private volatile long endTime;
+
+		/**
+		 * @param task the task, it should not throw exceptions
+		 * @param name used in the report
+		 * @param cost the estimated cost, used for the order
+		 * @param memory the estimated memory in bytes
+		 */
+		public Job(Runnable task, String name, long cost, long memory) {
+			this.task = task;
+			this.name = name;
+			this.cost = cost;
+			this.memory = memory;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the time needed for the job in milliseconds, 0 if it didn't finish yet
+		 */
+		public long getTime() {
+			return endTime == 0 ? 0 : endTime - startTime;
+		}
+	}
+
+	private class JobRunner implements Runnable {
+		private final Job job;
+
+		JobRunner(Job job) {
+			this.job = job;
+		}
+
+		public void run() {
+			job.startTime = System.currentTimeMillis();
+			currentJob.set(job);
+			try {
+				job.task.run();
+			} finally {
+				currentJob.remove();
+				job.endTime = System.currentTimeMillis();
+				jobFinished(job);
+			}
+		}
+	}
+}
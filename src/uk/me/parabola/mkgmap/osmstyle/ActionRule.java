@@ -40,6 +40,9 @@ public class ActionRule implements Rule {
 	private final List<Action> actions;
 	private final GType type;
 	private Rule finalizeRule;
+	// the file and line number of the rule in the style
+	private String location;
+	private RuleProfile profile;
 
 	/** Finalize rules must not have an element type definition so the add method must never be called. */
 	private final static TypeResult finalizeTypeResult = new TypeResult() {
@@ -65,10 +68,15 @@ public class ActionRule implements Rule {
 	
 	public int resolveType(int cacheId, Element el, TypeResult result) {
 		Element element = el;
+		boolean matches;
+		if (profile != null)
+			matches = profile.eval(expression, cacheId, element);
+		else
+			matches = expression == null || expression.eval(cacheId, element);
+		if (!matches)
+			return cacheId;
+
 		if (expression != null) {
-			if (!expression.eval(cacheId, element))
-				return cacheId;
-				
 			// If this is a continue and we are not to propagate the effects
 			// of the action on the element to further rules, then make
 			// a copy of the element so that the original is unsullied.
@@ -81,11 +89,16 @@ public class ActionRule implements Rule {
 
 		// an action will be performed, so we may have to invalidate the cache
 		boolean invalidate_cache = false;
+		RuleProfile prev = null;
+		if (profile != null)
+			prev = profile.startActions();
 		for (Action a : actions){
 			if (a.perform(element)){
 				invalidate_cache = true;
 			}
 		}
+		if (profile != null)
+			profile.endActions(prev);
 		if (invalidate_cache)
 			cacheId++;
 		
@@ -167,5 +180,20 @@ public class ActionRule implements Rule {
 	public void setOp(Op expression){
 		this.expression = expression;
 	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public void setLocation(String location) {
+		this.location = location;
+	}
+
+	/**
+	 * Count the evaluations and the time of this rule in the profile.
+	 */
+	void setProfile(RuleProfile profile) {
+		this.profile = profile;
+	}
 	
 }
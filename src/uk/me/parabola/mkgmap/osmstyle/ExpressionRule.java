@@ -32,6 +32,9 @@ public class ExpressionRule implements Rule {
 	private Op expression;
 	private final GType gtype;
 	private Rule finalizeRule;
+	// the file and line number of the rule in the style
+	private String location;
+	private RuleProfile profile;
 
 	/** Finalize rules must not have an element type definition so the add method must never be called. */
 	private final static TypeResult finalizeTypeResult = new TypeResult() {
@@ -63,7 +66,12 @@ public class ExpressionRule implements Rule {
 	}
 
 	public int resolveType(int cacheId, Element el, TypeResult result) {
-		if (expression.eval(cacheId, el)){
+		boolean matches;
+		if (profile == null)
+			matches = expression.eval(cacheId, el);
+		else
+			matches = profile.eval(expression, cacheId, el);
+		if (matches){
 			if (finalizeRule != null) {
 				if (gtype.isContinueSearch()) {
 					el = el.copy();
@@ -93,5 +101,20 @@ public class ExpressionRule implements Rule {
 	public void setOp(Op expression){
 		this.expression = expression;
 	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public void setLocation(String location) {
+		this.location = location;
+	}
+
+	/**
+	 * Count the evaluations and the time of this rule in the profile.
+	 */
+	void setProfile(RuleProfile profile) {
+		this.profile = profile;
+	}
 	
 }
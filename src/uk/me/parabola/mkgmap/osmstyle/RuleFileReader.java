@@ -66,6 +66,8 @@ public class RuleFileReader {
 	private final Map<Integer, List<Integer>> overlays;
 
 	private boolean inFinalizeSection = false;
+	// the file name and line number of the rule that is read
+	private String ruleLocation;
 	
 	public RuleFileReader(FeatureKind kind, LevelInfo[] levels, RuleSet rules, boolean performChecks, 
 			Map<Integer, List<Integer>> overlays) {
@@ -112,6 +114,7 @@ public class RuleFileReader {
 			if (scanner.isEndOfFile())
 				break;
 
+			ruleLocation = scanner.getFileName() + ":" + scanner.getNextLinenumber();
 			Op expr = expressionReader.readConditions();
 
 			ActionList actionList = actionReader.readActions();
@@ -542,10 +545,15 @@ public class RuleFileReader {
 	private void createAndSaveRule(String keystring, Op expr, ActionList actions, GType gt) {
 
 		Rule rule;
-		if (actions.isEmpty()) 
-			rule = new ExpressionRule(expr, gt);
-		else
-			rule = new ActionRule(expr, actions.getList(), gt);
+		if (actions.isEmpty()) {
+			ExpressionRule er = new ExpressionRule(expr, gt);
+			er.setLocation(ruleLocation);
+			rule = er;
+		} else {
+			ActionRule ar = new ActionRule(expr, actions.getList(), gt);
+			ar.setLocation(ruleLocation);
+			rule = ar;
+		}
 
 		if (inFinalizeSection)
 			finalizeRules.add(keystring, rule, actions.getChangeableTags());
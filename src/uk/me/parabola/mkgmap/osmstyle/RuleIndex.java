@@ -72,11 +72,34 @@ public class RuleIndex {
 		final BitSet exists;
 		// This is an index of all rules that start with EQUALS (A=B) 
 		Map<String, BitSet> tagVals;
+
+		// The same as above as sorted rule numbers, for the compiled rules
+		int[] existsNumbers;
+		Map<String, int[]> tagValNumbers;
 		
 		public TagHelper(BitSet exits){
 			this.exists = exits;
 		}
 
+		void makeNumbers() {
+			if (exists != null)
+				existsNumbers = toNumbers(exists);
+			if (tagVals != null) {
+				tagValNumbers = new HashMap<>();
+				for (Map.Entry<String, BitSet> entry : tagVals.entrySet())
+					tagValNumbers.put(entry.getKey(), toNumbers(entry.getValue()));
+			}
+		}
+
+		int[] getNumbers(String tagVal) {
+			if (tagValNumbers != null) {
+				int[] numbers = tagValNumbers.get(tagVal);
+				if (numbers != null)
+					return numbers;
+			}
+			return existsNumbers;
+		}
+
 		public void addTag(String val, BitSet value) {
 			if (tagVals == null)
 				tagVals = new HashMap<>();
@@ -150,7 +173,27 @@ public class RuleIndex {
 		return th.getBitSet(tagVal);
 	}
 
-	
+	/**
+	 * Get the rules that might be matched by this tag, in the same way as
+	 * {@link #getRulesForTag}, but without creating any objects.
+	 * @return The rule numbers in ascending order. The array is shared and
+	 * must not be modified. If there are no rules then null is returned.
+	 */
+	public int[] getRuleNumbersForTag(short tagKey, String tagVal) {
+		TagHelper th;
+		if (tagKeyArray != null){
+			if (tagKey >= 0 & tagKey < tagKeyArray.length){
+				th = tagKeyArray[tagKey];
+			} else 
+				th = null;
+		} else {
+			th = tagKeyMap.get(tagKey);
+		}
+		if (th == null)
+			return null;
+		return th.getNumbers(tagVal);
+	}
+
 	/**
 	 * Prepare the index for use.  This involves merging in all the possible
 	 * rules that could be run as a result of actions changing tags.
@@ -289,10 +332,27 @@ public class RuleIndex {
 			}
 			tagKeyMap.clear();
 		}
+
+		for (TagHelper th : tagKeyMap.values())
+			th.makeNumbers();
+		if (tagKeyArray != null) {
+			for (TagHelper th : tagKeyArray) {
+				if (th != null)
+					th.makeNumbers();
+			}
+		}
 			
 		inited = true;
 	}
 
+	private static int[] toNumbers(BitSet set) {
+		int[] numbers = new int[set.cardinality()];
+		int n = 0;
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+			numbers[n++] = i;
+		return numbers;
+	}
+
 	private static void addNumberToMap(Map<String, BitSet> map, String key, int ruleNumber) {
 		BitSet set = map.get(key);
 		if (set == null) {
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import uk.me.parabola.mkgmap.osmstyle.eval.Op;
+import uk.me.parabola.mkgmap.reader.osm.Element;
+
+/**
+ * The counts and times of one rule in the style file. All the rules that
+ * are made from the same place in the file share a profile.
+ */
+class RuleProfile implements Comparable<RuleProfile> {
+	private final String location;
+	private final String text;
+
+	long evaluations;
+	long matches;
+	long exprNanos;
+	long actionNanos;
+	long functionCalls;
+
+	private long actionStart;
+
+	RuleProfile(String location, String text) {
+		this.location = location;
+		this.text = text;
+	}
+
+	/**
+	 * Evaluate the expression of the rule and count it.
+	 * @param op The expression, if it is null the rule always matches.
+	 */
+	boolean eval(Op op, int cacheId, Element el) {
+		evaluations++;
+		if (op == null) {
+			matches++;
+			return true;
+		}
+
+		RuleProfile prev = StyleProfiler.enter(this);
+		long start = System.nanoTime();
+		boolean res = op.eval(cacheId, el);
+		exprNanos += System.nanoTime() - start;
+		StyleProfiler.leave(prev);
+
+		if (res)
+			matches++;
+		return res;
+	}
+
+	/**
+	 * Called before the actions of the rule are run.
+	 * @return The profile to pass to {@link #endActions}.
+	 */
+	RuleProfile startActions() {
+		RuleProfile prev = StyleProfiler.enter(this);
+		actionStart = System.nanoTime();
+		return prev;
+	}
+
+	void endActions(RuleProfile prev) {
+		actionNanos += System.nanoTime() - actionStart;
+		StyleProfiler.leave(prev);
+	}
+
+	void add(RuleProfile other) {
+		evaluations += other.evaluations;
+		matches += other.matches;
+		exprNanos += other.exprNanos;
+		actionNanos += other.actionNanos;
+		functionCalls += other.functionCalls;
+	}
+
+	String getLocation() {
+		return location;
+	}
+
+	String getText() {
+		return text;
+	}
+
+	long getTotalNanos() {
+		return exprNanos + actionNanos;
+	}
+
+	/**
+	 * The most expensive rules come first.
+	 */
+	public int compareTo(RuleProfile o) {
+		if (getTotalNanos() != o.getTotalNanos())
+			return getTotalNanos() > o.getTotalNanos() ? -1 : 1;
+		return location.compareTo(o.location);
+	}
+}
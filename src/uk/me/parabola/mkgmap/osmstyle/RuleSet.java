@@ -53,6 +53,17 @@ public class RuleSet implements Rule, Iterable<Rule> {
 
 	private RuleIndex index = new RuleIndex();
 	private final Set<String> usedTags = new HashSet<String>();
+
+	// Select the rules with the compiled form of the index, see resolveCompiled()
+	private boolean useCompiledRules;
+	// Work space for the compiled rules, it is used again for every element
+	private long[] candidateWords;
+	private short[] tagKeys = new short[16];
+	private String[] tagValues = new String[16];
+	private WatchableTypeResult watcher;
+	private boolean busy;
+
+	private RuleSet finalizeRules;
 	
 	@Override
 	public void resolveType(Element el, TypeResult result) {
@@ -73,6 +84,9 @@ public class RuleSet implements Rule, Iterable<Rule> {
 	 * be saved.
 	 */
 	public int resolveType(int cacheId, Element el, TypeResult result) {
+		if (useCompiledRules && !busy)
+			return resolveCompiled(cacheId, el, result);
+
 		WatchableTypeResult a = new WatchableTypeResult(result);
 		if (!compiled || cacheId == Integer.MAX_VALUE)
 			compile();
@@ -95,6 +109,80 @@ public class RuleSet implements Rule, Iterable<Rule> {
 		return cacheId;
 	}
 
+	/**
+	 * Resolve the type in exactly the same way as the method above, without
+	 * creating any objects for the element.
+	 *
+	 * The index gives the candidate rules for each tag as an array of rule
+	 * numbers. They are marked in a bit array that is kept for the next
+	 * element, and the rules are run in the order of their numbers.
+	 */
+	private int resolveCompiled(int cacheId, Element el, TypeResult result) {
+		if (!compiled || cacheId == Integer.MAX_VALUE)
+			compile();
+		// new element, invalidate all caches
+		cacheId++;
+
+		int numTags = el.getTagCount();
+		if (numTags > tagKeys.length) {
+			tagKeys = new short[numTags * 2];
+			tagValues = new String[numTags * 2];
+		}
+		numTags = el.copyTags(tagKeys, tagValues);
+
+		if (candidateWords == null || candidateWords.length * 64 < rules.length)
+			candidateWords = new long[(rules.length + 63) / 64];
+		int first = candidateWords.length;
+		int last = -1;
+		for (int i = 0; i < numTags; i++) {
+			int[] numbers = index.getRuleNumbersForTag(tagKeys[i], tagValues[i]);
+			if (numbers == null || numbers.length == 0)
+				continue;
+			for (int n : numbers)
+				candidateWords[n >>> 6] |= 1L << n;
+			first = Math.min(first, numbers[0] >>> 6);
+			last = Math.max(last, numbers[numbers.length - 1] >>> 6);
+		}
+		Arrays.fill(tagValues, 0, numTags, null);
+
+		if (watcher == null)
+			watcher = new WatchableTypeResult(result);
+		else
+			watcher.setResult(result);
+
+		// a rule could use this rule set again, that call takes the normal route
+		busy = true;
+		try {
+			for (int w = first; w <= last; w++) {
+				long bits = candidateWords[w];
+				candidateWords[w] = 0;
+				while (bits != 0) {
+					int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					watcher.reset();
+					cacheId = rules[i].resolveType(cacheId, el, watcher);
+					if (watcher.isResolved())
+						return cacheId;
+				}
+			}
+		} finally {
+			if (last >= first)
+				Arrays.fill(candidateWords, first, last + 1, 0);
+			watcher.setResult(null);
+			busy = false;
+		}
+		return cacheId;
+	}
+
+	/**
+	 * Select the way that the rules are run.
+	 * @param useCompiledRules If true the candidate rules are found without
+	 * creating objects for each element. The result is the same in both cases.
+	 */
+	public void setUseCompiledRules(boolean useCompiledRules) {
+		this.useCompiledRules = useCompiledRules;
+	}
+
 	public Iterator<Rule> iterator() {
 		if (rules == null)
 			prepare();
@@ -257,7 +345,30 @@ public class RuleSet implements Rule, Iterable<Rule> {
 		}
 		for (Rule rule : rules) 
 			rule.setFinalizeRule(finalizeRule);
+		if (finalizeRule instanceof RuleSet)
+			finalizeRules = (RuleSet) finalizeRule;
 		
 		compiled = false;
 	}
+
+	/**
+	 * Count the evaluations and the time of each rule, including the
+	 * finalize rules. Must be called after prepare().
+	 * @param profiler Receives the profile of each rule.
+	 */
+	public void setProfiler(StyleProfiler profiler) {
+		for (Rule rule : rules) {
+			if (rule instanceof ExpressionRule) {
+				ExpressionRule er = (ExpressionRule) rule;
+				if (er.getLocation() != null)
+					er.setProfile(profiler.getProfile(er.getLocation(), er.toString()));
+			} else if (rule instanceof ActionRule) {
+				ActionRule ar = (ActionRule) rule;
+				if (ar.getLocation() != null)
+					ar.setProfile(profiler.getProfile(ar.getLocation(), ar.toString()));
+			}
+		}
+		if (finalizeRules != null)
+			finalizeRules.setProfiler(profiler);
+	}
 } 
\ No newline at end of file
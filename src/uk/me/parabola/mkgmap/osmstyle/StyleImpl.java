@@ -110,6 +110,8 @@ public class StyleImpl implements Style {
 
 	private OverlayReader overlays;
 	private final boolean performChecks;
+	// run the rules in their compiled form
+	private final boolean compileRules;
 	
 	
 	/**
@@ -140,6 +142,7 @@ public class StyleImpl implements Style {
 		fileLoader = StyleFileLoader.createStyleLoader(loc, name);
 		this.performChecks = performChecks;
 		nameTagList = LocatorUtil.getNameTags(props);
+		compileRules = props.getProperty("compile-style-rules", false);
 		
 		// There must be a version file, if not then we don't create the style.
 		checkVersion();
@@ -166,6 +169,17 @@ public class StyleImpl implements Style {
 		// OR: other way
 		//for (StyleImpl s : baseStyles)
 		//	mergeRules(s);
+
+		StyleProfiler profiler = null;
+		if (props.getProperty("style-profile", false))
+			profiler = new StyleProfiler();
+		for (RuleSet rs : Arrays.asList(lines, polygons, nodes, relations)) {
+			rs.setUseCompiledRules(compileRules);
+			if (profiler != null) {
+				rs.prepare();
+				rs.setProfiler(profiler);
+			}
+		}
 	}
 
 	public String getOption(String name) {
@@ -186,6 +200,7 @@ public class StyleImpl implements Style {
 		r.addAll(lines);
 		r.addAll(polygons);
 		r.prepare();
+		r.setUseCompiledRules(compileRules);
 		return r;
 	}
 
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the number of evaluations and matches and the time taken by
+ * each rule of a style, see the --style-profile option.
+ *
+ * Each style that is loaded has its own profiler. The profilers that were
+ * created while a tile was made are reported together at the end of the
+ * tile, and added to the totals for the whole run.
+ */
+public class StyleProfiler {
+	private static final int MAX_TEXT_LENGTH = 60;
+
+	// The profilers of the tile that is made by this thread
+	private static final ThreadLocal<List<StyleProfiler>> tileProfilers = new ThreadLocal<List<StyleProfiler>>() {
+		protected List<StyleProfiler> initialValue() {
+			return new ArrayList<>();
+		}
+	};
+
+	// The rule that is evaluated by this thread, it is charged for the function calls
+	private static final ThreadLocal<RuleProfile> currentRule = new ThreadLocal<>();
+	private static volatile boolean enabled;
+
+	private static final Map<String, RuleProfile> runTotals = new HashMap<>();
+	// where the tile reports are printed, null for System.out
+	private static volatile PrintWriter output;
+
+	private final Map<String, RuleProfile> profiles = new LinkedHashMap<>();
+
+	public StyleProfiler() {
+		enabled = true;
+		tileProfilers.get().add(this);
+	}
+
+	/**
+	 * Get the profile for a place in the style file.
+	 * @param location The file name and line number of the rule.
+	 * @param text The rule, it is shown in the report.
+	 */
+	RuleProfile getProfile(String location, String text) {
+		RuleProfile profile = profiles.get(location);
+		if (profile == null) {
+			if (text.length() > MAX_TEXT_LENGTH)
+				text = text.substring(0, MAX_TEXT_LENGTH - 3) + "...";
+			profile = new RuleProfile(location, text);
+			profiles.put(location, profile);
+		}
+		return profile;
+	}
+
+	static RuleProfile enter(RuleProfile profile) {
+		RuleProfile prev = currentRule.get();
+		currentRule.set(profile);
+		return prev;
+	}
+
+	static void leave(RuleProfile prev) {
+		currentRule.set(prev);
+	}
+
+	/**
+	 * Count the calculation of a style function such as length() for the
+	 * rule that is evaluated.
+	 */
+	public static void functionCalled() {
+		if (!enabled)
+			return;
+		RuleProfile profile = currentRule.get();
+		if (profile != null)
+			profile.functionCalls++;
+	}
+
+	/**
+	 * Print the report for the styles that were used for a tile and add
+	 * them to the totals of the run. Nothing is printed if profiling is
+	 * not enabled.
+	 * @param name The name of the tile.
+	 */
+	public static void endTile(String name) {
+		List<StyleProfiler> list = tileProfilers.get();
+		if (list.isEmpty())
+			return;
+
+		Map<String, RuleProfile> tile = new HashMap<>();
+		for (StyleProfiler profiler : list)
+			addAll(tile, profiler.profiles.values());
+		list.clear();
+
+		synchronized (runTotals) {
+			addAll(runTotals, tile.values());
+		}
+		String report = formatReport("Style profile for " + name, tile.values());
+		PrintWriter out = output;
+		if (out == null)
+			System.out.print(report);
+		else {
+			out.print(report);
+			out.flush();
+		}
+	}
+
+	/**
+	 * @return The report of all tiles, or null if profiling is not enabled.
+	 */
+	public static String getRunReport() {
+		synchronized (runTotals) {
+			if (runTotals.isEmpty())
+				return null;
+			return formatReport("Style profile for all tiles", runTotals.values());
+		}
+	}
+
+	/**
+	 * Print the tile reports to the given writer instead of System.out.
+	 * @param out The writer, null for System.out.
+	 */
+	static void setOutput(PrintWriter out) {
+		output = out;
+	}
+
+	/**
+	 * Disable profiling and forget the totals of the run.
+	 */
+	static void reset() {
+		enabled = false;
+		output = null;
+		tileProfilers.get().clear();
+		synchronized (runTotals) {
+			runTotals.clear();
+		}
+	}
+
+	private static void addAll(Map<String, RuleProfile> totals, Collection<RuleProfile> profiles) {
+		for (RuleProfile profile : profiles) {
+			RuleProfile total = totals.get(profile.getLocation());
+			if (total == null) {
+				total = new RuleProfile(profile.getLocation(), profile.getText());
+				totals.put(profile.getLocation(), total);
+			}
+			total.add(profile);
+		}
+	}
+
+	private static String formatReport(String title, Collection<RuleProfile> profiles) {
+		List<RuleProfile> list = new ArrayList<>();
+		for (RuleProfile profile : profiles) {
+			if (profile.evaluations > 0)
+				list.add(profile);
+		}
+		Collections.sort(list);
+
+		Formatter fmt = new Formatter();
+		fmt.format("%s%n", title);
+		fmt.format("%12s %10s %10s %10s %10s  %s%n", "evaluations", "matches", "expr ms", "action ms", "functions", "rule");
+		for (RuleProfile p : list) {
+			fmt.format("%12d %10d %10.1f %10.1f %10d  %s %s%n", p.evaluations, p.matches,
+					p.exprNanos / 1e6, p.actionNanos / 1e6, p.functionCalls,
+					p.getLocation(), p.getText());
+		}
+		return fmt.toString();
+	}
+}
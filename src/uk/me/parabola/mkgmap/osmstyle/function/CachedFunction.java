@@ -13,6 +13,7 @@
 
 package uk.me.parabola.mkgmap.osmstyle.function;
 
+import uk.me.parabola.mkgmap.osmstyle.StyleProfiler;
 import uk.me.parabola.mkgmap.reader.osm.Element;
 import uk.me.parabola.mkgmap.reader.osm.Node;
 import uk.me.parabola.mkgmap.reader.osm.Relation;
@@ -59,6 +60,7 @@ public abstract class CachedFunction extends StyleFunction {
 
 		// calculate the function value
 		String functionResult = calcImpl(el);
+		StyleProfiler.functionCalled();
 		
 		if (functionResult != null && isCached()) {
 			// if caching is supported save the value for later usage
@@ -18,8 +18,16 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map.Entry;
-import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import uk.me.parabola.imgfmt.ExitException;
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.imgfmt.app.CoordNode;
 import uk.me.parabola.imgfmt.app.net.NumberStyle;
@@ -31,6 +39,7 @@ import uk.me.parabola.mkgmap.reader.osm.Element;
 import uk.me.parabola.mkgmap.reader.osm.Node;
 import uk.me.parabola.mkgmap.reader.osm.Relation;
 import uk.me.parabola.mkgmap.reader.osm.Way;
+import uk.me.parabola.util.EnhancedProperties;
 import uk.me.parabola.util.MultiHashMap;
 
 /**
@@ -48,17 +57,24 @@ public class HousenumberGenerator {
 	private static final double MAX_DISTANCE_TO_ROAD = 150d;
 	
 	private boolean numbersEnabled;
+
+	// The street names are matched on this number of threads
+	private final int numThreads;
+	// The threads are shared by all the maps that are made at the same time
+	private static ThreadPoolExecutor matchPool;
 	
 	private MultiHashMap<String, MapRoad> roadByNames;
 	private List<MapRoad> roads;
 	private MultiHashMap<String, Element> houseNumbers;
 	
-	public HousenumberGenerator(Properties props) {
+	public HousenumberGenerator(EnhancedProperties props) {
 		this.roadByNames = new MultiHashMap<String,MapRoad>();
 		this.houseNumbers = new MultiHashMap<String,Element>();
 		this.roads = new ArrayList<MapRoad>();
 		
 		numbersEnabled=props.containsKey("housenumbers");
+
+		numThreads = props.getThreadsProperty("housenumber-threads");
 	}
 
 	/**
@@ -131,14 +147,18 @@ public class HousenumberGenerator {
 	
 	public void generate(LineAdder adder) {
 		if (numbersEnabled) {
-			for (Entry<String, List<Element>> numbers : houseNumbers.entrySet()) {
-				List<MapRoad> possibleRoads = roadByNames.get(numbers.getKey());
+			if (numThreads > 1)
+				matchInParallel();
+			else {
+				for (Entry<String, List<Element>> numbers : houseNumbers.entrySet()) {
+					List<MapRoad> possibleRoads = roadByNames.get(numbers.getKey());
 
-				if (possibleRoads.isEmpty()) {
-					continue;
-				}
+					if (possibleRoads.isEmpty()) {
+						continue;
+					}
 
-				match(numbers.getKey(), numbers.getValue(), possibleRoads);
+					match(numbers.getKey(), numbers.getValue(), possibleRoads);
+				}
 			}
 		}
 		
@@ -151,6 +171,73 @@ public class HousenumberGenerator {
 		roads.clear();
 	}
 	
+	/**
+	 * Matches the street names on a thread pool. Each road has only one street
+	 * name, so the street names can be matched independently.
+	 */
+	private void matchInParallel() {
+		ExecutorService pool = getPool(numThreads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (Entry<String, List<Element>> numbers : houseNumbers.entrySet()) {
+				final String streetname = numbers.getKey();
+				final List<Element> elements = numbers.getValue();
+				final List<MapRoad> possibleRoads = roadByNames.get(streetname);
+
+				if (possibleRoads.isEmpty()) {
+					continue;
+				}
+
+				futures.add(pool.submit(new Runnable() {
+					public void run() {
+						match(streetname, elements, possibleRoads);
+					}
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (InterruptedException e) {
+					throw new ExitException("Interrupted while matching house numbers");
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new ExitException("Failed to match house numbers: " + cause);
+				}
+			}
+		} finally {
+			// only needed after an error, the other futures are done
+			for (Future<?> future : futures)
+				future.cancel(true);
+		}
+	}
+
+	/**
+	 * Get the pool that is shared by all the maps. It is made larger if
+	 * more threads are wanted than before.
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		if (matchPool == null) {
+			matchPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "housenumber");
+					// the pool is never shut down
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else if (threads > matchPool.getMaximumPoolSize()) {
+			matchPool.setMaximumPoolSize(threads);
+			matchPool.setCorePoolSize(threads);
+		}
+		return matchPool;
+	}
+
 	/**
 	 * Sorts house numbers by roads, road segments and position of the house number.
 	 * @author WanMil
@@ -216,25 +303,25 @@ public class HousenumberGenerator {
 		
 		MultiHashMap<MapRoad, HousenumberMatch> roadNumbers = new MultiHashMap<MapRoad, HousenumberMatch>(); 
 		
+		// only the segments near the house number are checked, in the same
+		// order as all segments of all roads, so that ties are resolved the same way
+		RoadSegmentGrid grid = new RoadSegmentGrid(roads, MAX_DISTANCE_TO_ROAD);
 		for (HousenumberMatch n : numbersList) {
-			
-			for (MapRoad r : roads) {
-				int node = -1;
-				Coord c1 = null;
-				for (Coord c2 : r.getPoints()) {
-					if (c1 != null) {
-						Coord cx = n.getLocation();
-						double frac = getFrac(c1, c2, cx);
-						double dist = distanceToSegment(c1,c2,cx,frac);
-						if (dist <= MAX_DISTANCE_TO_ROAD && dist < n.getDistance()) {
-							n.setDistance(dist);
-							n.setSegmentFrac(frac);
-							n.setRoad(r);
-							n.setSegment(node);
-						}
-					}
-					c1 = c2;
-					node++;
+			Coord cx = n.getLocation();
+			IntArrayList candidates = grid.getCandidates(cx);
+			for (int i = 0; i < candidates.size(); i++) {
+				int seg = candidates.getInt(i);
+				MapRoad r = grid.getRoad(seg);
+				int node = grid.getNode(seg);
+				Coord c1 = r.getPoints().get(node);
+				Coord c2 = r.getPoints().get(node + 1);
+				double frac = getFrac(c1, c2, cx);
+				double dist = distanceToSegment(c1,c2,cx,frac);
+				if (dist <= MAX_DISTANCE_TO_ROAD && dist < n.getDistance()) {
+					n.setDistance(dist);
+					n.setSegmentFrac(frac);
+					n.setRoad(r);
+					n.setSegment(node);
 				}
 			}
 			
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle.housenumber;
+
+import java.util.Arrays;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.general.MapRoad;
+
+/**
+ * A grid over the segments of a number of roads, so that the segments
+ * near a point can be found without looking at all of them.
+ *
+ * Each segment has a number. They are numbered in the order of the roads
+ * and then of the points in the road, and the candidates are returned in
+ * that order, so the result of a search does not depend on the grid.
+ */
+class RoadSegmentGrid {
+	private static final int CELL_SHIFT = 9;
+	// Segments that cover more cells are checked for every point.
+	private static final int MAX_CELLS = 16;
+
+	private final List<MapRoad> roads;
+	private final IntArrayList segRoads = new IntArrayList();
+	private final IntArrayList segNodes = new IntArrayList();
+
+	private final Long2ObjectOpenHashMap<IntArrayList> cells = new Long2ObjectOpenHashMap<>();
+	private final IntArrayList large = new IntArrayList();
+
+	// The search radius in map units along a meridian, with a margin for
+	// the approximations in the distance calculation.
+	private final int latRadius;
+
+	/**
+	 * Create the grid.
+	 * @param roads The roads, a segment is found by its position in this list.
+	 * @param maxDistance The largest distance in metres that is searched for.
+	 */
+	RoadSegmentGrid(List<MapRoad> roads, double maxDistance) {
+		this.roads = roads;
+		latRadius = (int) Math.ceil(maxDistance / (Coord.U / (1 << 24)) * 1.5) + 2;
+
+		for (int r = 0; r < roads.size(); r++) {
+			List<Coord> points = roads.get(r).getPoints();
+			for (int node = 0; node + 1 < points.size(); node++)
+				add(r, node, points.get(node), points.get(node + 1));
+		}
+	}
+
+	private void add(int road, int node, Coord c1, Coord c2) {
+		int seg = segRoads.size();
+		segRoads.add(road);
+		segNodes.add(node);
+
+		int minX = Math.min(c1.getLongitude(), c2.getLongitude()) >> CELL_SHIFT;
+		int maxX = Math.max(c1.getLongitude(), c2.getLongitude()) >> CELL_SHIFT;
+		int minY = Math.min(c1.getLatitude(), c2.getLatitude()) >> CELL_SHIFT;
+		int maxY = Math.max(c1.getLatitude(), c2.getLatitude()) >> CELL_SHIFT;
+		if ((long) (maxX - minX + 1) * (maxY - minY + 1) > MAX_CELLS) {
+			large.add(seg);
+			return;
+		}
+
+		for (int x = minX; x <= maxX; x++) {
+			for (int y = minY; y <= maxY; y++) {
+				long key = cellKey(x, y);
+				IntArrayList list = cells.get(key);
+				if (list == null) {
+					list = new IntArrayList(4);
+					cells.put(key, list);
+				}
+				list.add(seg);
+			}
+		}
+	}
+
+	private static long cellKey(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * Find the segments that may be within the maximum distance of the point.
+	 * There may be others in the result too.
+	 *
+	 * @return The segment numbers in ascending order, without duplicates.
+	 */
+	IntArrayList getCandidates(Coord co) {
+		double cos = Math.cos(Math.toRadians(co.getLatDegrees()));
+		int lonRadius = (int) Math.ceil(latRadius / Math.max(cos, 0.05));
+
+		int minX = (co.getLongitude() - lonRadius) >> CELL_SHIFT;
+		int maxX = (co.getLongitude() + lonRadius) >> CELL_SHIFT;
+		int minY = (co.getLatitude() - latRadius) >> CELL_SHIFT;
+		int maxY = (co.getLatitude() + latRadius) >> CELL_SHIFT;
+
+		IntArrayList found = new IntArrayList(large);
+		for (int x = minX; x <= maxX; x++) {
+			for (int y = minY; y <= maxY; y++) {
+				IntArrayList list = cells.get(cellKey(x, y));
+				if (list != null)
+					found.addAll(list);
+			}
+		}
+
+		// a segment can be in more than one cell
+		int[] a = found.toIntArray();
+		Arrays.sort(a);
+		IntArrayList result = new IntArrayList(a.length);
+		for (int i = 0; i < a.length; i++) {
+			if (i == 0 || a[i] != a[i - 1])
+				result.add(a[i]);
+		}
+		return result;
+	}
+
+	MapRoad getRoad(int seg) {
+		return roads.get(segRoads.getInt(seg));
+	}
+
+	/**
+	 * @return The index of the first point of the segment in its road.
+	 */
+	int getNode(int seg) {
+		return segNodes.getInt(seg);
+	}
+}
@@ -22,6 +22,15 @@ import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import uk.me.parabola.imgfmt.ExitException;
 import uk.me.parabola.imgfmt.FileSystemParam;
@@ -58,10 +67,17 @@ public abstract class DEM {
 	private final static double minDist = 15;
 	private final static double maxDist = 21;
 
-	protected static int M = 1200;
-	protected static int N = M;
-	protected static double res = 1.0 / N;
-	private static int id = -1;
+	// the number of intervals per file and the size of an interval in degrees
+	protected int M = 1200;
+	protected int N = M;
+	protected double res = 1.0 / N;
+	private static final AtomicInteger id = new AtomicInteger(-1);
+	// The last point of the contours of the previous tile, see Isolines.lastX
+	private static double lastTileX;
+	private static double lastTileY;
+	// The pool is shared by all the maps, so that the number of threads
+	// doesn't grow with the number of maps that are made at the same time.
+	private static ThreadPoolExecutor tracePool;
 
 	protected int lat;
 	protected int lon;
@@ -70,6 +86,20 @@ public abstract class DEM {
 
 	protected abstract void read(int minLon, int minLat, int maxLon, int maxLat);
 
+	/**
+	 * @return The number of intervals of the grid from west to east.
+	 */
+	protected int getWidth() {
+		return N;
+	}
+
+	/**
+	 * @return The number of intervals of the grid from south to north.
+	 */
+	protected int getHeight() {
+		return N;
+	}
+
 	public static void createContours(LoadableMapDataSource mapData, EnhancedProperties config) {
 		Area bounds = mapData.getBounds();
 
@@ -96,7 +126,7 @@ public abstract class DEM {
 				break;
 			default:
 				dataPath = config.getProperty("dem-path", "SRTM");
-				demClass = Class.forName("uk.me.parabola.mkgmap.reader.dem.HGTDEM");
+				demClass = Class.forName("uk.me.parabola.mkgmap.reader.dem.MosaicDEM");
 				break;
 			}
 			Constructor<DEM> constructor = demClass.getConstructor(String.class,
@@ -126,19 +156,20 @@ public abstract class DEM {
 
 		OsmConverter converter = new StyledConverter(style, ((MapperBasedMapDataSource) dest).getMapper(), config);
 
+		List<Integer> levels = new ArrayList<>();
 		for (int level = 0; level < maxHeight; level += increment) {
-			if (level < minHeight) continue;
-
-			// create isolines
-			lines.addLevel(level);
+			if (level >= minHeight)
+				levels.add(level);
+		}
 
-			for (Isolines.Isoline line : lines.isolines) {
-				Way way = new Way(id--, line.points);
-				way.addTag("contour", "elevation");
-				way.addTag("ele", String.format("%d", (int) line.level));
-				converter.convertWay(way);
-			}
-			lines.isolines.clear();
+		synchronized (DEM.class) {
+			lines.lastX = lastTileX;
+			lines.lastY = lastTileY;
+		}
+		traceContours(lines, levels, config.getThreadsProperty("dem-threads"), converter);
+		synchronized (DEM.class) {
+			lastTileX = lines.lastX;
+			lastTileY = lines.lastY;
 		}
 
 		if (config.getProperty("dem-separate-img", false)) {
@@ -177,9 +208,6 @@ public abstract class DEM {
 		}
 	}
 
-	private int lastXi = -1;
-	private int lastYi = -1;
-
 	private final static int[][] bcInv = {
 			{1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
 			{0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0},
@@ -199,10 +227,6 @@ public abstract class DEM {
 			{4, -4, 4, -4, 2, 2, -2, -2, 2, -2, -2, 2, 1, 1, 1, 1}
 	};
 
-	private static int lastId = 1000000000;
-	private static double lastX;
-	private static double lastY;
-
 	private static final int[][] off0 = {{0, 0},
 			{0, 0},
 			{0, 1},
@@ -223,139 +247,229 @@ public abstract class DEM {
 			{1, 0}};
 
 
-	private final double[][] bc = new double[4][4];
-	private final double[] bc_y = new double[4];
-	private final double[] bc_y1 = new double[4];
-	private final double[] bc_y2 = new double[4];
-	private final double[] bc_y12 = new double[4];
-	private final double[] bc_Coeff = new double[16];
-	private final double[] bc_x = new double[16];
-
-	private void recalculateCoefficients(int xi, int yi) {
-
-		double v00 = ele(xi, yi);
-		double v0p = ele(xi, yi + 1);
-		double vpp = ele(xi + 1, yi + 1);
-		double vp0 = ele(xi + 1, yi);
-
-		double vm0 = ele(xi - 1, yi);
-		double v0m = ele(xi, yi - 1);
-		double vmp = ele(xi - 1, yi + 1);
-		double vpm = ele(xi + 1, yi - 1);
-		double vmm = ele(xi - 1, yi - 1);
-		double vmP = ele(xi + 2, yi - 1);
-		double vPm = ele(xi - 1, yi + 2);
-
-		double vP0 = ele(xi + 2, yi);
-		double v0P = ele(xi, yi + 2);
-		double vPp = ele(xi + 2, yi + 1);
-		double vpP = ele(xi + 1, yi + 2);
-		double vPP = ele(xi + 2, yi + 2);
-
-		bc_y[0] = v00;
-		bc_y[1] = vp0;
-		bc_y[2] = vpp;
-		bc_y[3] = v0p;
-
-		bc_y1[0] = (vp0 - vm0) / 2;
-		bc_y1[1] = (vP0 - v00) / 2;
-		bc_y1[2] = (vPp - v0p) / 2;
-		bc_y1[3] = (vpp - vmp) / 2;
-
-		bc_y2[0] = (v0p - v0m) / 2;
-		bc_y2[1] = (vpp - vpm) / 2;
-		bc_y2[2] = (vpP - vp0) / 2;
-		bc_y2[3] = (v0P - v00) / 2;
-
-		bc_y12[0] = (vpp - vpm - vmp + vmm) / 4;
-		bc_y12[0] = (vPp - vPm - v0p + v0m) / 4;
-		bc_y12[2] = (vPP - vP0 - v0P + v00) / 4;
-		bc_y12[0] = (vpP - vp0 - vmP + vm0) / 4;
-
-		int i;
-
-		for (i = 0; i < 4; i++) {
-			bc_x[i] = bc_y[i];
-			bc_x[i + 4] = bc_y1[i];
-			bc_x[i + 8] = bc_y2[i];
-			bc_x[i + 12] = bc_y12[i];
-		}
-
-		for (i = 0; i < 16; i++) {
-			double s = 0;
-			for (int k = 0; k < 16; k++) s += bcInv[i][k] * bc_x[k];
-			bc_Coeff[i] = s;
-		}
-
-		int l = 0;
-		for (i = 0; i < 4; i++)
-			for (int j = 0; j < 4; j++)
-				bc[i][j] = bc_Coeff[l++];
-	}
+	/**
+	 * The bicubic interpolation between the grid points. It keeps the
+	 * coefficients of the last cell, so each thread that traces contours
+	 * needs its own. The kept coefficients only save time, the result
+	 * depends on the position alone.
+	 */
+	class Interpolator {
+		private int lastXi = -1;
+		private int lastYi = -1;
+
+		private final double[][] bc = new double[4][4];
+		private final double[] bc_y = new double[4];
+		private final double[] bc_y1 = new double[4];
+		private final double[] bc_y2 = new double[4];
+		private final double[] bc_y12 = new double[4];
+		private final double[] bc_Coeff = new double[16];
+		private final double[] bc_x = new double[16];
+
+		private void recalculateCoefficients(int xi, int yi) {
+
+			double v00 = ele(xi, yi);
+			double v0p = ele(xi, yi + 1);
+			double vpp = ele(xi + 1, yi + 1);
+			double vp0 = ele(xi + 1, yi);
+
+			double vm0 = ele(xi - 1, yi);
+			double v0m = ele(xi, yi - 1);
+			double vmp = ele(xi - 1, yi + 1);
+			double vpm = ele(xi + 1, yi - 1);
+			double vmm = ele(xi - 1, yi - 1);
+			double vmP = ele(xi + 2, yi - 1);
+			double vPm = ele(xi - 1, yi + 2);
+
+			double vP0 = ele(xi + 2, yi);
+			double v0P = ele(xi, yi + 2);
+			double vPp = ele(xi + 2, yi + 1);
+			double vpP = ele(xi + 1, yi + 2);
+			double vPP = ele(xi + 2, yi + 2);
+
+			bc_y[0] = v00;
+			bc_y[1] = vp0;
+			bc_y[2] = vpp;
+			bc_y[3] = v0p;
+
+			bc_y1[0] = (vp0 - vm0) / 2;
+			bc_y1[1] = (vP0 - v00) / 2;
+			bc_y1[2] = (vPp - v0p) / 2;
+			bc_y1[3] = (vpp - vmp) / 2;
+
+			bc_y2[0] = (v0p - v0m) / 2;
+			bc_y2[1] = (vpp - vpm) / 2;
+			bc_y2[2] = (vpP - vp0) / 2;
+			bc_y2[3] = (v0P - v00) / 2;
+
+			bc_y12[0] = (vpp - vpm - vmp + vmm) / 4;
+			bc_y12[0] = (vPp - vPm - v0p + v0m) / 4;
+			bc_y12[2] = (vPP - vP0 - v0P + v00) / 4;
+			bc_y12[0] = (vpP - vp0 - vmP + vm0) / 4;
+
+			int i;
+
+			for (i = 0; i < 4; i++) {
+				bc_x[i] = bc_y[i];
+				bc_x[i + 4] = bc_y1[i];
+				bc_x[i + 8] = bc_y2[i];
+				bc_x[i + 12] = bc_y12[i];
+			}
+
+			for (i = 0; i < 16; i++) {
+				double s = 0;
+				for (int k = 0; k < 16; k++) s += bcInv[i][k] * bc_x[k];
+				bc_Coeff[i] = s;
+			}
 
-	protected double gradient(double lat, double lon, double[] grad) {
-		grad[0] = 0;
-		grad[1] = 0;
+			int l = 0;
+			for (i = 0; i < 4; i++)
+				for (int j = 0; j < 4; j++)
+					bc[i][j] = bc_Coeff[l++];
+		}
 
-		double x = (lon - this.lon) / res;
-		double y = (lat - this.lat) / res;
+		double gradient(double lat, double lon, double[] grad) {
+			grad[0] = 0;
+			grad[1] = 0;
 
-		int xi = (int) x;
-		int yi = (int) y;
+			double x = (lon - DEM.this.lon) / res;
+			double y = (lat - DEM.this.lat) / res;
 
-		if (lastXi != xi || lastYi != yi) {
-			log.debug("new Cell for interpolation: %d %d", xi, yi);
-			recalculateCoefficients(xi, yi);
-			lastXi = xi;
-			lastYi = yi;
-		}
+			int xi = (int) x;
+			int yi = (int) y;
 
-		double t = x - xi;
-		double u = y - yi;
+			if (lastXi != xi || lastYi != yi) {
+				log.debug("new Cell for interpolation: %d %d", xi, yi);
+				recalculateCoefficients(xi, yi);
+				lastXi = xi;
+				lastYi = yi;
+			}
 
-		if (xi < 0 || xi > N + 1 || yi < 0 || yi > N + 1)
-			throw new IndexOutOfBoundsException(String.format("(%f, %f)->(%d, %d)", lat, lon, xi, yi));
+			double t = x - xi;
+			double u = y - yi;
+
+			if (xi < 0 || xi > getWidth() + 1 || yi < 0 || yi > getHeight() + 1)
+				throw new IndexOutOfBoundsException(String.format("(%f, %f)->(%d, %d)", lat, lon, xi, yi));
+
+			double val = 0;
+			for (int i = 3; i >= 0; i--) {
+				val = t * val + ((bc[i][3] * u + bc[i][2]) * u + bc[i][1]) * u + bc[i][0];
+				grad[0] = u * grad[0] + (3 * bc[3][i] * t + 2 * bc[2][i]) * t + bc[1][i];
+				grad[1] = t * grad[1] + (3 * bc[i][3] * t + 2 * bc[i][2]) * t + bc[i][1];
+			}
 
-		double val = 0;
-		for (int i = 3; i >= 0; i--) {
-			val = t * val + ((bc[i][3] * u + bc[i][2]) * u + bc[i][1]) * u + bc[i][0];
-			grad[0] = u * grad[0] + (3 * bc[3][i] * t + 2 * bc[2][i]) * t + bc[1][i];
-			grad[1] = t * grad[1] + (3 * bc[i][3] * t + 2 * bc[i][2]) * t + bc[i][1];
+			return val;
 		}
 
-		return val;
-	}
+		double elevation(double lat, double lon) {
+			double x = (lon - DEM.this.lon) / res;
+			double y = (lat - DEM.this.lat) / res;
 
-	protected double elevation(double lat, double lon) {
-		double x = (lon - this.lon) / res;
-		double y = (lat - this.lat) / res;
+			int xi = (int) x;
+			int yi = (int) y;
 
-		int xi = (int) x;
-		int yi = (int) y;
+			if (lastXi != xi || lastYi != yi) {
+				log.debug("new Cell for interpolation: %d %d", xi, yi);
+				recalculateCoefficients(xi, yi);
+				lastXi = xi;
+				lastYi = yi;
+			}
 
-		if (lastXi != xi || lastYi != yi) {
-			log.debug("new Cell for interpolation: %d %d", xi, yi);
-			recalculateCoefficients(xi, yi);
-			lastXi = xi;
-			lastYi = yi;
-		}
+			double t = x - xi;
+			double u = y - yi;
+
+			if (xi < 0 || xi > getWidth() + 1 || yi < 0 || yi > getHeight() + 1)
+				throw new IndexOutOfBoundsException(String.format("(%f, %f)->(%d, %d)", lat, lon, xi, yi));
+
+			double val = 0;
+			for (int i = 3; i >= 0; i--) {
+				val = t * val + ((bc[i][3] * u + bc[i][2]) * u + bc[i][1]) * u + bc[i][0];
+			}
 
-		double t = x - xi;
-		double u = y - yi;
+			return val;
+		}
+	}
 
-		if (xi < 0 || xi > N + 1 || yi < 0 || yi > N + 1)
-			throw new IndexOutOfBoundsException(String.format("(%f, %f)->(%d, %d)", lat, lon, xi, yi));
+	/**
+	 * Trace the levels and convert the isolines in the order of the levels.
+	 * With more than one thread the levels are traced in parallel, each by
+	 * its own tracer. The result is the same as with one thread.
+	 * @param lines The tracer for the area.
+	 * @param levels The heights of the contours.
+	 * @param threads The number of threads, 0 or 1 to trace the levels on
+	 * the calling thread.
+	 * @param converter Gets the ways of the contours.
+	 */
+	static void traceContours(final Isolines lines, List<Integer> levels, int threads, OsmConverter converter) {
+		if (threads > 1 && levels.size() > 1) {
+			ExecutorService pool = getPool(threads);
+			List<Future<Isolines.TracedLevel>> results = new ArrayList<>();
+			for (final int level : levels) {
+				results.add(pool.submit(new Callable<Isolines.TracedLevel>() {
+					public Isolines.TracedLevel call() {
+						return lines.data.new Isolines(lines).traceDetached(level);
+					}
+				}));
+			}
+			for (Future<Isolines.TracedLevel> result : results) {
+				Isolines.TracedLevel traced;
+				try {
+					traced = result.get();
+				} catch (InterruptedException e) {
+					throw new ExitException("interrupted while creating contours", e);
+				} catch (ExecutionException e) {
+					throw new ExitException("failed to create contours", e.getCause());
+				}
+				if (lines.continueWith(traced))
+					convertIsolines(converter, traced.isolines);
+				else {
+					// the first point depends on the previous level
+					lines.addLevel(traced.level);
+					convertIsolines(converter, lines.isolines);
+					lines.isolines.clear();
+				}
+			}
+		} else {
+			for (int level : levels) {
+				lines.addLevel(level);
+				convertIsolines(converter, lines.isolines);
+				lines.isolines.clear();
+			}
+		}
+	}
 
-		double val = 0;
-		for (int i = 3; i >= 0; i--) {
-			val = t * val + ((bc[i][3] * u + bc[i][2]) * u + bc[i][1]) * u + bc[i][0];
+	/**
+	 * Get the pool that is shared by all the maps. It is made larger if
+	 * more threads are wanted than before.
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		if (tracePool == null) {
+			tracePool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "dem-trace");
+					// the pool is never shut down
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else if (threads > tracePool.getMaximumPoolSize()) {
+			tracePool.setMaximumPoolSize(threads);
+			tracePool.setCorePoolSize(threads);
 		}
+		return tracePool;
+	}
 
-		return val;
+	private static void convertIsolines(OsmConverter converter, List<Isolines.Isoline> isolines) {
+		for (Isolines.Isoline line : isolines) {
+			Way way = new Way(id.getAndDecrement(), line.points);
+			way.addTag("contour", "elevation");
+			way.addTag("ele", String.format("%d", (int) line.level));
+			converter.convertWay(way);
+		}
 	}
 
 	protected double elevation(int x, int y) {
-		if (x < 0 || x > N || y < 0 || y > N)
+		if (x < 0 || x > getWidth() || y < 0 || y > getHeight())
 			throw new IndexOutOfBoundsException(String.format("elevation: %d %d", x, y));
 		return ele(x, y);
 	}
@@ -373,14 +487,49 @@ public abstract class DEM {
 
 		final ArrayList<Isoline> isolines = new ArrayList<>();
 
+		// The state of the tracer, so that several can work at the same time.
+		private final Interpolator interp = new Interpolator();
+		// The last point that was added to a line. A new point that is too
+		// close to it is dropped, also at the start of the next line or level.
+		private double lastX;
+		private double lastY;
+		// true if the last point is not known because the level is traced
+		// by another tracer than the previous level
+		private boolean lastUnknown;
+		// the first point of the level that was offered to a line
+		private double firstX;
+		private double firstY;
+		private boolean hasFirst;
+
+		/**
+		 * The isolines of a level that was traced by another tracer.
+		 */
+		class TracedLevel {
+			final double level;
+			final List<Isoline> isolines;
+			final boolean hasFirst;
+			final double firstX;
+			final double firstY;
+			final double lastX;
+			final double lastY;
+
+			TracedLevel(double level) {
+				this.level = level;
+				this.isolines = new ArrayList<>(Isolines.this.isolines);
+				this.hasFirst = Isolines.this.hasFirst;
+				this.firstX = Isolines.this.firstX;
+				this.firstY = Isolines.this.firstY;
+				this.lastX = Isolines.this.lastX;
+				this.lastY = Isolines.this.lastY;
+			}
+		}
+
 		class Isoline {
-			final int id;
 			final ArrayList<Coord> points;
 			final double level;
 
 			private Isoline(double level) {
 				this.level = level;
-				id = lastId++;
 				points = new ArrayList<>();
 			}
 
@@ -398,7 +547,7 @@ public abstract class DEM {
 				}
 
 				public double eval(double d) {
-					return data.elevation(x0 + d * (x1 - x0), y0 + d * (y1 - y0)) - level;
+					return interp.elevation(x0 + d * (x1 - x0), y0 + d * (y1 - y0)) - level;
 				}
 			}
 
@@ -414,7 +563,7 @@ public abstract class DEM {
 				}
 
 				public double eval(double t) {
-					return data.elevation(y0 + t * dy, x0 + t * dx) - level;
+					return interp.elevation(y0 + t * dy, x0 + t * dx) - level;
 				}
 			}
 
@@ -444,7 +593,7 @@ public abstract class DEM {
 					if (Math.abs(l1) < epsilon || l0 * l1 < 0) {
 						edges[c] = k;
 
-						Brent.Function f = new Edge(data.lat + y0 * DEM.res, data.lon + x0 * DEM.res, data.lat + y1 * DEM.res, data.lon + x1 * DEM.res);
+						Brent.Function f = new Edge(data.lat + y0 * res, data.lon + x0 * res, data.lat + y1 * res, data.lon + x1 * res);
 						double f0 = elevation(x0, y0) - level;
 						double delta;
 
@@ -455,8 +604,8 @@ public abstract class DEM {
 						else
 							delta = Brent.zero(f, epsilon, 1 - epsilon);
 
-						px[c] = data.lon + (x0 + delta * (x1 - x0)) * DEM.res;
-						py[c] = data.lat + (y0 + delta * (y1 - y0)) * DEM.res;
+						px[c] = data.lon + (x0 + delta * (x1 - x0)) * res;
+						py[c] = data.lat + (y0 + delta * (y1 - y0)) * res;
 						c++;
 					}
 				}
@@ -472,10 +621,10 @@ public abstract class DEM {
 					double px1 = p.x;
 					double py1 = p.y;
 
-					double xMin = data.lon + p.ix * DEM.res;
-					double xMax = xMin + DEM.res;
-					double yMin = data.lat + p.iy * DEM.res;
-					double yMax = yMin + DEM.res;
+					double xMin = data.lon + p.ix * res;
+					double xMax = xMin + res;
+					double yMin = data.lat + p.iy * res;
+					double yMax = yMin + res;
 
 					refineAdaptively(xMin, yMin, xMax, yMax, px0, py0, px1, py1, direction, maxDist);
 
@@ -542,11 +691,11 @@ public abstract class DEM {
 				double md = 5000;
 
 				for (int i = 0; i < numEdges; i++) {
-					gradient(p.y, p.x, grad);
+					interp.gradient(p.y, p.x, grad);
 					double dist = quickDistance(p.x, p.y, px[i], py[i]);
 					log.debug("distance %d: %f", i, dist);
 
-					if (dist < md && (visited[p.iy * (N + 1) + p.ix] & brd[edges[i]]) == 0) {
+					if (dist < md && (visited[p.iy * (getWidth() + 1) + p.ix] & brd[edges[i]]) == 0) {
 						md = dist;
 						iMin = i;
 					}
@@ -561,10 +710,10 @@ public abstract class DEM {
 				double px1 = p.x;
 				double py1 = p.y;
 
-				double xMin = data.lon + p.ix * DEM.res;
-				double xMax = xMin + DEM.res;
-				double yMin = data.lat + p.iy * DEM.res;
-				double yMax = yMin + DEM.res;
+				double xMin = data.lon + p.ix * res;
+				double xMax = xMin + res;
+				double yMin = data.lat + p.iy * res;
+				double yMax = yMin + res;
 
 				refineAdaptively(xMin, yMin, xMax, yMax, px0, py0, px1, py1, direction, maxDist);
 
@@ -574,7 +723,12 @@ public abstract class DEM {
 			}
 
 			private void addPoint(double x, double y, int direction) {
-				double dist = quickDistance(x, y, lastX, lastY);
+				if (!hasFirst) {
+					hasFirst = true;
+					firstX = x;
+					firstY = y;
+				}
+				double dist = lastUnknown ? Double.MAX_VALUE : quickDistance(x, y, lastX, lastY);
 				log.debug("addPoint: %f %f %f", x, y, dist);
 
 				if (dist > minDist) {
@@ -584,6 +738,7 @@ public abstract class DEM {
 						points.add(points.size(), new Coord(y, x));
 					lastX = x;
 					lastY = y;
+					lastUnknown = false;
 				}
 			}
 
@@ -605,6 +760,19 @@ public abstract class DEM {
 			init();
 		}
 
+		/**
+		 * A tracer for the same area, to trace other levels in another thread.
+		 */
+		Isolines(Isolines other) {
+			this.data = other.data;
+			this.minX = other.minX;
+			this.minY = other.minY;
+			this.maxX = other.maxX;
+			this.maxY = other.maxY;
+			this.min = other.min;
+			this.max = other.max;
+		}
+
 		private void init() {
 			System.out.printf("init: %d %d %d %d\n", minX, minY, maxX, maxY);
 			data.read(minX - 2, minY - 2, maxX + 2, maxY + 2);
@@ -640,7 +808,7 @@ public abstract class DEM {
 			}
 
 			public double eval(double d) {
-				return data.elevation(x0 + d * (x1 - x0), y0 + d * (y1 - y0)) - level;
+				return interp.elevation(x0 + d * (x1 - x0), y0 + d * (y1 - y0)) - level;
 			}
 		}
 
@@ -667,7 +835,7 @@ public abstract class DEM {
 
 			void markEdge() {
 				log.debug("marking edge: %d %d %d %d", ix, iy, edge, brd[edge]);
-				visited[iy * (N + 1) + ix] |= brd[edge];
+				visited[iy * (getWidth() + 1) + ix] |= brd[edge];
 			}
 
 			void moveCell() {
@@ -679,7 +847,7 @@ public abstract class DEM {
 			}
 		}
 
-		final byte[] visited = new byte[(N + 1) * (N + 1)];
+		final byte[] visited = new byte[(getWidth() + 1) * (getHeight() + 1)];
 
 		public void addLevel(double level) {
 			if (level < min || level > max)
@@ -718,9 +886,9 @@ public abstract class DEM {
 
 					int k = -1;
 
-					if ((v & 1) > 0 && (visited[y * (N + 1) + x] & 1) == 0) {
+					if ((v & 1) > 0 && (visited[y * (getWidth() + 1) + x] & 1) == 0) {
 						k = 0;
-					} else if ((v & 2) > 0 && (visited[y * (N + 1) + x] & 2) == 0) {
+					} else if ((v & 2) > 0 && (visited[y * (getWidth() + 1) + x] & 2) == 0) {
 						k = 1;
 					}
 
@@ -731,8 +899,8 @@ public abstract class DEM {
 						int y1 = y + off1[k][1];
 
 						try {
-							Brent.Function f = new Edge(data.lat + y0 * DEM.res, data.lon + x0 * DEM.res,
-									data.lat + y1 * DEM.res, data.lon + x1 * DEM.res,
+							Brent.Function f = new Edge(data.lat + y0 * res, data.lon + x0 * res,
+									data.lat + y1 * res, data.lon + x1 * res,
 									level);
 							double f0 = elevation(x0, y0) - level;
 							double f1 = elevation(x1, y1) - level;
@@ -744,7 +912,7 @@ public abstract class DEM {
 							else
 								delta = Brent.zero(f, 0, 1 - epsilon);
 
-							Position p = new Position(x, y, data.lon + (x0 + delta * (x1 - x0)) * DEM.res, data.lat + (y0 + delta * (y1 - y0)) * DEM.res, k);
+							Position p = new Position(x, y, data.lon + (x0 + delta * (x1 - x0)) * res, data.lat + (y0 + delta * (y1 - y0)) * res, k);
 							p.markEdge();
 							isolines.add(traceByStepping(level, p, direction));
 						}
@@ -758,6 +926,35 @@ public abstract class DEM {
 			}
 		}
 
+		/**
+		 * Trace a level without knowing the last point of the previous
+		 * level, so that it can be done by another tracer.
+		 * @see #continueWith(TracedLevel)
+		 */
+		TracedLevel traceDetached(double level) {
+			lastUnknown = true;
+			hasFirst = false;
+			addLevel(level);
+			return new TracedLevel(level);
+		}
+
+		/**
+		 * Continue with the state after a level that was traced by another
+		 * tracer. Only the first point of the level can depend on the last
+		 * point of the previous level, it is dropped when it is too close.
+		 * @return false if the first point would have been dropped, then the
+		 * level must be traced again by this tracer.
+		 */
+		boolean continueWith(TracedLevel traced) {
+			if (!traced.hasFirst)
+				return true;
+			if (quickDistance(traced.firstX, traced.firstY, lastX, lastY) <= minDist)
+				return false;
+			lastX = traced.lastX;
+			lastY = traced.lastY;
+			return true;
+		}
+
 		private Isoline traceByStepping(double level, Position p, int direction) {
 			log.debug("traceByStepping: starting contour %f %d %d %f %f %d", level, p.ix, p.iy, p.x, p.y, p.edge);
 			int n = 0;
@@ -768,7 +965,7 @@ public abstract class DEM {
 
 			while (true) {
 				log.debug("traceByStepping: %f %d %d %f %f %d", level, p.ix, p.iy, p.x, p.y, p.edge);
-				visited[p.iy * (N + 1) + p.ix] |= brd[p.edge];
+				visited[p.iy * (getWidth() + 1) + p.ix] |= brd[p.edge];
 
 				if (n > 0 && p.ix == startP.ix && p.iy == startP.iy && quickDistance(p.x, p.y, startP.x, startP.y) < 5) {
 					log.debug("closed curve!");
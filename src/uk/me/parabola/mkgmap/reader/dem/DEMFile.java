@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.dem;
+
+/**
+ * One file of a {@link MosaicDEM}, a square grid of heights.
+ *
+ * The files are shared by the tiles that are made at the same time, so
+ * get() must be safe to call from several threads.
+ */
+public interface DEMFile {
+	/**
+	 * @return The number of intervals between the samples of a row, 1200
+	 * for a 3 second SRTM file.
+	 */
+	public int getIntervals();
+
+	/**
+	 * Get a height.
+	 * @param x The column, counted from the west.
+	 * @param y The row, counted from the south.
+	 */
+	public int get(int x, int y);
+}
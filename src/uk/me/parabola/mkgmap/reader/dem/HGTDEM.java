@@ -16,18 +16,15 @@
  */
 package uk.me.parabola.mkgmap.reader.dem;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Writer;
-import java.nio.MappedByteBuffer;
 
 import uk.me.parabola.imgfmt.ExitException;
-
-import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import uk.me.parabola.mkgmap.reader.dem.HGTFileCache.HGTFile;
 
 public class HGTDEM extends DEM
 {
-    private MappedByteBuffer buffer ;
+    private HGTFile file;
     
     public HGTDEM(String dataPath, double minLat, double minLon, double maxLat, double maxLon)
     {
@@ -36,18 +33,13 @@ public class HGTDEM extends DEM
 	if (maxLat > lat+1 || maxLon > lon+1)
 	    throw new ExitException("Area too large (must not span more than one SRTM file)");
 	
-	String northSouth = lat < 0 ? "S" : "N";
-	String eastWest = lon > 0 ? "E" : "W";
-	String fileName = String.format("%s/%s%02d%s%03d.hgt", dataPath, 
-					northSouth, lat < 0 ? -lat : lat, 
-					eastWest, lon < 0 ? -lon : lon);
-	try {
-	    FileInputStream is = new FileInputStream(fileName);
-	    buffer = is.getChannel().map(READ_ONLY, 0, 2*(M+1)*(M+1));
-	}
-	catch (Exception e) {
-	    throw new ExitException("failed to open " + fileName, e);
-	}
+	String fileName = HGTFileCache.fileName(dataPath, lat, lon);
+	file = HGTFileCache.get(fileName);
+	if (file == null)
+	    throw new ExitException("failed to open " + fileName);
+	M = file.getIntervals();
+	N = M;
+	res = 1.0 / N;
     }
     
     public  void read(int minLon, int minLat, int maxLon, int maxLat)
@@ -56,7 +48,7 @@ public class HGTDEM extends DEM
     
     public double ele(int x, int y)
     {
-	return buffer.getShort(2*((M-y)*(M+1)+x))+delta;
+	return file.get(x, y)+delta;
     }
     
     public void serializeCopyRight(Writer out) throws IOException
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.dem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.me.parabola.imgfmt.ExitException;
+import uk.me.parabola.imgfmt.Utils;
+import uk.me.parabola.log.Logger;
+
+/**
+ * The memory mapped SRTM .hgt files, shared by all the tiles that are
+ * made at the same time.
+ *
+ * The most recently used files are kept, so a file is only opened and
+ * mapped again after a lot of other files have been used. A file that is
+ * dropped from the cache stays usable by the tiles that already have it.
+ */
+class HGTFileCache {
+	private static final Logger log = Logger.getLogger(HGTFileCache.class);
+
+	private static final int MAX_FILES = 64;
+
+	// Files that do not exist are cached too, they are usually sea.
+	private static final HGTFile MISSING = new HGTFile(null, 0);
+
+	private static final Map<String, HGTFile> files = new LinkedHashMap<String, HGTFile>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, HGTFile> eldest) {
+			return size() > MAX_FILES;
+		}
+	};
+
+	private HGTFileCache() {
+	}
+
+	/**
+	 * The name of the file that has the south west corner at the given position.
+	 */
+	static String fileName(String dataPath, int lat, int lon) {
+		return String.format("%s/%s%02d%s%03d.hgt", dataPath,
+				lat < 0 ? "S" : "N", Math.abs(lat),
+				lon < 0 ? "W" : "E", Math.abs(lon));
+	}
+
+	/**
+	 * Get a file, mapping it if it is not in the cache.
+	 * @return The file, or null if it does not exist.
+	 */
+	static HGTFile get(String fileName) {
+		synchronized (files) {
+			HGTFile file = files.get(fileName);
+			if (file == null) {
+				file = open(fileName);
+				files.put(fileName, file);
+			}
+			return file == MISSING ? null : file;
+		}
+	}
+
+	private static HGTFile open(String fileName) {
+		File f = new File(fileName);
+		if (!f.exists()) {
+			log.info("No DEM file", fileName);
+			return MISSING;
+		}
+
+		long length = f.length();
+		int samples = (int) Math.round(Math.sqrt(length / 2));
+		if (samples < 2 || 2L * samples * samples != length)
+			throw new ExitException("Unexpected size of DEM file " + fileName);
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			// the mapping stays valid after the file is closed
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			return new HGTFile(buffer, samples - 1);
+		} catch (IOException e) {
+			throw new ExitException("failed to open " + fileName, e);
+		} finally {
+			Utils.closeFile(raf);
+		}
+	}
+
+	/**
+	 * One .hgt file. The rows go from north to south, and the first and
+	 * last row and column are the same as those of the next file.
+	 */
+	static class HGTFile implements DEMFile {
+		private final MappedByteBuffer buffer;
+		private final int intervals;
+
+		HGTFile(MappedByteBuffer buffer, int intervals) {
+			this.buffer = buffer;
+			this.intervals = intervals;
+		}
+
+		/**
+		 * @return The number of intervals between the samples of a row, 1200
+		 * for a 3 second file and 3600 for a 1 second file.
+		 */
+		public int getIntervals() {
+			return intervals;
+		}
+
+		/**
+		 * Get a height. The absolute get does not change the buffer, so
+		 * this can be used from several threads.
+		 * @param x The column, counted from the west.
+		 * @param y The row, counted from the south.
+		 */
+		public int get(int x, int y) {
+			return buffer.getShort(2 * ((intervals - y) * (intervals + 1) + x));
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.dem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import uk.me.parabola.imgfmt.ExitException;
+import uk.me.parabola.log.Logger;
+
+/**
+ * A DEM made from as many files as are needed to cover an area, so that
+ * the area can cross the edges of the files. The files are SRTM .hgt files
+ * unless a subclass loads other ones.
+ *
+ * The grid starts at the south west corner of the file that has the south
+ * west corner of the area. A file that does not exist is taken to be sea
+ * with a height of 0. The .hgt files come from {@link HGTFileCache}, so they
+ * are shared with the other tiles.
+ *
+ * When the files share their edges, the samples on an edge are in the files
+ * on both sides of it. They are read from the western or southern file, or
+ * from the other one if that file does not exist.
+ */
+public class MosaicDEM extends DEM {
+	private static final Logger log = Logger.getLogger(MosaicDEM.class);
+
+	// Marks a file that does not exist, so that it is not looked for again.
+	private static final DEMFile MISSING = new DEMFile() {
+		public int getIntervals() {
+			return 0;
+		}
+
+		public int get(int x, int y) {
+			return 0;
+		}
+	};
+
+	private final String dataPath;
+	private final int degrees;
+	private final boolean sharedEdges;
+	private final int numLat;
+	private final int numLon;
+	private int intervals;
+
+	// The files, with an extra one on each side for the interpolation. The
+	// extra ones are only loaded when a sample in them is used.
+	private final AtomicReferenceArray<DEMFile> files;
+
+	public MosaicDEM(String dataPath, double minLat, double minLon, double maxLat, double maxLon) {
+		this(dataPath, 1, true, minLat, minLon, maxLat, maxLon);
+	}
+
+	/**
+	 * @param degrees The size of a file in degrees.
+	 * @param sharedEdges True if the first and last row and column of a file
+	 * are the same as those of the next file, as in the .hgt files. Otherwise
+	 * a file has one sample for each interval and the next file has the
+	 * samples on the edge.
+	 */
+	protected MosaicDEM(String dataPath, int degrees, boolean sharedEdges,
+			double minLat, double minLon, double maxLat, double maxLon)
+	{
+		this.dataPath = dataPath;
+		this.degrees = degrees;
+		this.sharedEdges = sharedEdges;
+		this.lat = floorDiv((int) Math.floor(minLat), degrees) * degrees;
+		this.lon = floorDiv((int) Math.floor(minLon), degrees) * degrees;
+		numLat = Math.max(1, -floorDiv(lat - (int) Math.ceil(maxLat), degrees));
+		numLon = Math.max(1, -floorDiv(lon - (int) Math.ceil(maxLon), degrees));
+		files = new AtomicReferenceArray<>((numLat + 2) * (numLon + 2));
+
+		// The files that cover the area give the resolution.
+		for (int i = 0; i < numLat; i++) {
+			for (int j = 0; j < numLon; j++)
+				getFile(i, j);
+		}
+
+		if (intervals == 0) {
+			// probably a wrong path rather than an area that is all sea
+			if (!new File(dataPath).isDirectory())
+				throw new ExitException("The DEM directory " + dataPath + " does not exist");
+			log.warn("No DEM file in", dataPath, "covers", minLat, minLon, maxLat, maxLon + ", there are no contours");
+
+			// the resolution comes from the extra files, if there are any
+			for (int i = -1; i <= numLat; i++) {
+				for (int j = -1; j <= numLon; j++)
+					getFile(i, j);
+			}
+		}
+	}
+
+	/**
+	 * Load a file. This is called from the constructor, so it must not use
+	 * the fields of a subclass.
+	 * @param dataPath The directory with the files.
+	 * @param lat The latitude of the south west corner of the file.
+	 * @param lon The longitude of the south west corner of the file.
+	 * @return The file, or null if it does not exist.
+	 */
+	protected DEMFile loadFile(String dataPath, int lat, int lon) {
+		return HGTFileCache.get(HGTFileCache.fileName(dataPath, lat, lon));
+	}
+
+	private int index(int i, int j) {
+		return (i + 1) * (numLon + 2) + j + 1;
+	}
+
+	protected int getWidth() {
+		return numLon * M;
+	}
+
+	protected int getHeight() {
+		return numLat * M;
+	}
+
+	protected void read(int minLon, int minLat, int maxLon, int maxLat) {
+	}
+
+	public double ele(int x, int y) {
+		int j = floorDiv(x, M);
+		int i = floorDiv(y, M);
+		int xi = x - j * M;
+		int yi = y - i * M;
+
+		// The samples on a shared edge are in both files, use the one that is
+		// inside the area. The other one is used if that file is missing.
+		int otherJ = j;
+		int otherXi = xi;
+		if (xi == 0 && sharedEdges) {
+			if (j > 0) {
+				j--;
+				xi = M;
+			} else {
+				otherJ = j - 1;
+				otherXi = M;
+			}
+		}
+		int otherI = i;
+		int otherYi = yi;
+		if (yi == 0 && sharedEdges) {
+			if (i > 0) {
+				i--;
+				yi = M;
+			} else {
+				otherI = i - 1;
+				otherYi = M;
+			}
+		}
+		if (i < -1 || i > numLat || j < -1 || j > numLon)
+			throw new IndexOutOfBoundsException(String.format("ele: %d %d", x, y));
+
+		DEMFile file = getFile(i, j);
+		if (file != null)
+			return file.get(xi, yi) + delta;
+		if (!sharedEdges)
+			return delta;
+		file = getFile(i, otherJ);
+		if (file != null)
+			return file.get(otherXi, yi) + delta;
+		file = getFile(otherI, j);
+		if (file != null)
+			return file.get(xi, otherYi) + delta;
+		file = getFile(otherI, otherJ);
+		if (file != null)
+			return file.get(otherXi, otherYi) + delta;
+		return delta;
+	}
+
+	/**
+	 * Get a file, loading it when it is used for the first time. The
+	 * resolution is set by the first file that is found, which is always
+	 * in the constructor.
+	 * @return The file, null if it doesn't exist or is outside of the files
+	 * that are kept.
+	 */
+	private DEMFile getFile(int i, int j) {
+		if (i < -1 || i > numLat || j < -1 || j > numLon)
+			return null;
+		int index = index(i, j);
+		DEMFile file = files.get(index);
+		if (file == null) {
+			// Two threads may load the same file, the cache gives them the same one.
+			file = loadFile(dataPath, lat + i * degrees, lon + j * degrees);
+			if (file == null)
+				file = MISSING;
+			else if (intervals == 0) {
+				intervals = file.getIntervals();
+				M = intervals;
+				N = intervals;
+				res = (double) degrees / intervals;
+			} else if (file.getIntervals() != intervals)
+				throw new ExitException("The DEM files in " + dataPath + " do not all have the same resolution");
+			files.set(index, file);
+		}
+		return file == MISSING ? null : file;
+	}
+
+	private static int floorDiv(int a, int b) {
+		return a >= 0 ? a / b : -((b - 1 - a) / b);
+	}
+
+	public void serializeCopyRight(Writer out) throws IOException {
+		out.write("  <copyright>\n");
+		out.write("  Contour lines generated from DEM data by NASA\n");
+		out.write("  </copyright>\n");
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + " " + dataPath + " " + lat + "," + lon + " " + numLat + "x" + numLon;
+	}
+}
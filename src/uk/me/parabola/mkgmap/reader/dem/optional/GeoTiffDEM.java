@@ -19,138 +19,205 @@ package uk.me.parabola.mkgmap.reader.dem.optional;
 import java.awt.*;
 import java.awt.image.Raster;
 import java.awt.image.renderable.ParameterBlock;
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.concurrent.Callable;
 
 import javax.media.jai.JAI;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.RenderedOp;
 
 import uk.me.parabola.imgfmt.ExitException;
-import uk.me.parabola.mkgmap.reader.dem.DEM;
+import uk.me.parabola.log.Logger;
+import uk.me.parabola.mkgmap.reader.dem.DEMFile;
+import uk.me.parabola.mkgmap.reader.dem.MosaicDEM;
+import uk.me.parabola.util.SizeLimitedCache;
 
 import com.sun.media.jai.codec.FileSeekableStream;
 import com.sun.media.jai.codec.SeekableStream;
 import com.sun.media.jai.codec.TIFFDecodeParam;
 
-public abstract class GeoTiffDEM extends DEM
+/**
+ * A mosaic of GeoTIFF files. The files are decoded into memory and shared
+ * by the tiles that are made at the same time.
+ */
+public abstract class GeoTiffDEM extends MosaicDEM
 {
-    Raster raster;
-    String fileName;
-    int minLat, minLon, maxLat, maxLon;
-    PlanarImage image;
+    private static final Logger log = Logger.getLogger(GeoTiffDEM.class);
+
+    // The decoded files are on the heap, unlike the mapped .hgt files, so
+    // the cache is limited by their size.
+    private static final long MAX_CACHE_SIZE = 256L * 1024 * 1024;
+
+    // The number of rows that are decoded at a time.
+    private static final int STRIP_ROWS = 256;
+
+    private static final SizeLimitedCache<String, GeoTiffFile> cache =
+	new SizeLimitedCache<String, GeoTiffFile>("GeoTIFF DEM files", MAX_CACHE_SIZE) {
+	    protected long sizeOf(GeoTiffFile file) {
+		return file == null ? 0 : 2L * file.samples.length;
+	    }
+	};
 
-    void initData()
+    protected GeoTiffDEM(String dataPath, int degrees, boolean sharedEdges,
+			 double minLat, double minLon, double maxLat, double maxLon)
+    {
+	super(dataPath, degrees, sharedEdges, minLat, minLon, maxLat, maxLon);
+    }
+
+    /**
+     * Get a file from the cache, decoding it if it is not there.
+     * @param size The expected number of samples in a row and a column.
+     * @param intervals The number of intervals between the samples of a row.
+     * @return The file, or null if it does not exist.
+     */
+    static DEMFile getFile(final String fileName, final int size, final int intervals)
     {
-	
 	try {
-	    SeekableStream s = new FileSeekableStream(fileName);
+	    return cache.get(fileName, new Callable<GeoTiffFile>() {
+		public GeoTiffFile call() {
+		    return decode(fileName, size, intervals);
+		}
+	    });
+	}
+	catch (ExitException e) {
+	    throw e;
+	}
+	catch (Exception e) {
+	    throw new ExitException("Failed to open/process " + fileName, e);
+	}
+    }
+
+    private static GeoTiffFile decode(String fileName, int size, int intervals)
+    {
+	if (!new File(fileName).exists()) {
+	    log.info("No DEM file", fileName);
+	    return null;
+	}
+
+	SeekableStream s = null;
+	try {
+	    s = new FileSeekableStream(fileName);
 	    ParameterBlock pb = new ParameterBlock();
 	    pb.add(s);
-	    
+
 	    TIFFDecodeParam param = new TIFFDecodeParam();
 	    pb.add(param);
-	    
+
 	    RenderedOp op = JAI.create("tiff", pb);
-	    image = op.createInstance();
-	    System.out.printf("Image: %d %d %d %d\n", image.getWidth(), image.getHeight(), 
-			      image.getNumXTiles(), image.getNumYTiles());
+	    PlanarImage image = op.createInstance();
+	    if (image.getWidth() != size || image.getHeight() != size)
+		throw new ExitException(String.format("Unexpected size of DEM file %s: %dx%d",
+						      fileName, image.getWidth(), image.getHeight()));
+
+	    // decode in strips, so that only the samples are kept in memory
+	    short[] samples = new short[size * size];
+	    int[] row = new int[size];
+	    for (int top = 0; top < size; top += STRIP_ROWS) {
+		int rows = Math.min(STRIP_ROWS, size - top);
+		Raster raster = image.getData(new Rectangle(image.getMinX(), image.getMinY() + top, size, rows));
+		for (int y = 0; y < rows; y++) {
+		    raster.getSamples(image.getMinX(), image.getMinY() + top + y, size, 1, 0, row);
+		    for (int x = 0; x < size; x++)
+			samples[(top + y) * size + x] = (short) row[x];
+		}
+	    }
+	    return new GeoTiffFile(samples, size, intervals);
 	}
-	catch (Exception e) {
+	catch (IOException e) {
 	    throw new ExitException("Failed to open/process " + fileName, e);
 	}
+	finally {
+	    if (s != null) {
+		try {
+		    s.close();
+		}
+		catch (IOException e) {
+		    log.warn("Failed to close", fileName);
+		}
+	    }
+	}
+    }
+
+    /**
+     * A decoded file. The rows go from north to south.
+     */
+    private static class GeoTiffFile implements DEMFile
+    {
+	private final short[] samples;
+	private final int size;
+	private final int intervals;
+
+	GeoTiffFile(short[] samples, int size, int intervals)
+	{
+	    this.samples = samples;
+	    this.size = size;
+	    this.intervals = intervals;
+	}
+
+	public int getIntervals()
+	{
+	    return intervals;
+	}
+
+	public int get(int x, int y)
+	{
+	    return samples[(size - y - 1) * size + x];
+	}
     }
 
+    /**
+     * The CGIAR files cover 5 degrees with 6000 samples, the samples on the
+     * northern and eastern edge are in the next file.
+     */
     protected static class CGIAR extends GeoTiffDEM
     {
 	public CGIAR(String dataPath, double minLat, double minLon, double maxLat, double maxLon)
 	{
-	    this.lat = ((int) (minLat/5))*5;
-	    this.lon = ((int) (minLon/5))*5;
-	    if (maxLat > lat+5 || maxLon > lon+5)
-		throw new ExitException("Area too large (must not span more than one CGIAR GeoTIFF)");
-	    
+	    super(dataPath, 5, false, minLat, minLon, maxLat, maxLon);
+	}
+
+	protected DEMFile loadFile(String dataPath, int lat, int lon)
+	{
 	    int tileX = (180 + lon) / 5 + 1;
-		int tileY = (60 - lat) / 5;
-	    this.fileName = String.format("%s/srtm_%02d_%02d.tif", dataPath, tileX, tileY);
-	    System.out.printf("CGIAR GeoTIFF: %s\n", fileName);
-	    N = 6000;
-	    M = 6000;
-	    res = 5.0/M;
-	    
-	    initData();
-	}
-	
+	    int tileY = (60 - lat) / 5;
+	    return getFile(String.format("%s/srtm_%02d_%02d.tif", dataPath, tileX, tileY), 6000, 6000);
+	}
+
 	public void serializeCopyRight(Writer out) throws IOException
 	{
 	    out.write("  <copyright>\n");
 	    out.write("  Contour lines generated from improved SRTM data by CIAT-CSI (see http://srtm.csi.cgiar.org)\n");
 	    out.write("  </copyright>\n");
 	}
-	
-	protected void read(int minLon, int minLat, int maxLon, int maxLat)
-	{
-	    this.minLon = minLon;
-	    this.minLat = minLat;
-	    this.maxLon = maxLon;
-	    this.maxLat = maxLat;
-	    raster = image.getData(new Rectangle(minLon, 6000-maxLat-1, maxLon-minLon+1, maxLat-minLat+1));
-	    System.out.printf("read: %d %d %d %d\n", minLon, 6000-maxLat-1, maxLon-minLon+1, maxLat-minLat+1);
-	}
-
-	public double ele(int x, int y)
-	{
-		int elevation = raster.getPixel(x, 6000-y-1, (int[])null)[0];
-		return elevation+delta;
-	}
     }
-    
+
+    /**
+     * The ASTER files cover one degree with 3601 samples, the first and last
+     * row and column are the same as those of the next file.
+     */
     protected static class ASTER extends GeoTiffDEM
     {
-	
 	public ASTER(String dataPath, double minLat, double minLon, double maxLat, double maxLon)
 	{
-	    this.lat = (int) minLat;
-	    this.lon = (int) minLon;
-	    if (maxLat > lat+1 || maxLon > lon+1)
-		throw new ExitException("Area too large (must not span more than one ASTER GeoTIFF)");
-	    
+	    super(dataPath, 1, true, minLat, minLon, maxLat, maxLon);
+	}
+
+	protected DEMFile loadFile(String dataPath, int lat, int lon)
+	{
 	    String northSouth = lat < 0 ? "S" : "N";
-	    String eastWest = lon > 0 ? "E" : "W";
-	    fileName = String.format("%s/ASTGTM_%s%02d%s%03d_dem.tif", dataPath, 
-				     northSouth, lat < 0 ? -lat : lat, 
-				     eastWest, lon < 0 ? -lon : lon);
-	    
-	    System.out.printf("ASTER GeoTIFF: %s\n", fileName);
-	    N = 3600;
-	    M = 3600;
-	    res = 1.0/M;
-	    initData();
-	}
-	
+	    String eastWest = lon < 0 ? "W" : "E";
+	    String fileName = String.format("%s/ASTGTM_%s%02d%s%03d_dem.tif", dataPath,
+					    northSouth, Math.abs(lat), eastWest, Math.abs(lon));
+	    return getFile(fileName, 3601, 3600);
+	}
+
 	public void serializeCopyRight(Writer out) throws IOException
 	{
 	    out.write("  <copyright>\n");
 	    out.write("  Contour lines generated from DGM data by ASTER (see https://wist.echo.nasa.gov/~wist/api/imswelcome)\n");
 	    out.write("  </copyright>\n");
 	}
-        
-	protected void read(int minLon, int minLat, int maxLon, int maxLat)
-	{
-	    this.minLon = minLon;
-	    this.minLat = minLat;
-	    this.maxLon = maxLon;
-	    this.maxLat = maxLat;
-	    raster = image.getData(new Rectangle(minLon, 3601-maxLat-1, maxLon-minLon+1, maxLat-minLat+1));
-	    System.out.printf("read: %d %d %d %d\n", minLon, 3601-maxLat-1, maxLon-minLon+1, maxLat-minLat+1);
-	}
-
-	public double ele(int x, int y)
-	{
-		int elevation = raster.getPixel(x, 3601-y-1, (int[])null)[0];
-		return elevation+delta;
-	}
     }
-
 }
-
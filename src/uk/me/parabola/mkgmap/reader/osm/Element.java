@@ -246,6 +246,18 @@ public abstract class Element {
 		};
 	}
 
+	/**
+	 * Copy the keys and values of the tags into the given arrays.
+	 * @param keys Receives the keys, must have room for {@link #getTagCount()} entries.
+	 * @param values Receives the values, must have room for {@link #getTagCount()} entries.
+	 * @return The number of tags.
+	 */
+	public int copyTags(short[] keys, String[] values) {
+		if (tags == null)
+			return 0;
+		return tags.copyTo(keys, values);
+	}
+
 	protected String kind() {
 		return "unknown";
 	}
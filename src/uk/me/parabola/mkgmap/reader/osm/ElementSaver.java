@@ -47,6 +47,9 @@ public class ElementSaver {
 	private static final Logger log = Logger.getLogger(ElementSaver.class);
 
 	protected OSMId2ObjectMap<Coord> coordMap = new OSMId2ObjectMap<Coord>();
+	// if not null, the positions of the nodes are stored here and Coord
+	// objects are only created for nodes that are used
+	private PackedCoordMap packedCoords;
 
 	protected Map<Long, Node> nodeMap;
 	protected Map<Long, Way> wayMap;
@@ -67,6 +70,7 @@ public class ElementSaver {
 	// Options
 	private final boolean ignoreBuiltinRelations;
 	private final boolean ignoreTurnRestrictions;
+	private final MultiPolygonCache mpCache;
 
 	/** name of the tag that contains a ;-separated list of tagnames that should be removed after all elements have been processed */
 	public static final String MKGMAP_REMOVE_TAG = "mkgmap:removetags";
@@ -86,6 +90,18 @@ public class ElementSaver {
 
 		ignoreBuiltinRelations = args.getProperty("ignore-builtin-relations", false);
 		ignoreTurnRestrictions = args.getProperty("ignore-turn-restrictions", false);
+
+		String cacheDir = args.getProperty("multipolygon-cache");
+		int cacheSize = args.getProperty("multipolygon-cache-size", MultiPolygonCache.DEFAULT_MAX_SIZE_MB);
+		mpCache = cacheDir == null ? null : new MultiPolygonCache(cacheDir, cacheSize * 1024L * 1024);
+
+		String coordStore = args.getProperty("coord-store");
+		if ("packed".equals(coordStore))
+			packedCoords = new PackedCoordMap(false);
+		else if ("mapped".equals(coordStore))
+			packedCoords = new PackedCoordMap(true);
+		else if (coordStore != null && !"objects".equals(coordStore))
+			log.error("Unknown value for option coord-store:", coordStore);
 	}
 
 	/**
@@ -98,7 +114,11 @@ public class ElementSaver {
 	 * @param co The point.
 	 */
 	public void addPoint(long id, Coord co) {
-		coordMap.put(id, co);
+		// special coords and replacements are kept as objects
+		if (packedCoords != null && co.getClass() == Coord.class && coordMap.get(id) == null)
+			packedCoords.put(id, co.toPacked());
+		else
+			coordMap.put(id, co);
 		if (boundingBox == null) {
 			if (co.getLatitude() < minLat)
 				minLat = co.getLatitude();
@@ -119,6 +139,9 @@ public class ElementSaver {
 	 */
 	public void addNode(Node node) {
 		nodeMap.put(node.getId(), node);
+		// the node and the ways should use the same Coord instance
+		if (packedCoords != null && coordMap.get(node.getId()) == null && packedCoords.containsKey(node.getId()))
+			coordMap.put(node.getId(), node.getLocation());
 	}
 
 	/**
@@ -180,7 +203,9 @@ public class ElementSaver {
 	 * @return A new multi polygon relation, based on the input relation.
 	 */
 	public Relation createMultiPolyRelation(Relation rel) {
-		return new MultiPolygonRelation(rel, wayMap, getBoundingBox());
+		MultiPolygonRelation mpr = new MultiPolygonRelation(rel, wayMap, getBoundingBox());
+		mpr.setCache(mpCache);
+		return mpr;
 	}
 	
 	public SeaPolygonRelation createSeaPolyRelation(Relation rel) {
@@ -192,7 +217,15 @@ public class ElementSaver {
 	}
 
 	public Coord getCoord(long id) {
-		return coordMap.get(id);
+		Coord co = coordMap.get(id);
+		if (co == null && packedCoords != null) {
+			long packed = packedCoords.get(id);
+			if (packed != PackedCoordMap.NO_VALUE) {
+				co = Coord.fromPacked(packed);
+				coordMap.put(id, co);
+			}
+		}
+		return co;
 	}
 
 	public Node getNode(long id) {
@@ -209,6 +242,10 @@ public class ElementSaver {
 	
 	public void finishLoading() {
 		coordMap = null;
+		if (packedCoords != null) {
+			packedCoords.close();
+			packedCoords = null;
+		}
 	}
 
 	/**
@@ -13,14 +13,18 @@
 
 package uk.me.parabola.mkgmap.reader.osm;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.log.Logger;
 import uk.me.parabola.mkgmap.reader.osm.boundary.BoundaryGrid;
 import uk.me.parabola.mkgmap.reader.osm.boundary.BoundaryQuadTree;
+import uk.me.parabola.mkgmap.reader.osm.boundary.BoundaryQuadTreeCache;
 import uk.me.parabola.mkgmap.reader.osm.boundary.BoundaryUtil;
 import uk.me.parabola.util.EnhancedProperties;
 
@@ -30,12 +34,15 @@ public class LocationHook extends OsmReadingHooksAdaptor {
 	// so that it is possible to log only the results of the location hook
 	private static final Logger resultLog = Logger.getLogger(LocationHook.class.getName()+".results");
 	
+	// the number of elements that are searched by one task in parallel mode
+	private static final int ELEMS_PER_TASK = 2000;
+
 	// counters for stats
-	private long cntQTSearch = 0;
-	private long cntNotFnd = 0;
-	private long cntwayNotFnd = 0;
+	private final SearchCounters counters = new SearchCounters();
 	
 	private BoundaryGrid boundaryGrid;
+	// 0 means that the elements are searched on the calling thread
+	private int numThreads;
 
 	private ElementSaver saver;
 	
@@ -49,6 +56,9 @@ public class LocationHook extends OsmReadingHooksAdaptor {
 	private static String checkedBoundaryDirName;
 	/** stores the result of the bounds dir/file check */
 	private static boolean checkBoundaryDirOk;
+
+	/** The search threads are shared by all the maps that are made at the same time. */
+	private static ForkJoinPool searchPool;
 	
 	private EnhancedProperties props;
 
@@ -62,6 +72,9 @@ public class LocationHook extends OsmReadingHooksAdaptor {
 		
 		this.props = props;
 		this.saver = saver;
+		BoundaryQuadTreeCache.setMaxSize(props.getProperty("bounds-cache-size",
+				BoundaryQuadTreeCache.DEFAULT_MAX_SIZE_MB));
+		numThreads = props.getThreadsProperty("location-threads");
 
 		long t1 = System.currentTimeMillis();
 
@@ -102,24 +115,26 @@ public class LocationHook extends OsmReadingHooksAdaptor {
 		
 		long dt = (System.currentTimeMillis() - t1);
 		log.info("======= LocationHook Stats =====");             
-		log.info("QuadTree searches    :", cntQTSearch);             
-		log.info("unsuccesfull         :", cntNotFnd);             
-		log.info("unsuccesfull for ways:", cntwayNotFnd);             
+		log.info("QuadTree searches    :", counters.searches);             
+		log.info("unsuccesfull         :", counters.notFound);             
+		log.info("unsuccesfull for ways:", counters.wayNotFound);             
+		log.info(BoundaryQuadTreeCache.getStats());
 		log.info("Location hook finished in", dt, "ms");
 
 	}
 
 	/**
 	 * Iterate over all elements for which the boundary assignment should be performed.
+	 * The searches are done first, possibly on several threads, then the 
+	 * tags are assigned in the original order.
 	 */
 	private void processLocationRelevantElements() {
+		List<Element> elems = new ArrayList<Element>();
 		// process all nodes that might be converted to a garmin node (tagcount > 0)
 		for (Node node : saver.getNodes().values()) {
 			if (node.getTagCount() > 0) {
 				if (saver.getBoundingBox().contains(node.getLocation())){
-					processElem(node);
-					if (resultLog.isDebugEnabled())
-						resultLog.debug("N", node.getId(), locationTagsToString(node));
+					elems.add(node);
 				}
 			}
 		}
@@ -127,87 +142,131 @@ public class LocationHook extends OsmReadingHooksAdaptor {
 		// process  all ways that might be converted to a garmin way (tagcount > 0)
 		for (Way way : saver.getWays().values()) {
 			if (way.getTagCount() > 0) {
-				processElem(way);
-				if (resultLog.isDebugEnabled())
-					resultLog.debug("W", way.getId(), locationTagsToString(way));
+				elems.add(way);
 			}
 		}
 		
 		// process all multipolygons - the add-pois-to-area function uses its
 		// center point and its tags so the mp must be tagged itself with the bounds
 		// tags
+		int firstMpNode = elems.size();
+		List<Relation> mpRels = new ArrayList<Relation>();
 		for (Relation r : saver.getRelations().values()) {
 			if (r instanceof MultiPolygonRelation) {
 				// check if the mp could be processed
 				Coord mpCenter = ((MultiPolygonRelation) r).getCofG();
 				if (mpCenter != null && saver.getBoundingBox().contains(mpCenter)){
 					// create a fake node for which the bounds information is collected
-					Node mpNode = new Node(FakeIdGenerator.makeFakeId(), mpCenter);
-					processElem(mpNode);
-					// copy the bounds tags back to the multipolygon
-					for (String boundsTag : BoundaryQuadTree.mkgmapTagsArray) {
-						String tagValue = mpNode.getTag(boundsTag);
-						if (tagValue != null) {
-							r.addTag(boundsTag, tagValue);
-						}
-					}
-					if (resultLog.isDebugEnabled())
-						resultLog.debug("R", r.getId(), locationTagsToString(r));
+					elems.add(new Node(FakeIdGenerator.makeFakeId(), mpCenter));
+					mpRels.add(r);
+				}
+			}
+		}
+
+		Tags[] found = new Tags[elems.size()];
+		if (numThreads > 0 && elems.size() > ELEMS_PER_TASK) {
+			SearchTask task = new SearchTask(elems, found, 0, elems.size());
+			getPool(numThreads).invoke(task);
+			counters.add(task.counters);
+		} else {
+			for (int i = 0; i < found.length; i++)
+				found[i] = search(elems.get(i), counters);
+		}
+
+		for (int i = 0; i < firstMpNode; i++) {
+			Element elem = elems.get(i);
+			assignTags(elem, found[i]);
+			if (resultLog.isDebugEnabled())
+				resultLog.debug(elem instanceof Node ? "N" : "W", elem.getId(), locationTagsToString(elem));
+		}
+		for (int i = firstMpNode; i < found.length; i++) {
+			Element mpNode = elems.get(i);
+			Relation r = mpRels.get(i - firstMpNode);
+			assignTags(mpNode, found[i]);
+			// copy the bounds tags back to the multipolygon
+			for (String boundsTag : BoundaryQuadTree.mkgmapTagsArray) {
+				String tagValue = mpNode.getTag(boundsTag);
+				if (tagValue != null) {
+					r.addTag(boundsTag, tagValue);
 				}
 			}
+			if (resultLog.isDebugEnabled())
+				resultLog.debug("R", r.getId(), locationTagsToString(r));
 		}
 	}
 
+	/**
+	 * Get the pool that is shared by all the maps. A fork/join pool can't be
+	 * made larger, so it is replaced by a new one when more threads are
+	 * wanted than before. Its threads end when they are idle.
+	 */
+	private static synchronized ForkJoinPool getPool(int threads) {
+		if (searchPool == null || threads > searchPool.getParallelism())
+			searchPool = new ForkJoinPool(threads);
+		return searchPool;
+	}
+
 	/**
 	 * Extract the location info and perform a test 
-	 * against the BoundaryGrid. If found, assign the tags.  
+	 * against the BoundaryGrid. The element is not changed. 
 	 * @param elem A way or Node
+	 * @param cnt the counters for the statistics
+	 * @return the location relevant tags or null if nothing was found
 	 */
-	private void processElem(Element elem){
+	private Tags search(Element elem, SearchCounters cnt){
 		Tags tags = null;
 
 		if (elem instanceof Node){
 			Node node = (Node) elem;
-			tags = search(node.getLocation());
+			tags = search(node.getLocation(), cnt);
 		}
 		else if (elem instanceof Way){
 			Way way = (Way) elem;
 			// try the mid point of the way first
 			int middle = way.getPoints().size() / 2;
-			tags = search(way.getPoints().get(middle));
+			tags = search(way.getPoints().get(middle), cnt);
 			if (tags == null){
 				// try 1st point next
-				tags = search(way.getPoints().get(0));
+				tags = search(way.getPoints().get(0), cnt);
 			}
 			if (tags == null){
 				// try last point next
-				tags = search(way.getPoints().get(way.getPoints().size()-1));
+				tags = search(way.getPoints().get(way.getPoints().size()-1), cnt);
 			}
 			if (tags == null){
 				// still not found, try rest
 				for (int i = 1; i < way.getPoints().size()-1; i++){
 					if (i == middle)
 						continue;
-					tags = search(way.getPoints().get(i));
+					tags = search(way.getPoints().get(i), cnt);
 					if (tags != null) 
 						break;
 				}
 			}
 			if (tags == null)
-				++cntwayNotFnd;
+				++cnt.wayNotFound;
 		}
 
 		if (tags == null){
-			++cntNotFnd;
-		}
-		else{
-			// tag the element with all tags referenced by the boundary
-			Iterator<Entry<Short,String>> tagIter = tags.entryShortIterator();
-			while (tagIter.hasNext()) {
-				Entry<Short,String> tag = tagIter.next();
-				if (elem.getTag(tag.getKey()) == null){
-					elem.addTag(tag.getKey(),tag.getValue());
-				}
+			++cnt.notFound;
+		}
+		return tags;
+	}
+
+	/**
+	 * Tag the element with all tags referenced by the boundary.
+	 * Tags that are already set are not changed.
+	 * @param elem A way or Node
+	 * @param tags the result of the search, may be null
+	 */
+	private static void assignTags(Element elem, Tags tags){
+		if (tags == null)
+			return;
+		Iterator<Entry<Short,String>> tagIter = tags.entryShortIterator();
+		while (tagIter.hasNext()) {
+			Entry<Short,String> tag = tagIter.next();
+			if (elem.getTag(tag.getKey()) == null){
+				elem.addTag(tag.getKey(),tag.getValue());
 			}
 		}
 	}
@@ -215,17 +274,18 @@ public class LocationHook extends OsmReadingHooksAdaptor {
 	/**
 	 * perform search in grid and maintain statistic counter
 	 * @param co a point that is to be searched
+	 * @param cnt the counters for the statistics
 	 * @return location relevant tags or null
 	 */
-	private Tags search(Coord co){
+	private Tags search(Coord co, SearchCounters cnt){
 		if (saver.getBoundingBox().contains(co)){
-			++cntQTSearch;
+			++cnt.searches;
 			return boundaryGrid.get(co);
 		}
 		else 
 			return null;
 	}
-			
+
 	/**
 	 * Debugging:
 	 * Create a string with location relevant tags ordered by admin_level.
@@ -244,6 +304,50 @@ public class LocationHook extends OsmReadingHooksAdaptor {
 		return res.toString();
 	}
 
-}
+	/**
+	 * Searches a range of the elements. Large ranges are split
+	 * so that the searches can be done by several threads. 
+	 */
+	private class SearchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
+		private final List<Element> elems;
+		private final Tags[] found;
+		private final int from;
+		private final int to;
+		private final SearchCounters counters = new SearchCounters();
+
+		SearchTask(List<Element> elems, Tags[] found, int from, int to) {
+			this.elems = elems;
+			this.found = found;
+			this.from = from;
+			this.to = to;
+		}
 
+		protected void compute() {
+			if (to - from <= ELEMS_PER_TASK) {
+				for (int i = from; i < to; i++)
+					found[i] = search(elems.get(i), counters);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			SearchTask left = new SearchTask(elems, found, from, mid);
+			SearchTask right = new SearchTask(elems, found, mid, to);
+			invokeAll(left, right);
+			counters.add(left.counters);
+			counters.add(right.counters);
+		}
+	}
+
+	private static class SearchCounters {
+		private long searches;
+		private long notFound;
+		private long wayNotFound;
+
+		void add(SearchCounters other) {
+			searches += other.searches;
+			notFound += other.notFound;
+			wayNotFound += other.wayNotFound;
+		}
+	}
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.log.Logger;
+import uk.me.parabola.mkgmap.reader.osm.MultiPolygonRelation.JoinedWay;
+
+/**
+ * Keeps the results of the expensive steps of the multipolygon processing
+ * in a directory, so that they can be used again for the next tile or the
+ * next run.
+ *
+ * The joined rings do not depend on the tile, they are found again for each
+ * tile that has the same member ways. The contains matrix depends on the
+ * bounding box of the tile, so it is only found again when the same tile
+ * is made again.
+ *
+ * An entry is used only when a hash of everything that the result depends on
+ * is the same: the version of the cache, the ids, roles and points of the
+ * member ways, and which of the points are the same node.
+ *
+ * When a directory is first used by a run, the entries of other versions
+ * are deleted, and the entries that were used least recently are deleted
+ * until the directory is smaller than the size limit.
+ */
+public class MultiPolygonCache {
+	private static final Logger log = Logger.getLogger(MultiPolygonCache.class);
+
+	private static final int MAGIC = 0x6d706331;
+	// Increase when the entries or the way that the results are found
+	// change, the entries of other versions are deleted.
+	private static final int VERSION = 2;
+	private static final String PREFIX = "v" + VERSION + "_";
+	private static final String RINGS_EXT = ".rings";
+	private static final String MATRIX_EXT = ".matrix";
+	private static final String TMP_EXT = ".tmp";
+	// temporary files of other runs that are older are left over from a crash
+	private static final long TMP_MAX_AGE = 3600 * 1000;
+	public static final int DEFAULT_MAX_SIZE_MB = 1000;
+	private static final int TYPE_RINGS = 1;
+	private static final int TYPE_MATRIX = 2;
+
+	// Small multipolygons are quicker to work out again than to read.
+	private static final int MIN_WAYS = 16;
+
+	// the directories that were cleaned up in this run
+	private static final Set<String> cleanedDirs = new HashSet<>();
+
+	private final File dir;
+
+	public MultiPolygonCache(String dirName) {
+		this(dirName, DEFAULT_MAX_SIZE_MB * 1024L * 1024);
+	}
+
+	/**
+	 * @param dirName The directory of the cache.
+	 * @param maxSize The size limit of the directory in bytes.
+	 */
+	public MultiPolygonCache(String dirName, long maxSize) {
+		dir = new File(dirName);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			log.error("Cannot create multipolygon cache directory", dirName);
+		else
+			cleanUp(dir, maxSize);
+	}
+
+	/**
+	 * Delete the entries of other versions and the least recently used
+	 * entries that don't fit into the size limit. This is done once for
+	 * each directory in a run.
+	 */
+	private static void cleanUp(File dir, long maxSize) {
+		synchronized (cleanedDirs) {
+			if (!cleanedDirs.add(dir.getAbsolutePath()))
+				return;
+			File[] files = dir.listFiles();
+			if (files == null)
+				return;
+			long now = System.currentTimeMillis();
+			List<File> entries = new ArrayList<>();
+			final Map<File, Long> used = new IdentityHashMap<>();
+			long size = 0;
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(TMP_EXT)) {
+					if (file.lastModified() + TMP_MAX_AGE < now)
+						file.delete();
+				} else if (name.endsWith(RINGS_EXT) || name.endsWith(MATRIX_EXT)) {
+					if (!name.startsWith(PREFIX))
+						file.delete();
+					else {
+						entries.add(file);
+						used.put(file, file.lastModified());
+						size += file.length();
+					}
+				}
+			}
+			if (size <= maxSize)
+				return;
+			Collections.sort(entries, new Comparator<File>() {
+				public int compare(File f1, File f2) {
+					return Long.compare(used.get(f1), used.get(f2));
+				}
+			});
+			int deleted = 0;
+			for (File file : entries) {
+				if (size <= maxSize)
+					break;
+				size -= file.length();
+				file.delete();
+				deleted++;
+			}
+			log.info("Deleted", deleted, "entries from the multipolygon cache", dir);
+		}
+	}
+
+	/**
+	 * Create the key for the member ways of a relation.
+	 * @return The key, or null if the relation is too small to be cached.
+	 */
+	byte[] makeKey(MultiPolygonRelation rel, List<Way> ways) {
+		if (ways.size() < MIN_WAYS)
+			return null;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Map<Coord, Integer> seen = new IdentityHashMap<>();
+		try {
+			out.writeInt(VERSION);
+			out.writeLong(rel.getId());
+			out.writeInt(ways.size());
+			for (Way w : ways) {
+				out.writeLong(w.getId());
+				out.writeUTF(String.valueOf(rel.getRole(w)));
+				out.writeBoolean(w.isComplete());
+				out.writeBoolean(w.isClosed());
+				out.writeInt(w.getPoints().size());
+				for (Coord co : w.getPoints()) {
+					// the ways are joined where they have the same node
+					Integer first = seen.get(co);
+					if (first == null) {
+						first = seen.size();
+						seen.put(co, first);
+					}
+					out.writeInt(first);
+					out.writeInt(co.getHighPrecLat());
+					out.writeInt(co.getHighPrecLon());
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			// cannot happen with a byte array
+			return null;
+		}
+		return digest(bytes.toByteArray());
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Find the joined rings of a relation.
+	 *
+	 * @param ways The member ways, in the same order as for the key.
+	 * @return The rings in the order that they were saved, or null if they are
+	 * not in the cache.
+	 */
+	ArrayList<JoinedWay> loadRings(long relId, byte[] key, List<Way> ways) {
+		List<Coord> allPoints = new ArrayList<>();
+		for (Way w : ways)
+			allPoints.addAll(w.getPoints());
+
+		int[][] ringWays;
+		int[][] ringPoints;
+		boolean[] artificial;
+		DataInputStream in = open(ringsFile(relId), TYPE_RINGS, key);
+		if (in == null)
+			return null;
+		try {
+			int n = in.readInt();
+			ringWays = new int[n][];
+			ringPoints = new int[n][];
+			artificial = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				artificial[i] = in.readBoolean();
+				ringWays[i] = readInts(in, ways.size());
+				if (ringWays[i].length == 0)
+					throw new IOException("ring without ways");
+				ringPoints[i] = readInts(in, allPoints.size());
+			}
+		} catch (IOException e) {
+			log.warn("Cannot read multipolygon cache for relation", relId, e.getMessage());
+			return null;
+		} finally {
+			close(in);
+		}
+
+		// use up the same fake ids as joining the ways would, so that the
+		// rest of the map is the same
+		long[] ids = new long[ways.size()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = FakeIdGenerator.makeFakeId();
+
+		ArrayList<JoinedWay> rings = new ArrayList<>(ringWays.length);
+		for (int i = 0; i < ringWays.length; i++) {
+			List<Way> orgWays = new ArrayList<>(ringWays[i].length);
+			for (int w : ringWays[i])
+				orgWays.add(ways.get(w));
+			List<Coord> points = new ArrayList<>(ringPoints[i].length);
+			for (int p : ringPoints[i])
+				points.add(allPoints.get(p));
+			rings.add(new JoinedWay(ids[ringWays[i][0]], orgWays, points, artificial[i]));
+		}
+		return rings;
+	}
+
+	void saveRings(long relId, byte[] key, List<Way> ways, List<JoinedWay> rings) {
+		Map<Way, Integer> wayIndex = new IdentityHashMap<>();
+		Map<Coord, Integer> pointIndex = new IdentityHashMap<>();
+		int index = 0;
+		for (int i = 0; i < ways.size(); i++) {
+			wayIndex.put(ways.get(i), i);
+			for (Coord co : ways.get(i).getPoints()) {
+				if (!pointIndex.containsKey(co))
+					pointIndex.put(co, index);
+				index++;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(rings.size());
+			for (JoinedWay ring : rings) {
+				out.writeBoolean(ring.isClosedArtificially());
+				out.writeInt(ring.getOriginalWays().size());
+				for (Way w : ring.getOriginalWays())
+					out.writeInt(wayIndex.get(w));
+				out.writeInt(ring.getPoints().size());
+				for (Coord co : ring.getPoints())
+					out.writeInt(pointIndex.get(co));
+			}
+			out.flush();
+		} catch (IOException e) {
+			return;
+		}
+		save(ringsFile(relId), TYPE_RINGS, key, bytes.toByteArray());
+	}
+
+	/**
+	 * Find the contains matrix of a relation in a tile.
+	 *
+	 * @param polygons The polygons that the matrix is for.
+	 * @param intersecting The polygons that intersect another one are added to this.
+	 * @return The matrix, or null if it is not in the cache.
+	 */
+	ArrayList<BitSet> loadMatrix(long relId, byte[] key, Area bbox, List<JoinedWay> polygons,
+			Set<JoinedWay> intersecting)
+	{
+		DataInputStream in = open(matrixFile(relId, bbox), TYPE_MATRIX, matrixKey(key, bbox));
+		if (in == null)
+			return null;
+		try {
+			int n = in.readInt();
+			if (n != polygons.size())
+				return null;
+			ArrayList<BitSet> matrix = new ArrayList<>(n);
+			for (int i = 0; i < n; i++) {
+				long[] words = new long[in.readInt()];
+				for (int j = 0; j < words.length; j++)
+					words[j] = in.readLong();
+				matrix.add(BitSet.valueOf(words));
+			}
+			for (int i : readInts(in, n))
+				intersecting.add(polygons.get(i));
+			return matrix;
+		} catch (IOException e) {
+			log.warn("Cannot read multipolygon cache for relation", relId, e.getMessage());
+			return null;
+		} finally {
+			close(in);
+		}
+	}
+
+	void saveMatrix(long relId, byte[] key, Area bbox, List<JoinedWay> polygons,
+			List<BitSet> matrix, Set<JoinedWay> intersecting)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(matrix.size());
+			for (BitSet row : matrix) {
+				long[] words = row.toLongArray();
+				out.writeInt(words.length);
+				for (long word : words)
+					out.writeLong(word);
+			}
+			List<Integer> found = new ArrayList<>();
+			for (int i = 0; i < polygons.size(); i++) {
+				if (intersecting.contains(polygons.get(i)))
+					found.add(i);
+			}
+			out.writeInt(found.size());
+			for (int i : found)
+				out.writeInt(i);
+			out.flush();
+		} catch (IOException e) {
+			return;
+		}
+		save(matrixFile(relId, bbox), TYPE_MATRIX, matrixKey(key, bbox), bytes.toByteArray());
+	}
+
+	private static byte[] matrixKey(byte[] key, Area bbox) {
+		byte[] bytes = Arrays.copyOf(key, key.length + 16);
+		int[] bounds = {bbox.getMinLat(), bbox.getMinLong(), bbox.getMaxLat(), bbox.getMaxLong()};
+		for (int i = 0; i < bounds.length; i++) {
+			for (int b = 0; b < 4; b++)
+				bytes[key.length + i * 4 + b] = (byte) (bounds[i] >> (24 - 8 * b));
+		}
+		return digest(bytes);
+	}
+
+	private File ringsFile(long relId) {
+		return new File(dir, PREFIX + "r" + relId + RINGS_EXT);
+	}
+
+	private File matrixFile(long relId, Area bbox) {
+		return new File(dir, PREFIX + "r" + relId + "_" + bbox.getMinLat() + "_" + bbox.getMinLong() + MATRIX_EXT);
+	}
+
+	private static int[] readInts(DataInputStream in, int limit) throws IOException {
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+			if (values[i] < 0 || values[i] >= limit)
+				throw new IOException("index out of range");
+		}
+		return values;
+	}
+
+	/**
+	 * Open an entry and check that it has the right key. The time of the
+	 * file is set to now, so that the entry is kept by the clean up.
+	 * @return A stream positioned after the key, or null if there is no such entry.
+	 */
+	private DataInputStream open(File file, int type, byte[] key) {
+		if (!file.exists())
+			return null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			byte[] fileKey = new byte[key.length];
+			if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readInt() == type) {
+				in.readFully(fileKey);
+				if (Arrays.equals(key, fileKey)) {
+					file.setLastModified(System.currentTimeMillis());
+					return in;
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Cannot read multipolygon cache", file, e.getMessage());
+		}
+		close(in);
+		return null;
+	}
+
+	/**
+	 * Write an entry to a temporary file first, so that another tile
+	 * that reads it at the same time never sees part of it.
+	 */
+	private void save(File file, int type, byte[] key, byte[] data) {
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(file.getName(), TMP_EXT, dir);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(type);
+				out.write(key);
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("Cannot write multipolygon cache", file, e.getMessage());
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+
+	private static void close(DataInputStream in) {
+		if (in == null)
+			return;
+		try {
+			in.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+}
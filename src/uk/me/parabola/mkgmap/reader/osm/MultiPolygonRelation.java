@@ -13,9 +13,11 @@
 
 package uk.me.parabola.mkgmap.reader.osm;
 
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
-import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.geom.Line2D;
@@ -24,6 +26,7 @@ import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
@@ -47,6 +50,7 @@ import java.util.logging.Level;
 import uk.me.parabola.imgfmt.Utils;
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.log.Logger;
+import uk.me.parabola.util.IndexedPolygon;
 import uk.me.parabola.util.Java2DConverter;
 
 /**
@@ -67,6 +71,8 @@ public class MultiPolygonRelation extends Relation {
 	public static final String MP_CREATED_TAG = "mkgmap:mp_created";
 	
 	private final Map<Long, Way> tileWayMap;
+	private MultiPolygonCache cache;
+	private byte[] cacheKey;
 	private final Map<Long, String> roleMap = new HashMap<Long, String>();
  
 	private Map<Long, Way> mpPolygons = new LinkedHashMap<Long, Way>();
@@ -139,6 +145,13 @@ public class MultiPolygonRelation extends Relation {
 	}
 	
 
+	/**
+	 * Keep the joined rings and the contains matrix in the given cache.
+	 */
+	public void setCache(MultiPolygonCache cache) {
+		this.cache = cache;
+	}
+
 	/**
 	 * Retrieves the center point of this multipolygon. This is set in the 
 	 * {@link #processElements()} methods so it returns <code>null</code> 
@@ -378,6 +391,27 @@ public class MultiPolygonRelation extends Relation {
 		return joinedWays;
 	}
 
+	/**
+	 * Join the ways, or get the rings from the cache if they have been
+	 * joined before.
+	 */
+	private ArrayList<JoinedWay> joinWaysCached(List<Way> allWays) {
+		if (cache != null)
+			cacheKey = cache.makeKey(this, allWays);
+		if (cacheKey == null)
+			return joinWays(allWays);
+
+		ArrayList<JoinedWay> rings = cache.loadRings(getId(), cacheKey, allWays);
+		if (rings == null) {
+			rings = joinWays(allWays);
+			cache.saveRings(getId(), cacheKey, allWays, rings);
+		} else {
+			for (JoinedWay ring : rings)
+				roleMap.put(ring.getId(), getRole(ring.getOriginalWays().get(0)));
+		}
+		return rings;
+	}
+
 	/**
 	 * Try to close all unclosed ways in the given list of ways.
 	 * 
@@ -781,7 +815,7 @@ public class MultiPolygonRelation extends Relation {
 		bboxArea = Java2DConverter.createBoundsArea(getBbox()); 
 
 		// join all single ways to polygons, try to close ways and remove non closed ways 
-		polygons = joinWays(allWays);
+		polygons = joinWaysCached(allWays);
 		
 		outerWaysForLineTagging = new HashSet<Way>();
 		outerTags = new HashMap<String,String>();
@@ -821,7 +855,13 @@ public class MultiPolygonRelation extends Relation {
 		intersectingPolygons = new HashSet<JoinedWay>();
 		
 		// check which polygons lie inside which other polygon 
-		createContainsMatrix(polygons);
+		if (cacheKey != null)
+			containsMatrix = cache.loadMatrix(getId(), cacheKey, bbox, polygons, intersectingPolygons);
+		if (containsMatrix == null) {
+			createContainsMatrix(polygons);
+			if (cacheKey != null)
+				cache.saveMatrix(getId(), cacheKey, bbox, polygons, containsMatrix, intersectingPolygons);
+		}
 
 		// unfinishedPolygons marks which polygons are not yet processed
 		unfinishedPolygons = new BitSet(polygons.size());
@@ -1700,6 +1740,22 @@ public class MultiPolygonRelation extends Relation {
 			finishedMatrix.add(matrixRow);
 		}
 
+		// A polygon can only contain the polygons whose bounds are inside its
+		// own bounds. To find them quickly the polygons are sorted by their
+		// left edge.
+		int[] byLeft = new int[polygonList.size()];
+		int[] lefts = new int[polygonList.size()];
+		for (int i = 0; i < byLeft.length; i++)
+			byLeft[i] = i;
+		final List<JoinedWay> polygons = polygonList;
+		IntArrays.quickSort(byLeft, new AbstractIntComparator() {
+			public int compare(int i1, int i2) {
+				return Integer.compare(polygons.get(i1).getBounds().x, polygons.get(i2).getBounds().x);
+			}
+		});
+		for (int i = 0; i < byLeft.length; i++)
+			lefts[i] = polygonList.get(byLeft[i]).getBounds().x;
+
 		for (int rowIndex = 0; rowIndex < polygonList.size(); rowIndex++) {
 			JoinedWay potentialOuterPolygon = polygonList.get(rowIndex);
 			BitSet containsColumns = containsMatrix.get(rowIndex);
@@ -1709,10 +1765,24 @@ public class MultiPolygonRelation extends Relation {
 			// so use a lazy creation to improve performance
 			WayAndLazyPolygon lazyPotOuterPolygon = new WayAndLazyPolygon(potentialOuterPolygon);
 
+			// The other polygons are not contained, so they would only be
+			// marked as finished.
+			Rectangle rowBounds = potentialOuterPolygon.getBounds();
+			IntArrayList candidates = new IntArrayList();
+			int start = IntArrays.binarySearch(lefts, rowBounds.x);
+			if (start < 0)
+				start = -start - 1;
+			while (start > 0 && lefts[start - 1] == rowBounds.x)
+				start--;
+			for (int i = start; i < lefts.length && lefts[i] <= rowBounds.x + rowBounds.width; i++)
+				candidates.add(byLeft[i]);
+			int[] columns = candidates.toIntArray();
+			Arrays.sort(columns);
+
 			// get all non calculated columns of the matrix
-			for (int colIndex = finishedCol.nextClearBit(0); colIndex >= 0
-					&& colIndex < polygonList.size(); colIndex = finishedCol
-					.nextClearBit(colIndex + 1)) {
+			for (int colIndex : columns) {
+				if (finishedCol.get(colIndex))
+					continue;
 
 				JoinedWay innerPolygon = polygonList.get(colIndex);
 
@@ -1770,11 +1840,12 @@ public class MultiPolygonRelation extends Relation {
 	
 	/**
 	 * This is a helper class that creates a high precision polygon for a way 
-	 * on request only.
+	 * on request only. The polygon has an index of its edges, so that
+	 * a point can be checked against a ring with very many points quickly.
 	 */
 	private static class WayAndLazyPolygon {
 		private final JoinedWay way;
-		private Polygon polygon;
+		private IndexedPolygon polygon;
 		
 		public WayAndLazyPolygon(JoinedWay way) {
 			this.way = way;
@@ -1784,9 +1855,9 @@ public class MultiPolygonRelation extends Relation {
 			return this.way;
 		}
 
-		public final Polygon getPolygon() {
+		public final IndexedPolygon getPolygon() {
 			if (this.polygon == null) {
-				this.polygon = Java2DConverter.createHighPrecPolygon(this.way.getPoints());
+				this.polygon = new IndexedPolygon(this.way.getPoints());
 			}
 			return this.polygon;
 		}
@@ -1832,14 +1903,14 @@ public class MultiPolygonRelation extends Relation {
 				// there's one point that is in polygon1 and in the bounding
 				// box => polygon1 may contain polygon2
 				onePointContained = true;
-				if (!locatedOnLine(px, polygon1.getWay().getPoints())) {
+				if (!locatedOnLine(px, polygon1)) {
 					allOnLine = false;
 					break;
 				}
 			} else if (bbox.contains(px)) {
 				// we have to check if the point is on one line of the polygon1
 				
-				if (!locatedOnLine(px, polygon1.getWay().getPoints())) {
+				if (!locatedOnLine(px, polygon1)) {
 					// there's one point that is not in polygon1 but inside the
 					// bounding box => polygon1 does not contain polygon2
 					//allOnLine = false;
@@ -1871,7 +1942,7 @@ public class MultiPolygonRelation extends Relation {
 				} else if (bbox.contains(px)) {
 					// we have to check if the point is on one line of the polygon1
 					
-					if (!locatedOnLine(px, polygon1.getWay().getPoints())) {
+					if (!locatedOnLine(px, polygon1)) {
 						// there's one point that is not in polygon1 but inside the
 						// bounding box => polygon1 does not contain polygon2
 						return false;
@@ -1885,12 +1956,22 @@ public class MultiPolygonRelation extends Relation {
 			return false;
 		}
 		
-		Iterator<Coord> it1 = polygon1.getWay().getPoints().iterator();
-		Coord p1_1 = it1.next();
-
-		while (it1.hasNext()) {
-			Coord p1_2 = p1_1;
-			p1_1 = it1.next();
+		// only the segments of polygon1 that reach the latitudes of polygon2
+		// can intersect it
+		List<Coord> points1 = polygon1.getWay().getPoints();
+		Rectangle bounds2 = polygon2.getBounds();
+		IntArrayList segments = new IntArrayList();
+		polygon1.getPolygon().findEdges(toHighPrec(bounds2.y, false),
+				toHighPrec(bounds2.y + bounds2.height, true), segments);
+
+		for (int i = 0; i < segments.size(); i++) {
+			int seg = segments.getInt(i);
+			// edge 0 is the one from the last point to the first one
+			if (seg == 0)
+				continue;
+			Coord p1_2 = points1.get(seg - 1);
+			Coord p1_1 = points1.get(seg);
+			boolean lastSegment = seg == points1.size() - 1;
 
 			if (!polygon2.linePossiblyIntersectsWay(p1_1, p1_2)) {
 				// don't check it - this segment of the outer polygon
@@ -1950,7 +2031,7 @@ public class MultiPolygonRelation extends Relation {
 					&& linesCutEachOther(p1_1, p1_2, p2_1, p2_2);
 				
 				if (intersects) {
-					if ((polygon1.getWay().isClosedArtificially() && !it1.hasNext())
+					if ((polygon1.getWay().isClosedArtificially() && lastSegment)
 							|| (polygon2.isClosedArtificially() && !it2.hasNext())) {
 						// don't care about this intersection
 						// one of the polygons is closed by this mp code and the
@@ -1987,6 +2068,36 @@ public class MultiPolygonRelation extends Relation {
 		return true;
 	}
 
+	/**
+	 * Convert a latitude in map units to high precision, with a margin so
+	 * that the high precision latitudes of all points at this latitude are
+	 * on the given side of it.
+	 */
+	private static int toHighPrec(int lat, boolean upper) {
+		long hp = ((long) lat << Coord.DELTA_SHIFT) + (upper ? 256 : -256);
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, hp));
+	}
+
+	/**
+	 * Checks if the point p is located on one line of the polygon. This is
+	 * the same as {@link #locatedOnLine(Coord, List)} but only looks at the
+	 * lines near the point.
+	 */
+	private boolean locatedOnLine(Coord p, WayAndLazyPolygon polygon) {
+		List<Coord> points = polygon.getWay().getPoints();
+		IntArrayList lines = new IntArrayList();
+		polygon.getPolygon().findEdges(p.getHighPrecLat(), p.getHighPrecLat(), lines);
+		for (int i = 0; i < lines.size(); i++) {
+			int line = lines.getInt(i);
+			// edge 0 closes the polygon, it is not a line of the points
+			if (line == 0)
+				continue;
+			if (locatedOnLine(p, points.subList(line - 1, line + 1)))
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Checks if the point p is located on one line of the given points.
 	 * @param p a point
@@ -2370,6 +2481,21 @@ public class MultiPolygonRelation extends Relation {
 			updateBounds(originalWay.getPoints());
 		}
 
+		/**
+		 * Create a way that has been joined before, used for the cached rings.
+		 */
+		JoinedWay(long id, List<Way> originalWays, List<Coord> points, boolean closedArtificially) {
+			super(id, points);
+			this.originalWays = new ArrayList<Way>(originalWays);
+			this.closedArtificially = closedArtificially;
+
+			Coord c0 = points.get(0);
+			minLat = maxLat = c0.getLatitude();
+			minLon = maxLon = c0.getLongitude();
+
+			updateBounds(points);
+		}
+
 		public void addPoint(int index, Coord point) {
 			getPoints().add(index, point);
 			updateBounds(point);
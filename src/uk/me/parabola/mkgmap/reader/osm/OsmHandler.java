@@ -157,10 +157,19 @@ public class OsmHandler {
 	 * @return The new Way itself.
 	 */
 	protected Way startWay(long id) {
+		resetNodeRefs();
+		return new Way(id);
+	}
+
+	/**
+	 * Reset the node reference state before the points of a way are added.
+	 * Use this instead of {@link #startWay} when the Way object was already
+	 * created, eg. on another thread.
+	 */
+	protected void resetNodeRefs() {
 		firstNodeRef = 0;
 		lastNodeRef = 0;
 		missingNodeRef = false;
-		return new Way(id);
 	}
 
 	/**
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.me.parabola.imgfmt.ExitException;
+import uk.me.parabola.log.Logger;
+
+/**
+ * Maps OSM ids to packed positions (see {@link uk.me.parabola.imgfmt.app.Coord#toPacked()})
+ * without creating objects for each entry.
+ *
+ * Node ids in OSM files are normally sorted, so ids and values are appended
+ * to chunks of primitive arrays and found with a binary search. That needs
+ * 16 bytes per node. Ids that are not in ascending order are kept in an
+ * extra hash map. The chunks can be kept in a memory mapped temporary file
+ * instead of the heap.
+ */
+public class PackedCoordMap {
+	private static final Logger log = Logger.getLogger(PackedCoordMap.class);
+
+	/** Returned by {@link #get(long)} for unknown ids. Not a valid packed position. */
+	public static final long NO_VALUE = Long.MIN_VALUE;
+
+	private static final int CHUNK_SIZE = 1 << 16;
+	// ids and values
+	private static final long CHUNK_BYTES = 2L * CHUNK_SIZE * 8;
+
+	private final List<LongBuffer> chunks = new ArrayList<LongBuffer>();
+	private long[] chunkFirstIds = new long[16];
+	// the number of entries in the last chunk
+	private int lastChunkSize = CHUNK_SIZE;
+	private long lastId;
+	private long size;
+
+	// for ids that are not in ascending order
+	private final Long2LongOpenHashMap unsorted = new Long2LongOpenHashMap();
+
+	private File mapFile;
+	private RandomAccessFile mapRaf;
+	private FileChannel mapChannel;
+
+	/**
+	 * @param mapped true: keep the data in a memory mapped temporary file
+	 */
+	public PackedCoordMap(boolean mapped) {
+		unsorted.defaultReturnValue(NO_VALUE);
+		if (mapped) {
+			try {
+				mapFile = File.createTempFile("mkgmap-coords", ".tmp");
+				mapFile.deleteOnExit();
+				mapRaf = new RandomAccessFile(mapFile, "rw");
+				mapChannel = mapRaf.getChannel();
+			} catch (IOException e) {
+				throw new ExitException("Cannot create temporary file for node positions: " + e.getMessage());
+			}
+		}
+	}
+
+	public void put(long id, long packed) {
+		if (size > 0 && id <= lastId) {
+			int chunk = findChunk(id);
+			int pos = chunk < 0 ? -1 : findInChunk(chunk, id);
+			if (pos >= 0)
+				chunks.get(chunk).put(CHUNK_SIZE + pos, packed);
+			else
+				unsorted.put(id, packed);
+			return;
+		}
+		if (lastChunkSize == CHUNK_SIZE)
+			addChunk(id);
+		LongBuffer buf = chunks.get(chunks.size() - 1);
+		buf.put(lastChunkSize, id);
+		buf.put(CHUNK_SIZE + lastChunkSize, packed);
+		lastChunkSize++;
+		lastId = id;
+		size++;
+	}
+
+	/**
+	 * @param id the OSM id
+	 * @return the packed position or {@link #NO_VALUE}
+	 */
+	public long get(long id) {
+		if (!unsorted.isEmpty()) {
+			long packed = unsorted.get(id);
+			if (packed != NO_VALUE)
+				return packed;
+		}
+		if (size == 0 || id > lastId)
+			return NO_VALUE;
+		int chunk = findChunk(id);
+		if (chunk < 0)
+			return NO_VALUE;
+		int pos = findInChunk(chunk, id);
+		if (pos < 0)
+			return NO_VALUE;
+		return chunks.get(chunk).get(CHUNK_SIZE + pos);
+	}
+
+	public boolean containsKey(long id) {
+		return get(id) != NO_VALUE;
+	}
+
+	public long size() {
+		return size + unsorted.size();
+	}
+
+	/**
+	 * Free the resources, the map must not be used afterwards.
+	 */
+	public void close() {
+		chunks.clear();
+		unsorted.clear();
+		if (mapChannel != null) {
+			try {
+				mapRaf.close();
+			} catch (IOException e) {
+				log.warn("Cannot close temporary file", mapFile);
+			}
+			// the mapped buffers are released by the garbage collector,
+			// on some systems the file can't be deleted before that
+			if (!mapFile.delete())
+				log.debug("temporary file", mapFile, "is deleted on exit");
+			mapChannel = null;
+		}
+	}
+
+	private void addChunk(long firstId) {
+		LongBuffer buf;
+		if (mapChannel != null) {
+			try {
+				buf = mapChannel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * CHUNK_BYTES, CHUNK_BYTES).asLongBuffer();
+			} catch (IOException e) {
+				throw new ExitException("Cannot map temporary file for node positions: " + e.getMessage());
+			}
+		} else
+			buf = LongBuffer.allocate((int) (CHUNK_BYTES / 8));
+		if (chunks.size() == chunkFirstIds.length)
+			chunkFirstIds = Arrays.copyOf(chunkFirstIds, chunkFirstIds.length * 2);
+		chunkFirstIds[chunks.size()] = firstId;
+		chunks.add(buf);
+		lastChunkSize = 0;
+	}
+
+	/**
+	 * @return the index of the chunk that may contain the id or -1
+	 */
+	private int findChunk(long id) {
+		int pos = Arrays.binarySearch(chunkFirstIds, 0, chunks.size(), id);
+		if (pos >= 0)
+			return pos;
+		// the chunk before the insertion point
+		return -pos - 2;
+	}
+
+	/**
+	 * @return the position of the id in the chunk or -1
+	 */
+	private int findInChunk(int chunk, long id) {
+		LongBuffer buf = chunks.get(chunk);
+		int low = 0;
+		int high = (chunk == chunks.size() - 1 ? lastChunkSize : CHUNK_SIZE) - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midId = buf.get(mid);
+			if (midId < id)
+				low = mid + 1;
+			else if (midId > id)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.util.SizeLimitedCache;
+
+/**
+ * A process wide cache of the ways of precompiled sea tiles, shared by all
+ * map jobs. Neighbouring map tiles often need the same precompiled sea
+ * tiles, so this saves reading and decoding them again and again.
+ *
+ * The cached ways are never handed out. Each caller gets a copy with its
+ * own {@link Coord} instances because the ways and points are modified
+ * later on. The least recently used tiles are removed when the estimated
+ * size of the cache exceeds the limit.
+ */
+public class PrecompSeaTileCache {
+	/** The default limit in megabytes */
+	public static final int DEFAULT_MAX_SIZE_MB = 64;
+
+	private static PrecompSeaTileCache instance;
+
+	private final SizeLimitedCache<String, CachedTile> tiles =
+			new SizeLimitedCache<String, CachedTile>("precomp sea tile cache", DEFAULT_MAX_SIZE_MB * 1024L * 1024) {
+				protected long sizeOf(CachedTile tile) {
+					return tile.size;
+				}
+			};
+
+	private PrecompSeaTileCache() {
+	}
+
+	public static synchronized PrecompSeaTileCache getInstance() {
+		if (instance == null)
+			instance = new PrecompSeaTileCache();
+		return instance;
+	}
+
+	/**
+	 * Set the limit for the estimated size of the cached tiles.
+	 * @param mb the limit in megabytes, 0 disables the cache
+	 */
+	public void setMaxSize(int mb) {
+		tiles.setMaxSize(Math.max(0, mb) * 1024L * 1024);
+	}
+
+	/**
+	 * Get the ways of a precompiled sea tile. If the tile is not in the cache
+	 * it is loaded with the given loader. When another job is already loading
+	 * the same tile, this waits for the result instead of loading it again.
+	 *
+	 * @param key a unique key for the tile, eg. the file name
+	 * @param loader loads the ways of the tile
+	 * @return new copies of the ways of the tile
+	 * @throws Exception any exception thrown by the loader
+	 */
+	public Collection<Way> getWays(String key, final Callable<Collection<Way>> loader) throws Exception {
+		CachedTile tile = tiles.get(key, new Callable<CachedTile>() {
+			public CachedTile call() throws Exception {
+				return new CachedTile(loader.call());
+			}
+		});
+		return tile.copyWays();
+	}
+
+	public String getStats() {
+		return tiles.getStats();
+	}
+
+	/**
+	 * The ways of one precompiled sea tile.
+	 */
+	private static class CachedTile {
+		// rough estimates of the memory needed per object
+		private static final int WAY_SIZE = 96;
+		private static final int COORD_SIZE = 48;
+		private static final int POINT_REF_SIZE = 8;
+
+		private final List<Way> ways;
+		private final long size;
+
+		CachedTile(Collection<Way> loaded) {
+			ways = new ArrayList<Way>(loaded);
+			Map<Coord, Coord> distinct = new IdentityHashMap<Coord, Coord>();
+			long points = 0;
+			for (Way w : ways) {
+				for (Coord co : w.getPoints())
+					distinct.put(co, co);
+				points += w.getPoints().size();
+			}
+			size = ways.size() * WAY_SIZE + distinct.size() * COORD_SIZE + points * POINT_REF_SIZE;
+		}
+
+		/**
+		 * Create deep copies of the ways. Points that are shared between
+		 * ways or that close a way are shared in the copies as well.
+		 */
+		Collection<Way> copyWays() {
+			Map<Coord, Coord> copies = new IdentityHashMap<Coord, Coord>();
+			List<Way> result = new ArrayList<Way>(ways.size());
+			for (Way w : ways) {
+				Way dup = new Way(w.getId());
+				for (Coord co : w.getPoints()) {
+					Coord copy = copies.get(co);
+					if (copy == null) {
+						copy = new Coord(co);
+						copies.put(co, copy);
+					}
+					dup.addPoint(copy);
+				}
+				dup.copyTags(w);
+				dup.setClosedInOSM(w.isClosedInOSM());
+				dup.setComplete(w.isComplete());
+				result.add(dup);
+			}
+			return result;
+		}
+	}
+}
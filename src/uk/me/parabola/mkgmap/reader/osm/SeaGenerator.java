@@ -22,6 +22,8 @@ import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
@@ -33,6 +35,7 @@ import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
@@ -94,7 +97,10 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 	private static final byte LAND_TILE = 'l';
 	private static final byte MIXED_TILE = 'm';
 	
-	private static ThreadLocal<PrecompData> precompIndex = new ThreadLocal<PrecompData>();
+	/** The precompiled sea indexes, shared by all jobs. Key is the path of the directory or zip file */
+	private static final Map<String, PrecompData> precompIndexes = new HashMap<String, PrecompData>();
+	private PrecompData precompData;
+	private PrecompSeaTileCache tileCache;
 	
 	// useful constants defining the min/max map units of the precompiled sea tiles
 	private static final int MIN_LAT = Utils.toMapUnit(-90.0);
@@ -140,70 +146,9 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 		if (precompSea != null) {
 			precompSeaDir = new File(precompSea);
 			if (precompSeaDir.exists()){
-				if (precompIndex.get() == null) {
-					PrecompData precompData = null;
-					String internalPath = null;    	
-					InputStream indexStream = null;
-					String indexFileName = "index.txt.gz";
-					ZipFile zipFile = null;
-					try{
-						if (precompSeaDir.isDirectory()){
-							File indexFile = new File(precompSeaDir, indexFileName);
-							if (indexFile.exists() == false) {
-								// check if the unzipped index file exists
-								indexFileName = "index.txt";
-								indexFile = new File(precompSeaDir, indexFileName);
-							}
-							if (indexFile.exists()) {
-								indexStream = new FileInputStream(indexFile);
-							}
-						} else if (precompSea.endsWith(".zip")){
-							zipFile = new ZipFile(precompSeaDir);
-							internalPath = "sea/";
-							ZipEntry entry = zipFile.getEntry(internalPath + indexFileName);
-							if (entry == null){
-								indexFileName = "index.txt";
-								entry = zipFile.getEntry(internalPath + indexFileName);
-							}
-							if (entry == null){
-								internalPath = "";
-								indexFileName = "index.txt.gz";
-								entry = zipFile.getEntry(internalPath + indexFileName);
-							}
-							if (entry != null){
-								indexStream = zipFile.getInputStream(entry);
-							} else 
-								log.error("Don't know how to read " + precompSeaDir);
-						} else {
-							log.error("Don't know how to read " + precompSeaDir);
-						}
-						if (indexStream != null){
-							if (indexFileName.endsWith(".gz")) {
-								indexStream = new GZIPInputStream(indexStream);
-							}
-							try{
-								precompData = loadIndex(indexStream);
-							} catch (IOException exp) {
-								log.error("Cannot read index file " + indexFileName,
-										exp);
-							}
-							
-							if (precompData != null){
-								if (zipFile != null){
-									precompData.precompZipFileInternalPath = internalPath;
-									precompData.zipFile = zipFile;
-								}
-								precompIndex.set(precompData);
-							}
-							indexStream.close();
-						}
-					} catch (IOException exp) {
-						log.error("Cannot read index file " + indexFileName,
-								exp);
-
-					}
-					precompIndex.set(precompData);
-				}
+				precompData = getPrecompData(precompSeaDir);
+				tileCache = PrecompSeaTileCache.getInstance();
+				tileCache.setMaxSize(props.getProperty("precomp-sea-cache-size", PrecompSeaTileCache.DEFAULT_MAX_SIZE_MB));
 			} else {
 				log.error("Directory or zip file with precompiled sea does not exist: "
 						+ precompSea);
@@ -292,11 +237,99 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 		return generateSea;
 	}
 	
+	/**
+	 * Get the index of the precompiled sea data. The index is loaded only
+	 * once and is shared by all map jobs.
+	 * @param precompSeaDir the directory or zip file with the precompiled sea data
+	 * @return the index or null if it could not be read
+	 */
+	private static PrecompData getPrecompData(File precompSeaDir) {
+		String key = precompSeaDir.getAbsolutePath();
+		synchronized (precompIndexes) {
+			PrecompData precompData = precompIndexes.get(key);
+			if (precompData == null) {
+				precompData = loadPrecompData(precompSeaDir);
+				if (precompData != null)
+					precompIndexes.put(key, precompData);
+			}
+			return precompData;
+		}
+	}
+
+	/**
+	 * Read the index of the precompiled sea data.
+	 * @param precompSeaDir the directory or zip file with the precompiled sea data
+	 * @return the index or null if it could not be read
+	 */
+	private static PrecompData loadPrecompData(File precompSeaDir) {
+		PrecompData precompData = null;
+		String internalPath = null;    	
+		InputStream indexStream = null;
+		String indexFileName = "index.txt.gz";
+		ZipFile zipFile = null;
+		try{
+			if (precompSeaDir.isDirectory()){
+				File indexFile = new File(precompSeaDir, indexFileName);
+				if (indexFile.exists() == false) {
+					// check if the unzipped index file exists
+					indexFileName = "index.txt";
+					indexFile = new File(precompSeaDir, indexFileName);
+				}
+				if (indexFile.exists()) {
+					indexStream = new FileInputStream(indexFile);
+				}
+			} else if (precompSeaDir.getName().endsWith(".zip")){
+				zipFile = new ZipFile(precompSeaDir);
+				internalPath = "sea/";
+				ZipEntry entry = zipFile.getEntry(internalPath + indexFileName);
+				if (entry == null){
+					indexFileName = "index.txt";
+					entry = zipFile.getEntry(internalPath + indexFileName);
+				}
+				if (entry == null){
+					internalPath = "";
+					indexFileName = "index.txt.gz";
+					entry = zipFile.getEntry(internalPath + indexFileName);
+				}
+				if (entry != null){
+					indexStream = zipFile.getInputStream(entry);
+				} else 
+					log.error("Don't know how to read " + precompSeaDir);
+			} else {
+				log.error("Don't know how to read " + precompSeaDir);
+			}
+			if (indexStream != null){
+				if (indexFileName.endsWith(".gz")) {
+					indexStream = new GZIPInputStream(indexStream);
+				}
+				try{
+					precompData = loadIndex(indexStream);
+				} catch (IOException exp) {
+					log.error("Cannot read index file " + indexFileName,
+							exp);
+				}
+				
+				if (precompData != null){
+					if (zipFile != null){
+						precompData.precompZipFileInternalPath = internalPath;
+						precompData.zipFile = zipFile;
+					}
+				}
+				indexStream.close();
+			}
+		} catch (IOException exp) {
+			log.error("Cannot read index file " + indexFileName,
+					exp);
+
+		}
+		return precompData;
+	}
+
     /**
      * Read the index from stream and populate the index grid. 
      * @param fileStream already opened stream
      */
-    private PrecompData loadIndex(InputStream fileStream) throws IOException{
+    private static PrecompData loadIndex(InputStream fileStream) throws IOException{
 		int indexWidth = (SeaGenerator.getPrecompTileStart(MAX_LON) - SeaGenerator.getPrecompTileStart(MIN_LON)) / SeaGenerator.PRECOMP_RASTER;
 		int indexHeight = (SeaGenerator.getPrecompTileStart(MAX_LAT) - SeaGenerator.getPrecompTileStart(MIN_LAT)) / SeaGenerator.PRECOMP_RASTER;
 		PrecompData pi = null;
@@ -550,7 +583,7 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 	 * @return either "land" or "sea" or a file name or null
 	 */
 	private String getTileName(String precompKey){
-		PrecompData pi = precompIndex.get();
+		PrecompData pi = precompData;
 		String[] tileCoords = keySplitter.split(precompKey);
 		int lat = Integer.valueOf(tileCoords[0]); 
 		int lon = Integer.valueOf(tileCoords[1]); 
@@ -573,7 +606,7 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 	 * @param indexGrid the previously allocated index grid  
 	 * @return the byte that was saved in the index grid 
 	 */
-	private byte updatePrecompSeaTileIndex (String precompKey, String fileName, byte[][] indexGrid){
+	private static byte updatePrecompSeaTileIndex (String precompKey, String fileName, byte[][] indexGrid){
 		String[] tileCoords = keySplitter.split(precompKey);
 		byte type = '?';
 		if (tileCoords.length == 2){
@@ -612,12 +645,6 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 		
 		// get the index with assignment key => sea/land/tilename
 		
-		ZipFile zipFile = null;
-		PrecompData pd = precompIndex.get();
-		if (precompSeaDir.getName().endsWith(".zip")){
-			zipFile = pd.zipFile;
-		}
-
 		for (String precompKey : getPrecompKeyNames()) {
 			String tileName = getTileName(precompKey);
 
@@ -642,34 +669,27 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 			} else {
 				distinctTilesOnly = false;
 				try {
-					InputStream is = null;
-					if (zipFile != null){
-						ZipEntry entry = zipFile.getEntry(pd.precompZipFileInternalPath + tileName);
-						if (entry != null){
-							is = zipFile.getInputStream(entry);
+					final String name = tileName;
+					Collection<Way> seaPrecompWays = tileCache.getWays(
+							precompSeaDir.getAbsolutePath() + File.separator + tileName,
+							new Callable<Collection<Way>>() {
+								public Collection<Way> call() throws IOException {
+									return readPrecompTile(name);
+								}
+							});
+					if (log.isDebugEnabled())
+						log.debug(seaPrecompWays.size(), "precomp sea ways from",
+								tileName, "loaded.");
+
+					for (Way w : seaPrecompWays) {
+						// set a new id to be sure that the precompiled ids do not
+						// interfere with the ids of this run
+						w.setId(FakeIdGenerator.makeFakeId());
+
+						if ("land".equals(w.getTag("natural"))) {
+							landWays.add(w);
 						} else {
-							log.error("Preompiled sea tile " + tileName + " not found."); 								
-						}
-					} else {
-						File precompTile = new File(precompSeaDir,tileName);
-						is = new FileInputStream(precompTile);
-					}
-					if (is != null){
-						Collection<Way> seaPrecompWays = loadPrecompTile(is, tileName);
-						if (log.isDebugEnabled())
-							log.debug(seaPrecompWays.size(), "precomp sea ways from",
-									tileName, "loaded.");
-
-						for (Way w : seaPrecompWays) {
-							// set a new id to be sure that the precompiled ids do not
-							// interfere with the ids of this run
-							w.setId(FakeIdGenerator.makeFakeId());
-
-							if ("land".equals(w.getTag("natural"))) {
-								landWays.add(w);
-							} else {
-								seaWays.add(w);
-							}
+							seaWays.add(w);
 						}
 					}
 				} catch (FileNotFoundException exp) {
@@ -680,6 +700,7 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 				}
 			}
 		}
+		log.info(tileCache.getStats());
  		landWays.addAll(areaToWays(landOnlyAreas,"land"));
  		seaWays.addAll(areaToWays(seaOnlyAreas,"sea"));
  		landOnlyAreas = null;
@@ -716,6 +737,30 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 		}
 	}
 
+
+	/**
+	 * Read the ways of a precompiled sea tile from the directory or zip file.
+	 * @param tileName the file name of the tile
+	 * @return the ways of the tile, empty if the tile is missing in the zip file
+	 * @throws FileNotFoundException if the tile file doesn't exist
+	 */
+	private Collection<Way> readPrecompTile(String tileName) throws IOException {
+		InputStream is = null;
+		if (precompData.zipFile != null){
+			ZipEntry entry = precompData.zipFile.getEntry(precompData.precompZipFileInternalPath + tileName);
+			if (entry != null){
+				is = precompData.zipFile.getInputStream(entry);
+			} else {
+				log.error("Preompiled sea tile " + tileName + " not found."); 								
+			}
+		} else {
+			File precompTile = new File(precompSeaDir,tileName);
+			is = new FileInputStream(precompTile);
+		}
+		if (is == null)
+			return Collections.emptyList();
+		return loadPrecompTile(is, tileName);
+	}
 	 
 	/**
 	 * Try to merge an area with one or more other areas without creating holes.
@@ -1487,7 +1532,7 @@ public class SeaGenerator extends OsmReadingHooksAdaptor {
 	 * 
 	 *
 	 */
-	class PrecompData {
+	static class PrecompData {
 		/**
 		 * The index is a grid [lon][lat]. Each element defines the content of one precompiled 
 		 * sea tile which are {@link #SEA_TYPE}, {@link #LAND_TYPE}, or {@link #MIXED_TYPE}, or 0 for unknown
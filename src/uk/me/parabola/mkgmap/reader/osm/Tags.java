@@ -288,6 +288,25 @@ public class Tags implements Iterable<String> {
 		};
 	}
 
+	/**
+	 * Copy the keys and values of the tags into the given arrays, without
+	 * creating any objects.
+	 * @param keyArray Receives the keys, must have room for {@link #size()} entries.
+	 * @param valArray Receives the values, must have room for {@link #size()} entries.
+	 * @return The number of tags that were copied.
+	 */
+	public int copyTo(short[] keyArray, String[] valArray) {
+		int n = 0;
+		for (int i = 0; i < capacity; i++) {
+			if (values[i] != null) {
+				keyArray[n] = keys[i];
+				valArray[n] = values[i];
+				n++;
+			}
+		}
+		return n;
+	}
+
 	public Map<String, String> getTagsWithPrefix(String prefix, boolean removePrefix) {
 		Map<String, String> map = new HashMap<>();
 
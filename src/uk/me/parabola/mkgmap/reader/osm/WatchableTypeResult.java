@@ -25,12 +25,20 @@ public class WatchableTypeResult implements TypeResult {
 	private boolean continued;
 	private int count;
 
-	private final TypeResult result;
+	private TypeResult result;
 
 	public WatchableTypeResult(TypeResult result) {
 		this.result = result;
 	}
 
+	/**
+	 * Pass the results to a different receiver, so that the watcher
+	 * can be used again for another element.
+	 */
+	public void setResult(TypeResult result) {
+		this.result = result;
+	}
+
 	public void add(Element el, GType type) {
 		if (type == null) {
 			actionsOnly = true;
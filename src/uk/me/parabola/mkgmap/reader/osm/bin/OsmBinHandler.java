@@ -12,7 +12,23 @@
  */
 package uk.me.parabola.mkgmap.reader.osm.bin;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import uk.me.parabola.imgfmt.MapFailedException;
 import uk.me.parabola.imgfmt.app.Coord;
@@ -24,20 +40,40 @@ import uk.me.parabola.mkgmap.reader.osm.Way;
 import uk.me.parabola.util.EnhancedProperties;
 
 import crosby.binary.BinaryParser;
+import crosby.binary.Fileformat;
 import crosby.binary.Osmformat;
 
 /**
  * Handler for Scott Crosby's binary format, based on the Google
  * protobuf format.
  *
+ * The decoding of a block into nodes, ways and relations is separated
+ * from saving them, so that the decoding can be done on other threads
+ * by the {@link PipelinedParser}.
+ *
  * @author Steve Ratcliffe
  */
 public class OsmBinHandler extends OsmHandler {
+	// Limits used by the osmpbf library, a larger value means a broken file.
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+	private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+	// The decoder threads are shared by all the maps that are made at the same time.
+	private static ThreadPoolExecutor decoderPool;
 
 	public OsmBinHandler(EnhancedProperties props) {
 	}
 
-	public class BinParser extends BinaryParser {
+	/**
+	 * Decodes the primitive groups of a block. What is done with the
+	 * decoded groups is left to the sub classes.
+	 */
+	private abstract class DecodingParser extends BinaryParser {
+
+		/**
+		 * Called for each decoded group in the order of the file.
+		 */
+		protected abstract void decoded(DecodedGroup group);
 
 		protected void parse(Osmformat.HeaderBlock header) {
 			double multiplier = .000000001;
@@ -52,7 +88,7 @@ public class OsmBinHandler extends OsmHandler {
 
 				if (s.equals("DenseNodes"))
 					continue; // We can parse this.
-				
+
 				throw new MapFailedException("File requires unknown feature: " + s);
 			}
 
@@ -60,10 +96,13 @@ public class OsmBinHandler extends OsmHandler {
 		}
 
 		protected void parseNodes(List<Osmformat.Node> nodes) {
+			DecodedNodes decoded = new DecodedNodes(nodes.size());
+			int i = 0;
 			for (Osmformat.Node binNode : nodes) {
 				Coord co = new Coord(parseLat(binNode.getLat()), parseLon(binNode.getLon()));
 				long id = binNode.getId();
-				saver.addPoint(id, co);
+				decoded.ids[i] = id;
+				decoded.coords[i] = co;
 
 				int tagCount = binNode.getKeysCount();
 				if (tagCount > 0) {
@@ -75,11 +114,11 @@ public class OsmBinHandler extends OsmHandler {
 						if (key != null)
 							node.addTag(key, val.intern());
 					}
-
-					saver.addNode(node);
-					hooks.onAddNode(node);
+					decoded.nodes[i] = node;
 				}
+				i++;
 			}
+			decoded(decoded);
 		}
 
 		protected final void parseDense(Osmformat.DenseNodes nodes) {
@@ -87,6 +126,7 @@ public class OsmBinHandler extends OsmHandler {
 
 			int kvid = 0; // Index into the key val array.
 
+			DecodedNodes decoded = new DecodedNodes(nodes.getIdCount());
 			for (int nid = 0; nid < nodes.getIdCount(); nid++) {
 				long lat = nodes.getLat(nid) + lastLat;
 				long lon = nodes.getLon(nid) + lastLon;
@@ -96,7 +136,8 @@ public class OsmBinHandler extends OsmHandler {
 				lastId = id;
 
 				Coord co = new Coord(parseLat(lat), parseLon(lon));
-				saver.addPoint(id, co);
+				decoded.ids[nid] = id;
+				decoded.coords[nid] = co;
 
 				if (nodes.getKeysValsCount() > 0) {
 					int ntags = 0;
@@ -118,16 +159,18 @@ public class OsmBinHandler extends OsmHandler {
 
 					if (ntags > 0) {
 						// If there are tags, then we save a proper node for it.
-						saver.addNode(node);
-						hooks.onAddNode(node);
+						decoded.nodes[nid] = node;
 					}
 				}
 			}
+			decoded(decoded);
 		}
 
 		protected void parseWays(List<Osmformat.Way> ways) {
+			DecodedWays decoded = new DecodedWays(ways.size());
+			int i = 0;
 			for (Osmformat.Way binWay : ways) {
-				Way way = startWay(binWay.getId());
+				Way way = new Way(binWay.getId());
 
 				for (int j = 0; j < binWay.getKeysCount(); j++) {
 
@@ -138,18 +181,23 @@ public class OsmBinHandler extends OsmHandler {
 						way.addTag(key, val.intern());
 				}
 
+				long[] refs = new long[binWay.getRefsCount()];
 				long nid = 0;
-				for (long idDelta : binWay.getRefsList()) {
-					nid += idDelta;
-					addCoordToWay(way, nid);
+				for (int j = 0; j < refs.length; j++) {
+					nid += binWay.getRefs(j);
+					refs[j] = nid;
 				}
 
-				endWay(way);
+				decoded.ways[i] = way;
+				decoded.refs[i] = refs;
+				i++;
 			}
+			decoded(decoded);
 		}
 
 		protected void parseRelations(List<Osmformat.Relation> rels) {
-
+			DecodedRelations decoded = new DecodedRelations(rels.size());
+			int i = 0;
 			for (Osmformat.Relation binRel : rels) {
 				long id = binRel.getId();
 				GeneralRelation rel = new GeneralRelation(id);
@@ -177,16 +225,124 @@ public class OsmBinHandler extends OsmHandler {
 						rel.addTag(TAGS_INCOMPLETE_TAG, "true");
 					}
 				}
-				
-				long lastMid = 0;
 
-				for (int j = 0; j < binRel.getMemidsCount(); j++) {
+				int nmembers = binRel.getMemidsCount();
+				long[] mids = new long[nmembers];
+				String[] roles = new String[nmembers];
+				Osmformat.Relation.MemberType[] types = new Osmformat.Relation.MemberType[nmembers];
+				long lastMid = 0;
+				for (int j = 0; j < nmembers; j++) {
 					long mid = lastMid + binRel.getMemids(j);
 					lastMid = mid;
-					String role = getStringById(binRel.getRolesSid(j));
+					mids[j] = mid;
+					roles[j] = getStringById(binRel.getRolesSid(j));
+					types[j] = binRel.getTypes(j);
+				}
+
+				decoded.rels[i] = rel;
+				decoded.memberIds[i] = mids;
+				decoded.roles[i] = roles;
+				decoded.types[i] = types;
+				i++;
+			}
+			decoded(decoded);
+		}
+
+		/**
+		 * Called when the file is fully read.
+		 */
+		public void complete() {
+		}
+	}
+
+	/**
+	 * The parser that is used with the BlockInputStream from the osmpbf
+	 * library. Everything is done on the calling thread.
+	 */
+	public class BinParser extends DecodingParser {
+		protected void decoded(DecodedGroup group) {
+			group.store();
+		}
+	}
+
+	/**
+	 * A group of decoded elements that is ready to be saved.
+	 */
+	private abstract class DecodedGroup {
+		/**
+		 * Pass the elements to the saver and the hooks. Must be called on
+		 * the thread that reads the file and in file order.
+		 */
+		protected abstract void store();
+	}
+
+	private class DecodedNodes extends DecodedGroup {
+		private final long[] ids;
+		private final Coord[] coords;
+		// only set for nodes with tags
+		private final Node[] nodes;
+
+		DecodedNodes(int size) {
+			ids = new long[size];
+			coords = new Coord[size];
+			nodes = new Node[size];
+		}
+
+		protected void store() {
+			for (int i = 0; i < ids.length; i++) {
+				saver.addPoint(ids[i], coords[i]);
+				Node node = nodes[i];
+				if (node != null) {
+					saver.addNode(node);
+					hooks.onAddNode(node);
+				}
+			}
+		}
+	}
+
+	private class DecodedWays extends DecodedGroup {
+		private final Way[] ways;
+		private final long[][] refs;
+
+		DecodedWays(int size) {
+			ways = new Way[size];
+			refs = new long[size][];
+		}
+
+		protected void store() {
+			for (int i = 0; i < ways.length; i++) {
+				Way way = ways[i];
+				resetNodeRefs();
+				for (long nid : refs[i])
+					addCoordToWay(way, nid);
+				endWay(way);
+			}
+		}
+	}
+
+	private class DecodedRelations extends DecodedGroup {
+		private final GeneralRelation[] rels;
+		private final long[][] memberIds;
+		private final String[][] roles;
+		private final Osmformat.Relation.MemberType[][] types;
+
+		DecodedRelations(int size) {
+			rels = new GeneralRelation[size];
+			memberIds = new long[size][];
+			roles = new String[size][];
+			types = new Osmformat.Relation.MemberType[size][];
+		}
+
+		protected void store() {
+			for (int i = 0; i < rels.length; i++) {
+				GeneralRelation rel = rels[i];
+				long[] mids = memberIds[i];
+				for (int j = 0; j < mids.length; j++) {
+					long mid = mids[j];
+					String role = roles[i][j];
 					Element el = null;
 
-					if (binRel.getTypes(j) == Osmformat.Relation.MemberType.NODE) {
+					if (types[i][j] == Osmformat.Relation.MemberType.NODE) {
 						el = saver.getNode(mid);
 						if(el == null) {
 							// we didn't make a node for this point earlier,
@@ -197,9 +353,9 @@ public class OsmBinHandler extends OsmHandler {
 								saver.addNode((Node)el);
 							}
 						}
-					} else if (binRel.getTypes(j) == Osmformat.Relation.MemberType.WAY) {
+					} else if (types[i][j] == Osmformat.Relation.MemberType.WAY) {
 						el = saver.getWay(mid);
-					} else if (binRel.getTypes(j) == Osmformat.Relation.MemberType.RELATION) {
+					} else if (types[i][j] == Osmformat.Relation.MemberType.RELATION) {
 						el = saver.getRelation(mid);
 						if (el == null) {
 							saver.deferRelation(mid, rel, role);
@@ -214,11 +370,153 @@ public class OsmBinHandler extends OsmHandler {
 				saver.addRelation(rel);
 			}
 		}
+	}
 
-		/**
-		 * Called when the file is fully read.
-		 */
-		public void complete() {
+	/**
+	 * Reads the file on the calling thread, but inflates and decodes the
+	 * data blocks on a pool of worker threads. The decoded blocks are
+	 * stored on the calling thread in the order of the file, so the
+	 * result is exactly the same as with the {@link BinParser}.
+	 */
+	public class PipelinedParser {
+		private final int numThreads;
+
+		public PipelinedParser(int numThreads) {
+			this.numThreads = numThreads;
+		}
+
+		public void process(InputStream is) throws IOException {
+			// Limit the number of blocks in flight, so that a slow consumer
+			// doesn't cause the whole file to be held in memory.
+			int maxPending = numThreads * 2;
+			ArrayDeque<Future<List<DecodedGroup>>> pending = new ArrayDeque<>();
+
+			ExecutorService pool = getPool(numThreads);
+			try {
+				DataInputStream in = new DataInputStream(is);
+				while (true) {
+					int headerSize;
+					try {
+						headerSize = in.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+						throw new IOException("Invalid blob header size " + headerSize);
+					byte[] buf = new byte[headerSize];
+					in.readFully(buf);
+					Fileformat.BlobHeader header = Fileformat.BlobHeader.parseFrom(buf);
+
+					int dataSize = header.getDatasize();
+					if (dataSize < 0 || dataSize > MAX_BLOB_SIZE)
+						throw new IOException("Invalid blob size " + dataSize);
+					final byte[] data = new byte[dataSize];
+					in.readFully(data);
+
+					if ("OSMHeader".equals(header.getType())) {
+						while (!pending.isEmpty())
+							storeBlock(pending.poll());
+						new BinParser().parse(Osmformat.HeaderBlock.parseFrom(inflate(data)));
+					} else if ("OSMData".equals(header.getType())) {
+						if (pending.size() >= maxPending)
+							storeBlock(pending.poll());
+						pending.add(pool.submit(new Callable<List<DecodedGroup>>() {
+							public List<DecodedGroup> call() throws IOException {
+								return decodeBlock(data);
+							}
+						}));
+					}
+					// other block types are ignored, just as BinaryParser does
+				}
+				while (!pending.isEmpty())
+					storeBlock(pending.poll());
+			} finally {
+				// the pool is shared, so only the blocks of this file are cancelled
+				for (Future<List<DecodedGroup>> future : pending)
+					future.cancel(true);
+			}
+		}
+
+		private List<DecodedGroup> decodeBlock(byte[] data) throws IOException {
+			final List<DecodedGroup> groups = new ArrayList<>();
+			DecodingParser parser = new DecodingParser() {
+				protected void decoded(DecodedGroup group) {
+					groups.add(group);
+				}
+			};
+			parser.parse(Osmformat.PrimitiveBlock.parseFrom(inflate(data)));
+			return groups;
+		}
+
+		private void storeBlock(Future<List<DecodedGroup>> future) throws IOException {
+			List<DecodedGroup> groups;
+			try {
+				groups = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while decoding block", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new IOException(cause);
+			}
+			for (DecodedGroup group : groups)
+				group.store();
+		}
+	}
+
+	/**
+	 * Get the pool that is shared by all the maps. It is made larger if
+	 * more threads are wanted than before.
+	 */
+	private static synchronized ExecutorService getPool(int threads) {
+		if (decoderPool == null) {
+			decoderPool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "pbf-decoder");
+					// the pool is never shut down
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		} else if (threads > decoderPool.getMaximumPoolSize()) {
+			decoderPool.setMaximumPoolSize(threads);
+			decoderPool.setCorePoolSize(threads);
+		}
+		return decoderPool;
+	}
+
+	/**
+	 * Get the uncompressed content of a blob.
+	 * @param data The raw bytes of the blob as read from the file.
+	 * @return The uncompressed block data.
+	 */
+	private static byte[] inflate(byte[] data) throws IOException {
+		Fileformat.Blob blob = Fileformat.Blob.parseFrom(data);
+		if (blob.hasRaw())
+			return blob.getRaw().toByteArray();
+
+		if (!blob.hasZlibData())
+			throw new IOException("Unsupported blob compression");
+
+		byte[] out = new byte[blob.getRawSize()];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(blob.getZlibData().toByteArray());
+			int len = inflater.inflate(out);
+			if (len != out.length || !inflater.finished())
+				throw new IOException("Blob has wrong uncompressed size");
+		} catch (DataFormatException e) {
+			throw new IOException("Failed to inflate blob", e);
+		} finally {
+			inflater.end();
 		}
+		return out;
 	}
 }
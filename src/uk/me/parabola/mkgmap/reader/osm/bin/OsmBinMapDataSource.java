@@ -19,6 +19,7 @@ import java.io.InputStream;
 import uk.me.parabola.imgfmt.FormatException;
 import uk.me.parabola.mkgmap.reader.osm.OsmMapDataSource;
 import uk.me.parabola.mkgmap.reader.osm.bin.OsmBinHandler.BinParser;
+import uk.me.parabola.mkgmap.reader.osm.bin.OsmBinHandler.PipelinedParser;
 
 import crosby.binary.file.BlockInputStream;
 
@@ -48,11 +49,18 @@ public class OsmBinMapDataSource extends OsmMapDataSource {
 
 		setupHandler(handler);
 
+		int decoderThreads = getDecoderThreads();
 		try {
-			BinParser reader = handler.new BinParser();
-			handler = null;
-			BlockInputStream stream = new BlockInputStream(is, reader);
-			stream.process();
+			if (decoderThreads > 0) {
+				PipelinedParser reader = handler.new PipelinedParser(decoderThreads);
+				handler = null;
+				reader.process(is);
+			} else {
+				BinParser reader = handler.new BinParser();
+				handler = null;
+				BlockInputStream stream = new BlockInputStream(is, reader);
+				stream.process();
+			}
 		} catch (NoClassDefFoundError e) {
 			throw new FormatException("Failed to read binary file, probably missing protobuf.jar");
 		} catch (IOException e) {
@@ -68,4 +76,13 @@ public class OsmBinMapDataSource extends OsmMapDataSource {
 
 		addBackground();
 	}
+
+	/**
+	 * The number of threads used to decode the blocks of the file. Zero
+	 * means that everything is done on the calling thread.
+	 * If the option is given without a value, the number of CPU cores is used.
+	 */
+	private int getDecoderThreads() {
+		return getConfig().getThreadsProperty("pbf-decoder-threads");
+	}
 }
@@ -24,6 +24,8 @@ import uk.me.parabola.util.EnhancedProperties;
 /**
  * A simple grid that stores the BoundaryQuadTrees that intersect with the grid.
  * Each element of the grid is related to one *.bnd file.
+ * The grid is not modified by searches, so it can be searched by
+ * several threads.
  * 
  * @author GerdP
  * 
@@ -78,11 +80,14 @@ public class BoundaryGrid {
 		int gridLat = (co.getLatitude() - minLat) / BoundaryUtil.RASTER;
 		int gridLon = (co.getLongitude() - minLon) / BoundaryUtil.RASTER;
 		if (grid[gridLat][gridLon] == null){
-			if (emptyMessagePrinted[gridLat][gridLon] == false){
-				emptyMessagePrinted[gridLat][gridLon] = true;
-				int keyLat = BoundaryUtil.getSplitBegin(co.getLatitude());
-				int keyLon = BoundaryUtil.getSplitBegin(co.getLongitude());
-				log.warn("no precompiled boundary information available for raster tile", BoundaryUtil.getKey(keyLat,keyLon));
+			// the grid may be searched by several threads
+			synchronized (emptyMessagePrinted) {
+				if (emptyMessagePrinted[gridLat][gridLon] == false){
+					emptyMessagePrinted[gridLat][gridLon] = true;
+					int keyLat = BoundaryUtil.getSplitBegin(co.getLatitude());
+					int keyLon = BoundaryUtil.getSplitBegin(co.getLongitude());
+					log.warn("no precompiled boundary information available for raster tile", BoundaryUtil.getKey(keyLat,keyLon));
+				}
 			}
 			return null;
 		}
@@ -92,15 +97,16 @@ public class BoundaryGrid {
 
 	/**
 	 * Fill the grid. Calculate the names of the *.bnd files that 
-	 * may be needed. For each file, try to create a BoundaryQuadTree.
-	 * Save each tree to its place in the grid. 
+	 * may be needed. For each file, get the BoundaryQuadTree from the
+	 * cache or create it, the trees of indexed files only contain the
+	 * areas in the bounding box. Save each tree to its place in the grid. 
 	 * 
 	 * @param boundaryDir
 	 *            Directory or a *.zip file with bnd files
 	 */
 	private void init(String boundaryDirName){
 		List<String> requiredFileNames = BoundaryUtil.getRequiredBoundaryFileNames(searchBbox);
-		Map<String,BoundaryQuadTree> trees = BoundaryUtil.loadQuadTrees(boundaryDirName, requiredFileNames, searchBbox, props);
+		Map<String,BoundaryQuadTree> trees = BoundaryQuadTreeCache.getQuadTrees(boundaryDirName, requiredFileNames, searchBbox, props);
 		for (Entry<String,BoundaryQuadTree> entry: trees.entrySet()) {
 			uk.me.parabola.imgfmt.app.Area fileBbox = BoundaryUtil.getBbox(entry.getKey());
 			int gridLat = (fileBbox.getMinLat() - minLat) / BoundaryUtil.RASTER;
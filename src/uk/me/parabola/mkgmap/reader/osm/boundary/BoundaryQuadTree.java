@@ -88,7 +88,7 @@ public class BoundaryQuadTree {
 	
 	/**
 	 * Create a quadtree with the data in an open stream. 
-	 * @param inpStream  the open stream with QUADTREE_DATA_FORMAT 
+	 * @param inpStream  the open stream with QUADTREE_DATA_FORMAT record version 1
 	 * @param fileBbox	The bounding box for the quadTree 
 	 * @param searchBbox	The bounding box for the quadTree, only data within this box is used 
 	 * @param props if not null, use it to set location names
@@ -110,6 +110,25 @@ public class BoundaryQuadTree {
 	}
 	
 	
+	/**
+	 * Create a quadtree without areas, they are added with {@link #readArea(DataInputStream)}.
+	 * @param fileBbox	The bounding box for the quadTree 
+	 * @param tags the tags of all boundaries of the bounds file
+	 * @param props if not null, use it to set location names
+	 */
+	BoundaryQuadTree(uk.me.parabola.imgfmt.app.Area fileBbox,
+			Map<String, Tags> tags, EnhancedProperties props) {
+		preparedLocationInfo = new LinkedHashMap<String, BoundaryLocationInfo> ();
+		preparer = new BoundaryLocationPreparer(props);
+		this.bbox = new Rectangle(fileBbox.getMinLong(), fileBbox.getMinLat(),
+				fileBbox.getMaxLong() - fileBbox.getMinLong(), fileBbox.getMaxLat()
+				- fileBbox.getMinLat());
+		this.bbox_key = BoundaryUtil.getKey(this.bbox.y, this.bbox.x);
+		root = new Node(this.bbox);
+		boundaryTags.putAll(tags);
+		prepareLocationInfo();
+	}
+	
 	/**
 	 * Create a quadtree for a given bounding box and a list of boundaries.
 	 * Involves costly calculations to split the areas.
@@ -242,7 +261,10 @@ public class BoundaryQuadTree {
 
 
 	/**
-	 * Save the BoundaryQuadTree to an open stream. The format is QUADTREE_DATA_FORMAT.
+	 * Save the BoundaryQuadTree to an open stream. The format is QUADTREE_DATA_FORMAT
+	 * with record version {@link BoundarySaver#QUADTREE_RECORD_ID}: the TAGS sections,
+	 * the INDEX section with the bounding box, offset and size of each area
+	 * and then the areas.
 	 * @param stream
 	 * @throws IOException
 	 */
@@ -251,8 +273,23 @@ public class BoundaryQuadTree {
 		for (Entry<String,Tags> entry : boundaryTags.entrySet()){
 			writeBoundaryTags(stream, entry.getValue(), entry.getKey());
 		}
-		// now write the area info for those boundaries that have positions in the quadtree
-		root.save(stream, "_");
+		// now collect the area info for those boundaries that have positions in the quadtree
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream areaBytes = new ByteArrayOutputStream();
+		DataOutputStream index = new DataOutputStream(indexBytes);
+		DataOutputStream areas = new DataOutputStream(areaBytes);
+		int numAreas = root.save(index, areas, "_");
+		index.close();
+		areas.close();
+
+		// the index comes first, so that a reader can find the areas in a
+		// bounding box without reading the others
+		DataOutputStream dOutStream = new DataOutputStream(stream);
+		dOutStream.writeUTF("INDEX");
+		dOutStream.writeInt(numAreas);
+		indexBytes.writeTo(dOutStream);
+		areaBytes.writeTo(dOutStream);
+		dOutStream.flush();
 	}
 
 	/**
@@ -346,18 +383,7 @@ public class BoundaryQuadTree {
 
 					if ( bbox == null || bbox.intersects(rBbox)) {
 						log.debug("Bbox intersects. Load the boundary");
-						String treePath = inpStream.readUTF();
-						String id = inpStream.readUTF();
-						String refs = inpStream.readUTF();
-						if (refs.isEmpty()) 
-							refs = null;
-						Area area = BoundaryUtil.readAreaAsPath(inpStream);
-						
-						if (area != null && area.isEmpty() == false)
-							root.add(area, refs, id, treePath);
-						else {
-							log.warn(refs,id,treePath,"invalid or empty or too small area");
-						}
+						readArea(inpStream);
 					} else {
 						log.debug("Bbox does not intersect. Skip",bSize);
 						inpStream.skipBytes(bSize);
@@ -373,6 +399,26 @@ public class BoundaryQuadTree {
 		}
 	}
 
+	/**
+	 * Read one area of the QUADTREE_DATA_FORMAT and add it to the tree.
+	 * @param inpStream the stream positioned at the tree path of the area
+	 * @throws IOException
+	 */
+	void readArea(DataInputStream inpStream) throws IOException{
+		String treePath = inpStream.readUTF();
+		String id = inpStream.readUTF();
+		String refs = inpStream.readUTF();
+		if (refs.isEmpty()) 
+			refs = null;
+		Area area = BoundaryUtil.readAreaAsPath(inpStream);
+		
+		if (area != null && area.isEmpty() == false)
+			root.add(area, refs, id, treePath);
+		else {
+			log.warn(refs,id,treePath,"invalid or empty or too small area");
+		}
+	}
+
 	/**
 	 * Fill the map preparedLocationInfo with data from the boundary tags.
 	 */
@@ -428,24 +474,30 @@ public class BoundaryQuadTree {
 
 		/**
 		 * Travel through the tree, save all usable areas of all leaves 
-		 * @param stream the open OutputStream
+		 * @param index the stream for the index entries
+		 * @param areas the stream for the areas
 		 * @param treePath the path to this tree node
+		 * @return the number of saved areas
 		 * @throws IOException 
 		 */
-		private void save(OutputStream stream, String treePath )throws IOException{
+		private int save(DataOutputStream index, DataOutputStream areas, String treePath )throws IOException{
+			int numAreas = 0;
 			if (isLeaf){
 				if (nodes != null){
 					for (NodeElem nodeElem :nodes){
-						if (nodeElem.isValid())
-							nodeElem.save(stream, treePath);
+						if (nodeElem.isValid()){
+							nodeElem.save(index, areas, treePath);
+							numAreas++;
+						}
 					}
 				}
 			}
 			else {
 				for (int i = 0; i < 4; i++){
-					childs[i].save(stream, treePath + i);
+					numAreas += childs[i].save(index, areas, treePath + i);
 				}
 			}
+			return numAreas;
 		}
 
 		/**
@@ -1152,45 +1204,35 @@ public class BoundaryQuadTree {
 			}
 		}
 		/**
-		 * Write a nodeElem an AREA segment of the QUADTREE_DATA_FORMAT. 
-		 * @param stream the already opened OutputStream
+		 * Write a nodeElem as an area of the QUADTREE_DATA_FORMAT and its entry
+		 * of the INDEX section. 
+		 * @param index the stream for the index entry
+		 * @param areas the stream for the area
 		 * @param treePath identifies the position within the tree
 		 * @throws IOException
 		 */
-		private void save(OutputStream stream, String treePath) throws IOException{
-			ByteArrayOutputStream oneItemStream = new ByteArrayOutputStream();
-			DataOutputStream dos = new DataOutputStream(oneItemStream);
+		private void save(DataOutputStream index, DataOutputStream areas, String treePath) throws IOException{
+			int offset = areas.size();
 			String id = this.boundaryId;
-			dos.writeUTF(treePath.substring(1));
-			dos.writeUTF(id);
+			areas.writeUTF(treePath.substring(1));
+			areas.writeUTF(id);
 			if (this.locationDataSrc == null)
-				dos.writeUTF("");
+				areas.writeUTF("");
 			else 
-				dos.writeUTF(this.locationDataSrc);
-			BoundarySaver.writeArea(dos, this.area);
-			dos.close();
+				areas.writeUTF(this.locationDataSrc);
+			BoundarySaver.writeArea(areas, this.area);
 
-			// now start to write into the real stream
-
-			// first write the bounding box so that is possible to skip the
-			// complete entry
+			// the bounding box, so that it is possible to skip the area,
+			// and where to find it
 			uk.me.parabola.imgfmt.app.Area bbox = Java2DConverter.createBbox(this.area);
-			DataOutputStream dOutStream = new DataOutputStream(stream);
-			dOutStream.writeUTF("AREA");
-			dOutStream.writeInt(bbox.getMinLat());
-			dOutStream.writeInt(bbox.getMinLong());
-			dOutStream.writeInt(bbox.getMaxLat());
-			dOutStream.writeInt(bbox.getMaxLong());
-
-			// write the size of the boundary block so that it is possible to
-			// skip it
-			byte[] data = oneItemStream.toByteArray();
-			assert data.length > 0 : "bSize is not > 0 : " + data.length;
-			dOutStream.writeInt(data.length);
-
-			// write the boundary block
-			dOutStream.write(data);
-			dOutStream.flush();
+			index.writeInt(bbox.getMinLat());
+			index.writeInt(bbox.getMinLong());
+			index.writeInt(bbox.getMaxLat());
+			index.writeInt(bbox.getMaxLong());
+			index.writeInt(offset);
+			int size = areas.size() - offset;
+			assert size > 0 : "bSize is not > 0 : " + size;
+			index.writeInt(size);
 		}
 		
 		/**
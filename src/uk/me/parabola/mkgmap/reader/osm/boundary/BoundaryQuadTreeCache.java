@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.boundary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import uk.me.parabola.log.Logger;
+import uk.me.parabola.util.EnhancedProperties;
+import uk.me.parabola.util.SizeLimitedCache;
+
+/**
+ * A process wide cache of the BoundaryQuadTrees loaded from preprocessed
+ * bounds files. Neighbouring tiles need the same bounds files, so this
+ * saves reading and parsing them for each tile.
+ *
+ * The trees are loaded without a search bounding box so that they can
+ * be used for all tiles. They are not modified after loading, so they
+ * can be shared by concurrent map jobs.
+ *
+ * Files with the INDEX section are not loaded into a tree. Only their tags
+ * and index are kept, the file itself is memory mapped, and each tile gets
+ * a tree with the areas that intersect its bounding box.
+ */
+public class BoundaryQuadTreeCache {
+	private static final Logger log = Logger.getLogger(BoundaryQuadTreeCache.class);
+
+	/** The default limit in megabytes */
+	public static final int DEFAULT_MAX_SIZE_MB = 128;
+
+	// a rough factor for the memory that is needed for each byte of a bounds file
+	private static final int MEMORY_PER_FILE_BYTE = 4;
+
+	private static final SizeLimitedCache<String, LoadedTree> trees =
+			new SizeLimitedCache<String, LoadedTree>("bounds cache", DEFAULT_MAX_SIZE_MB * 1024L * 1024) {
+				protected long sizeOf(LoadedTree loaded) {
+					return loaded.size;
+				}
+			};
+
+	private BoundaryQuadTreeCache() {
+	}
+
+	/**
+	 * Set the limit for the estimated size of the cached trees.
+	 * @param mb the limit in megabytes, 0 disables the cache
+	 */
+	public static void setMaxSize(int mb) {
+		trees.setMaxSize(Math.max(0, mb) * 1024L * 1024);
+	}
+
+	/**
+	 * Get the trees for the given bounds files. Files that are not in the
+	 * cache are loaded. Missing or unreadable files are remembered as well,
+	 * they are not in the returned map.
+	 *
+	 * @param boundaryDirName a directory name or zip file containing the *.bnd files
+	 * @param boundaryFileNames the list of *.bnd file names
+	 * @param searchBbox the bounding box of the tile, the trees that are made
+	 * from indexed files only contain the areas that intersect it
+	 * @param props the properties used for the locator
+	 * @return a map with quadtrees which can be empty
+	 */
+	public static Map<String, BoundaryQuadTree> getQuadTrees(final String boundaryDirName,
+			List<String> boundaryFileNames, uk.me.parabola.imgfmt.app.Area searchBbox,
+			final EnhancedProperties props) {
+		// the location info stored in the trees depends on these options
+		String optionsKey = props.getProperty("name-tag-list", "name") + "|"
+				+ props.getProperty("location-autofill", "");
+		String dirKey = new File(boundaryDirName).getAbsolutePath();
+
+		Map<String, BoundaryQuadTree> result = new HashMap<String, BoundaryQuadTree>();
+		for (final String boundaryFileName : boundaryFileNames) {
+			String key = dirKey + File.separator + boundaryFileName + "|" + optionsKey;
+			BoundaryQuadTree tree;
+			try {
+				LoadedTree loaded = trees.get(key, new Callable<LoadedTree>() {
+					public LoadedTree call() throws IOException {
+						return load(boundaryDirName, boundaryFileName, props);
+					}
+				});
+				if (loaded.indexedFile != null)
+					tree = loaded.indexedFile.createTree(searchBbox, props);
+				else
+					tree = loaded.tree;
+			} catch (Exception e) {
+				log.error("Cannot load boundary file " + boundaryFileName + "." + e);
+				continue;
+			}
+			if (tree != null)
+				result.put(boundaryFileName, tree);
+		}
+		return result;
+	}
+
+	private static LoadedTree load(String boundaryDirName, String boundaryFileName, EnhancedProperties props)
+			throws IOException {
+		IndexedBoundaryFile indexedFile = BoundaryUtil.openIndexedFile(boundaryDirName, boundaryFileName);
+		if (indexedFile != null)
+			return new LoadedTree(indexedFile, indexedFile.getSize());
+
+		Map<String, BoundaryQuadTree> loaded = BoundaryUtil.loadQuadTrees(boundaryDirName,
+				Collections.singletonList(boundaryFileName), null, props);
+		BoundaryQuadTree tree = loaded.get(boundaryFileName);
+		long size = 0;
+		if (tree != null)
+			size = getFileSize(boundaryDirName, boundaryFileName) * MEMORY_PER_FILE_BYTE;
+		return new LoadedTree(tree, size);
+	}
+
+	private static long getFileSize(String boundaryDirName, String boundaryFileName) {
+		File boundaryDir = new File(boundaryDirName);
+		if (boundaryDir.isDirectory())
+			return new File(boundaryDir, boundaryFileName).length();
+		try {
+			ZipFile zipFile = new ZipFile(boundaryDir);
+			try {
+				ZipEntry entry = zipFile.getEntry(boundaryFileName);
+				return entry == null ? 0 : Math.max(0, entry.getSize());
+			} finally {
+				zipFile.close();
+			}
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	public static long getHits() {
+		return trees.getHits();
+	}
+
+	public static long getMisses() {
+		return trees.getMisses();
+	}
+
+	public static String getStats() {
+		return trees.getStats();
+	}
+
+	/**
+	 * The tree or the indexed file of one bounds file, both are null if the
+	 * file doesn't exist or is unusable.
+	 */
+	private static class LoadedTree {
+		private final BoundaryQuadTree tree;
+		private final IndexedBoundaryFile indexedFile;
+		private final long size;
+
+		LoadedTree(BoundaryQuadTree tree, long size) {
+			this.tree = tree;
+			this.indexedFile = null;
+			this.size = size;
+		}
+
+		LoadedTree(IndexedBoundaryFile indexedFile, long size) {
+			this.tree = null;
+			this.indexedFile = indexedFile;
+			this.size = size;
+		}
+	}
+}
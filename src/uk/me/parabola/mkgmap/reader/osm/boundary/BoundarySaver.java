@@ -46,6 +46,8 @@ public class BoundarySaver {
 	public static final String RAW_DATA_FORMAT = "RAW";
 	public static final String QUADTREE_DATA_FORMAT = "QUADTREE";
 	public static final int CURRENT_RECORD_ID = 1;
+	/** The QUADTREE_DATA_FORMAT with the INDEX section */
+	public static final int QUADTREE_RECORD_ID = 2;
 	
 	public static final double RESET_DELTA = Double.POSITIVE_INFINITY; 
 
@@ -341,7 +343,7 @@ public class BoundarySaver {
 		ByteArrayOutputStream headerStream = new ByteArrayOutputStream();
 		DataOutputStream headerDataStream = new DataOutputStream(headerStream);
 		headerDataStream.writeUTF(dataFormat);
-		headerDataStream.writeInt(CURRENT_RECORD_ID);
+		headerDataStream.writeInt(dataFormat == QUADTREE_DATA_FORMAT ? QUADTREE_RECORD_ID : CURRENT_RECORD_ID);
 		headerDataStream.writeUTF(Version.VERSION);
 		headerDataStream.close();
 		
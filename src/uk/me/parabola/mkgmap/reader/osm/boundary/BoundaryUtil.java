@@ -17,12 +17,16 @@ import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -37,7 +41,9 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import uk.me.parabola.imgfmt.FormatException;
+import uk.me.parabola.imgfmt.Utils;
 import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.io.ByteBufferInputStream;
 import uk.me.parabola.log.Logger;
 import uk.me.parabola.mkgmap.reader.osm.Tags;
 import uk.me.parabola.mkgmap.reader.osm.Way;
@@ -51,6 +57,7 @@ public class BoundaryUtil {
 	private static final int UNKNOWN_DATA_FORMAT = 0;
 	private static final int RAW_DATA_FORMAT_V1 = 2;
 	private static final int QUADTREE_DATA_FORMAT_V1 = 3;
+	private static final int QUADTREE_DATA_FORMAT_V2 = 4;
 	public static final double MIN_DIMENSION = 0.0000001;
 	/**
 	 * Calculate the polygons that describe the area.
@@ -456,46 +463,16 @@ public class BoundaryUtil {
 					new BufferedInputStream(stream, 1024 * 1024));
 
 			try {
-				// 1st read the mkgmap release the boundary file is created by
-				String mkgmapRel = "?";
-				String firstId = inpStream.readUTF();
-				if ("BND".equals(firstId) == false){
-					throw new FormatException("Unsupported boundary data type "+firstId);
-				}
-
-				int format = UNKNOWN_DATA_FORMAT;
-				long createTime = inpStream.readLong();
-				int headerLength = inpStream.readInt();
-				byte[] header = new byte[headerLength];
-				int bytesRead = 0;
-				while (bytesRead < headerLength) {
-					int nBytes = inpStream.read(header, bytesRead, headerLength-bytesRead);
-					if (nBytes<0) {
-						throw new IOException("Cannot read header with size "+headerLength);
-					} else {
-						bytesRead += nBytes;
-					}
-				}
-					
-				ByteArrayInputStream rawHeaderStream = new ByteArrayInputStream(header);
-				DataInputStream headerStream =new DataInputStream(rawHeaderStream);
-				String dataFormat = (rawHeaderStream.available() > 0 ? headerStream.readUTF() : "RAW");
-				int recordVersion = (rawHeaderStream.available() > 0 ? headerStream.readInt() : RAW_DATA_FORMAT_V1);
-				mkgmapRel = (rawHeaderStream.available() > 0 ? headerStream.readUTF() : "unknown");
-				
-				if ("RAW".equals(dataFormat) && recordVersion == 1)
-					format = RAW_DATA_FORMAT_V1;
-				else if ("QUADTREE".equals(dataFormat) && recordVersion == 1)
-					format = QUADTREE_DATA_FORMAT_V1;
-
-				if (log.isDebugEnabled()) {
-					log.debug("File created by mkgmap release",mkgmapRel,"at",new Date(createTime));
-				}
+				int format = readHeader(inpStream);
 				
 				switch (format) {
 				case QUADTREE_DATA_FORMAT_V1:
 					bqt = new BoundaryQuadTree(inpStream, qtBbox, searchBbox, props);
 					break;
+				case QUADTREE_DATA_FORMAT_V2:
+					ByteBuffer buffer = ByteBuffer.wrap(readRemaining(inpStream));
+					bqt = new IndexedBoundaryFile(buffer, qtBbox).createTree(searchBbox, props);
+					break;
 				case RAW_DATA_FORMAT_V1:
 					List<Boundary> boundaryList = readStreamRawFormat(inpStream, fname,searchBbox);
 					if (boundaryList == null || boundaryList.isEmpty())
@@ -521,6 +498,111 @@ public class BoundaryUtil {
 		return bqt;
 	}
 	
+	/**
+	 * Read the header of a bounds file.
+	 * @param inpStream the stream positioned at the start of the file
+	 * @return the data format, UNKNOWN_DATA_FORMAT if it is not supported
+	 * @throws IOException
+	 */
+	private static int readHeader(DataInputStream inpStream) throws IOException {
+		// 1st read the mkgmap release the boundary file is created by
+		String mkgmapRel = "?";
+		String firstId = inpStream.readUTF();
+		if ("BND".equals(firstId) == false){
+			throw new FormatException("Unsupported boundary data type "+firstId);
+		}
+
+		int format = UNKNOWN_DATA_FORMAT;
+		long createTime = inpStream.readLong();
+		int headerLength = inpStream.readInt();
+		byte[] header = new byte[headerLength];
+		int bytesRead = 0;
+		while (bytesRead < headerLength) {
+			int nBytes = inpStream.read(header, bytesRead, headerLength-bytesRead);
+			if (nBytes<0) {
+				throw new IOException("Cannot read header with size "+headerLength);
+			} else {
+				bytesRead += nBytes;
+			}
+		}
+			
+		ByteArrayInputStream rawHeaderStream = new ByteArrayInputStream(header);
+		DataInputStream headerStream =new DataInputStream(rawHeaderStream);
+		String dataFormat = (rawHeaderStream.available() > 0 ? headerStream.readUTF() : "RAW");
+		int recordVersion = (rawHeaderStream.available() > 0 ? headerStream.readInt() : RAW_DATA_FORMAT_V1);
+		mkgmapRel = (rawHeaderStream.available() > 0 ? headerStream.readUTF() : "unknown");
+		
+		if ("RAW".equals(dataFormat) && recordVersion == 1)
+			format = RAW_DATA_FORMAT_V1;
+		else if ("QUADTREE".equals(dataFormat) && recordVersion == 1)
+			format = QUADTREE_DATA_FORMAT_V1;
+		else if ("QUADTREE".equals(dataFormat) && recordVersion == BoundarySaver.QUADTREE_RECORD_ID)
+			format = QUADTREE_DATA_FORMAT_V2;
+
+		if (log.isDebugEnabled()) {
+			log.debug("File created by mkgmap release",mkgmapRel,"at",new Date(createTime));
+		}
+		return format;
+	}
+
+	private static byte[] readRemaining(InputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[64 * 1024];
+		int n;
+		while ((n = stream.read(buf)) >= 0)
+			bytes.write(buf, 0, n);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Open a bounds file that has the INDEX section, so that trees with the
+	 * areas in a bounding box can be created from it. A file in a directory
+	 * is memory mapped, one in a zip file is read into memory.
+	 * @param boundaryDirName a directory name or zip file containing the *.bnd file
+	 * @param boundaryFileName the *.bnd file name
+	 * @return the opened file, null if the file doesn't exist or has another format
+	 * @throws IOException
+	 */
+	static IndexedBoundaryFile openIndexedFile(String boundaryDirName, String boundaryFileName) throws IOException {
+		uk.me.parabola.imgfmt.app.Area fileBbox = getBbox(boundaryFileName);
+		File boundaryDir = new File(boundaryDirName);
+		try {
+			if (boundaryDir.isDirectory()) {
+				File boundaryFile = new File(boundaryDir, boundaryFileName);
+				if (boundaryFile.exists() == false)
+					return null;
+				ByteBuffer buffer;
+				RandomAccessFile raf = new RandomAccessFile(boundaryFile, "r");
+				try {
+					// the mapping stays valid after the file is closed
+					buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				} finally {
+					Utils.closeFile(raf);
+				}
+				if (readHeader(new DataInputStream(new ByteBufferInputStream(buffer))) != QUADTREE_DATA_FORMAT_V2)
+					return null;
+				return new IndexedBoundaryFile(buffer, fileBbox);
+			} else if (boundaryDirName.endsWith(".zip")) {
+				ZipFile zipFile = new ZipFile(boundaryDir);
+				try {
+					ZipEntry entry = zipFile.getEntry(boundaryFileName);
+					if (entry == null)
+						return null;
+					DataInputStream inpStream = new DataInputStream(
+							new BufferedInputStream(zipFile.getInputStream(entry)));
+					if (readHeader(inpStream) != QUADTREE_DATA_FORMAT_V2)
+						return null;
+					return new IndexedBoundaryFile(ByteBuffer.wrap(readRemaining(inpStream)), fileBbox);
+				} finally {
+					zipFile.close();
+				}
+			}
+		} catch (FormatException exp) {
+			// the file is loaded the normal way, which reports the error
+		}
+		return null;
+	}
+
 	/**
 	 * Merges boundaries with the same postal code.
 	 * @param boundaries a list of boundaries
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.boundary;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.me.parabola.imgfmt.FormatException;
+import uk.me.parabola.io.ByteBufferInputStream;
+import uk.me.parabola.mkgmap.reader.osm.Tags;
+import uk.me.parabola.util.EnhancedProperties;
+
+/**
+ * A bounds file in the QUADTREE_DATA_FORMAT with the INDEX section. The
+ * tags and the index are read when the file is opened, an area is only
+ * read when a tree for a bounding box that intersects it is created.
+ *
+ * The buffer is usually a memory mapped file, so the areas that are not
+ * needed are not even read from the disk. It is not changed after the
+ * file is opened, so trees can be created by several threads.
+ */
+class IndexedBoundaryFile {
+	private final uk.me.parabola.imgfmt.app.Area fileBbox;
+	private final ByteBuffer buffer;
+	private final Map<String, Tags> boundaryTags = new LinkedHashMap<String, Tags>();
+
+	// minLat, minLong, maxLat, maxLong, offset and size of each area
+	private final int[] index;
+	// the position of the first area in the buffer
+	private final int areaStart;
+
+	/**
+	 * Read the TAGS and the INDEX sections.
+	 * @param buffer the file, positioned after the header
+	 * @param fileBbox the bounding box of the bounds file
+	 * @throws IOException
+	 */
+	IndexedBoundaryFile(ByteBuffer buffer, uk.me.parabola.imgfmt.app.Area fileBbox) throws IOException {
+		this.fileBbox = fileBbox;
+		this.buffer = buffer;
+		ByteBuffer buf = buffer.duplicate();
+		DataInputStream inpStream = new DataInputStream(new ByteBufferInputStream(buf));
+		while (true) {
+			String type = inpStream.readUTF();
+			if (type.equals("INDEX"))
+				break;
+			if (type.equals("TAGS") == false)
+				throw new FormatException("unknown type field " + type);
+			String id = inpStream.readUTF();
+			Tags tags = new Tags();
+			int noOfTags = inpStream.readInt();
+			for (int i = 0; i < noOfTags; i++) {
+				String name = inpStream.readUTF();
+				String value = inpStream.readUTF();
+				tags.put(name, value.intern());
+			}
+			boundaryTags.put(id, tags);
+		}
+		int numAreas = inpStream.readInt();
+		index = new int[numAreas * 6];
+		for (int i = 0; i < index.length; i++)
+			index[i] = inpStream.readInt();
+		areaStart = buf.position();
+	}
+
+	/**
+	 * Create a tree with the areas that intersect the bounding box.
+	 * @param searchBbox the bounding box, null for all areas
+	 * @param props if not null, use it to set location names
+	 * @return the new tree
+	 * @throws IOException
+	 */
+	BoundaryQuadTree createTree(uk.me.parabola.imgfmt.app.Area searchBbox, EnhancedProperties props) throws IOException {
+		BoundaryQuadTree bqt = new BoundaryQuadTree(fileBbox, boundaryTags, props);
+		ByteBuffer buf = buffer.duplicate();
+		for (int i = 0; i < index.length; i += 6) {
+			if (searchBbox != null && (index[i] > searchBbox.getMaxLat() || index[i + 1] > searchBbox.getMaxLong()
+					|| index[i + 2] < searchBbox.getMinLat() || index[i + 3] < searchBbox.getMinLong()))
+				continue;
+			int pos = areaStart + index[i + 4];
+			buf.limit(pos + index[i + 5]);
+			buf.position(pos);
+			bqt.readArea(new DataInputStream(new ByteBufferInputStream(buf)));
+		}
+		return bqt;
+	}
+
+	/**
+	 * @return a rough estimate of the heap memory that is used
+	 */
+	long getSize() {
+		long size = 4L * areaStart + 4L * index.length;
+		if (buffer.isDirect() == false)
+			size += buffer.capacity();
+		return size;
+	}
+}
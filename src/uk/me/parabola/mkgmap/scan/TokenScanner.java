@@ -391,6 +391,14 @@ public class TokenScanner {
 		return linenumber;
 	}
 
+	/**
+	 * @return The line number of the next token, this is one more than
+	 * {@link #getLinenumber} when the next token starts a new line.
+	 */
+	public int getNextLinenumber() {
+		return bol ? linenumber + 1 : linenumber;
+	}
+
 	public String getFileName() {
 		return fileName;
 	}
@@ -100,4 +100,19 @@ public class EnhancedProperties extends Properties {
 			return def;
 		}
 	}
+
+	/**
+	 * Get the number of threads of an option like --xxx-threads[=number].
+	 * @param key The property name.
+	 * @return 0 if the property does not exist, the number of CPU cores if
+	 * it has no value, else the value, at least 0.
+	 */
+	public int getThreadsProperty(String key) {
+		String s = getProperty(key);
+		if (s == null)
+			return 0;
+		if (s.isEmpty())
+			return Runtime.getRuntime().availableProcessors();
+		return Math.max(0, getProperty(key, 0));
+	}
 }
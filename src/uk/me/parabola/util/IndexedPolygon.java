@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import uk.me.parabola.imgfmt.app.Coord;
+
+/**
+ * A polygon in high precision coordinates with an index of its edges, so
+ * that tests for a point only look at the edges near it.
+ *
+ * The edges are put into horizontal bands. Edge number i goes from point
+ * i-1 to point i, and edge 0 from the last point to the first one.
+ *
+ * {@link #contains(int, int)} gives exactly the same result as
+ * {@link java.awt.Polygon#contains(double, double)} for the same points.
+ */
+public class IndexedPolygon {
+	// An edge that crosses many bands is stored in each of them, this limits
+	// the total number of entries to this many per edge.
+	private static final int MAX_ENTRIES_PER_EDGE = 8;
+
+	private final int npoints;
+	private final int[] xs;
+	private final int[] ys;
+
+	private int minX = Integer.MAX_VALUE;
+	private int minY = Integer.MAX_VALUE;
+	private int maxX = Integer.MIN_VALUE;
+	private int maxY = Integer.MIN_VALUE;
+
+	private final int numBands;
+	private final int bandHeight;
+	// the edges of band b are in bandEdges[bandStart[b]] to bandEdges[bandStart[b+1]-1]
+	private final int[] bandStart;
+	private final int[] bandEdges;
+
+	public IndexedPolygon(List<Coord> points) {
+		npoints = points.size();
+		xs = new int[npoints];
+		ys = new int[npoints];
+		for (int i = 0; i < npoints; i++) {
+			Coord co = points.get(i);
+			xs[i] = co.getHighPrecLon();
+			ys[i] = co.getHighPrecLat();
+			minX = Math.min(minX, xs[i]);
+			maxX = Math.max(maxX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+
+		if (npoints == 0) {
+			numBands = 0;
+			bandHeight = 1;
+			bandStart = new int[1];
+			bandEdges = new int[0];
+			return;
+		}
+
+		long height = (long) maxY - minY + 1;
+		int bands = (int) Math.min(height, npoints / 4 + 1);
+		long total;
+		while (true) {
+			total = countEntries(bandHeight(height, bands));
+			if (bands == 1 || total <= (long) MAX_ENTRIES_PER_EDGE * npoints)
+				break;
+			bands = (bands + 1) / 2;
+		}
+		numBands = bands;
+		bandHeight = bandHeight(height, bands);
+
+		bandStart = new int[numBands + 1];
+		for (int e = 0; e < npoints; e++) {
+			for (int b = band(edgeMinY(e)), last = band(edgeMaxY(e)); b <= last; b++)
+				bandStart[b + 1]++;
+		}
+		for (int b = 0; b < numBands; b++)
+			bandStart[b + 1] += bandStart[b];
+
+		bandEdges = new int[(int) total];
+		int[] next = Arrays.copyOf(bandStart, numBands);
+		for (int e = 0; e < npoints; e++) {
+			for (int b = band(edgeMinY(e)), last = band(edgeMaxY(e)); b <= last; b++)
+				bandEdges[next[b]++] = e;
+		}
+	}
+
+	private static int bandHeight(long height, int bands) {
+		return (int) ((height + bands - 1) / bands);
+	}
+
+	private long countEntries(int height) {
+		long total = 0;
+		for (int e = 0; e < npoints; e++)
+			total += (edgeMaxY(e) - minY) / height - (edgeMinY(e) - minY) / height + 1;
+		return total;
+	}
+
+	private int band(int y) {
+		return (int) (((long) y - minY) / bandHeight);
+	}
+
+	private int prev(int e) {
+		return e == 0 ? npoints - 1 : e - 1;
+	}
+
+	private int edgeMinY(int e) {
+		return Math.min(ys[e], ys[prev(e)]);
+	}
+
+	private int edgeMaxY(int e) {
+		return Math.max(ys[e], ys[prev(e)]);
+	}
+
+	/**
+	 * Find the edges that may have a point with a y value in the given range.
+	 *
+	 * @param result The edge numbers are added to this, in ascending order
+	 * and without duplicates. There may be some that are not in the range.
+	 */
+	public void findEdges(int y1, int y2, IntArrayList result) {
+		if (y2 < minY || y1 > maxY)
+			return;
+		int first = band(Math.max(y1, minY));
+		int last = band(Math.min(y2, maxY));
+		if (first == last) {
+			// already in order
+			result.addElements(result.size(), bandEdges, bandStart[first], bandStart[first + 1] - bandStart[first]);
+			return;
+		}
+
+		int[] edges = Arrays.copyOfRange(bandEdges, bandStart[first], bandStart[last + 1]);
+		Arrays.sort(edges);
+		for (int i = 0; i < edges.length; i++) {
+			if (i == 0 || edges[i] != edges[i - 1])
+				result.add(edges[i]);
+		}
+	}
+
+	/**
+	 * Check if the point is inside the polygon. The rules for points on the
+	 * edges are the same as for {@link java.awt.Polygon}, this is the same
+	 * calculation but only for the edges in the band of the point.
+	 */
+	public boolean contains(int x, int y) {
+		if (npoints <= 2 || x < minX || y < minY || x >= maxX || y >= maxY)
+			return false;
+
+		int hits = 0;
+		int b = band(y);
+		for (int i = bandStart[b], end = bandStart[b + 1]; i < end; i++) {
+			int e = bandEdges[i];
+			int curx = xs[e];
+			int cury = ys[e];
+			int lastx = xs[prev(e)];
+			int lasty = ys[prev(e)];
+			if (cury == lasty)
+				continue;
+
+			int leftx;
+			if (curx < lastx) {
+				if (x >= lastx)
+					continue;
+				leftx = curx;
+			} else {
+				if (x >= curx)
+					continue;
+				leftx = lastx;
+			}
+
+			double test1, test2;
+			if (cury < lasty) {
+				if (y < cury || y >= lasty)
+					continue;
+				if (x < leftx) {
+					hits++;
+					continue;
+				}
+				test1 = (double) x - curx;
+				test2 = (double) y - cury;
+			} else {
+				if (y < lasty || y >= cury)
+					continue;
+				if (x < leftx) {
+					hits++;
+					continue;
+				}
+				test1 = (double) x - lastx;
+				test2 = (double) y - lasty;
+			}
+
+			if (test1 < (test2 / (lasty - cury) * (lastx - curx)))
+				hits++;
+		}
+		return (hits & 1) != 0;
+	}
+}
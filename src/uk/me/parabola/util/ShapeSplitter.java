@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.awt.geom.Rectangle2D;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+
+/**
+ * Split and clip polygons along horizontal and vertical lines. This works
+ * with the high precision coordinates of the points, so it is a lot quicker
+ * than doing the same with {@link java.awt.geom.Area}, and the points of
+ * the polygon that are kept are the original ones.
+ *
+ * The parts of the outline on each side of the line are joined along the
+ * line: the places where the outline crosses the line are sorted, and the
+ * first and second, third and fourth and so on are the ends of the pieces of
+ * the line that are inside the polygon. A point that is exactly on the line
+ * is taken to be on one side of it, which is the same as moving the line by
+ * a tiny distance, so crossings at the same place are sorted by the slope of
+ * their edges.
+ *
+ * This only works for simple polygons. A polygon that crosses or touches
+ * itself is cut with {@link java.awt.geom.Area} as before, which splits it
+ * into its loops.
+ */
+public class ShapeSplitter {
+	private ShapeSplitter() {
+	}
+
+	/**
+	 * Split a polygon into the parts on each side of a line. The points on
+	 * the line are on the more side.
+	 *
+	 * @param points The closed polygon.
+	 * @param dividingLine The high precision latitude or longitude of the line.
+	 * @param isLongitude True if the line has a constant longitude.
+	 * @param lessList The closed polygons with the smaller values are added
+	 * to this, may be null if they are not needed.
+	 * @param moreList The closed polygons with the greater values are added
+	 * to this, may be null if they are not needed.
+	 */
+	public static void splitShape(List<Coord> points, int dividingLine, boolean isLongitude,
+			List<List<Coord>> lessList, List<List<Coord>> moreList) {
+		if (isSimple(points)) {
+			split(points, dividingLine, isLongitude, false, lessList, moreList);
+			return;
+		}
+		java.awt.geom.Area area = Java2DConverter.createArea(points);
+		Rectangle2D bounds = area.getBounds2D();
+		double pos = (double) dividingLine / (1 << Coord.DELTA_SHIFT);
+		if (lessList != null) {
+			if (isLongitude)
+				addIntersection(area, new Rectangle2D.Double(bounds.getMinX(), bounds.getMinY(), pos - bounds.getMinX(), bounds.getHeight()), lessList);
+			else
+				addIntersection(area, new Rectangle2D.Double(bounds.getMinX(), bounds.getMinY(), bounds.getWidth(), pos - bounds.getMinY()), lessList);
+		}
+		if (moreList != null) {
+			if (isLongitude)
+				addIntersection(area, new Rectangle2D.Double(pos, bounds.getMinY(), bounds.getMaxX() - pos, bounds.getHeight()), moreList);
+			else
+				addIntersection(area, new Rectangle2D.Double(bounds.getMinX(), pos, bounds.getWidth(), bounds.getMaxY() - pos), moreList);
+		}
+	}
+
+	private static void addIntersection(java.awt.geom.Area area, Rectangle2D rect, List<List<Coord>> result) {
+		if (rect.isEmpty())
+			return;
+		java.awt.geom.Area clipped = new java.awt.geom.Area(rect);
+		clipped.intersect(area);
+		result.addAll(Java2DConverter.areaToShapes(clipped));
+	}
+
+	/**
+	 * Clip a polygon to a bounding box, the points on the border of the box
+	 * are inside.
+	 *
+	 * @return The closed polygons, one for each part of the polygon that is
+	 * in the box. Empty if nothing of it is inside.
+	 */
+	public static List<List<Coord>> clipToBounds(List<Coord> points, Area bbox) {
+		if (!isSimple(points)) {
+			java.awt.geom.Area area = Java2DConverter.createArea(points);
+			area.intersect(Java2DConverter.createBoundsArea(bbox));
+			return Java2DConverter.areaToShapes(area);
+		}
+		List<List<Coord>> shapes = new ArrayList<>(1);
+		shapes.add(points);
+		shapes = clip(shapes, bbox.getMinLong() << Coord.DELTA_SHIFT, true, false);
+		shapes = clip(shapes, bbox.getMaxLong() << Coord.DELTA_SHIFT, true, true);
+		shapes = clip(shapes, bbox.getMinLat() << Coord.DELTA_SHIFT, false, false);
+		shapes = clip(shapes, bbox.getMaxLat() << Coord.DELTA_SHIFT, false, true);
+		return shapes;
+	}
+
+	private static List<List<Coord>> clip(List<List<Coord>> shapes, int line, boolean isLongitude, boolean keepLess) {
+		List<List<Coord>> result = new ArrayList<>(shapes.size());
+		for (List<Coord> shape : shapes) {
+			if (keepLess)
+				split(shape, line, isLongitude, true, result, null);
+			else
+				split(shape, line, isLongitude, false, null, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Split a polygon along a line.
+	 *
+	 * @param onLineIsLess True if the points on the line are on the less side.
+	 */
+	private static void split(List<Coord> points, int line, boolean isLongitude, boolean onLineIsLess,
+			List<List<Coord>> lessList, List<List<Coord>> moreList) {
+		List<Coord> ring = toRing(points);
+		int n = ring.size();
+		if (n < 3)
+			return;
+
+		boolean[] more = new boolean[n];
+		int numMore = 0;
+		boolean onLine = false;
+		for (int i = 0; i < n; i++) {
+			int v = across(ring.get(i), isLongitude);
+			more[i] = onLineIsLess ? v > line : v >= line;
+			if (more[i])
+				numMore++;
+			if (v == line)
+				onLine = true;
+		}
+		if (numMore == 0 || numMore == n) {
+			// nothing to split
+			List<List<Coord>> list = numMore == 0 ? lessList : moreList;
+			if (list != null)
+				list.add(new ArrayList<>(points));
+			return;
+		}
+
+		// The runs of points on the same side, starting with the first point
+		// after a crossing. Crossing k is after the last point of run k.
+		int start = 0;
+		while (more[start] == more[(start + n - 1) % n])
+			start++;
+		int[] runStart = new int[n + 1];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			int idx = (start + i) % n;
+			if (i == 0 || more[idx] != more[(idx + n - 1) % n])
+				runStart[m++] = i;
+		}
+		runStart[m] = n;
+
+		final Crossing[] crossings = new Crossing[m];
+		for (int k = 0; k < m; k++) {
+			Coord a = ring.get((start + runStart[k + 1] - 1) % n);
+			Coord b = ring.get((start + runStart[k + 1]) % n);
+			crossings[k] = new Crossing(a, b, line, isLongitude);
+		}
+
+		final int sign = onLineIsLess ? 1 : -1;
+		int[] sorted = new int[m];
+		for (int k = 0; k < m; k++)
+			sorted[k] = k;
+		IntArrays.quickSort(sorted, new AbstractIntComparator() {
+			public int compare(int k1, int k2) {
+				int res = crossings[k1].compareTo(crossings[k2], sign);
+				return res != 0 ? res : Integer.compare(k1, k2);
+			}
+		});
+		int[] partner = new int[m];
+		for (int i = 0; i < m; i += 2) {
+			partner[sorted[i]] = sorted[i + 1];
+			partner[sorted[i + 1]] = sorted[i];
+		}
+
+		Ring rings = new Ring(ring, start, runStart, crossings);
+		if (lessList != null) {
+			int first = lessList.size();
+			rings.join(partner, more[start], false, lessList);
+			if (onLine)
+				separateParts(lessList, first);
+		}
+		if (moreList != null) {
+			int first = moreList.size();
+			rings.join(partner, more[start], true, moreList);
+			if (onLine)
+				separateParts(moreList, first);
+		}
+	}
+
+	/**
+	 * When edges of the polygon are on the line, the piece of the line that
+	 * joins two runs can go along them, so that the parts are joined by a
+	 * line without width. These parts are separated with Area.
+	 *
+	 * @param shapes The parts from the given index on are checked.
+	 */
+	private static void separateParts(List<List<Coord>> shapes, int first) {
+		for (int i = first; i < shapes.size(); i++) {
+			if (!isSimple(shapes.get(i))) {
+				List<List<Coord>> parts = Java2DConverter.areaToShapes(Java2DConverter.createArea(shapes.get(i)));
+				shapes.remove(i);
+				shapes.addAll(i, parts);
+				i += parts.size() - 1;
+			}
+		}
+	}
+
+	/**
+	 * @return The polygon without the closing point and repeated points.
+	 */
+	private static List<Coord> toRing(List<Coord> points) {
+		List<Coord> ring = new ArrayList<>(points.size());
+		for (Coord co : points) {
+			if (ring.isEmpty() || !co.highPrecEquals(ring.get(ring.size() - 1)))
+				ring.add(co);
+		}
+		while (ring.size() > 1 && ring.get(0).highPrecEquals(ring.get(ring.size() - 1)))
+			ring.remove(ring.size() - 1);
+		return ring;
+	}
+
+	/**
+	 * Check that no two edges of a polygon cross or touch, apart from the
+	 * common point of neighbouring edges, and that the outline doesn't turn
+	 * back on itself. The edges are sorted by their smallest longitude, and
+	 * each edge is only compared with the edges before it that reach its
+	 * longitude.
+	 *
+	 * @param points The closed polygon.
+	 * @return True if the polygon is simple.
+	 */
+	static boolean isSimple(List<Coord> points) {
+		List<Coord> ring = toRing(points);
+		final int n = ring.size();
+		if (n < 3)
+			return true;
+		final long[] x = new long[n];
+		final long[] y = new long[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = ring.get(i).getHighPrecLon();
+			y[i] = ring.get(i).getHighPrecLat();
+		}
+
+		for (int i = 0; i < n; i++) {
+			int a = (i + n - 1) % n;
+			int b = (i + 1) % n;
+			long cross = (x[i] - x[a]) * (y[b] - y[i]) - (y[i] - y[a]) * (x[b] - x[i]);
+			long dot = (x[i] - x[a]) * (x[b] - x[i]) + (y[i] - y[a]) * (y[b] - y[i]);
+			if (cross == 0 && dot < 0)
+				return false;
+		}
+
+		// edge e goes from point e to point e + 1
+		int[] sorted = new int[n];
+		for (int e = 0; e < n; e++)
+			sorted[e] = e;
+		IntArrays.quickSort(sorted, new AbstractIntComparator() {
+			public int compare(int e1, int e2) {
+				return Long.compare(Math.min(x[e1], x[(e1 + 1) % n]), Math.min(x[e2], x[(e2 + 1) % n]));
+			}
+		});
+		int[] active = new int[n];
+		int numActive = 0;
+		for (int e : sorted) {
+			int e1 = (e + 1) % n;
+			long minX = Math.min(x[e], x[e1]);
+			int kept = 0;
+			for (int k = 0; k < numActive; k++) {
+				int f = active[k];
+				int f1 = (f + 1) % n;
+				if (Math.max(x[f], x[f1]) < minX)
+					continue;
+				active[kept++] = f;
+				if (f1 == e || e1 == f)
+					continue;
+				if (intersects(x, y, e, e1, f, f1))
+					return false;
+			}
+			numActive = kept;
+			active[numActive++] = e;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if the line from a to b and the line from c to d have a
+	 * point in common.
+	 */
+	private static boolean intersects(long[] x, long[] y, int a, int b, int c, int d) {
+		if (Math.max(y[a], y[b]) < Math.min(y[c], y[d]) || Math.max(y[c], y[d]) < Math.min(y[a], y[b]))
+			return false;
+		int o1 = orientation(x, y, c, d, a);
+		int o2 = orientation(x, y, c, d, b);
+		int o3 = orientation(x, y, a, b, c);
+		int o4 = orientation(x, y, a, b, d);
+		if (o1 * o2 < 0 && o3 * o4 < 0)
+			return true;
+		return o1 == 0 && isBetween(x, y, c, d, a)
+				|| o2 == 0 && isBetween(x, y, c, d, b)
+				|| o3 == 0 && isBetween(x, y, a, b, c)
+				|| o4 == 0 && isBetween(x, y, a, b, d);
+	}
+
+	/**
+	 * @return The side of the line from a to b that point p is on, 0 if it
+	 * is on the line.
+	 */
+	private static int orientation(long[] x, long[] y, int a, int b, int p) {
+		return Long.signum((x[b] - x[a]) * (y[p] - y[a]) - (y[b] - y[a]) * (x[p] - x[a]));
+	}
+
+	/**
+	 * @return True if the point p, which is on the line through a and b, is
+	 * between a and b.
+	 */
+	private static boolean isBetween(long[] x, long[] y, int a, int b, int p) {
+		return x[p] >= Math.min(x[a], x[b]) && x[p] <= Math.max(x[a], x[b])
+				&& y[p] >= Math.min(y[a], y[b]) && y[p] <= Math.max(y[a], y[b]);
+	}
+
+	/**
+	 * @return The coordinate that is compared with the line.
+	 */
+	private static int across(Coord co, boolean isLongitude) {
+		return isLongitude ? co.getHighPrecLon() : co.getHighPrecLat();
+	}
+
+	/**
+	 * @return The coordinate along the line.
+	 */
+	private static int along(Coord co, boolean isLongitude) {
+		return isLongitude ? co.getHighPrecLat() : co.getHighPrecLon();
+	}
+
+	/**
+	 * A place where an edge of the polygon crosses the line.
+	 */
+	private static class Crossing {
+		// the position along the line is num / den
+		private final long num;
+		private final long den;
+		// the slope of the edge is dy / den
+		private final long dy;
+		private final Coord point;
+
+		Crossing(Coord a, Coord b, int line, boolean isLongitude) {
+			int xa = across(a, isLongitude);
+			int xb = across(b, isLongitude);
+			if (xa > xb) {
+				Coord t = a;
+				a = b;
+				b = t;
+				xa = xb;
+				xb = across(b, isLongitude);
+			}
+			long ya = along(a, isLongitude);
+			den = xb - xa;
+			dy = along(b, isLongitude) - ya;
+			num = ya * den + (line - xa) * dy;
+
+			if (xa == line)
+				point = a;
+			else if (xb == line)
+				point = b;
+			else {
+				int y = (int) floorDiv(2 * num + den, 2 * den);
+				point = isLongitude ? Coord.makeHighPrecCoord(y, line) : Coord.makeHighPrecCoord(line, y);
+			}
+		}
+
+		/**
+		 * Compare the positions along the line that is moved by a tiny
+		 * distance in the direction of the sign.
+		 */
+		int compareTo(Crossing other, int sign) {
+			int res;
+			double diff = (double) num / den - (double) other.num / other.den;
+			if (diff > 0.01)
+				res = 1;
+			else if (diff < -0.01)
+				res = -1;
+			else {
+				// the doubles are not precise enough
+				res = BigInteger.valueOf(num).multiply(BigInteger.valueOf(other.den)).compareTo(
+						BigInteger.valueOf(other.num).multiply(BigInteger.valueOf(den)));
+			}
+			if (res != 0)
+				return res;
+			return sign * Long.compare(dy * other.den, other.dy * den);
+		}
+
+		private static long floorDiv(long a, long b) {
+			long q = a / b;
+			return (a % b != 0 && a < 0) ? q - 1 : q;
+		}
+	}
+
+	/**
+	 * The runs of the polygon and the crossings between them, to join the
+	 * runs of one side into polygons.
+	 */
+	private static class Ring {
+		private final List<Coord> ring;
+		private final int start;
+		private final int[] runStart;
+		private final Crossing[] crossings;
+		private final int m;
+
+		Ring(List<Coord> ring, int start, int[] runStart, Crossing[] crossings) {
+			this.ring = ring;
+			this.start = start;
+			this.runStart = runStart;
+			this.crossings = crossings;
+			this.m = crossings.length;
+		}
+
+		/**
+		 * Join the runs on one side. The pieces of the line between the
+		 * partners join the end of one run to the next one.
+		 *
+		 * @param firstMore The side of the first run, the sides alternate.
+		 * @param more The side to join.
+		 */
+		void join(int[] partner, boolean firstMore, boolean more, List<List<Coord>> result) {
+			boolean[] used = new boolean[m];
+			// run r is on the wanted side if r has this parity
+			int parity = firstMore == more ? 0 : 1;
+			for (int r0 = parity; r0 < m; r0 += 2) {
+				if (used[r0])
+					continue;
+				List<Coord> shape = new ArrayList<>();
+				int r = r0;
+				boolean forward = true;
+				while (!used[r]) {
+					used[r] = true;
+					addRun(shape, r, forward);
+					// the crossing at the end of the run, and the run at the other end of the piece of line
+					int p = partner[forward ? r : (r + m - 1) % m];
+					if (p % 2 == parity) {
+						r = p;
+						forward = false;
+					} else {
+						r = (p + 1) % m;
+						forward = true;
+					}
+				}
+				close(shape, result);
+			}
+		}
+
+		private void addRun(List<Coord> shape, int r, boolean forward) {
+			Coord entry = crossings[(r + m - 1) % m].point;
+			Coord exit = crossings[r].point;
+			add(shape, forward ? entry : exit);
+			int len = runStart[r + 1] - runStart[r];
+			for (int i = 0; i < len; i++) {
+				int pos = forward ? runStart[r] + i : runStart[r + 1] - 1 - i;
+				add(shape, ring.get((start + pos) % ring.size()));
+			}
+			add(shape, forward ? exit : entry);
+		}
+
+		private static void add(List<Coord> shape, Coord co) {
+			if (shape.isEmpty() || !co.highPrecEquals(shape.get(shape.size() - 1)))
+				shape.add(co);
+		}
+
+		/**
+		 * Close the polygon and add it if it has an area.
+		 */
+		private static void close(List<Coord> shape, List<List<Coord>> result) {
+			while (shape.size() > 1 && shape.get(0).highPrecEquals(shape.get(shape.size() - 1)))
+				shape.remove(shape.size() - 1);
+			if (shape.size() < 3 || isFlat(shape))
+				return;
+			shape.add(shape.get(0));
+			result.add(shape);
+		}
+
+		private static boolean isFlat(List<Coord> shape) {
+			Coord p0 = shape.get(0);
+			Coord p1 = shape.get(1);
+			long dx = p1.getHighPrecLon() - p0.getHighPrecLon();
+			long dy = p1.getHighPrecLat() - p0.getHighPrecLat();
+			for (int i = 2; i < shape.size(); i++) {
+				Coord co = shape.get(i);
+				if (dx * (co.getHighPrecLat() - p0.getHighPrecLat()) != dy * (co.getHighPrecLon() - p0.getHighPrecLon()))
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+
+package uk.me.parabola.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import uk.me.parabola.log.Logger;
+
+/**
+ * A thread safe cache that can be shared by concurrent map jobs. When the
+ * estimated size of the values exceeds the limit, the least recently
+ * used values are removed.
+ *
+ * A value that is not in the cache is loaded by the thread that asks for
+ * it first. Other threads asking for the same key wait for the result
+ * instead of loading it again.
+ *
+ * @param <K> the key type
+ * @param <V> the value type, null values are allowed and are cached as well
+ */
+public abstract class SizeLimitedCache<K, V> {
+	private static final Logger log = Logger.getLogger(SizeLimitedCache.class);
+
+	private final String name;
+	// access ordered, so that the first entry is the least recently used one
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+	private long maxSize;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param name used in the statistics
+	 * @param maxSize the limit for the sum of the estimated sizes in bytes
+	 */
+	protected SizeLimitedCache(String name, long maxSize) {
+		this.name = name;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Estimate the memory that is needed for a value.
+	 * @param value the value, may be null
+	 * @return the estimated size in bytes
+	 */
+	protected abstract long sizeOf(V value);
+
+	/**
+	 * Change the limit.
+	 * @param maxSize the limit in bytes, 0 disables the cache
+	 */
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		evict();
+	}
+
+	/**
+	 * Get the value for a key. If it is not in the cache, it is loaded with
+	 * the given loader.
+	 * @param key the key
+	 * @param loader used to load the value if it is not in the cache
+	 * @return the value
+	 * @throws Exception any exception thrown by the loader. Failed loads
+	 * are not cached.
+	 */
+	public V get(K key, Callable<V> loader) throws Exception {
+		Entry<V> entry;
+		boolean load = false;
+		synchronized (this) {
+			if (maxSize == 0)
+				entry = null;
+			else {
+				entry = entries.get(key);
+				if (entry == null) {
+					entry = new Entry<V>(loader);
+					entries.put(key, entry);
+					load = true;
+					misses++;
+				} else
+					hits++;
+			}
+		}
+		if (entry == null)
+			return loader.call();
+
+		if (load)
+			entry.task.run();
+
+		V value;
+		try {
+			value = entry.task.get();
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				if (entries.get(key) == entry)
+					entries.remove(key);
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw (Error) cause;
+		}
+
+		if (load) {
+			long valueSize = sizeOf(value);
+			synchronized (this) {
+				if (entries.get(key) == entry) {
+					entry.size = valueSize;
+					size += valueSize;
+					evict();
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Remove the least recently used values until the size is below the limit.
+	 * Values that are still being loaded are not removed.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<K, Entry<V>>> iter = entries.entrySet().iterator();
+		while (size > maxSize && iter.hasNext()) {
+			Map.Entry<K, Entry<V>> e = iter.next();
+			if (e.getValue().size < 0)
+				continue;
+			size -= e.getValue().size;
+			iter.remove();
+			evictions++;
+			if (log.isDebugEnabled())
+				log.debug(name, "removed", e.getKey());
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized String getStats() {
+		return name + ": " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+				+ entries.size() + " entries, ~" + (size / 1024) + " kB";
+	}
+
+	private static class Entry<V> {
+		private final FutureTask<V> task;
+		// the estimated size, -1 while the value is loaded
+		private long size = -1;
+
+		Entry(Callable<V> loader) {
+			task = new FutureTask<V>(loader);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package func.files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.fs.FileSystem;
+import uk.me.parabola.imgfmt.fs.ImgChannel;
+import uk.me.parabola.mkgmap.main.Main;
+
+import func.Base;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * The MDR files that are made with --index-threads are the same as the
+ * ones that are made without it.
+ */
+public class IndexThreadsTest extends Base {
+	// more maps than wait to be added to the index with four threads
+	private static final int MAPS = 20;
+	private static final int SIZE = 12;
+	private static final double STEP = 0.002;
+	// the length of the common header, which contains the date
+	private static final int COMMON_HEADER_LEN = 21;
+
+	private static final String[] STREETS = {"High Street", "Station Road", "Church Lane", "Mill Road",
+			"Park Avenue", "Bahnhofstraße", "Rue de la Gare", "Via Roma", "Öresundsvägen", "Ulica Długa"};
+	private static final String[] PLACES = {"Aston", "Barford", "Chedworth", "Dunsford", "Eastleigh",
+			"Ærøskøbing", "Zürich", "Ōsaka"};
+	private static final String[] AMENITIES = {"restaurant", "pub", "cafe", "fuel", "school", "pharmacy"};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSameMdr() throws IOException {
+		List<String> inputs = new ArrayList<>();
+		for (int i = 0; i < MAPS; i++) {
+			File osm = folder.newFile("map" + i + ".osm");
+			writeMap(osm, i);
+			inputs.add(osm.getPath());
+		}
+
+		File serial = makeIndex(inputs, "serial");
+		File parallel = makeIndex(inputs, "parallel", "--index-threads=4");
+
+		// the index for the pc, its short name is padded with zeros, and the
+		// one in the gmapsupp
+		checkSame(new File(serial, "osmmap_mdr.img"), new File(parallel, "osmmap_mdr.img"), "00OSMMAP.MDR");
+		checkSame(new File(serial, "gmapsupp.img"), new File(parallel, "gmapsupp.img"), "00006324.MDR");
+	}
+
+	private void checkSame(File expectedImg, File actualImg, String name) throws IOException {
+		byte[] expected = readFile(expectedImg, name);
+		byte[] actual = readFile(actualImg, name);
+		assertEquals(name + " size", expected.length, actual.length);
+		assertTrue(name + " contents", Arrays.equals(Arrays.copyOfRange(expected, COMMON_HEADER_LEN, expected.length),
+				Arrays.copyOfRange(actual, COMMON_HEADER_LEN, actual.length)));
+	}
+
+	private File makeIndex(List<String> inputs, String dirName, String... extraArgs) throws IOException {
+		File dir = folder.newFolder(dirName);
+		List<String> args = new ArrayList<>();
+		args.add("--output-dir=" + dir.getPath());
+		args.add("--route");
+		args.add("--housenumbers");
+		args.add("--index");
+		args.add("--gmapsupp");
+		args.add("--tdbfile");
+		args.add("--code-page=1252");
+		args.addAll(Arrays.asList(extraArgs));
+		args.addAll(inputs);
+		Main.mainNoSystemExit(args.toArray(new String[args.size()]));
+		return dir;
+	}
+
+	private byte[] readFile(File img, String name) throws IOException {
+		FileSystem fs = openFs(img.getPath());
+		assertNotNull(name + " in " + img.getName(), fs.lookup(name));
+		int size = fs.lookup(name).getSize();
+		ImgChannel chan = fs.open(name, "r");
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		while (buf.hasRemaining() && chan.read(buf) > 0)
+			;
+		assertEquals(name + " read", size, buf.position());
+		return buf.array();
+	}
+
+	/**
+	 * Write a small map with named streets, house numbers, places and
+	 * points of interest. The maps use the same names, so that the index
+	 * has many entries with the same name in different maps.
+	 */
+	private static void writeMap(File file, int map) throws IOException {
+		Random random = new Random(map);
+		double lat0 = 50 + (map / 5) * 0.1;
+		double lon0 = 8 + (map % 5) * 0.1;
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"))) {
+			out.println("<?xml version='1.0' encoding='UTF-8'?>");
+			out.println("<osm version='0.6'>");
+			out.printf(Locale.ROOT, "<bounds minlat='%f' minlon='%f' maxlat='%f' maxlon='%f'/>\n",
+					lat0, lon0, lat0 + SIZE * STEP, lon0 + SIZE * STEP);
+			for (int r = 0; r < SIZE; r++) {
+				for (int c = 0; c < SIZE; c++) {
+					out.printf(Locale.ROOT, "<node id='%d' version='1' lat='%.7f' lon='%.7f'/>\n", nodeId(r, c),
+							lat0 + (r + 0.5) * STEP, lon0 + (c + 0.5) * STEP);
+				}
+			}
+
+			long id = SIZE * SIZE + 1;
+			for (int k = 0; k < 60; k++) {
+				double lat = lat0 + random.nextDouble() * SIZE * STEP;
+				double lon = lon0 + random.nextDouble() * SIZE * STEP;
+				out.printf(Locale.ROOT, "<node id='%d' version='1' lat='%.7f' lon='%.7f'>", id++, lat, lon);
+				switch (k % 3) {
+				case 0:
+					out.printf("<tag k='amenity' v='%s'/><tag k='name' v='%s %d'/>",
+							AMENITIES[random.nextInt(AMENITIES.length)], PLACES[random.nextInt(PLACES.length)], k % 7);
+					break;
+				case 1:
+					out.printf("<tag k='addr:street' v='%s'/><tag k='addr:housenumber' v='%d'/>",
+							STREETS[random.nextInt(STREETS.length)], 1 + random.nextInt(50));
+					break;
+				default:
+					if (k % 4 == 2)
+						out.printf("<tag k='place' v='village'/><tag k='name' v='%s'/>",
+								PLACES[random.nextInt(PLACES.length)]);
+					else
+						out.printf("<tag k='shop' v='bakery'/><tag k='name' v='%s'/>",
+								STREETS[random.nextInt(STREETS.length)]);
+					break;
+				}
+				out.println("</node>");
+			}
+
+			int wayId = 1;
+			for (int r = 0; r < SIZE; r += 3) {
+				out.printf("<way id='%d' version='1'>", wayId++);
+				for (int c = 0; c < SIZE; c++)
+					out.printf("<nd ref='%d'/>", nodeId(r, c));
+				out.printf("<tag k='highway' v='residential'/><tag k='name' v='%s'/></way>\n",
+						STREETS[(r / 3 + map) % STREETS.length]);
+			}
+			for (int c = 1; c < SIZE; c += 3) {
+				out.printf("<way id='%d' version='1'>", wayId++);
+				for (int r = 0; r < SIZE; r++)
+					out.printf("<nd ref='%d'/>", nodeId(r, c));
+				out.printf("<tag k='highway' v='tertiary'/><tag k='name' v='%s'/></way>\n",
+						STREETS[(c / 3 + 2 * map + 5) % STREETS.length]);
+			}
+			out.println("</osm>");
+		}
+	}
+
+	private static long nodeId(int r, int c) {
+		return 1 + r * SIZE + c;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package func.files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.fs.FileSystem;
+import uk.me.parabola.imgfmt.fs.ImgChannel;
+import uk.me.parabola.mkgmap.main.Main;
+
+import func.Base;
+import func.lib.Args;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * The RGN and TRE files that are made with --subdivision-threads are the
+ * same as the ones that are made without it.
+ */
+public class SubdivisionThreadsTest extends Base {
+	private static final int SIZE = 60;
+	private static final double STEP_LAT = 0.005;
+	private static final double STEP_LON = 0.0067;
+	// the length of the common header, which contains the date
+	private static final int COMMON_HEADER_LEN = 21;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The polygons share points with the roads and with each other, and
+	 * many of their edges are horizontal or vertical, so the points that
+	 * are preserved in one area are used in others.
+	 */
+	@Test
+	public void testSameRgnAndTre() throws IOException {
+		File osm = folder.newFile("grid.osm");
+		writeGrid(osm);
+
+		String[] args = {"--route", "--merge-lines", "--reduce-point-density=4",
+				"--reduce-point-density-polygon=8", "--levels=0:24,1:22,2:20,3:18"};
+		File serial = makeMap(osm, "serial", args);
+		File parallel = makeMap(osm, "parallel", args, "--subdivision-threads=4");
+
+		for (String ext : Arrays.asList("RGN", "TRE")) {
+			byte[] expected = readFile(serial, ext);
+			byte[] actual = readFile(parallel, ext);
+			assertEquals(ext + " size", expected.length, actual.length);
+			assertTrue(ext + " contents", Arrays.equals(Arrays.copyOfRange(expected, COMMON_HEADER_LEN, expected.length),
+					Arrays.copyOfRange(actual, COMMON_HEADER_LEN, actual.length)));
+		}
+	}
+
+	private File makeMap(File osm, String dirName, String[] args, String... extraArgs) throws IOException {
+		File dir = folder.newFolder(dirName);
+		List<String> all = new ArrayList<>();
+		all.add("--output-dir=" + dir.getPath());
+		all.addAll(Arrays.asList(args));
+		all.addAll(Arrays.asList(extraArgs));
+		all.add(osm.getPath());
+		Main.mainNoSystemExit(all.toArray(new String[all.size()]));
+		return new File(dir, Args.DEF_MAP_FILENAME);
+	}
+
+	private byte[] readFile(File img, String ext) throws IOException {
+		FileSystem fs = openFs(img.getPath());
+		String name = Args.DEF_MAP_ID + "." + ext;
+		int size = fs.lookup(name).getSize();
+		ImgChannel chan = fs.open(name, "r");
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		while (buf.hasRemaining() && chan.read(buf) > 0)
+			;
+		assertEquals(ext + " read", size, buf.position());
+		return buf.array();
+	}
+
+	/**
+	 * Write a grid of nodes with roads along some of the rows and columns
+	 * and rectangular polygons on the cells. Every third row and column is
+	 * exactly straight.
+	 */
+	private static void writeGrid(File file) throws IOException {
+		Random random = new Random(1);
+		String[] highways = {"primary", "secondary", "residential", "track"};
+		String[] landuse = {"landuse=forest", "natural=water", "landuse=residential", "leisure=park", "landuse=farmland"};
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"))) {
+			out.println("<?xml version='1.0' encoding='UTF-8'?>");
+			out.println("<osm version='0.6'>");
+			out.printf(Locale.ROOT, "<bounds minlat='51.0' minlon='0.0' maxlat='%f' maxlon='%f'/>\n",
+					51 + SIZE * STEP_LAT, SIZE * STEP_LON);
+			for (int r = 0; r <= SIZE; r++) {
+				for (int c = 0; c <= SIZE; c++) {
+					double lat = 51 + r * STEP_LAT;
+					double lon = c * STEP_LON;
+					if (r % 3 != 0 && c % 3 != 0) {
+						lat += (random.nextDouble() - 0.5) * 0.6 * STEP_LAT;
+						lon += (random.nextDouble() - 0.5) * 0.6 * STEP_LON;
+					}
+					out.printf(Locale.ROOT, "<node id='%d' version='1' lat='%.7f' lon='%.7f'/>\n", nodeId(r, c), lat, lon);
+				}
+			}
+
+			int wayId = 1;
+			for (int r = 0; r <= SIZE; r += 2) {
+				int start = random.nextInt(SIZE / 2);
+				int end = start + 3 + random.nextInt(SIZE - start - 2);
+				out.printf("<way id='%d' version='1'>", wayId++);
+				for (int c = start; c <= end; c++)
+					out.printf("<nd ref='%d'/>", nodeId(r, c));
+				out.printf("<tag k='highway' v='%s'/><tag k='name' v='R%d'/></way>\n", highways[random.nextInt(highways.length)], r);
+			}
+			for (int c = 0; c <= SIZE; c += 2) {
+				int start = random.nextInt(SIZE / 2);
+				int end = start + 3 + random.nextInt(SIZE - start - 2);
+				out.printf("<way id='%d' version='1'>", wayId++);
+				for (int r = start; r <= end; r++)
+					out.printf("<nd ref='%d'/>", nodeId(r, c));
+				out.printf("<tag k='highway' v='%s'/><tag k='name' v='C%d'/></way>\n", highways[random.nextInt(highways.length)], c);
+			}
+
+			for (int p = 0; p < 900; p++) {
+				int r0 = random.nextInt(SIZE - 1);
+				int c0 = random.nextInt(SIZE - 1);
+				int h = 1 + random.nextInt(Math.min(8, SIZE - r0));
+				int w = 1 + random.nextInt(Math.min(8, SIZE - c0));
+				out.printf("<way id='%d' version='1'>", wayId++);
+				for (int c = c0; c < c0 + w; c++)
+					out.printf("<nd ref='%d'/>", nodeId(r0, c));
+				for (int r = r0; r < r0 + h; r++)
+					out.printf("<nd ref='%d'/>", nodeId(r, c0 + w));
+				for (int c = c0 + w; c > c0; c--)
+					out.printf("<nd ref='%d'/>", nodeId(r0 + h, c));
+				for (int r = r0 + h; r >= r0; r--)
+					out.printf("<nd ref='%d'/>", nodeId(r, c0));
+				String[] tag = landuse[random.nextInt(landuse.length)].split("=");
+				out.printf("<tag k='%s' v='%s'/></way>\n", tag[0], tag[1]);
+			}
+			out.println("</osm>");
+		}
+	}
+
+	private static long nodeId(int r, int c) {
+		return 1 + r * (SIZE + 1) + c;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package func.route;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.fs.FileSystem;
+import uk.me.parabola.imgfmt.fs.ImgChannel;
+import uk.me.parabola.mkgmap.main.Main;
+
+import func.Base;
+import func.lib.Args;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * The NOD file that is made with --route-center-threads is the same as the
+ * one that is made without it.
+ */
+public class RouteCenterThreadsTest extends Base {
+	// the grid has more nodes than are checked by one task
+	private static final int SIZE = 110;
+	// the number of grid points in each way
+	private static final int SEGMENT = 2;
+	private static final double STEP = 0.0012;
+	// the length of the common header, which contains the date
+	private static final int COMMON_HEADER_LEN = 21;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSameNod() throws IOException {
+		File osm = folder.newFile("grid.osm");
+		writeGrid(osm);
+
+		byte[] serial = makeNod(osm, "serial");
+		byte[] parallel = makeNod(osm, "parallel", "--route-center-threads=4");
+
+		assertEquals("NOD size", serial.length, parallel.length);
+		assertTrue("NOD contents", Arrays.equals(Arrays.copyOfRange(serial, COMMON_HEADER_LEN, serial.length),
+				Arrays.copyOfRange(parallel, COMMON_HEADER_LEN, parallel.length)));
+	}
+
+	private byte[] makeNod(File osm, String dirName, String... extraArgs) throws IOException {
+		File dir = folder.newFolder(dirName);
+		String[] args = {"--route", "--output-dir=" + dir.getPath()};
+		args = Arrays.copyOf(args, args.length + extraArgs.length + 1);
+		System.arraycopy(extraArgs, 0, args, 2, extraArgs.length);
+		args[args.length - 1] = osm.getPath();
+		Main.mainNoSystemExit(args);
+
+		FileSystem fs = openFs(new File(dir, Args.DEF_MAP_FILENAME).getPath());
+		int size = fs.lookup(Args.DEF_MAP_ID + ".NOD").getSize();
+		ImgChannel chan = fs.open(Args.DEF_MAP_ID + ".NOD", "r");
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		while (buf.hasRemaining() && chan.read(buf) > 0)
+			;
+		assertEquals("NOD read", size, buf.position());
+		return buf.array();
+	}
+
+	/**
+	 * Write a grid of roads of all classes, with some one way roads and
+	 * turn restrictions. The via way of the restrictions is often a road
+	 * of another class than the from and to ways, so the restriction arcs
+	 * are in more than one node group.
+	 */
+	private static void writeGrid(File file) throws IOException {
+		Random random = new Random(7);
+		try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "utf-8"))) {
+			out.println("<?xml version='1.0' encoding='UTF-8'?>");
+			out.println("<osm version='0.6'>");
+			out.printf(Locale.ROOT, "<bounds minlat='50.0' minlon='8.0' maxlat='%f' maxlon='%f'/>\n",
+					50 + SIZE * STEP, 8 + SIZE * STEP);
+			for (int r = 0; r < SIZE; r++) {
+				for (int c = 0; c < SIZE; c++) {
+					out.printf(Locale.ROOT, "<node id='%d' version='1' lat='%.7f' lon='%.7f'/>\n", nodeId(r, c),
+							50 + r * STEP + (random.nextDouble() - 0.5) * 2e-4,
+							8 + c * STEP + (random.nextDouble() - 0.5) * 2e-4);
+				}
+			}
+
+			// way ids: the horizontal ways first, then the vertical ones
+			int perLine = (SIZE - 1 + SEGMENT - 1) / SEGMENT;
+			int wayId = 1;
+			for (int r = 0; r < SIZE; r++) {
+				for (int c0 = 0; c0 < SIZE - 1; c0 += SEGMENT) {
+					out.printf("<way id='%d' version='1'>", wayId++);
+					for (int c = c0; c <= Math.min(c0 + SEGMENT, SIZE - 1); c++)
+						out.printf("<nd ref='%d'/>", nodeId(r, c));
+					writeTags(out, r, "H", r % 7 == 3 ? "yes" : null);
+				}
+			}
+			for (int c = 0; c < SIZE; c++) {
+				for (int r0 = 0; r0 < SIZE - 1; r0 += SEGMENT) {
+					out.printf("<way id='%d' version='1'>", wayId++);
+					for (int r = r0; r <= Math.min(r0 + SEGMENT, SIZE - 1); r++)
+						out.printf("<nd ref='%d'/>", nodeId(r, c));
+					writeTags(out, c, "V", c % 11 == 4 ? "-1" : null);
+				}
+			}
+
+			for (int rel = 1; rel <= 1500; rel++) {
+				int r = SEGMENT * random.nextInt((SIZE - 1) / SEGMENT - 1);
+				int c = SEGMENT * (1 + random.nextInt((SIZE - 1) / SEGMENT - 2));
+				int from = 1 + r * perLine + c / SEGMENT - 1;
+				int via = 1 + SIZE * perLine + c * perLine + r / SEGMENT;
+				out.printf("<relation id='%d' version='1'><member type='way' ref='%d' role='from'/>", rel, from);
+				if (random.nextBoolean()) {
+					out.printf("<member type='node' ref='%d' role='via'/><member type='way' ref='%d' role='to'/>",
+							nodeId(r, c), via);
+					out.println("<tag k='type' v='restriction'/><tag k='restriction' v='no_left_turn'/></relation>");
+				} else {
+					int to = 1 + (r + SEGMENT) * perLine + c / SEGMENT;
+					out.printf("<member type='way' ref='%d' role='via'/><member type='way' ref='%d' role='to'/>",
+							via, to);
+					out.println("<tag k='type' v='restriction'/><tag k='restriction' v='no_right_turn'/></relation>");
+				}
+			}
+			out.println("</osm>");
+		}
+	}
+
+	private static void writeTags(PrintWriter out, int line, String prefix, String oneway) {
+		out.printf("<tag k='highway' v='%s'/><tag k='name' v='%s%d'/>", highway(line), prefix, line);
+		if (oneway != null)
+			out.printf("<tag k='oneway' v='%s'/>", oneway);
+		out.println("</way>");
+	}
+
+	private static String highway(int line) {
+		if (line % 64 == 0)
+			return "motorway";
+		if (line % 32 == 0)
+			return "trunk";
+		if (line % 16 == 0)
+			return "primary";
+		if (line % 8 == 0)
+			return "secondary";
+		if (line % 4 == 0)
+			return "tertiary";
+		return "residential";
+	}
+
+	private static long nodeId(int r, int c) {
+		return 1 + r * SIZE + c;
+	}
+}
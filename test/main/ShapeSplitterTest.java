@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package main;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.util.Java2DConverter;
+import uk.me.parabola.util.ShapeSplitter;
+
+/**
+ * Compare the time to split and clip polygons with ShapeSplitter and with
+ * java.awt.geom.Area, which was used before.
+ *
+ * The polygons are rings around a centre with the given number of
+ * points. Each polygon is split through its middle and clipped to a box
+ * that cuts off a part of it. Run with the number of points of the
+ * polygons as arguments, eg. 100 10000 100000.
+ */
+public class ShapeSplitterTest {
+	private static final int TOTAL_POINTS = 200000;
+	private static final int RUNS = 5;
+
+	private final List<List<Coord>> shapes = new ArrayList<>();
+
+	private ShapeSplitterTest(int numPoints) {
+		for (int i = 0; i < Math.max(1, TOTAL_POINTS / numPoints); i++)
+			shapes.add(createRing(numPoints, i * 0.01));
+	}
+
+	private void test() {
+		// The first runs warm up
+		for (int run = 0; run < RUNS; run++) {
+			long start = System.nanoTime();
+			int n1 = splitWithShapeSplitter();
+			long t1 = System.nanoTime();
+			int n2 = splitWithArea();
+			long t2 = System.nanoTime();
+			int n3 = clipWithShapeSplitter();
+			long t3 = System.nanoTime();
+			int n4 = clipWithArea();
+			long t4 = System.nanoTime();
+			System.out.printf("split %d ms (%d parts) Area %d ms (%d parts), clip %d ms (%d parts) Area %d ms (%d parts)\n",
+					(t1 - start) / 1000000, n1, (t2 - t1) / 1000000, n2,
+					(t3 - t2) / 1000000, n3, (t4 - t3) / 1000000, n4);
+		}
+	}
+
+	private int splitWithShapeSplitter() {
+		int n = 0;
+		for (List<Coord> shape : shapes) {
+			List<List<Coord>> less = new ArrayList<>();
+			List<List<Coord>> more = new ArrayList<>();
+			ShapeSplitter.splitShape(shape, 0, true, less, more);
+			n += less.size() + more.size();
+		}
+		return n;
+	}
+
+	private int splitWithArea() {
+		int n = 0;
+		for (List<Coord> shape : shapes) {
+			java.awt.geom.Area area = Java2DConverter.createArea(shape);
+			Rectangle2D bounds = area.getBounds2D();
+			java.awt.geom.Area less = new java.awt.geom.Area(new Rectangle2D.Double(bounds.getMinX(), bounds.getMinY(),
+					-bounds.getMinX(), bounds.getHeight()));
+			less.intersect(area);
+			java.awt.geom.Area more = new java.awt.geom.Area(new Rectangle2D.Double(0, bounds.getMinY(),
+					bounds.getMaxX(), bounds.getHeight()));
+			more.intersect(area);
+			n += Java2DConverter.areaToShapes(less).size() + Java2DConverter.areaToShapes(more).size();
+		}
+		return n;
+	}
+
+	private int clipWithShapeSplitter() {
+		int n = 0;
+		Area bbox = new Area(-5000, -5000, 3000, 3000);
+		for (List<Coord> shape : shapes)
+			n += ShapeSplitter.clipToBounds(shape, bbox).size();
+		return n;
+	}
+
+	private int clipWithArea() {
+		int n = 0;
+		Area bbox = new Area(-5000, -5000, 3000, 3000);
+		for (List<Coord> shape : shapes) {
+			java.awt.geom.Area area = Java2DConverter.createArea(shape);
+			area.intersect(Java2DConverter.createBoundsArea(bbox));
+			n += Java2DConverter.areaToShapes(area).size();
+		}
+		return n;
+	}
+
+	/**
+	 * A polygon around the origin with many lobes, so that the box cuts it
+	 * many times. The lobes are turned by the given angle.
+	 */
+	private static List<Coord> createRing(int n, double turn) {
+		List<Coord> points = new ArrayList<>(n + 1);
+		for (int i = 0; i < n; i++) {
+			double a = 2 * Math.PI * i / n;
+			double r = 3000 + 1500 * Math.sin(20 * (a + turn));
+			int lat = (int) (r * Math.cos(a) * 64);
+			int lon = (int) (r * Math.sin(a) * 64);
+			points.add(Coord.makeHighPrecCoord(lat, lon));
+		}
+		points.add(points.get(0));
+		return points;
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0)
+			args = new String[] {"100", "10000"};
+		for (String arg : args) {
+			int numPoints = Integer.parseInt(arg);
+			System.out.println("Polygons with " + numPoints + " points");
+			new ShapeSplitterTest(numPoints).test();
+		}
+	}
+}
@@ -71,4 +71,18 @@ public class CoordTest {
 		assertEquals(124100, p60_10.distanceHaversine(p61_11), 100);
 	}
 
+	@Test
+	public void testPacked() {
+		Coord[] coords = { pLAX, pJFK, p0_10, new Coord(-89.9999999, -179.9999999),
+				new Coord(89.9999999, 179.9999999), new Coord(-0.0000001, 0.0000001),
+				Coord.makeHighPrecCoord(-32, 32), new Coord(-3, 4) };
+		for (Coord co : coords) {
+			Coord unpacked = Coord.fromPacked(co.toPacked());
+			assertEquals(co.getLatitude(), unpacked.getLatitude());
+			assertEquals(co.getLongitude(), unpacked.getLongitude());
+			assertEquals(co.getHighPrecLat(), unpacked.getHighPrecLat());
+			assertEquals(co.getHighPrecLon(), unpacked.getHighPrecLon());
+		}
+	}
+
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.imgfmt.app.mdr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MdrUtilsTest {
+
+	/**
+	 * Sorting on a pool gives the same order as Collections.sort, including
+	 * the order of equal elements.
+	 */
+	@Test
+	public void testParallelSortIsStable() {
+		Random random = new Random(1);
+		List<Item> list = new ArrayList<>();
+		for (int i = 0; i < 100000; i++)
+			list.add(new Item(random.nextInt(1000), i));
+
+		List<Item> expected = new ArrayList<>(list);
+		Collections.sort(expected);
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			MdrUtils.sort(list, pool);
+		} finally {
+			pool.shutdown();
+		}
+
+		for (int i = 0; i < expected.size(); i++)
+			assertSame(expected.get(i), list.get(i));
+	}
+
+	@Test
+	public void testSortWithoutPool() {
+		List<Item> list = new ArrayList<>();
+		list.add(new Item(3, 0));
+		list.add(new Item(1, 1));
+		list.add(new Item(3, 2));
+		list.add(new Item(2, 3));
+
+		MdrUtils.sort(list, null);
+		assertEquals(1, list.get(0).order);
+		assertEquals(3, list.get(1).order);
+		assertEquals(0, list.get(2).order);
+		assertEquals(2, list.get(3).order);
+	}
+
+	private static class Item implements Comparable<Item> {
+		private final int key;
+		private final int order;
+
+		Item(int key, int order) {
+			this.key = key;
+			this.order = order;
+		}
+
+		public int compareTo(Item o) {
+			return Integer.compare(key, o.key);
+		}
+	}
+}
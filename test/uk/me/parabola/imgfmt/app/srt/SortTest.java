@@ -183,6 +183,26 @@ public class SortTest {
 		return k1.compareTo(k2);
 	}
 
+	/**
+	 * Keys in an arena compare in the same way as the normal keys.
+	 */
+	@Test
+	public void testArenaKeys() {
+		String[] names = {"", "a", "A", "aa", "aab", "aabbbb", "aAbâ", "aabâ", "æ", "ae", "Æther", "a b",
+				"a-b", "Main Street", "Main Streets", "\u00bd", "Ö", "o", "a?b"};
+		SortKeyArena arena = new SortKeyArena();
+		for (String s1 : names) {
+			for (String s2 : names) {
+				for (int second = 0; second < 2; second++) {
+					int expected = sort.createSortKey(null, s1, 1).compareTo(sort.createSortKey(null, s2, second));
+					SortKey<Object> k1 = sort.createSortKey(null, s1, 1, arena);
+					SortKey<Object> k2 = sort.createSortKey(null, s2, second, arena);
+					assertEquals(s1 + "/" + s2, expected, k1.compareTo(k2));
+				}
+			}
+		}
+	}
+
 	private void checkOrdered(int i1, int i2) {
 		String s = "aaa";
 		SortKey<Object> k1 = sort.createSortKey(null, s, i1);
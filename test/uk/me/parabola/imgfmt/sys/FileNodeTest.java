@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.imgfmt.sys;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.FileSystemParam;
+import uk.me.parabola.imgfmt.fs.FileSystem;
+import uk.me.parabola.imgfmt.fs.ImgChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FileNodeTest {
+	private static final int BLOCK_SIZE = 512;
+
+	private File inFile;
+	private File outFile;
+	private File plainFile;
+
+	@Before
+	public void setUp() throws IOException {
+		inFile = File.createTempFile("input", ".img");
+		outFile = File.createTempFile("output", ".img");
+		plainFile = File.createTempFile("plain", ".dat");
+	}
+
+	@After
+	public void tearDown() {
+		inFile.delete();
+		outFile.delete();
+		plainFile.delete();
+	}
+
+	/**
+	 * A file whose blocks are not contiguous is copied unchanged.
+	 */
+	@Test
+	public void testTransferFromFileNode() throws IOException {
+		byte[] data = createData(3 * BLOCK_SIZE + 100);
+		writeInterleaved(data);
+
+		byte[] result = copy((byte) 0);
+		assertArrayEquals(data, result);
+	}
+
+	/**
+	 * The xor byte of the source is applied.
+	 */
+	@Test
+	public void testTransferFromXor() throws IOException {
+		byte[] data = createData(3 * BLOCK_SIZE + 100);
+		writeInterleaved(data);
+
+		byte[] result = copy((byte) 0x55);
+		for (int i = 0; i < data.length; i++)
+			data[i] ^= 0x55;
+		assertArrayEquals(data, result);
+	}
+
+	/**
+	 * A regular file is copied into the img file.
+	 */
+	@Test
+	public void testTransferFromPlainFile() throws IOException {
+		byte[] data = createData(2 * BLOCK_SIZE + 10);
+		FileOutputStream out = new FileOutputStream(plainFile);
+		out.write(data);
+		out.close();
+
+		FileSystem outfs = ImgFS.createFs(outFile.getPath(), createParams());
+		ImgChannel fin = new FileImgChannel(plainFile.getPath(), "r");
+		FileNode fout = (FileNode) outfs.create("TESTFILE.DAT");
+		assertTrue(fout.transferFrom(fin));
+		fin.close();
+		fout.close();
+		outfs.close();
+
+		assertArrayEquals(data, read(outFile, "TESTFILE.DAT", data.length + 10));
+	}
+
+	/**
+	 * A source that has no block for a part of its size is not copied, so
+	 * that the caller can fall back to reading it.
+	 */
+	@Test
+	public void testTransferFromMissingBlock() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(plainFile, "rw");
+		raf.write(createData(2 * BLOCK_SIZE));
+		Dirent dirent = new Dirent("TESTFILE.DAT", new BlockManager(BLOCK_SIZE, 0));
+		dirent.addBlock(0);
+		dirent.setSize(2 * BLOCK_SIZE);
+		FileNode fin = new FileNode(raf.getChannel(), dirent, "r");
+
+		FileSystem outfs = ImgFS.createFs(outFile.getPath(), createParams());
+		FileNode fout = (FileNode) outfs.create("TESTFILE.DAT");
+		assertFalse(fout.transferFrom(fin));
+		assertEquals(0, fin.position());
+		assertEquals(0, fout.position());
+		fin.close();
+		fout.close();
+		outfs.close();
+		raf.close();
+	}
+
+	private static byte[] createData(int size) {
+		byte[] data = new byte[size];
+		new Random(1).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Write the data to the input file system with the blocks of another
+	 * file in between.
+	 */
+	private void writeInterleaved(byte[] data) throws IOException {
+		FileSystem fs = ImgFS.createFs(inFile.getPath(), createParams());
+		ImgChannel other = fs.create("OTHERFIL.DAT");
+		ImgChannel test = fs.create("TESTFILE.DAT");
+		test.write(ByteBuffer.wrap(data, 0, BLOCK_SIZE));
+		other.write(ByteBuffer.wrap(new byte[BLOCK_SIZE]));
+		test.write(ByteBuffer.wrap(data, BLOCK_SIZE, data.length - BLOCK_SIZE));
+		other.close();
+		test.close();
+		fs.close();
+	}
+
+	private byte[] copy(byte xorByte) throws IOException {
+		FileSystem infs = ImgFS.openFs(inFile.getPath());
+		FileSystem outfs = ImgFS.createFs(outFile.getPath(), createParams());
+		FileNode fin = (FileNode) infs.open("TESTFILE.DAT", "r");
+		fin.setXorByte(xorByte);
+		FileNode fout = (FileNode) outfs.create("TESTFILE.DAT");
+		assertTrue(fout.transferFrom(fin));
+		fin.close();
+		fout.close();
+		infs.close();
+		outfs.close();
+		return read(outFile, "TESTFILE.DAT", 4 * BLOCK_SIZE);
+	}
+
+	private static byte[] read(File file, String name, int max) throws IOException {
+		FileSystem fs = ImgFS.openFs(file.getPath());
+		ImgChannel chan = fs.open(name, "r");
+		ByteBuffer buf = ByteBuffer.allocate(max);
+		while (chan.read(buf) > 0)
+			;
+		chan.close();
+		fs.close();
+		byte[] result = new byte[buf.position()];
+		buf.flip();
+		buf.get(result);
+		return result;
+	}
+
+	private static FileSystemParam createParams() {
+		FileSystemParam params = new FileSystemParam();
+		params.setBlockSize(BLOCK_SIZE);
+		return params;
+	}
+}
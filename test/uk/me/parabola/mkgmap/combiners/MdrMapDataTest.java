@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.combiners;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MdrMapDataTest {
+
+	/**
+	 * The values are read back as they were written, a changed img file
+	 * makes the file invalid.
+	 */
+	@Test
+	public void testWriteRead() throws IOException {
+		MdrMapData data = new MdrMapData();
+		data.countries.add(new MdrMapData.CountryData(1, 10, "Country"));
+		data.regions.add(new MdrMapData.RegionData(1, 1, 20, "Region"));
+		data.cities.add(new MdrMapData.CityData(1, 1, 30, "City"));
+		data.cities.add(new MdrMapData.CityData(2, 0x4001, 0, null));
+		data.points.add(new MdrMapData.PointData(0x2a00, 3, 4, 40, "Point", 0, false));
+		data.streets.add(new MdrMapData.StreetData("Street", 50, -1));
+		data.zips.add(new MdrMapData.ZipData(1, "12345"));
+
+		File file = File.createTempFile("mdrdata", null);
+		File img = File.createTempFile("mdrdata", ".img");
+		try {
+			writeImg(img, 1, 2, 3, 4);
+			data.write(file, img);
+
+			MdrMapData read = MdrMapData.read(file, img);
+			assertNotNull(read);
+			assertEquals("Country", read.countries.get(0).name);
+			assertEquals(20, read.regions.get(0).lblOffset);
+			assertEquals(2, read.cities.size());
+			assertEquals("City", read.cities.get(0).name);
+			assertNull(read.cities.get(1).name);
+			assertEquals(0x4001, read.cities.get(1).regionCountryNumber);
+			MdrMapData.PointData point = read.points.get(0);
+			assertEquals(0x2a00, point.type);
+			assertEquals(3, point.subdiv);
+			assertEquals(4, point.pointIndex);
+			assertEquals(0, point.city);
+			assertFalse(point.isCity);
+			assertEquals("Street", read.streets.get(0).name);
+			assertEquals(-1, read.streets.get(0).city);
+			assertEquals("12345", read.zips.get(0).name);
+
+			writeImg(img, 1, 2, 3);
+			assertNull(MdrMapData.read(file, img));
+		} finally {
+			file.delete();
+			img.delete();
+		}
+	}
+
+	/**
+	 * An img file with the same size is compared with the hash when the
+	 * time doesn't show that it is unchanged.
+	 */
+	@Test
+	public void testSameSize() throws IOException {
+		MdrMapData data = new MdrMapData();
+		data.zips.add(new MdrMapData.ZipData(1, "12345"));
+		File file = File.createTempFile("mdrdata", null);
+		File img = File.createTempFile("mdrdata", ".img");
+		try {
+			long time = System.currentTimeMillis() - 100000;
+			writeImg(img, 1, 2, 3, 4);
+			img.setLastModified(time);
+			data.write(file, img);
+			assertNotNull(MdrMapData.read(file, img));
+
+			// the same content with a new time
+			img.setLastModified(time + 10000);
+			assertNotNull(MdrMapData.read(file, img));
+
+			writeImg(img, 1, 2, 3, 5);
+			img.setLastModified(time + 20000);
+			assertNull(MdrMapData.read(file, img));
+		} finally {
+			file.delete();
+			img.delete();
+		}
+	}
+
+	@Test
+	public void testMissingFile() {
+		assertNull(MdrMapData.read(new File("no-such-file.mdrdata"), new File("no-such-file.img")));
+	}
+
+	private static void writeImg(File img, int... bytes) throws IOException {
+		FileOutputStream out = new FileOutputStream(img);
+		try {
+			for (int b : bytes)
+				out.write(b);
+		} finally {
+			out.close();
+		}
+	}
+}
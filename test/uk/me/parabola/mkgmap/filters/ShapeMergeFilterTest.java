@@ -18,6 +18,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.mkgmap.general.MapShape;
 //import uk.me.parabola.util.GpxCreator;
@@ -322,6 +325,48 @@ public class ShapeMergeFilterTest {
 		testVariants("test two w-shaped", points1, points2, 1, 16);
 	}
 
+	/**
+	 * A long row of squares is merged into one shape for each type, also
+	 * when the groups are merged on a fork/join pool.
+	 */
+	@Test
+	public void testRowOfSquares() throws Exception {
+		final List<MapShape> shapes = new ArrayList<>();
+		List<Coord> bottom = new ArrayList<>();
+		List<Coord> top = new ArrayList<>();
+		for (int i = 0; i <= 60; i++) {
+			bottom.add(new Coord(1000, 1000 + i * 100));
+			top.add(new Coord(1100, 1000 + i * 100));
+		}
+		for (int i = 0; i < 60; i++) {
+			MapShape shape = new MapShape();
+			shape.setType(i < 30 ? 0x10 : 0x11);
+			shape.setMinResolution(22);
+			shape.setPoints(Arrays.asList(bottom.get(i), bottom.get(i + 1), top.get(i + 1), top.get(i), bottom.get(i)));
+			shapes.add(shape);
+		}
+
+		List<MapShape> res = new ShapeMergeFilter(24).merge(shapes);
+		assertEquals(2, res.size());
+		// the points on the straight lines are removed
+		assertEquals(5, res.get(0).getPoints().size());
+		assertEquals(5, res.get(1).getPoints().size());
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			List<MapShape> parallel = pool.submit(new Callable<List<MapShape>>() {
+				public List<MapShape> call() {
+					return new ShapeMergeFilter(24).merge(shapes);
+				}
+			}).get();
+			assertEquals(res.size(), parallel.size());
+			for (int i = 0; i < res.size(); i++)
+				assertEquals(res.get(i).getPoints(), parallel.get(i).getPoints());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	/**
 	 * Test all variants regarding clockwise/ccw direction and positions of the points 
 	 * in the list and the order of shapes. 
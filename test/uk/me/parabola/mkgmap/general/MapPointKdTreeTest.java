@@ -13,7 +13,13 @@
 
 package uk.me.parabola.mkgmap.general;
 
-import static org.junit.Assert.assertFalse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
 import org.junit.Test;
 
 import uk.me.parabola.imgfmt.app.Coord;
@@ -56,4 +62,85 @@ public class MapPointKdTreeTest {
         	}
         }
 	}
+
+	/**
+	 * The queries give the same result as checking all points. Points with
+	 * the same distance are found in the order they were added.
+	 */
+	@Test
+	public void testQueries() {
+		Random random = new Random(1);
+		MapPointKdTree t = new MapPointKdTree();
+		List<MapPoint> all = new ArrayList<MapPoint>();
+		for (int i = 0; i < 500; i++) {
+			// a coarse grid, so that there are many equal distances
+			MapPoint p = new MapPoint();
+			p.setLocation(new Coord(2000000 + random.nextInt(40) * 200, random.nextInt(40) * 200));
+			p.setName("city" + random.nextInt(5));
+			t.add(p);
+			all.add(p);
+		}
+
+		MapPoint toFind = new MapPoint();
+		for (int i = 0; i < 500; i++) {
+			Coord co = new Coord(2000000 + random.nextInt(9000) - 500, random.nextInt(9000) - 500);
+			toFind.setLocation(co);
+
+			List<MapPoint> expected = new ArrayList<MapPoint>(all);
+			sortByDistance(expected, co);
+			assertSame(expected.get(0), t.findNextPoint(toFind));
+			assertEquals(expected.subList(0, 7), t.findNextPoints(toFind, 7, null));
+
+			MapPoint named = null;
+			for (MapPoint p : expected) {
+				if (p.getName().equals("city3")) {
+					named = p;
+					break;
+				}
+			}
+			assertSame(named, t.findNextPoint(toFind, "city3"));
+
+			List<MapPoint> inRadius = new ArrayList<MapPoint>();
+			for (MapPoint p : all) {
+				double dist = Coord.U / 360 * Math.sqrt(p.getLocation().distanceInDegreesSquared(co));
+				if (dist <= 2000 && p.getName().equals("city1"))
+					inRadius.add(p);
+			}
+			assertEquals(inRadius, t.findPointsInRadius(toFind, 2000, "city1"));
+		}
+	}
+
+	/**
+	 * Points that are added after a search are found by the next one.
+	 */
+	@Test
+	public void testAddAfterSearch() {
+		MapPointKdTree t = new MapPointKdTree();
+		MapPoint p1 = new MapPoint();
+		p1.setLocation(new Coord(1000, 1000));
+		t.add(p1);
+
+		MapPoint toFind = new MapPoint();
+		toFind.setLocation(new Coord(0, 0));
+		assertSame(p1, t.findNextPoint(toFind));
+
+		MapPoint p2 = new MapPoint();
+		p2.setLocation(new Coord(10, 10));
+		t.add(p2);
+		assertSame(p2, t.findNextPoint(toFind));
+		assertEquals(2, t.size());
+	}
+
+	/**
+	 * Stable sort by distance, so equal distances stay in the order the
+	 * points were added.
+	 */
+	private static void sortByDistance(List<MapPoint> list, final Coord co) {
+		Collections.sort(list, new Comparator<MapPoint>() {
+			public int compare(MapPoint p1, MapPoint p2) {
+				return Double.compare(p1.getLocation().distanceInDegreesSquared(co),
+						p2.getLocation().distanceInDegreesSquared(co));
+			}
+		});
+	}
 }
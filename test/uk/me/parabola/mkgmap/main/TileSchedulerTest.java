@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TileSchedulerTest {
+
+	private static TileScheduler.Job createJob(final List<String> started, final String name, long cost, long memory) {
+		return new TileScheduler.Job(new Runnable() {
+			public void run() {
+				started.add(name);
+			}
+		}, name, cost, memory);
+	}
+
+	/**
+	 * The jobs with the highest cost are started first.
+	 */
+	@Test
+	public void testLargestFirst() throws InterruptedException {
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		TileScheduler scheduler = new TileScheduler(1, 0);
+		scheduler.add(createJob(started, "a", 10, 0));
+		scheduler.add(createJob(started, "b", 30, 0));
+		scheduler.add(createJob(started, "c", 20, 0));
+		scheduler.add(createJob(started, "d", 30, 0));
+		scheduler.start(true);
+		scheduler.awaitTermination();
+		assertEquals(Arrays.asList("b", "d", "c", "a"), started);
+	}
+
+	/**
+	 * Without sorting the jobs are started in the given order.
+	 */
+	@Test
+	public void testGivenOrder() throws InterruptedException {
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		TileScheduler scheduler = new TileScheduler(1, 0);
+		scheduler.add(createJob(started, "a", 10, 0));
+		scheduler.add(createJob(started, "b", 30, 0));
+		scheduler.add(createJob(started, "c", 20, 0));
+		scheduler.start(false);
+		scheduler.awaitTermination();
+		assertEquals(Arrays.asList("a", "b", "c"), started);
+	}
+
+	/**
+	 * Jobs that don't fit into the memory budget together are not run at
+	 * the same time, a job that exceeds the budget alone is still run.
+	 */
+	@Test
+	public void testMemoryBudget() throws InterruptedException {
+		final int[] running = new int[1];
+		final int[] maxRunning = new int[1];
+		TileScheduler scheduler = new TileScheduler(4, 100);
+		for (int i = 0; i < 4; i++) {
+			scheduler.add(new TileScheduler.Job(new Runnable() {
+				public void run() {
+					synchronized (running) {
+						running[0]++;
+						maxRunning[0] = Math.max(maxRunning[0], running[0]);
+					}
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					synchronized (running) {
+						running[0]--;
+					}
+				}
+			}, "job" + i, i, 60 + i * 40));
+		}
+		scheduler.start(true);
+		scheduler.awaitTermination();
+		assertEquals(1, maxRunning[0]);
+	}
+
+	/**
+	 * A job that runs out of memory waits until the other jobs have
+	 * finished, no new jobs are started meanwhile.
+	 */
+	@Test
+	public void testWaitUntilAlone() throws InterruptedException {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final TileScheduler scheduler = new TileScheduler(2, 0);
+		final boolean[] retry = new boolean[2];
+		scheduler.add(new TileScheduler.Job(new Runnable() {
+			public void run() {
+				try {
+					retry[0] = scheduler.waitUntilAlone();
+					events.add("a alone");
+					// only one retry
+					retry[1] = scheduler.waitUntilAlone();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "a", 3, 0));
+		scheduler.add(new TileScheduler.Job(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				events.add("b done");
+			}
+		}, "b", 2, 0));
+		scheduler.add(createJob(events, "c", 1, 0));
+		scheduler.start(true);
+		scheduler.awaitTermination();
+		assertTrue(retry[0]);
+		assertFalse(retry[1]);
+		assertEquals(Arrays.asList("b done", "a alone", "c"), events);
+	}
+
+	/**
+	 * A job that was alone doesn't try again.
+	 */
+	@Test
+	public void testAloneNoRetry() throws InterruptedException {
+		final TileScheduler scheduler = new TileScheduler(2, 0);
+		final boolean[] retry = new boolean[1];
+		scheduler.add(new TileScheduler.Job(new Runnable() {
+			public void run() {
+				try {
+					retry[0] = scheduler.waitUntilAlone();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "a", 1, 0));
+		retry[0] = true;
+		scheduler.start(true);
+		scheduler.awaitTermination();
+		assertFalse(retry[0]);
+	}
+
+	/**
+	 * Two jobs that run out of memory at the same time both run alone, one
+	 * after the other, and the remaining jobs are started after them.
+	 */
+	@Test(timeout = 10000)
+	public void testTwoRetries() throws InterruptedException {
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final TileScheduler scheduler = new TileScheduler(2, 0);
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final int[] alone = new int[1];
+		final int[] maxAlone = new int[1];
+		for (final String name : new String[] {"a", "b"}) {
+			scheduler.add(new TileScheduler.Job(new Runnable() {
+				public void run() {
+					try {
+						barrier.await();
+						if (!scheduler.waitUntilAlone())
+							return;
+						synchronized (alone) {
+							alone[0]++;
+							maxAlone[0] = Math.max(maxAlone[0], alone[0]);
+						}
+						Thread.sleep(20);
+						synchronized (alone) {
+							alone[0]--;
+						}
+						events.add(name + " alone");
+					} catch (Exception e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, name, 2, 0));
+		}
+		scheduler.add(createJob(events, "c", 1, 0));
+		scheduler.start(true);
+		scheduler.awaitTermination();
+		assertEquals(1, maxAlone[0]);
+		assertEquals(3, events.size());
+		assertTrue(events.contains("a alone"));
+		assertTrue(events.contains("b alone"));
+		assertEquals("c", events.get(2));
+	}
+}
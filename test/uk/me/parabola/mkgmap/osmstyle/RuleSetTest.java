@@ -15,6 +15,7 @@ package uk.me.parabola.mkgmap.osmstyle;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import uk.me.parabola.mkgmap.reader.osm.Element;
 import uk.me.parabola.mkgmap.reader.osm.GType;
@@ -338,6 +339,48 @@ public class RuleSetTest {
 		assertEquals("second element", 0x6, list.get(1).getType());
 	}
 
+	/**
+	 * The compiled rules give the same results as the normal ones, for rules
+	 * that are spread over several words of the candidate bits and for
+	 * rules that change the tags.
+	 */
+	@Test
+	public void testCompiledRules() {
+		StringBuilder sb = new StringBuilder(MAXSPEED_EXAMPLE);
+		for (int i = 0; i < 150; i++) {
+			sb.append("k").append(i % 7).append("=v").append(i % 11);
+			if (i % 5 == 0)
+				sb.append(" {set k").append((i + 3) % 7).append("=v").append(i % 11).append("}");
+			sb.append(" [0x").append(Integer.toHexString(i % 0x30 + 1));
+			if (i % 3 == 0)
+				sb.append(" continue");
+			sb.append("]");
+		}
+		sb.append("k2=* [0x31]");
+		RuleSet normal = makeRuleSet(sb.toString());
+		RuleSet compiled = makeRuleSet(sb.toString());
+		compiled.setUseCompiledRules(true);
+
+		Random random = new Random(1);
+		for (int n = 0; n < 500; n++) {
+			Way el = new Way(n);
+			int numTags = random.nextInt(5);
+			for (int t = 0; t < numTags; t++)
+				el.addTag("k" + random.nextInt(7), "v" + random.nextInt(11));
+			if (random.nextBoolean()) {
+				el.addTag("highway", random.nextBoolean() ? "primary" : "secondary");
+				el.addTag("maxspeed", "40mph");
+			}
+			Way copy = el.copy();
+
+			// the rule sets have their own types, compare them as text
+			String expected = resolveList(normal, el).toString();
+			String actual = resolveList(compiled, copy).toString();
+			assertEquals(expected, actual);
+			assertEquals(el.toTagString(), copy.toTagString());
+		}
+	}
+
 	private List<GType> resolveList(RuleSet rs, Way el) {
 		final List<GType> list = new ArrayList<GType>();
 		rs.resolveType(el, new TypeResult() {
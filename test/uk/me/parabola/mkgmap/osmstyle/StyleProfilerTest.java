@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.TypeResult;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static func.lib.TestUtils.makeRuleSet;
+import static org.junit.Assert.*;
+
+public class StyleProfilerTest {
+
+	@After
+	public void resetProfiler() {
+		StyleProfiler.reset();
+	}
+
+	/**
+	 * The rules are counted by their line in the file, and the function
+	 * calls are charged to the rule that uses the function.
+	 */
+	@Test
+	public void testCounts() {
+		RuleSet rs = makeRuleSet("highway=primary {set ref=A1}\n" +
+				"highway=* & length() > 100 [0x2]\n" +
+				"highway=* [0x3]\n" +
+				"waterway=* [0x1f]\n");
+		StyleProfiler profiler = new StyleProfiler();
+		rs.setProfiler(profiler);
+		StringWriter report = new StringWriter();
+		StyleProfiler.setOutput(new PrintWriter(report));
+
+		for (int i = 0; i < 3; i++) {
+			Way el = new Way(i);
+			el.addPoint(new Coord(1000, 1000));
+			el.addPoint(new Coord(1000, 1000 + i * 1000));
+			el.addTag("highway", i == 0 ? "primary" : "track");
+			rs.resolveType(el, new TypeResult() {
+				public void add(Element el, GType type) {
+				}
+			});
+		}
+		StyleProfiler.endTile("test");
+		assertTrue(report.toString().startsWith("Style profile for test"));
+		assertTrue(report.toString().contains("lines:2"));
+
+		// only the element with highway=primary is a candidate
+		RuleProfile action = profiler.getProfile("lines:1", "");
+		assertEquals(1, action.evaluations);
+		assertEquals(1, action.matches);
+
+		RuleProfile length = profiler.getProfile("lines:2", "");
+		assertEquals(3, length.evaluations);
+		assertEquals(2, length.matches);
+		assertEquals(3, length.functionCalls);
+
+		RuleProfile any = profiler.getProfile("lines:3", "");
+		assertEquals(1, any.evaluations);
+		assertEquals(0, any.functionCalls);
+
+		assertEquals(0, profiler.getProfile("lines:4", "").evaluations);
+		assertTrue(StyleProfiler.getRunReport().contains("lines:2"));
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle.housenumber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.general.MapLine;
+import uk.me.parabola.mkgmap.general.MapRoad;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoadSegmentGridTest {
+	private static final double MAX_DISTANCE = 150;
+
+	/**
+	 * Every segment that has a point within the distance is a candidate, and
+	 * the candidates are in the order of the roads and their points.
+	 */
+	@Test
+	public void testCandidates() {
+		Random random = new Random(1);
+		for (int lat : new int[] {0, 2000000, 3500000}) {
+			List<MapRoad> roads = new ArrayList<>();
+			for (int i = 0; i < 20; i++)
+				roads.add(createRoad(random, lat, 2 + random.nextInt(20)));
+			RoadSegmentGrid grid = new RoadSegmentGrid(roads, MAX_DISTANCE);
+
+			for (int i = 0; i < 200; i++) {
+				Coord co = new Coord(lat + random.nextInt(2000), random.nextInt(2000));
+				IntArrayList candidates = grid.getCandidates(co);
+
+				for (int j = 1; j < candidates.size(); j++)
+					assertTrue(candidates.getInt(j - 1) < candidates.getInt(j));
+
+				int seg = 0;
+				for (MapRoad road : roads) {
+					List<Coord> points = road.getPoints();
+					for (int node = 0; node + 1 < points.size(); node++, seg++) {
+						if (isNear(co, points.get(node), points.get(node + 1))) {
+							assertTrue(candidates.contains(seg));
+							assertSame(road, grid.getRoad(seg));
+							assertEquals(node, grid.getNode(seg));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static MapRoad createRoad(Random random, int lat, int numPoints) {
+		List<Coord> points = new ArrayList<>();
+		int y = lat + random.nextInt(2000);
+		int x = random.nextInt(2000);
+		for (int i = 0; i < numPoints; i++) {
+			points.add(new Coord(y, x));
+			// mostly short segments, some long ones
+			int len = random.nextInt(10) == 0 ? 3000 : 100;
+			y += random.nextInt(len) - len / 2;
+			x += random.nextInt(len) - len / 2;
+		}
+		MapLine line = new MapLine();
+		line.setPoints(points);
+		return new MapRoad(1, line);
+	}
+
+	private static boolean isNear(Coord co, Coord c1, Coord c2) {
+		for (int i = 0; i <= 100; i++) {
+			if (c1.makeBetweenPoint(c2, i / 100.0).distance(co) <= MAX_DISTANCE)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.dem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.reader.osm.Node;
+import uk.me.parabola.mkgmap.reader.osm.OsmConverter;
+import uk.me.parabola.mkgmap.reader.osm.Relation;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DEMTest {
+	private static final int INTERVALS = 60;
+
+	/**
+	 * The contours of a smooth surface are the same with one and with
+	 * several threads.
+	 */
+	@Test
+	public void testThreadsHills() {
+		checkThreads(new SyntheticDEM(false), 0, 1000, 10);
+	}
+
+	/**
+	 * The contours around a sharp peak are so small and close to each other
+	 * that the first point of a level is dropped because of the last point
+	 * of the previous level. Such levels are traced again in order.
+	 */
+	@Test
+	public void testThreadsPeak() {
+		checkThreads(new SyntheticDEM(true), 980, 1001, 1);
+	}
+
+	private static void checkThreads(DEM dem, int minLevel, int maxLevel, int increment) {
+		List<Integer> levels = new ArrayList<>();
+		for (int level = minLevel; level < maxLevel; level += increment)
+			levels.add(level);
+
+		List<String> serial = trace(dem, levels, 1);
+		assertFalse(serial.isEmpty());
+		assertEquals(serial, trace(dem, levels, 4));
+		assertEquals(serial, trace(dem, levels, 7));
+	}
+
+	/**
+	 * @return The converted ways as text with the tags, the points and the
+	 * id relative to the first one.
+	 */
+	private static List<String> trace(DEM dem, List<Integer> levels, int threads) {
+		DEM.Isolines lines = dem.new Isolines(dem, 10.05, 20.05, 10.95, 20.95);
+		final List<Way> ways = new ArrayList<>();
+		DEM.traceContours(lines, levels, threads, new OsmConverter() {
+			public void convertWay(Way way) {
+				ways.add(way);
+			}
+
+			public void convertNode(Node node) {
+			}
+
+			public void convertRelation(Relation relation) {
+			}
+
+			public void setBoundingBox(Area bbox) {
+			}
+
+			public void end() {
+			}
+		});
+
+		List<String> result = new ArrayList<>();
+		for (Way way : ways) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(ways.get(0).getId() - way.getId());
+			sb.append(' ').append(way.getTag("contour")).append(' ').append(way.getTag("ele"));
+			for (Coord co : way.getPoints())
+				sb.append(' ').append(co.getLatitude()).append(',').append(co.getLongitude());
+			result.add(sb.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * A grid of one square degree with a formula for the heights.
+	 */
+	private static class SyntheticDEM extends DEM {
+		private final boolean peak;
+
+		SyntheticDEM(boolean peak) {
+			this.peak = peak;
+			M = INTERVALS;
+			N = INTERVALS;
+			res = 1.0 / N;
+			lat = 10;
+			lon = 20;
+		}
+
+		protected double ele(int x, int y) {
+			if (peak)
+				return x == 30 && y == 30 ? 1000.5 : -100000;
+			return 500 + 300 * Math.sin(x * 0.17) * Math.cos(y * 0.13) + 150 * Math.sin((x + y) * 0.05);
+		}
+
+		protected void read(int minLon, int minLat, int maxLon, int maxLat) {
+		}
+	}
+}
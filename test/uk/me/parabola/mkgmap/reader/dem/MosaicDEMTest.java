@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.dem;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import uk.me.parabola.imgfmt.ExitException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class MosaicDEMTest {
+	// small files, so that the test is quick
+	private static final int INTERVALS = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFileName() {
+		assertEquals("dir/N51E000.hgt", HGTFileCache.fileName("dir", 51, 0));
+		assertEquals("dir/S09W001.hgt", HGTFileCache.fileName("dir", -9, -1));
+	}
+
+	/**
+	 * The heights come from the file that covers each point, also across the
+	 * degree lines and in the extra files around the area.
+	 */
+	@Test
+	public void testAcrossFiles() throws IOException {
+		String dir = folder.getRoot().getPath();
+		for (int lat = -2; lat <= 1; lat++) {
+			for (int lon = -2; lon <= 1; lon++)
+				writeFile(dir, lat, lon);
+		}
+
+		MosaicDEM dem = new MosaicDEM(dir, -0.5, -0.5, 0.5, 0.5);
+		assertEquals(2 * INTERVALS, dem.getWidth());
+		assertEquals(2 * INTERVALS, dem.getHeight());
+
+		for (int y = -1; y <= 2 * INTERVALS + 2; y++) {
+			for (int x = -1; x <= 2 * INTERVALS + 2; x++)
+				assertEquals(height(x - INTERVALS, y - INTERVALS) + DEM.delta, dem.ele(x, y), 0);
+		}
+	}
+
+	@Test
+	public void testMissingFileIsSea() throws IOException {
+		String dir = folder.getRoot().getPath();
+		writeFile(dir, 10, 20);
+
+		MosaicDEM dem = new MosaicDEM(dir, 10.5, 20.5, 11.5, 20.8);
+		assertEquals(height(20 * INTERVALS + 3, 10 * INTERVALS + 5) + DEM.delta, dem.ele(3, 5), 0);
+		assertEquals(DEM.delta, dem.ele(3, INTERVALS + 5), 0);
+	}
+
+	/**
+	 * A sample on a degree line is read from the eastern or northern file when
+	 * the western or southern one is missing.
+	 */
+	@Test
+	public void testDegreeLineFromOtherFile() throws IOException {
+		String dir = folder.getRoot().getPath();
+		writeFile(dir, 11, 21);
+
+		MosaicDEM dem = new MosaicDEM(dir, 10.5, 20.5, 11.5, 21.5);
+		int x0 = 20 * INTERVALS;
+		int y0 = 10 * INTERVALS;
+		// the northern and the eastern file
+		assertEquals(height(x0 + INTERVALS + 3, y0 + INTERVALS) + DEM.delta, dem.ele(INTERVALS + 3, INTERVALS), 0);
+		assertEquals(height(x0 + INTERVALS, y0 + INTERVALS + 4) + DEM.delta, dem.ele(INTERVALS, INTERVALS + 4), 0);
+		// the north eastern file at the corner
+		assertEquals(height(x0 + INTERVALS, y0 + INTERVALS) + DEM.delta, dem.ele(INTERVALS, INTERVALS), 0);
+		// both files are missing
+		assertEquals(DEM.delta, dem.ele(3, INTERVALS), 0);
+		assertEquals(DEM.delta, dem.ele(INTERVALS, 4), 0);
+	}
+
+	/**
+	 * An area without any file is all sea, unless the directory doesn't exist.
+	 */
+	@Test
+	public void testNoFileForArea() throws IOException {
+		String dir = folder.getRoot().getPath();
+		writeFile(dir, 12, 20);
+
+		MosaicDEM dem = new MosaicDEM(dir, 10.5, 20.5, 10.8, 20.8);
+		assertEquals(DEM.delta, dem.ele(3, 5), 0);
+
+		try {
+			new MosaicDEM(new File(dir, "missing").getPath(), 10.5, 20.5, 10.8, 20.8);
+			fail("no exception for a missing directory");
+		} catch (ExitException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Files of several degrees that don't share their edges, like the CGIAR
+	 * files, also across the edges and south of the equator.
+	 */
+	@Test
+	public void testFilesWithoutSharedEdges() {
+		final int intervals = 4;
+		MosaicDEM dem = new MosaicDEM("unused", 5, false, -4.5, 3.5, 0.5, 6.5) {
+			protected DEMFile loadFile(String dataPath, final int lat, final int lon) {
+				if (lat == -10)
+					return null;
+				return new DEMFile() {
+					public int getIntervals() {
+						return intervals;
+					}
+
+					public int get(int x, int y) {
+						assertTrue(x >= 0 && x < intervals && y >= 0 && y < intervals);
+						return height(lon / 5 * intervals + x, lat / 5 * intervals + y);
+					}
+				};
+			}
+		};
+		assertEquals(2 * intervals, dem.getWidth());
+		assertEquals(2 * intervals, dem.getHeight());
+
+		for (int y = 0; y <= 2 * intervals + 2; y++) {
+			for (int x = -1; x <= 2 * intervals + 2; x++)
+				assertEquals(height(x, y - intervals) + DEM.delta, dem.ele(x, y), 0);
+		}
+		// the file in the south is missing
+		assertEquals(DEM.delta, dem.ele(3, -1), 0);
+	}
+
+	@Test
+	public void testFilesAreShared() throws IOException {
+		String dir = folder.getRoot().getPath();
+		writeFile(dir, 10, 20);
+		String name = HGTFileCache.fileName(dir, 10, 20);
+		assertSame(HGTFileCache.get(name), HGTFileCache.get(name));
+		assertNull(HGTFileCache.get(HGTFileCache.fileName(dir, 11, 20)));
+	}
+
+	/**
+	 * A height that is different at each point of the whole grid, where x and y
+	 * count the intervals from 0,0.
+	 */
+	private static int height(int x, int y) {
+		return 7 * x + 3 * y + x * y % 5;
+	}
+
+	private static void writeFile(String dir, int lat, int lon) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(HGTFileCache.fileName(dir, lat, lon))));
+		try {
+			for (int row = INTERVALS; row >= 0; row--) {
+				for (int col = 0; col <= INTERVALS; col++)
+					out.writeShort(height(lon * INTERVALS + col, lat * INTERVALS + row));
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -120,4 +120,39 @@ public class CustomCollectionsTest {
 		assertEquals(true, map.get(idOffset + 5) == null);
 	}
 	
+
+
+	@Test
+	public void testPackedCoordMap() {
+		testPackedMap(new PackedCoordMap(false));
+		testPackedMap(new PackedCoordMap(true));
+	}
+
+	private void testPackedMap(PackedCoordMap map) {
+		// ascending ids, more than one chunk
+		for (long i = 1; i < 200000; i += 2)
+			map.put(i, i * 10);
+		// not in order
+		map.put(-5, 50);
+		map.put(4, 40);
+		map.put(100000, 1);
+		// update existing entries
+		map.put(1, 11);
+		map.put(199999, 22);
+
+		assertEquals(100003, map.size());
+		assertEquals(11, map.get(1));
+		assertEquals(30, map.get(3));
+		assertEquals(40, map.get(4));
+		assertEquals(50, map.get(-5));
+		assertEquals(1, map.get(100000));
+		assertEquals(1000010, map.get(100001));
+		assertEquals(22, map.get(199999));
+		assertEquals(PackedCoordMap.NO_VALUE, map.get(2));
+		assertEquals(PackedCoordMap.NO_VALUE, map.get(0));
+		assertEquals(PackedCoordMap.NO_VALUE, map.get(200001));
+		assertFalse(map.containsKey(6));
+		assertTrue(map.containsKey(7));
+		map.close();
+	}
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.reader.osm.boundary.Boundary;
+import uk.me.parabola.mkgmap.reader.osm.boundary.BoundaryQuadTree;
+import uk.me.parabola.mkgmap.reader.osm.boundary.BoundarySaver;
+import uk.me.parabola.mkgmap.reader.osm.boundary.BoundaryUtil;
+import uk.me.parabola.util.EnhancedProperties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class LocationHookTest {
+	private static final String FILE_NAME = "bounds_0_0.bnd";
+	private static final int SIZE = BoundaryUtil.RASTER;
+	// more than one search task, so that the threads are used
+	private static final int NODES = 5000;
+	private static final int WAYS = 2000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * A country on the whole bounds file with a grid of states and
+	 * overlapping cities and postal codes.
+	 */
+	@Before
+	public void saveBounds() {
+		Random random = new Random(1);
+		List<Boundary> boundaries = new ArrayList<>();
+		boundaries.add(boundary("r1", "2", "Country", 0, 0, SIZE, SIZE));
+		int id = 2;
+		for (int i = 0; i < 4; i++) {
+			for (int j = 0; j < 4; j++)
+				boundaries.add(boundary("r" + id++, "4", "State" + i + j, i * SIZE / 4, j * SIZE / 4, SIZE / 4, SIZE / 4));
+		}
+		for (int i = 0; i < 30; i++) {
+			int lon = random.nextInt(SIZE - 5000);
+			int lat = random.nextInt(SIZE - 5000);
+			boundaries.add(boundary("r" + id++, "8", "City" + i, lon, lat, 1000 + random.nextInt(4000), 1000 + random.nextInt(4000)));
+		}
+		for (int i = 0; i < 10; i++) {
+			Tags tags = new Tags();
+			tags.put("boundary", "postal_code");
+			tags.put("postal_code", String.valueOf(10000 + i));
+			int lon = random.nextInt(SIZE - 10000);
+			int lat = random.nextInt(SIZE - 10000);
+			boundaries.add(new Boundary(new java.awt.geom.Area(new Rectangle(lon, lat, 10000, 10000)), tags, "r" + id++));
+		}
+		BoundaryQuadTree tree = new BoundaryQuadTree(BoundaryUtil.getBbox(FILE_NAME), boundaries, null);
+
+		BoundarySaver saver = new BoundarySaver(folder.getRoot(), BoundarySaver.QUADTREE_DATA_FORMAT);
+		saver.saveQuadTree(tree, FILE_NAME);
+		saver.end();
+	}
+
+	/**
+	 * The elements get the same location tags with and without
+	 * --location-threads.
+	 */
+	@Test
+	public void testThreadsSameAsSerial() {
+		List<String> serial = assignLocations(null);
+		int found = 0;
+		for (String s : serial) {
+			if (s.contains("mkgmap:admin_level4"))
+				found++;
+		}
+		assertTrue("found " + found, found > (NODES + WAYS) / 2);
+
+		assertEquals(serial, assignLocations("4"));
+		assertEquals(serial, assignLocations(""));
+	}
+
+	/**
+	 * Run the hook on a new set of elements.
+	 * @param threads The value of the location-threads option or null if
+	 * it isn't given.
+	 * @return The tags of all the elements.
+	 */
+	private List<String> assignLocations(String threads) {
+		EnhancedProperties props = new EnhancedProperties();
+		props.setProperty("bounds", folder.getRoot().getPath());
+		if (threads != null)
+			props.setProperty("location-threads", threads);
+
+		ElementSaver saver = new ElementSaver(props);
+		saver.setBoundingBox(new Area(0, 0, SIZE, SIZE));
+		Random random = new Random(2);
+		for (int i = 1; i <= NODES; i++) {
+			Node node = new Node(i, randomCoord(random));
+			node.addTag("amenity", "pub");
+			// the tags that are set are kept
+			if (i % 10 == 0)
+				node.addTag("mkgmap:admin_level4", "Own");
+			saver.addNode(node);
+		}
+		for (int i = 1; i <= WAYS; i++) {
+			Way way = new Way(i);
+			int count = 2 + random.nextInt(4);
+			for (int k = 0; k < count; k++) {
+				// some ways start or end outside of the area
+				way.addPoint(k == 0 && i % 7 == 0 ? new Coord(-1000, -1000) : randomCoord(random));
+			}
+			way.addTag("highway", "residential");
+			saver.addWay(way);
+		}
+
+		LocationHook hook = new LocationHook();
+		assertTrue(hook.init(saver, props));
+		hook.end();
+
+		List<String> result = new ArrayList<>();
+		for (Node node : saver.getNodes().values())
+			result.add("N" + node.getId() + node.toTagString());
+		for (Way way : saver.getWays().values())
+			result.add("W" + way.getId() + way.toTagString());
+		return result;
+	}
+
+	private static Coord randomCoord(Random random) {
+		return new Coord(random.nextInt(SIZE), random.nextInt(SIZE));
+	}
+
+	private static Boundary boundary(String id, String level, String name, int lon, int lat, int width, int height) {
+		Tags tags = new Tags();
+		tags.put("boundary", "administrative");
+		tags.put("admin_level", level);
+		tags.put("name", name);
+		java.awt.geom.Area area = new java.awt.geom.Area(new Rectangle(lon, lat, width, height));
+		return new Boundary(area, tags, id);
+	}
+}
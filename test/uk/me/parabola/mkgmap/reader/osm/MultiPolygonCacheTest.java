@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.reader.osm.MultiPolygonRelation.JoinedWay;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class MultiPolygonCacheTest {
+	private static final Area BBOX = new Area(0, 0, 10000, 10000);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The rings read from the cache have the same ways and the same
+	 * point objects as the rings that were saved.
+	 */
+	@Test
+	public void testRings() {
+		List<Way> ways = createRing(20, 1000);
+		MultiPolygonRelation mpr = createRelation(ways);
+		MultiPolygonCache cache = new MultiPolygonCache(folder.getRoot().getPath());
+
+		byte[] key = cache.makeKey(mpr, ways);
+		assertNull(cache.loadRings(mpr.getId(), key, ways));
+
+		List<JoinedWay> rings = mpr.joinWays(ways);
+		assertEquals(1, rings.size());
+		cache.saveRings(mpr.getId(), key, ways, rings);
+
+		List<JoinedWay> cached = cache.loadRings(mpr.getId(), key, ways);
+		assertEquals(rings.size(), cached.size());
+		for (int i = 0; i < rings.size(); i++) {
+			JoinedWay ring = rings.get(i);
+			JoinedWay other = cached.get(i);
+			assertEquals(ring.getOriginalWays(), other.getOriginalWays());
+			assertEquals(ring.getPoints().size(), other.getPoints().size());
+			for (int j = 0; j < ring.getPoints().size(); j++)
+				assertSame(ring.getPoints().get(j), other.getPoints().get(j));
+			assertEquals(ring.getBounds(), other.getBounds());
+			assertTrue(other.hasIdenticalEndPoints());
+		}
+	}
+
+	/**
+	 * A change to a member way gives a different key.
+	 */
+	@Test
+	public void testChangedWay() {
+		List<Way> ways = createRing(20, 1000);
+		MultiPolygonRelation mpr = createRelation(ways);
+		MultiPolygonCache cache = new MultiPolygonCache(folder.getRoot().getPath());
+
+		byte[] key = cache.makeKey(mpr, ways);
+		cache.saveRings(mpr.getId(), key, ways, mpr.joinWays(ways));
+
+		// the same position, but no longer the node that the next way starts with
+		List<Coord> points = ways.get(3).getPoints();
+		points.set(4, new Coord(points.get(4).getLatitude(), points.get(4).getLongitude()));
+		byte[] newKey = cache.makeKey(mpr, ways);
+		assertFalse(Arrays.equals(key, newKey));
+		assertNull(cache.loadRings(mpr.getId(), newKey, ways));
+	}
+
+	@Test
+	public void testSmallRelationIsNotCached() {
+		List<Way> ways = createRing(3, 1000);
+		MultiPolygonCache cache = new MultiPolygonCache(folder.getRoot().getPath());
+		assertNull(cache.makeKey(createRelation(ways), ways));
+	}
+
+	@Test
+	public void testMatrix() {
+		List<Way> ways = createRing(20, 1000);
+		MultiPolygonRelation mpr = createRelation(ways);
+		MultiPolygonCache cache = new MultiPolygonCache(folder.getRoot().getPath());
+		byte[] key = cache.makeKey(mpr, ways);
+
+		List<JoinedWay> polygons = new ArrayList<>();
+		for (Way w : ways)
+			polygons.add(new JoinedWay(w));
+		List<BitSet> matrix = new ArrayList<>();
+		for (int i = 0; i < polygons.size(); i++) {
+			BitSet row = new BitSet();
+			row.set((i * 7) % polygons.size());
+			row.set(100 + i);
+			matrix.add(row);
+		}
+		Set<JoinedWay> intersecting = new HashSet<>();
+		intersecting.add(polygons.get(5));
+
+		cache.saveMatrix(mpr.getId(), key, BBOX, polygons, matrix, intersecting);
+
+		Set<JoinedWay> found = new HashSet<>();
+		assertEquals(matrix, cache.loadMatrix(mpr.getId(), key, BBOX, polygons, found));
+		assertEquals(intersecting, found);
+
+		// the matrix belongs to the tile
+		Area other = new Area(0, 0, 10000, 20000);
+		assertNull(cache.loadMatrix(mpr.getId(), key, other, polygons, found));
+	}
+
+	/**
+	 * Create a closed ring that is split into a number of ways, in a random order.
+	 */
+	/**
+	 * Entries of other versions, old temporary files and the least recently
+	 * used entries above the size limit are deleted.
+	 */
+	@Test
+	public void testCleanUp() throws IOException {
+		File dir = folder.getRoot();
+		long now = System.currentTimeMillis();
+		File oldVersion = createFile(dir, "r1.rings", 100, now);
+		File oldTmp = createFile(dir, "v2_r2.rings123.tmp", 100, now - 2 * 3600 * 1000);
+		File newTmp = createFile(dir, "v2_r3.rings456.tmp", 100, now);
+		File other = createFile(dir, "readme.txt", 100, now);
+		File least = createFile(dir, "v2_r4.rings", 100, now - 3000);
+		File less = createFile(dir, "v2_r5_0_0.matrix", 100, now - 2000);
+		File recent = createFile(dir, "v2_r6.rings", 100, now - 1000);
+
+		new MultiPolygonCache(dir.getPath(), 250);
+
+		assertFalse(oldVersion.exists());
+		assertFalse(oldTmp.exists());
+		assertTrue(newTmp.exists());
+		assertTrue(other.exists());
+		assertFalse(least.exists());
+		assertTrue(less.exists());
+		assertTrue(recent.exists());
+	}
+
+	private static File createFile(File dir, String name, int size, long modified) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), new byte[size]);
+		assertTrue(file.setLastModified(modified));
+		return file;
+	}
+
+	private static List<Way> createRing(int numWays, int radius) {
+		List<Coord> ring = new ArrayList<>();
+		int n = numWays * 4;
+		for (int i = 0; i < n; i++) {
+			double a = 2 * Math.PI * i / n;
+			ring.add(new Coord(5000 + (int) (radius * Math.sin(a)), 5000 + (int) (radius * Math.cos(a))));
+		}
+
+		List<Way> ways = new ArrayList<>();
+		for (int i = 0; i < numWays; i++) {
+			Way w = new Way(100 + i);
+			for (int j = 0; j <= 4; j++)
+				w.addPoint(ring.get((i * 4 + j) % n));
+			ways.add(w);
+		}
+		Collections.shuffle(ways, new Random(1));
+		return ways;
+	}
+
+	private static MultiPolygonRelation createRelation(List<Way> ways) {
+		GeneralRelation rel = new GeneralRelation(1);
+		rel.addTag("type", "multipolygon");
+		for (Way w : ways)
+			rel.addElement("outer", w);
+		return new MultiPolygonRelation(rel, new HashMap<Long, Way>(), BBOX);
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PrecompSeaTileCacheTest {
+	private static final int JOBS = 4;
+
+	@After
+	public void tearDown() {
+		PrecompSeaTileCache.getInstance().setMaxSize(PrecompSeaTileCache.DEFAULT_MAX_SIZE_MB);
+	}
+
+	/**
+	 * Several jobs asking for the same tile at the same time load it once
+	 * and each get their own copy of the ways.
+	 */
+	@Test
+	public void testSharedBetweenJobs() throws Exception {
+		final PrecompSeaTileCache cache = PrecompSeaTileCache.getInstance();
+		final Loader loader = new Loader();
+		final CyclicBarrier start = new CyclicBarrier(JOBS);
+		final List<Collection<Way>> results = Collections.synchronizedList(new ArrayList<Collection<Way>>());
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+		List<Thread> jobs = new ArrayList<>();
+		for (int i = 0; i < JOBS; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						results.add(cache.getWays("testSharedBetweenJobs", loader));
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+			jobs.add(t);
+			t.start();
+		}
+		for (Thread t : jobs)
+			t.join();
+
+		assertEquals(errors.toString(), 0, errors.size());
+		assertEquals("loaded once", 1, loader.calls.get());
+		assertEquals(JOBS, results.size());
+
+		// no way or point is shared between two jobs
+		Map<Object, Object> seen = new IdentityHashMap<>();
+		for (Collection<Way> ways : results) {
+			checkWays(ways);
+			Map<Object, Object> own = new IdentityHashMap<>();
+			for (Way w : ways) {
+				own.put(w, w);
+				for (Coord co : w.getPoints())
+					own.put(co, co);
+			}
+			for (Object o : own.keySet())
+				assertNull("shared with another job", seen.put(o, o));
+		}
+	}
+
+	/**
+	 * Changing the ways of one job doesn't change the cached tile.
+	 */
+	@Test
+	public void testCopiesAreIndependent() throws Exception {
+		PrecompSeaTileCache cache = PrecompSeaTileCache.getInstance();
+		Loader loader = new Loader();
+
+		Collection<Way> first = cache.getWays("testCopiesAreIndependent", loader);
+		for (Way w : first) {
+			w.getPoints().clear();
+			w.deleteTag("natural");
+		}
+
+		Collection<Way> second = cache.getWays("testCopiesAreIndependent", loader);
+		assertEquals(1, loader.calls.get());
+		checkWays(second);
+	}
+
+	@Test
+	public void testDisabled() throws Exception {
+		PrecompSeaTileCache cache = PrecompSeaTileCache.getInstance();
+		cache.setMaxSize(0);
+		Loader loader = new Loader();
+
+		checkWays(cache.getWays("testDisabled", loader));
+		checkWays(cache.getWays("testDisabled", loader));
+		assertEquals(2, loader.calls.get());
+	}
+
+	/**
+	 * Check that the ways look like the ones made by the loader, including
+	 * the closing point that is the same instance as the first one.
+	 */
+	private static void checkWays(Collection<Way> ways) {
+		assertEquals(2, ways.size());
+		for (Way w : ways) {
+			List<Coord> points = w.getPoints();
+			assertEquals(5, points.size());
+			assertSame(points.get(0), points.get(4));
+			assertEquals("coastline", w.getTag("natural"));
+			assertTrue(w.isClosedInOSM());
+		}
+	}
+
+	private static class Loader implements Callable<Collection<Way>> {
+		private final AtomicInteger calls = new AtomicInteger();
+
+		public Collection<Way> call() throws Exception {
+			calls.incrementAndGet();
+			// give the other jobs a chance to ask for the tile while it is loaded
+			Thread.sleep(50);
+			List<Way> ways = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				Way w = new Way(i + 1);
+				Coord start = new Coord(i * 100, 0);
+				w.addPoint(start);
+				w.addPoint(new Coord(i * 100, 50));
+				w.addPoint(new Coord(i * 100 + 50, 50));
+				w.addPoint(new Coord(i * 100 + 50, 0));
+				w.addPoint(start);
+				w.addTag("natural", "coastline");
+				w.setClosedInOSM(true);
+				ways.add(w);
+			}
+			return ways;
+		}
+	}
+}
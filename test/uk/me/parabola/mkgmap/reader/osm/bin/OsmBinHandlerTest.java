@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.bin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.ElementSaver;
+import uk.me.parabola.mkgmap.reader.osm.Node;
+import uk.me.parabola.mkgmap.reader.osm.OsmReadingHooksAdaptor;
+import uk.me.parabola.mkgmap.reader.osm.Relation;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+import uk.me.parabola.util.EnhancedProperties;
+
+import com.google.protobuf.ByteString;
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+import crosby.binary.file.BlockInputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OsmBinHandlerTest {
+	private static final int NODE_BLOCKS = 6;
+	private static final int NODES_PER_BLOCK = 300;
+	private static final int WAY_BLOCKS = 4;
+	private static final int WAYS_PER_BLOCK = 100;
+
+	/**
+	 * The elements of a file with many blocks are saved in the same order
+	 * and with the same contents with and without decoder threads.
+	 */
+	@Test
+	public void testPipelinedSameAsSerial() throws IOException {
+		byte[] file = writeFile();
+
+		List<String> serial = readSerial(file);
+		assertEquals(NODE_BLOCKS * NODES_PER_BLOCK, countOf(serial, "point "));
+		assertEquals(WAY_BLOCKS * WAYS_PER_BLOCK, countOf(serial, "way "));
+		assertEquals(20, countOf(serial, "relation "));
+		assertEquals(serial, readPipelined(file, 1));
+		assertEquals(serial, readPipelined(file, 4));
+	}
+
+	private static int countOf(List<String> saved, String kind) {
+		int count = 0;
+		for (String s : saved) {
+			if (s.startsWith(kind))
+				count++;
+		}
+		return count;
+	}
+
+	private static List<String> readSerial(byte[] file) throws IOException {
+		RecordingSaver saver = new RecordingSaver();
+		OsmBinHandler handler = makeHandler(saver);
+		new BlockInputStream(new ByteArrayInputStream(file), handler.new BinParser()).process();
+		return saver.saved;
+	}
+
+	private static List<String> readPipelined(byte[] file, int threads) throws IOException {
+		RecordingSaver saver = new RecordingSaver();
+		OsmBinHandler handler = makeHandler(saver);
+		handler.new PipelinedParser(threads).process(new ByteArrayInputStream(file));
+		return saver.saved;
+	}
+
+	private static OsmBinHandler makeHandler(ElementSaver saver) {
+		OsmBinHandler handler = new OsmBinHandler(new EnhancedProperties());
+		handler.setElementSaver(saver);
+		handler.setHooks(new OsmReadingHooksAdaptor());
+		return handler;
+	}
+
+	/**
+	 * Write a file with a header, several blocks of dense nodes, blocks of
+	 * ways and a block of relations. Some of the nodes have tags, some ways
+	 * refer to missing nodes and some relations refer to relations that
+	 * come later.
+	 */
+	private static byte[] writeFile() throws IOException {
+		Random random = new Random(1);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		Osmformat.HeaderBlock header = Osmformat.HeaderBlock.newBuilder()
+				.addRequiredFeatures("OsmSchema-V0.6")
+				.addRequiredFeatures("DenseNodes")
+				.setBbox(Osmformat.HeaderBBox.newBuilder()
+						.setLeft(0).setRight(1000000000L)
+						.setBottom(51000000000L).setTop(52000000000L))
+				.build();
+		writeBlob(out, "OSMHeader", header.toByteArray());
+
+		long id = 1;
+		for (int b = 0; b < NODE_BLOCKS; b++) {
+			StringTable strings = new StringTable();
+			Osmformat.DenseNodes.Builder dense = Osmformat.DenseNodes.newBuilder();
+			long lastId = 0, lastLat = 0, lastLon = 0;
+			for (int i = 0; i < NODES_PER_BLOCK; i++, id++) {
+				long lat = 510000000 + random.nextInt(10000000);
+				long lon = random.nextInt(10000000);
+				dense.addId(id - lastId).addLat(lat - lastLat).addLon(lon - lastLon);
+				lastId = id;
+				lastLat = lat;
+				lastLon = lon;
+				if (i % 7 == 0) {
+					dense.addKeysVals(strings.get("amenity")).addKeysVals(strings.get(i % 2 == 0 ? "pub" : "cafe"));
+					dense.addKeysVals(strings.get("name")).addKeysVals(strings.get("N" + id));
+				}
+				dense.addKeysVals(0);
+			}
+			writeBlock(out, strings, Osmformat.PrimitiveGroup.newBuilder().setDense(dense));
+		}
+
+		long wayId = 1;
+		for (int b = 0; b < WAY_BLOCKS; b++) {
+			StringTable strings = new StringTable();
+			Osmformat.PrimitiveGroup.Builder group = Osmformat.PrimitiveGroup.newBuilder();
+			for (int i = 0; i < WAYS_PER_BLOCK; i++, wayId++) {
+				Osmformat.Way.Builder way = Osmformat.Way.newBuilder().setId(wayId);
+				way.addKeys(strings.get("highway")).addVals(strings.get(i % 3 == 0 ? "primary" : "residential"));
+				way.addKeys(strings.get("name")).addVals(strings.get("W" + wayId));
+				long first = 1 + random.nextInt(NODE_BLOCKS * NODES_PER_BLOCK);
+				long last = 0;
+				int count = 2 + random.nextInt(10);
+				for (int k = 0; k < count; k++) {
+					// every tenth way has a node that is not in the file
+					long ref = (wayId % 10 == 0 && k == 1) ? 1000000 : 1 + random.nextInt(NODE_BLOCKS * NODES_PER_BLOCK);
+					way.addRefs(ref - last);
+					last = ref;
+				}
+				if (i % 4 == 0)
+					way.addRefs(first - last);
+				group.addWays(way);
+			}
+			writeBlock(out, strings, group);
+		}
+
+		StringTable strings = new StringTable();
+		Osmformat.PrimitiveGroup.Builder group = Osmformat.PrimitiveGroup.newBuilder();
+		for (long relId = 1; relId <= 20; relId++) {
+			Osmformat.Relation.Builder rel = Osmformat.Relation.newBuilder().setId(relId);
+			rel.addKeys(strings.get("type")).addVals(strings.get("route"));
+			rel.addKeys(strings.get("name")).addVals(strings.get("R" + relId));
+			long last = 0;
+			for (int k = 0; k < 3; k++) {
+				long mid = 1 + random.nextInt(WAY_BLOCKS * WAYS_PER_BLOCK);
+				rel.addMemids(mid - last).addRolesSid(strings.get("forward")).addTypes(Osmformat.Relation.MemberType.WAY);
+				last = mid;
+			}
+			long node = 1 + 7 * random.nextInt(NODES_PER_BLOCK / 7);
+			rel.addMemids(node - last).addRolesSid(strings.get("stop")).addTypes(Osmformat.Relation.MemberType.NODE);
+			last = node;
+			// a relation that is saved later
+			long sub = relId % 5 == 0 ? relId + 3 : relId - 1;
+			if (sub > 0 && sub <= 20)
+				rel.addMemids(sub - last).addRolesSid(strings.get("")).addTypes(Osmformat.Relation.MemberType.RELATION);
+			group.addRelations(rel);
+		}
+		writeBlock(out, strings, group);
+
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void writeBlock(DataOutputStream out, StringTable strings, Osmformat.PrimitiveGroup.Builder group)
+			throws IOException
+	{
+		Osmformat.PrimitiveBlock block = Osmformat.PrimitiveBlock.newBuilder()
+				.setStringtable(strings.build())
+				.addPrimitivegroup(group)
+				.build();
+		writeBlob(out, "OSMData", block.toByteArray());
+	}
+
+	private static void writeBlob(DataOutputStream out, String type, byte[] raw) throws IOException {
+		Deflater deflater = new Deflater();
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] buf = new byte[raw.length + 1000];
+		int len = deflater.deflate(buf);
+		deflater.end();
+
+		byte[] blob = Fileformat.Blob.newBuilder()
+				.setRawSize(raw.length)
+				.setZlibData(ByteString.copyFrom(buf, 0, len))
+				.build().toByteArray();
+		byte[] header = Fileformat.BlobHeader.newBuilder()
+				.setType(type)
+				.setDatasize(blob.length)
+				.build().toByteArray();
+		out.writeInt(header.length);
+		out.write(header);
+		out.write(blob);
+	}
+
+	private static class StringTable {
+		private final List<String> strings = new ArrayList<>();
+		private final Map<String, Integer> index = new HashMap<>();
+
+		StringTable() {
+			// the first string is never used
+			get("");
+		}
+
+		int get(String s) {
+			Integer i = index.get(s);
+			if (i == null) {
+				i = strings.size();
+				strings.add(s);
+				index.put(s, i);
+			}
+			return i;
+		}
+
+		Osmformat.StringTable build() {
+			Osmformat.StringTable.Builder builder = Osmformat.StringTable.newBuilder();
+			for (String s : strings)
+				builder.addS(ByteString.copyFromUtf8(s));
+			return builder.build();
+		}
+	}
+
+	/**
+	 * Records what is saved as text, in the order it is saved.
+	 */
+	private static class RecordingSaver extends ElementSaver {
+		private final List<String> saved = new ArrayList<>();
+
+		RecordingSaver() {
+			super(new EnhancedProperties());
+		}
+
+		public void addPoint(long id, Coord co) {
+			saved.add("point " + id + " " + co.getLatitude() + "," + co.getLongitude());
+			super.addPoint(id, co);
+		}
+
+		public void addNode(Node node) {
+			Coord co = node.getLocation();
+			saved.add("node " + node.getId() + " " + co.getLatitude() + "," + co.getLongitude() + node.toTagString());
+			super.addNode(node);
+		}
+
+		public void addWay(Way way) {
+			StringBuilder sb = new StringBuilder("way ");
+			sb.append(way.getId()).append(way.toTagString());
+			sb.append(" closed=").append(way.isClosedInOSM()).append(" complete=").append(way.isComplete());
+			for (Coord co : way.getPoints())
+				sb.append(' ').append(co.getLatitude()).append(',').append(co.getLongitude());
+			saved.add(sb.toString());
+			super.addWay(way);
+		}
+
+		public void addRelation(Relation rel) {
+			StringBuilder sb = new StringBuilder("relation ");
+			sb.append(rel.getId()).append(rel.toTagString());
+			for (Map.Entry<String, Element> member : rel.getElements())
+				sb.append(' ').append(member.getKey()).append('=').append(member.getValue().getClass().getSimpleName())
+						.append(member.getValue().getId());
+			saved.add(sb.toString());
+			super.addRelation(rel);
+		}
+	}
+}
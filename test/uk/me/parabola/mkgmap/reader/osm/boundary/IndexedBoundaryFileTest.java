@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.boundary;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.reader.osm.Tags;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IndexedBoundaryFileTest {
+	private static final String FILE_NAME = "bounds_0_0.bnd";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String dir;
+	private BoundaryQuadTree tree;
+
+	/**
+	 * A country on the whole bounds file, with a state on each half.
+	 */
+	@Before
+	public void saveFile() {
+		List<Boundary> boundaries = new ArrayList<Boundary>();
+		boundaries.add(boundary("r3", 4, "West", 0, 0, 25000, 50000));
+		boundaries.add(boundary("r2", 4, "East", 25000, 0, 25000, 50000));
+		boundaries.add(boundary("r1", 2, "Country", 0, 0, 50000, 50000));
+		tree = new BoundaryQuadTree(BoundaryUtil.getBbox(FILE_NAME), boundaries, null);
+
+		dir = folder.getRoot().getPath();
+		BoundarySaver saver = new BoundarySaver(folder.getRoot(), BoundarySaver.QUADTREE_DATA_FORMAT);
+		saver.saveQuadTree(tree, FILE_NAME);
+		saver.end();
+	}
+
+	@Test
+	public void testLoadAll() {
+		BoundaryQuadTree loaded = BoundaryUtil.loadQuadTree(dir, FILE_NAME);
+		for (Coord co : new Coord[] {new Coord(5000, 5000), new Coord(45000, 45000), new Coord(20000, 30000)}) {
+			assertEquals(tree.get(co).get("mkgmap:admin_level2"), loaded.get(co).get("mkgmap:admin_level2"));
+			assertEquals(tree.get(co).get("mkgmap:admin_level4"), loaded.get(co).get("mkgmap:admin_level4"));
+		}
+	}
+
+	/**
+	 * Only the areas in the bounding box are read.
+	 */
+	@Test
+	public void testSearchBbox() throws IOException {
+		IndexedBoundaryFile file = BoundaryUtil.openIndexedFile(dir, FILE_NAME);
+		assertNotNull(file);
+		BoundaryQuadTree part = file.createTree(new Area(0, 0, 10000, 10000), null);
+
+		Tags west = part.get(new Coord(5000, 5000));
+		assertEquals("Country", west.get("mkgmap:admin_level2"));
+		assertEquals("West", west.get("mkgmap:admin_level4"));
+		assertEquals("East", tree.get(new Coord(5000, 45000)).get("mkgmap:admin_level4"));
+		Tags east = part.get(new Coord(5000, 45000));
+		assertTrue(east == null || east.get("mkgmap:admin_level4") == null);
+	}
+
+	private static Boundary boundary(String id, int level, String name, int lon, int lat, int width, int height) {
+		Tags tags = new Tags();
+		tags.put("boundary", "administrative");
+		tags.put("admin_level", String.valueOf(level));
+		tags.put("name", name);
+		java.awt.geom.Area area = new java.awt.geom.Area(new Rectangle(lon, lat, width, height));
+		return new Boundary(area, tags, id);
+	}
+}
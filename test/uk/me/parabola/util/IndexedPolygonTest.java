@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IndexedPolygonTest {
+
+	/**
+	 * The result is the same as for java.awt.Polygon, also for the points
+	 * on the edges and at the corners.
+	 */
+	@Test
+	public void testSameAsPolygon() {
+		Random random = new Random(1);
+		for (int n : new int[] {3, 5, 20, 200, 2000}) {
+			List<Coord> points = createRing(random, n);
+			Polygon polygon = Java2DConverter.createHighPrecPolygon(points);
+			IndexedPolygon indexed = new IndexedPolygon(points);
+
+			for (int i = 0; i < 2000; i++) {
+				int x = random.nextInt(3000) * 64 - 1000 * 64;
+				int y = random.nextInt(3000) * 64 - 1000 * 64;
+				assertEquals(polygon.contains(x, y), indexed.contains(x, y));
+			}
+			for (Coord co : points) {
+				int x = co.getHighPrecLon();
+				int y = co.getHighPrecLat();
+				assertEquals(polygon.contains(x, y), indexed.contains(x, y));
+				assertEquals(polygon.contains(x + 1, y), indexed.contains(x + 1, y));
+				assertEquals(polygon.contains(x, y - 1), indexed.contains(x, y - 1));
+			}
+		}
+	}
+
+	/**
+	 * Every edge that has a point in the range is found.
+	 */
+	@Test
+	public void testFindEdges() {
+		Random random = new Random(2);
+		List<Coord> points = createRing(random, 500);
+		IndexedPolygon indexed = new IndexedPolygon(points);
+
+		for (int i = 0; i < 200; i++) {
+			int y1 = random.nextInt(3000) * 64 - 1000 * 64;
+			int y2 = y1 + random.nextInt(3) * random.nextInt(200 * 64);
+			IntArrayList edges = new IntArrayList();
+			indexed.findEdges(y1, y2, edges);
+
+			for (int j = 1; j < edges.size(); j++)
+				assertTrue(edges.getInt(j - 1) < edges.getInt(j));
+
+			for (int e = 0; e < points.size(); e++) {
+				int ya = points.get(e).getHighPrecLat();
+				int yb = points.get(e == 0 ? points.size() - 1 : e - 1).getHighPrecLat();
+				if (Math.max(ya, yb) >= y1 && Math.min(ya, yb) <= y2)
+					assertTrue(edges.contains(e));
+			}
+		}
+	}
+
+	/**
+	 * A closed ring with a spiky outline, so that there are edges that cross
+	 * many bands.
+	 */
+	private static List<Coord> createRing(Random random, int n) {
+		List<Coord> points = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			double a = 2 * Math.PI * i / n;
+			double r = 200 + random.nextInt(800);
+			points.add(new Coord(500 + (int) (r * Math.sin(a)), 500 + (int) (r * Math.cos(a))));
+		}
+		points.add(points.get(0));
+		return points;
+	}
+}
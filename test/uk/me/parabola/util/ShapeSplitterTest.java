@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShapeSplitterTest {
+
+	/**
+	 * A U shape that is cut through both arms gives two parts on one side.
+	 */
+	@Test
+	public void testSplitU() {
+		List<Coord> u = ring(0, 0, 30, 0, 30, 30, 20, 30, 20, 10, 10, 10, 10, 30, 0, 30);
+		List<List<Coord>> less = new ArrayList<>();
+		List<List<Coord>> more = new ArrayList<>();
+		ShapeSplitter.splitShape(u, 20 << Coord.DELTA_SHIFT, true, less, more);
+
+		assertEquals(1, less.size());
+		assertEquals(2, more.size());
+		assertEquals(500, area(less.get(0)), 0);
+		assertEquals(100, area(more.get(0)), 0);
+		assertEquals(100, area(more.get(1)), 0);
+		for (List<Coord> shape : more)
+			assertSame(shape.get(0), shape.get(shape.size() - 1));
+	}
+
+	/**
+	 * The points of the polygon that are inside are kept, also the ones on
+	 * the border of the box.
+	 */
+	@Test
+	public void testClipKeepsPoints() {
+		List<Coord> shape = ring(0, 0, 10, 0, 10, 30, 0, 30);
+		List<List<Coord>> clipped = ShapeSplitter.clipToBounds(shape, new Area(0, 5, 20, 40));
+
+		assertEquals(1, clipped.size());
+		assertEquals(250, area(clipped.get(0)), 0);
+		int kept = 0;
+		for (Coord orig : shape.subList(0, shape.size() - 1)) {
+			for (Coord co : clipped.get(0)) {
+				if (co == orig) {
+					kept++;
+					break;
+				}
+			}
+		}
+		// the points at 0,30 and 10,30
+		assertEquals(2, kept);
+	}
+
+	@Test
+	public void testOutside() {
+		List<Coord> shape = ring(0, 0, 10, 0, 10, 30, 0, 30);
+		assertTrue(ShapeSplitter.clipToBounds(shape, new Area(20, 20, 40, 40)).isEmpty());
+	}
+
+	/**
+	 * Random polygons are split into the same parts as with
+	 * {@link java.awt.geom.Area}, and the parts on both sides have the area
+	 * of the polygon. The areas are only nearly the same, because the new
+	 * points are rounded.
+	 */
+	@Test
+	public void testSameAreaAsJava2D() {
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			List<Coord> shape = createRing(random, 3 + random.nextInt(100));
+			int line = (random.nextInt(60) - 30) << Coord.DELTA_SHIFT;
+			boolean isLongitude = random.nextBoolean();
+
+			List<List<Coord>> less = new ArrayList<>();
+			List<List<Coord>> more = new ArrayList<>();
+			ShapeSplitter.splitShape(shape, line, isLongitude, less, more);
+			assertEquals(area(shape), totalArea(less) + totalArea(more), 1);
+			compareWithJava2D(shape, line >> Coord.DELTA_SHIFT, isLongitude);
+
+			Area bbox = new Area(random.nextInt(20) - 10, random.nextInt(20) - 10, random.nextInt(20) + 10, random.nextInt(20) + 10);
+			compareClipWithJava2D(shape, bbox);
+			List<List<Coord>> clipped = ShapeSplitter.clipToBounds(shape, bbox);
+			for (List<Coord> part : clipped) {
+				for (Coord co : part)
+					assertTrue(bbox.contains(co));
+			}
+		}
+	}
+
+	/**
+	 * A concave star gives the same parts as with Area.
+	 */
+	@Test
+	public void testConcave() {
+		List<Coord> star = ring(0, 40, 10, 10, 40, 0, 10, -10, 0, -40, -10, -10, -40, 0, -10, 10);
+		compareWithJava2D(star, 0, true);
+		compareWithJava2D(star, 5, false);
+		compareWithJava2D(star, 20, true);
+		compareWithJava2D(star, -20, false);
+		compareClipWithJava2D(star, new Area(-20, -20, 20, 20));
+		compareClipWithJava2D(star, new Area(5, 5, 50, 50));
+	}
+
+	/**
+	 * A U shape gives the same parts as with Area, when it is cut through
+	 * the arms, through the base, and along the inner edges.
+	 */
+	@Test
+	public void testUShape() {
+		List<Coord> u = ring(0, 0, 30, 0, 30, 30, 20, 30, 20, 10, 10, 10, 10, 30, 0, 30);
+		compareWithJava2D(u, 20, true);
+		compareWithJava2D(u, 5, true);
+		compareWithJava2D(u, 15, false);
+		compareWithJava2D(u, 10, true);
+		compareWithJava2D(u, 20, false);
+		compareClipWithJava2D(u, new Area(15, 5, 40, 40));
+		compareClipWithJava2D(u, new Area(5, 15, 25, 40));
+	}
+
+	/**
+	 * A comb with many teeth crosses the line many times.
+	 */
+	@Test
+	public void testMultiCrossing() {
+		List<Integer> latLon = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Collections.addAll(latLon, 0, i * 10, 50, i * 10 + 2, 50, i * 10 + 6, 0, i * 10 + 8);
+		}
+		Collections.addAll(latLon, 0, 100, -10, 100, -10, 0);
+		int[] values = new int[latLon.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = latLon.get(i);
+		List<Coord> comb = ring(values);
+
+		compareWithJava2D(comb, 25, false);
+		compareWithJava2D(comb, 0, false);
+		compareWithJava2D(comb, 45, true);
+		compareClipWithJava2D(comb, new Area(10, 15, 40, 85));
+		compareClipWithJava2D(comb, new Area(-20, 15, 60, 85));
+	}
+
+	/**
+	 * A polygon that crosses itself is split into its loops, like with Area.
+	 */
+	@Test
+	public void testSelfIntersecting() {
+		List<Coord> bowTie = ring(0, 0, 20, 20, 20, 0, 0, 20);
+		assertFalse(ShapeSplitter.isSimple(bowTie));
+
+		List<List<Coord>> clipped = ShapeSplitter.clipToBounds(bowTie, new Area(-10, -10, 30, 30));
+		assertEquals(2, clipped.size());
+		compareClipWithJava2D(bowTie, new Area(-10, -10, 30, 30));
+		compareClipWithJava2D(bowTie, new Area(5, -10, 30, 30));
+		compareWithJava2D(bowTie, 5, true);
+		compareWithJava2D(bowTie, 10, false);
+	}
+
+	@Test
+	public void testIsSimple() {
+		assertTrue(ShapeSplitter.isSimple(ring(0, 0, 30, 0, 30, 30, 20, 30, 20, 10, 10, 10, 10, 30, 0, 30)));
+		// touches itself at a point
+		assertFalse(ShapeSplitter.isSimple(ring(0, 0, 10, 0, 10, 10, 5, 0, 0, 10)));
+		// goes to an inner ring and back along the same line
+		assertFalse(ShapeSplitter.isSimple(ring(0, 0, 0, 30, 10, 30, 10, 20, 20, 20, 20, 10, 10, 10, 10, 30, 30, 30, 30, 0)));
+		// a spike
+		assertFalse(ShapeSplitter.isSimple(ring(0, 0, 10, 0, 20, 0, 10, 0, 10, 10)));
+	}
+
+	/**
+	 * Check that the parts on both sides of the line are the same as the
+	 * parts made with Area.
+	 */
+	private static void compareWithJava2D(List<Coord> shape, int line, boolean isLongitude) {
+		List<List<Coord>> less = new ArrayList<>();
+		List<List<Coord>> more = new ArrayList<>();
+		ShapeSplitter.splitShape(shape, line << Coord.DELTA_SHIFT, isLongitude, less, more);
+
+		double big = 1 << 20;
+		java.awt.geom.Area lessArea = Java2DConverter.createArea(shape);
+		java.awt.geom.Area moreArea = Java2DConverter.createArea(shape);
+		if (isLongitude) {
+			lessArea.intersect(new java.awt.geom.Area(new Rectangle2D.Double(-big, -big, big + line, 2 * big)));
+			moreArea.intersect(new java.awt.geom.Area(new Rectangle2D.Double(line, -big, big, 2 * big)));
+		} else {
+			lessArea.intersect(new java.awt.geom.Area(new Rectangle2D.Double(-big, -big, 2 * big, big + line)));
+			moreArea.intersect(new java.awt.geom.Area(new Rectangle2D.Double(-big, line, 2 * big, big)));
+		}
+		assertSameParts(Java2DConverter.areaToShapes(lessArea), less);
+		assertSameParts(Java2DConverter.areaToShapes(moreArea), more);
+	}
+
+	private static void compareClipWithJava2D(List<Coord> shape, Area bbox) {
+		java.awt.geom.Area expected = Java2DConverter.createArea(shape);
+		expected.intersect(Java2DConverter.createBoundsArea(bbox));
+		assertSameParts(Java2DConverter.areaToShapes(expected), ShapeSplitter.clipToBounds(shape, bbox));
+	}
+
+	/**
+	 * The number of parts and the area of each part are the same. The areas
+	 * are only nearly the same, because the new points are rounded to high
+	 * precision units after each cut.
+	 */
+	private static void assertSameParts(List<List<Coord>> expected, List<List<Coord>> actual) {
+		assertEquals("number of parts", expected.size(), actual.size());
+		List<Double> expectedAreas = new ArrayList<>();
+		for (List<Coord> shape : expected)
+			expectedAreas.add(area(shape));
+		List<Double> actualAreas = new ArrayList<>();
+		for (List<Coord> shape : actual)
+			actualAreas.add(area(shape));
+		Collections.sort(expectedAreas);
+		Collections.sort(actualAreas);
+		for (int i = 0; i < expectedAreas.size(); i++)
+			assertEquals("area of part " + i, expectedAreas.get(i), actualAreas.get(i), 0.5);
+	}
+
+	/**
+	 * A polygon around the origin, with some points on the grid lines and some
+	 * in the same direction.
+	 */
+	private static List<Coord> createRing(Random random, int n) {
+		List<Coord> points = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			double a = 2 * Math.PI * i / n;
+			double r = 5 + random.nextInt(30);
+			int lat = (int) (r * Math.cos(a) * 64);
+			int lon = (int) (r * Math.sin(a) * 64);
+			if (random.nextInt(4) == 0)
+				lat &= ~63;
+			if (random.nextInt(4) == 0)
+				lon &= ~63;
+			points.add(Coord.makeHighPrecCoord(lat, lon));
+		}
+		points.add(points.get(0));
+		return points;
+	}
+
+	private static List<Coord> ring(int... latLon) {
+		List<Coord> points = new ArrayList<>();
+		for (int i = 0; i < latLon.length; i += 2)
+			points.add(new Coord(latLon[i], latLon[i + 1]));
+		points.add(points.get(0));
+		return points;
+	}
+
+	private static double totalArea(List<List<Coord>> shapes) {
+		double sum = 0;
+		for (List<Coord> shape : shapes)
+			sum += signedArea(shape);
+		return Math.abs(sum);
+	}
+
+	/**
+	 * @return The area in square map units.
+	 */
+	private static double area(List<Coord> shape) {
+		return Math.abs(signedArea(shape));
+	}
+
+	private static double signedArea(List<Coord> shape) {
+		double sum = 0;
+		for (int i = 1; i < shape.size(); i++) {
+			Coord p = shape.get(i - 1);
+			Coord q = shape.get(i);
+			sum += (double) p.getHighPrecLon() * q.getHighPrecLat() - (double) q.getHighPrecLon() * p.getHighPrecLat();
+		}
+		return sum / 2 / 64 / 64;
+	}
+}
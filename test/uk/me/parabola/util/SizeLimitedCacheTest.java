@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SizeLimitedCacheTest {
+
+	private static SizeLimitedCache<String, String> createCache(long maxSize) {
+		return new SizeLimitedCache<String, String>("test", maxSize) {
+			protected long sizeOf(String value) {
+				return value == null ? 0 : value.length();
+			}
+		};
+	}
+
+	private static class Loader implements Callable<String> {
+		private final String value;
+		private int calls;
+
+		Loader(String value) {
+			this.value = value;
+		}
+
+		public String call() {
+			calls++;
+			return value;
+		}
+	}
+
+	/**
+	 * A value is loaded once only, null values are cached as well.
+	 */
+	@Test
+	public void testLoadOnce() throws Exception {
+		SizeLimitedCache<String, String> cache = createCache(100);
+		Loader a = new Loader("aaa");
+		Loader none = new Loader(null);
+		assertEquals("aaa", cache.get("a", a));
+		assertEquals("aaa", cache.get("a", a));
+		assertNull(cache.get("none", none));
+		assertNull(cache.get("none", none));
+		assertEquals(1, a.calls);
+		assertEquals(1, none.calls);
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	/**
+	 * The least recently used values are removed when the limit is exceeded.
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		SizeLimitedCache<String, String> cache = createCache(10);
+		Loader a = new Loader("aaaa");
+		Loader b = new Loader("bbbb");
+		Loader c = new Loader("cccc");
+		cache.get("a", a);
+		cache.get("b", b);
+		cache.get("a", a);
+		cache.get("c", c);
+		// b was used least recently
+		cache.get("a", a);
+		cache.get("b", b);
+		assertEquals(1, a.calls);
+		assertEquals(2, b.calls);
+		assertEquals(1, c.calls);
+	}
+
+	/**
+	 * A size of 0 disables the cache.
+	 */
+	@Test
+	public void testDisabled() throws Exception {
+		SizeLimitedCache<String, String> cache = createCache(0);
+		Loader a = new Loader("aaa");
+		cache.get("a", a);
+		cache.get("a", a);
+		assertEquals(2, a.calls);
+	}
+
+	/**
+	 * Failed loads are not cached.
+	 */
+	@Test
+	public void testFailure() throws Exception {
+		SizeLimitedCache<String, String> cache = createCache(100);
+		try {
+			cache.get("a", new Callable<String>() {
+				public String call() throws Exception {
+					throw new IOException("failed");
+				}
+			});
+			fail("exception expected");
+		} catch (IOException e) {
+			assertEquals("failed", e.getMessage());
+		}
+		assertEquals("aaa", cache.get("a", new Loader("aaa")));
+	}
+}